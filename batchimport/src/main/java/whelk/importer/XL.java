@@ -139,7 +139,7 @@ class XL
                 Document incoming = convertToRDF(incomingMarcRecord, idToMerge);
                 if (m_parameters.getReadOnly()) {
                     Document existing = m_whelk.getDocument(idToMerge);
-                    History existingHistory = new History(m_whelk.getStorage().loadDocumentHistory(existing.getShortId()), m_whelk.getJsonld());
+                    History existingHistory = m_whelk.getStorage().getHistory(existing.getShortId());
                     m_merge.merge(existing, incoming, m_parameters.getChangedBy(), existingHistory);
                     System.out.println("info: Would now (if --live had been specified) have written the following json-ld to whelk as a merged record:\n"
                             + existing.getDataAsString());
@@ -157,7 +157,7 @@ class XL
                             if (tuple.get(0).equals("SystemNumber"))
                                 systemNumbers.add( (String) tuple.get(1) );
 
-                        History existingHistory = new History(m_whelk.getStorage().loadDocumentHistory(existing.getShortId()), m_whelk.getJsonld());
+                        History existingHistory = m_whelk.getStorage().getHistory(existing.getShortId());
                         m_merge.merge(existing, incoming, m_parameters.getChangedBy(), existingHistory);
 
                         // The mainID must remain unaffected.
@@ -8,6 +8,7 @@ import whelk.Document
 import whelk.JsonLd
 import whelk.TargetVocabMapper
 import whelk.Whelk
+import whelk.component.PostgreSQLComponent.BatchResult
 import whelk.converter.TrigToJsonLdParser
 import whelk.util.DocumentUtil
 
@@ -37,10 +38,14 @@ class DatasetImporter {
 
     static FORCE_DELETE = 'force-delete'
     
+    // New records are created this many at a time
+    static final int CREATE_BATCH_SIZE = 200
+
     enum WRITE_RESULT {
         ALREADY_UP_TO_DATE,
         UPDATED,
-        CREATED
+        // Queued to be created with others, counted in createdCount once created, see flushCreates()
+        PENDING_CREATE
     }
 
     Whelk whelk
@@ -60,6 +65,10 @@ class DatasetImporter {
 
     Map<String, String> aliasMap = [:]
 
+    // New records not yet created, by system id
+    private Map<String, Document> pendingCreates = [:]
+    private long createdCount = 0
+
     DatasetImporter(Whelk whelk, String datasetUri, Map flags=[:], Object descriptions=null) {
         this.whelk = whelk
         this.datasetUri = datasetUri
@@ -127,7 +136,7 @@ class DatasetImporter {
         String recordType = sourceUrl ==~ /^(https?):.+/ ? JsonLd.CACHE_RECORD_TYPE : JsonLd.RECORD_TYPE
 
         long updatedCount = 0
-        long createdCount = 0
+        createdCount = 0
         long lineCount = 1 // The datasets' self describing first record also counts.
 
         boolean first = true
@@ -152,20 +161,21 @@ class DatasetImporter {
             // the same ID created in between the check and the creation, we'll
             // get an exception and fail early (unfortunate but acceptable).
             switch (createOrUpdateDocument(incomingDoc)) {
-                case WRITE_RESULT.CREATED:
-                    createdCount++;
-                    break;
                 case WRITE_RESULT.UPDATED:
                     updatedCount++;
             }
 
             if ( lineCount % 100 == 0 ) {
+                long queuedCount = pendingCreates.size()
                 System.err.println("Processed " + lineCount + " input records. " + createdCount + " created, " +
-                        updatedCount + " updated, " + (lineCount-createdCount-updatedCount) + " already up to date.")
+                        queuedCount + " to be created, " + updatedCount + " updated, " +
+                        (lineCount-createdCount-queuedCount-updatedCount) + " already up to date.")
             }
             ++lineCount
         }
 
+        flushCreates()
+
         List<String> needsRetry = []
         long deletedCount = removeDeleted(idsInInput, needsRetry)
 
@@ -370,9 +380,14 @@ class DatasetImporter {
     }
 
     private WRITE_RESULT createOrUpdateDocument(Document incomingDoc) {
+        if (pendingCreates.containsKey(incomingDoc.getShortId())) {
+            flushCreates()
+        }
         Document storedDoc = whelk.getDocument(incomingDoc.getShortId())
         WRITE_RESULT result
         if (storedDoc != null) {
+            // The update can link to records not yet created
+            flushCreates()
             boolean updated = whelk.storeAtomicUpdate(incomingDoc.getShortId(), true, false, "xl", null, { doc ->
                 doc.data = incomingDoc.data
             })
@@ -382,12 +397,41 @@ class DatasetImporter {
                 result = WRITE_RESULT.ALREADY_UP_TO_DATE
             }
         } else {
-            whelk.createDocument(incomingDoc, "xl", null, collection, false)
-            result = WRITE_RESULT.CREATED
+            queueCreate(incomingDoc)
+            result = WRITE_RESULT.PENDING_CREATE
         }
         return result
     }
 
+    private void queueCreate(Document doc) {
+        pendingCreates[doc.getShortId()] = doc
+        // What getThingId() in normalizeLinks() will return once the record is created
+        List<String> thingIds = doc.getThingIdentifiers()
+        if (thingIds) {
+            (doc.getRecordIdentifiers() + thingIds).each { String id -> aliasMap[id] = thingIds[0] }
+        }
+        if (pendingCreates.size() >= CREATE_BATCH_SIZE) {
+            flushCreates()
+        }
+    }
+
+    private void flushCreates() {
+        if (!pendingCreates) {
+            return
+        }
+        List<Document> docs = new ArrayList<>(pendingCreates.values())
+        pendingCreates.clear()
+
+        // Throws if any record fails, as when creating one record at a time
+        for (BatchResult result : whelk.createDocuments(docs, "xl", null, collection)) {
+            if (result.outcome == BatchResult.Outcome.CREATED) {
+                createdCount++
+            } else {
+                log.warn("Did not create ${result.document.getShortId()}")
+            }
+        }
+    }
+
     private long removeDeleted(Set<String> idsInInput, List<String> needsRetry) {
         // Clear out anything that was previously stored in this dataset, but was not in the in-data now.
         // If faced with "can't delete depended on stuff", retry again later, after more other deletes have
@@ -72,13 +72,16 @@ class ImporterMain {
         }
     }
 
-    @Command(args='[COLLECTION] [-t NUMBEROFTHREADS]')
+    @Command(args='[COLLECTION] [-t NUMBEROFTHREADS] [-r NUMBEROFREADERS [-s NUMBEROFSENDERS] [-c CHECKPOINTFILE]]')
     void reindex(String... args) {
-        def cli = new CliBuilder(usage: 'reindex [collection] -[ht]')
+        def cli = new CliBuilder(usage: 'reindex [collection] -[htrsc]')
         // Create the list of options.
         cli.with {
             h longOpt: 'help', 'Show usage information'
             t longOpt: 'threads', type: int,  'Number of threads in parallel'
+            r longOpt: 'readers', type: int, 'Number of concurrent database readers (pipelined reindex)'
+            s longOpt: 'senders', type: int, 'Number of concurrent bulk requests to elastic (pipelined reindex, default 4)'
+            c longOpt: 'checkpoint', type: String, 'File for saving progress, to be able to continue an interrupted reindex (pipelined reindex)'
         }
          
         def options = cli.parse(args)
@@ -103,7 +106,14 @@ class ImporterMain {
         boolean useCache = true
         Whelk whelk = Whelk.createLoadedSearchWhelk(props, useCache)
         def reindex = new ElasticReindexer(whelk)
-        reindex.reindex(collection, numberOfThreads)
+        if (options.r) {
+            int numberOfSenders = options.s ?: 4
+            File checkpointFile = options.c ? new File((String) options.c) : null
+            reindex.reindexPipelined(collection, numberOfThreads, options.r, numberOfSenders, checkpointFile)
+        }
+        else {
+            reindex.reindex(collection, numberOfThreads)
+        }
     }
 
     @Command(args='[COLLECTION]')
@@ -238,6 +248,16 @@ class ImporterMain {
         whelk.storage.queueSparqlUpdatesFrom(fromUnixTime)
     }
 
+    /**
+     * Rewrite all stored document versions as full snapshots every SNAPSHOT_INTERVAL versions and patches in between.
+     * Defaults to the configured versionSnapshotInterval. Use 1 to store all versions in full again.
+     */
+    @Command(args='[SNAPSHOT_INTERVAL]')
+    void packVersions(String interval=null) {
+        Whelk whelk = Whelk.createLoadedCoreWhelk(props)
+        whelk.storage.packVersions(interval ? Integer.parseInt(interval) : whelk.storage.versionSnapshotInterval)
+    }
+
     private static void filterProblematicData(id, data) {
         if (data instanceof Map) {
             data.removeAll { entry ->
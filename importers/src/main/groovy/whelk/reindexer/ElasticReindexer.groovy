@@ -3,8 +3,19 @@ package whelk.reindexer
 import groovy.util.logging.Log4j2 as Log
 import whelk.Document
 import whelk.Whelk
+import whelk.component.ElasticBulkBody
+import whelk.reindexer.ReindexCheckpoint.IdRange
 import whelk.util.BlockingThreadPool
 
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
+
 @Log
 class ElasticReindexer {
 
@@ -12,10 +23,19 @@ class ElasticReindexer {
     static final int MAX_RETRIES = 5
     static final int RETRY_WAIT_MS = 3000
 
+    // Number of id ranges per reader thread, so that readers finishing early can take over remaining ranges
+    static final int RANGES_PER_READER = 4
+    // Max number of batches waiting between pipeline stages
+    static final int QUEUE_SIZE = 16
+    static final long CHECKPOINT_INTERVAL_MS = 10_000
+
     Whelk whelk
 
     long startTime
 
+    // for testing
+    long retryWaitMs = RETRY_WAIT_MS
+
     // Abort on unhandled exceptions, including those on worker threads.
     static
     {
@@ -100,13 +120,200 @@ class ElasticReindexer {
         }
     }
 
+    /**
+     * Reindex with several readers, each reading its own ranges of ids.
+     *
+     * Reading, embellishing and shaping, and sending to elastic are separate stages connected by bounded queues.
+     * If a checkpoint file is given, progress is saved there and running again with the same file continues
+     * where the previous run stopped.
+     * If any stage fails, all stages are stopped and the failure is thrown after saving the checkpoint.
+     */
+    void reindexPipelined(String suppliedCollection, int numberOfThreads, int numberOfReaders, int numberOfSenders,
+                          File checkpointFile) {
+        startTime = System.currentTimeMillis()
+        ReindexCheckpoint checkpoint = ReindexCheckpoint.loadOrCreate(checkpointFile) {
+            List<String> collections = suppliedCollection ? [suppliedCollection] : whelk.storage.loadCollections()
+            collections.collectMany { collection -> idRanges(collection, numberOfReaders * RANGES_PER_READER) }
+        }
+
+        BlockingQueue<Batch> fetched = new ArrayBlockingQueue<>(QUEUE_SIZE)
+        BlockingQueue<Batch> shaped = new ArrayBlockingQueue<>(QUEUE_SIZE)
+        AtomicLong counter = new AtomicLong()
+        PipelineFailure failure = new PipelineFailure()
+
+        List<Thread> shapers = startStage("reindex-shape", numberOfThreads, failure) { shape(fetched, shaped) }
+        List<Thread> senders = startStage("reindex-send", numberOfSenders, failure) { send(shaped, counter) }
+
+        Timer progress = new Timer("reindex-checkpoint", true)
+        progress.schedule({
+            double docsPerSec = ((double) counter.get()) / ((double) ((System.currentTimeMillis() - startTime) / 1000))
+            println("Indexing $docsPerSec documents per second (running average since process start). Total count: ${counter.get()}.")
+            checkpoint.save()
+        }, CHECKPOINT_INTERVAL_MS, CHECKPOINT_INTERVAL_MS)
+
+        ExecutorService readers = Executors.newFixedThreadPool(numberOfReaders)
+        failure.readers = readers
+        checkpoint.ranges.findAll { !it.done }.each { range ->
+            readers.execute {
+                try {
+                    read(range, fetched)
+                } catch (Throwable e) {
+                    failure.set(e)
+                }
+            }
+        }
+        readers.shutdown()
+        readers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS)
+
+        shapers.each { putUnlessFailed(fetched, Batch.END, failure) }
+        shapers.each { it.join() }
+        senders.each { putUnlessFailed(shaped, Batch.END, failure) }
+        senders.each { it.join() }
+
+        progress.cancel()
+        checkpoint.save()
+
+        if (failure.isSet()) {
+            throw new RuntimeException("Reindex failed, progress up to the failure is in the checkpoint", failure.get())
+        }
+
+        println("Done! ${counter.get()} documents reindexed in ${(System.currentTimeMillis() - startTime) / 1000} seconds.")
+        println("New number of mappings/fields in ES: ${whelk.elastic.getFieldCount()}")
+        whelk.storage.logStats()
+    }
+
+    private List<IdRange> idRanges(String collection, int numRanges) {
+        List<String> boundaries = whelk.storage.sampleIdRangeBoundaries(collection, numRanges)
+        List<String> from = [''] + boundaries
+        List<String> to = boundaries + [null]
+        return (0..<from.size()).collect { new IdRange(collection, from[it], to[it]) }
+    }
+
+    private static List<Thread> startStage(String name, int numberOfThreads, PipelineFailure failure, Closure loop) {
+        return (0..<numberOfThreads).collect { i ->
+            Thread t = new Thread({
+                try {
+                    loop()
+                } catch (Throwable e) {
+                    failure.set(e)
+                }
+            }, "$name-$i")
+            failure.threads << t
+            t.start()
+            return t
+        }
+    }
+
+    /**
+     * The stages are stopped on failure and no longer take from the queues, so don't wait for room forever
+     */
+    private static void putUnlessFailed(BlockingQueue<Batch> queue, Batch batch, PipelineFailure failure) {
+        while (!failure.isSet()) {
+            if (queue.offer(batch, 1, TimeUnit.SECONDS)) {
+                return
+            }
+        }
+    }
+
+    /**
+     * The first exception thrown in any stage of the pipeline.
+     * All stages are interrupted when it is set, otherwise a stage that died would leave the others waiting
+     * forever on a queue that nobody drains or fills.
+     */
+    @Log
+    private static class PipelineFailure {
+        final List<Thread> threads = new CopyOnWriteArrayList<>()
+        ExecutorService readers
+        private final AtomicReference<Throwable> error = new AtomicReference<>()
+
+        void set(Throwable e) {
+            if (error.compareAndSet(null, e)) {
+                log.error("Reindex failed, stopping: $e", e)
+                readers?.shutdownNow()
+                threads.each { it.interrupt() }
+            }
+        }
+
+        boolean isSet() {
+            return error.get() != null
+        }
+
+        Throwable get() {
+            return error.get()
+        }
+    }
+
+    private void read(IdRange range, BlockingQueue<Batch> fetched) {
+        String after = range.startAfter()
+        long batchNumber = 0
+        while (true) {
+            List<Document> documents = whelk.storage.loadIdRange(range.collection, after, range.to, BATCH_SIZE)
+            if (documents.isEmpty()) {
+                break
+            }
+            after = documents.last().getShortId()
+            fetched.put(new Batch(range, batchNumber++, after, documents))
+            if (documents.size() < BATCH_SIZE) {
+                break
+            }
+        }
+        range.allBatchesRead(batchNumber)
+    }
+
+    private void shape(BlockingQueue<Batch> fetched, BlockingQueue<Batch> shaped) {
+        while (true) {
+            Batch batch = fetched.take()
+            if (batch.is(Batch.END)) {
+                return
+            }
+            batch.body = whelk.elastic.createBulkIndexBody(batch.documents, whelk)
+            batch.documents = null
+            shaped.put(batch)
+        }
+    }
+
+    private void send(BlockingQueue<Batch> shaped, AtomicLong counter) {
+        while (true) {
+            Batch batch = shaped.take()
+            if (batch.is(Batch.END)) {
+                return
+            }
+            withRetries { whelk.elastic.sendBulkIndex(batch.body) }
+            batch.range.batchSent(batch.batchNumber, batch.lastId)
+            counter.addAndGet(batch.numDocs)
+        }
+    }
+
+    private static class Batch {
+        static final Batch END = new Batch(null, -1, null, [])
+
+        final IdRange range
+        final long batchNumber
+        final String lastId
+        final int numDocs
+        List<Document> documents
+        ElasticBulkBody body
+
+        Batch(IdRange range, long batchNumber, String lastId, List<Document> documents) {
+            this.range = range
+            this.batchNumber = batchNumber
+            this.lastId = lastId
+            this.numDocs = documents.size()
+            this.documents = documents
+        }
+    }
+
     private void bulkIndexWithRetries(List<Document> docs, Whelk whelk) {
+        withRetries { whelk.elastic.bulkIndex(docs, whelk) }
+    }
+
+    private void withRetries(Closure bulkIndex) {
         int retriesLeft = MAX_RETRIES
 
         Exception error
-        while(error = tryBulkIndex(docs, whelk)) {
-            if (retriesLeft-- > 0) {
-                log.warn("Failed to index batch: [${error}], retrying after ${RETRY_WAIT_MS} ms")
+        while(error = tryBulkIndex(bulkIndex)) {
+            if (retriesLeft-- > 0 && !Thread.currentThread().isInterrupted()) {
+                log.warn("Failed to index batch: [${error}], retrying after ${retryWaitMs} ms")
                 sleep()
             } else {
                 log.warn("Failed to index batch: [${error}], max retries exceeded")
@@ -115,9 +322,9 @@ class ElasticReindexer {
         }
     }
 
-    private Exception tryBulkIndex(List<Document> docs, Whelk whelk) {
+    private Exception tryBulkIndex(Closure bulkIndex) {
         try {
-            whelk.elastic.bulkIndex(docs, whelk)
+            bulkIndex()
             return null
         }
         catch (Exception e) {
@@ -127,10 +334,12 @@ class ElasticReindexer {
 
     private void sleep() {
         try {
-            Thread.sleep(RETRY_WAIT_MS)
+            Thread.sleep(retryWaitMs)
         }
         catch (InterruptedException e) {
             log.warn("Woke up early", e)
+            // Keep the interrupt, it means stop
+            Thread.currentThread().interrupt()
         }
     }
 }
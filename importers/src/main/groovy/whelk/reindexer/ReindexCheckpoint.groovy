@@ -0,0 +1,109 @@
+package whelk.reindexer
+
+import groovy.util.logging.Log4j2 as Log
+
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+
+import static whelk.util.Jackson.mapper
+
+/**
+ * Progress of a pipelined reindex, see ElasticReindexer.reindexPipelined()
+ *
+ * Every collection is split in ranges of ids. For each range we keep the last id up to which all documents
+ * have been sent to Elasticsearch. The ranges are saved as JSON so that an interrupted reindex can continue
+ * where it stopped.
+ */
+@Log
+class ReindexCheckpoint {
+    static class IdRange {
+        final String collection
+        // exclusive, "" is the start of the collection
+        final String from
+        // inclusive, null is the end of the collection
+        final String to
+        // everything in (from, checkpoint] has been sent
+        String checkpoint
+        boolean done
+
+        // Batches can be sent out of order, only move the checkpoint past batches that are all sent
+        private long nextBatch = 0
+        private Long numBatches = null
+        private final TreeMap<Long, String> sentBatches = new TreeMap<>()
+
+        IdRange(String collection, String from, String to, String checkpoint = null, boolean done = false) {
+            this.collection = collection
+            this.from = from
+            this.to = to
+            this.checkpoint = checkpoint
+            this.done = done
+        }
+
+        String startAfter() {
+            return checkpoint ?: from
+        }
+
+        synchronized void batchSent(long batchNumber, String lastId) {
+            sentBatches.put(batchNumber, lastId)
+            while (sentBatches.containsKey(nextBatch)) {
+                checkpoint = sentBatches.remove(nextBatch)
+                nextBatch++
+            }
+            checkDone()
+        }
+
+        synchronized void allBatchesRead(long numBatches) {
+            this.numBatches = numBatches
+            checkDone()
+        }
+
+        private void checkDone() {
+            if (numBatches != null && nextBatch == numBatches) {
+                done = true
+            }
+        }
+
+        synchronized Map toMap() {
+            return [collection: collection, from: from, to: to, checkpoint: checkpoint, done: done]
+        }
+
+        static IdRange fromMap(Map m) {
+            return new IdRange((String) m.collection, (String) m.from, (String) m.to, (String) m.checkpoint, (boolean) m.done)
+        }
+    }
+
+    final List<IdRange> ranges
+    private final File file
+
+    private ReindexCheckpoint(File file, List<IdRange> ranges) {
+        this.file = file
+        this.ranges = ranges
+    }
+
+    /**
+     * @param file where progress is saved, or null to not save progress
+     * @param createRanges called if there is no saved progress
+     */
+    static ReindexCheckpoint loadOrCreate(File file, Closure<List<IdRange>> createRanges) {
+        if (file?.exists()) {
+            List<Map> saved = mapper.readValue(file, Map).ranges
+            log.info("Continuing reindex from checkpoint in $file")
+            return new ReindexCheckpoint(file, saved.collect { IdRange.fromMap(it) })
+        }
+
+        ReindexCheckpoint checkpoint = new ReindexCheckpoint(file, createRanges())
+        checkpoint.save()
+        return checkpoint
+    }
+
+    synchronized void save() {
+        if (file == null) {
+            return
+        }
+
+        // Write and rename, so that there is always a complete checkpoint if we crash
+        File tmp = new File(file.getPath() + '.tmp')
+        mapper.writeValue(tmp, [ranges: ranges.collect { it.toMap() }])
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    }
+}
@@ -0,0 +1,113 @@
+package whelk.reindexer
+
+import spock.lang.Specification
+import spock.lang.Timeout
+import whelk.Document
+import whelk.Whelk
+import whelk.component.ElasticBulkBody
+import whelk.component.ElasticIndexingQueue
+import whelk.component.ElasticSearch
+import whelk.component.PostgreSQLComponent
+
+import java.util.concurrent.atomic.AtomicInteger
+
+@Timeout(30)
+class ElasticReindexerSpec extends Specification {
+
+    // Number of full batches to read, or never stop if null
+    Integer numBatches = null
+    AtomicInteger batchesRead = new AtomicInteger()
+    AtomicInteger batchesSent = new AtomicInteger()
+    Closure read = { batchesRead.incrementAndGet() }
+    Closure send = { batchesSent.incrementAndGet() }
+
+    List<Document> batch = (0..<ElasticReindexer.BATCH_SIZE).collect { doc(String.format('%05d', it)) }
+
+    def storage = new PostgreSQLComponent() {
+        @Override
+        List<String> sampleIdRangeBoundaries(String collection, int numRanges) {
+            return []
+        }
+
+        @Override
+        List<Document> loadIdRange(String collection, String afterId, String toId, int limit) {
+            if (numBatches != null && batchesRead.get() >= numBatches) {
+                return []
+            }
+            read()
+            return batch
+        }
+
+        @Override
+        void logStats() {
+        }
+    }
+
+    def elastic = new ElasticSearch({ ops -> } as ElasticIndexingQueue.BulkSender) {
+        @Override
+        ElasticBulkBody createBulkIndexBody(Collection<Document> docs, Whelk whelk) {
+            return new ElasticBulkBody()
+        }
+
+        @Override
+        void sendBulkIndex(ElasticBulkBody body) {
+            send()
+        }
+
+        @Override
+        int getFieldCount() {
+            return 0
+        }
+    }
+
+    ElasticReindexer reindexer
+
+    def setup() {
+        Whelk whelk = new Whelk(storage)
+        whelk.elastic = elastic
+        reindexer = new ElasticReindexer(whelk)
+        reindexer.retryWaitMs = 0
+    }
+
+    def "send all batches"() {
+        given:
+        numBatches = 2
+
+        when:
+        reindexer.reindexPipelined('bib', 2, 1, 2, null)
+
+        then:
+        batchesSent.get() == batchesRead.get()
+    }
+
+    def "stop and fail when a sender fails"() {
+        given:
+        send = { throw new RuntimeException('elastic is down') }
+
+        when:
+        reindexer.reindexPipelined('bib', 2, 1, 2, null)
+
+        then:
+        RuntimeException e = thrown()
+        e.cause.message == 'elastic is down'
+    }
+
+    def "stop and fail when a reader fails"() {
+        given:
+        read = { throw new RuntimeException('postgres is down') }
+
+        when:
+        reindexer.reindexPipelined('bib', 2, 1, 2, null)
+
+        then:
+        RuntimeException e = thrown()
+        e.cause.message == 'postgres is down'
+    }
+
+    private static Document doc(String id) {
+        String recordIri = Document.BASE_URI.resolve(id).toString()
+        Map record = ['@id': recordIri, '@type': 'Record', 'mainEntity': ['@id': recordIri + '#it']]
+        Map thing = ['@id': recordIri + '#it', '@type': 'Instance']
+        return new Document(['@graph': [record, thing]])
+    }
+}
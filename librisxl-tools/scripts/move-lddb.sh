@@ -127,7 +127,7 @@ REPLACEID="s!\(\(\"@id\": \"\|\t\)https://libris\)\(-\w\+\)\?\(.kb.se/[bcdfghjkl
 
 # Using `--schema=public` excludes e.g. extensions.
 #-T lddb__versions
-PGPASSWORD=$SOURCEPASSWORD pg_dump --schema=public --exclude-table-data=lddb__embellished -h $SOURCEHOST -U $SOURCEUSER $SOURCEDB |
+PGPASSWORD=$SOURCEPASSWORD pg_dump --schema=public --exclude-table-data=lddb__embellished --exclude-table-data=lddb__converted -h $SOURCEHOST -U $SOURCEUSER $SOURCEDB |
     ( read; cat - |
     sed "$REPLACEID" |
     handle_sql_dump )
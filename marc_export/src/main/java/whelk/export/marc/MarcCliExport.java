@@ -110,7 +110,7 @@ public class MarcCliExport
                 stop = stop +"T23:59:59Z";
                 var parameters = new ProfileExport.Parameters(profile, start, stop, ProfileExport.DELETE_MODE.IGNORE, false);
                 Whelk whelk = Whelk.createLoadedCoreWhelk();
-                ProfileExport pf = new ProfileExport(whelk, whelk.getStorage().createAdditionalConnectionPool("ProfileExport"));
+                ProfileExport pf = new ProfileExport(whelk, whelk.getStorage().createAdditionalReadOnlyConnectionPool("ProfileExport"));
                 pf.exportInto(output, parameters);
                 pf.shutdown();
             }
@@ -150,7 +150,7 @@ public class MarcCliExport
     {
         Set<String> agentTypes = m_whelk.getJsonld().getSubClasses("Agent");
         agentTypes.add("Agent");
-        try(Connection connection = m_whelk.getStorage().getOuterConnection();
+        try(Connection connection = m_whelk.getStorage().getOuterReadOnlyConnection();
             PreparedStatement preparedStatement = getAllSaoAndAgentsStatement(connection, agentTypes);
             ResultSet resultSet = preparedStatement.executeQuery())
         {
@@ -180,7 +180,7 @@ public class MarcCliExport
     {
         HashSet<String> workDerivativeTypes = new HashSet<>(m_whelk.getJsonld().getSubClasses("Work"));
 
-        try(Connection connection = m_whelk.getStorage().getOuterConnection();
+        try(Connection connection = m_whelk.getStorage().getOuterReadOnlyConnection();
             PreparedStatement preparedStatement = getAllAuthStatement(connection);
             ResultSet resultSet = preparedStatement.executeQuery())
         {
@@ -318,7 +318,7 @@ public class MarcCliExport
     private Connection getConnection()
             throws SQLException
     {
-        Connection connection = m_whelk.getStorage().getOuterConnection();
+        Connection connection = m_whelk.getStorage().getOuterReadOnlyConnection();
         connection.setAutoCommit(false);
         return connection;
     }
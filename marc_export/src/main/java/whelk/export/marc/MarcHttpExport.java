@@ -57,7 +57,7 @@ public class MarcHttpExport extends HttpServlet
     public void init()
     {
         whelk = Whelk.createLoadedCoreWhelk();
-        profileExport = new ProfileExport(whelk, whelk.getStorage().createAdditionalConnectionPool("ProfileExport"));
+        profileExport = new ProfileExport(whelk, whelk.getStorage().createAdditionalReadOnlyConnectionPool("ProfileExport"));
     }
 
     public void destroy() {
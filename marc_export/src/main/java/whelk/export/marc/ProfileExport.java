@@ -433,7 +433,10 @@ public class ProfileExport
     private PreparedStatement getAllChangedIDsStatement(Timestamp from, Timestamp until, Connection connection)
             throws SQLException
     {
-        String sql = "SELECT id, collection, created, deleted, data#>>'{@graph,1,@type}' AS mainEntityType FROM lddb__versions WHERE modified >= ? AND modified <= ? AND collection in ('bib', 'auth', 'hold')";
+        // Versions stored as patches have no data of their own, the type is taken from the snapshot they patch
+        String sql = "SELECT v.id, v.collection, v.created, v.deleted, COALESCE(v.data, s.data)#>>'{@graph,1,@type}' AS mainEntityType " +
+                "FROM lddb__versions v LEFT JOIN lddb__versions s ON s.pk = v.snapshot " +
+                "WHERE v.modified >= ? AND v.modified <= ? AND v.collection in ('bib', 'auth', 'hold')";
         PreparedStatement preparedStatement = connection.prepareStatement(sql);
         preparedStatement.setTimestamp(1, from);
         preparedStatement.setTimestamp(2, until);
@@ -547,7 +550,7 @@ public class ProfileExport
 
             @Override
             public void run() {
-                try (Connection connection = m_whelk.getStorage().getOuterConnection()) {
+                try (Connection connection = m_whelk.getStorage().getOuterReadOnlyConnection()) {
                     exportAffectedDocuments(id, collection, created, deleted, parameters.fromTimeStamp, 
                             parameters.untilTimeStamp, parameters.profile, out, parameters.deleteMode,
                             parameters.doVirtualDeletions, exportedIDs, deletedNotifications, mainEntityType, connection);
@@ -61,7 +61,7 @@ public class GetRecord
         }
 
         String id = null;
-        try (Connection dbconn = OaiPmh.s_whelk.getStorage().getOuterConnection();
+        try (Connection dbconn = OaiPmh.s_whelk.getStorage().getOuterReadOnlyConnection();
              PreparedStatement preparedStatement = Helpers.prepareSameAsStatement(dbconn, identifierUri);
              ResultSet resultSet = preparedStatement.executeQuery())
         {
@@ -75,7 +75,7 @@ public class GetRecord
             return;
         }
 
-        try (Connection dbconn = OaiPmh.s_whelk.getStorage().getOuterConnection())
+        try (Connection dbconn = OaiPmh.s_whelk.getStorage().getOuterReadOnlyConnection())
         {
             dbconn.setAutoCommit(false);
             try (Helpers.ResultIterator it = Helpers.getMatchingDocuments(dbconn, null, null, null, id, false, false))
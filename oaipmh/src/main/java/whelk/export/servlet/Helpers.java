@@ -1,6 +1,5 @@
 package whelk.export.servlet;
 
-import groovy.lang.Tuple2;
 import whelk.Document;
 import whelk.JsonLd;
 import whelk.util.LegacyIntegrationTools;
@@ -12,33 +11,105 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.time.Instant;
 import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Stack;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
 import java.util.StringJoiner;
 
 import static whelk.util.Jackson.mapper;
 
 public class Helpers
 {
+    private static final String NB_ENCODING_LEVEL = "marc:FullLevel";
+    private static final String SAO_SCHEME = "https://id.kb.se/term/sao";
+
+    // The bib record of the current row has a holding for the library given as parameter, same as PostgreSQLComponent.filterBibIdsByHeldBy()
+    private static final String IS_HELD_BY = "EXISTS (SELECT 1 FROM lddb__dependencies d JOIN lddb h ON h.id = d.id " +
+            "WHERE d.dependsOnId = lddb.id AND d.relation = 'itemOf' AND h.data#>>'{@graph,1,heldBy,@id}' = ?)";
+
+    /**
+     * A position in lddb in the order lists are sent in, see ResumptionToken
+     */
+    public static class Position {
+        // The last row that everything has been returned for, null for the start of the list
+        public final Instant modified;
+        public final String id;
+        // Set when stopped among the dependers found through the rows after (modified, id) up to and including
+        // (batchEndModified, batchEndId). The records of those rows and the dependers up to and including
+        // lastDepender, in id order, have been returned. lastDepender is "" if no depender has been returned yet.
+        // Dependers are read a page at a time after lastDepender, so resuming doesn't look up the ones before it.
+        public final Instant batchEndModified;
+        public final String batchEndId;
+        public final String lastDepender;
+
+        public Position(Instant modified, String id) {
+            this(modified, id, null, null, null);
+        }
+
+        public Position(Instant modified, String id, Instant batchEndModified, String batchEndId, String lastDepender) {
+            this.modified = modified;
+            this.id = id;
+            this.batchEndModified = batchEndModified;
+            this.batchEndId = batchEndId;
+            this.lastDepender = lastDepender;
+        }
+
+        public boolean isAmongDependers() {
+            return batchEndId != null;
+        }
+
+        /**
+         * @return true if the row (modified, id) comes after the end of the batch, in the order of keysetCondition()
+         */
+        boolean isAfterBatchEnd(Instant modified, String id) {
+            int c = modified.compareTo(batchEndModified);
+            return c > 0 || (c == 0 && id.compareTo(batchEndId) > 0);
+        }
+    }
+
     public static class ResultIterator implements Iterator<Document>, AutoCloseable {
 
+        // Rows in lddb handled together, i.e. whose changed auth records have their dependers looked up at once
+        private static final int ROWS_PER_BATCH = 200;
+        // Dependers loaded at once, which bounds the number of documents kept in memory
+        private static final int DEPENDERS_PER_BATCH = 500;
+
         private final PreparedStatement statement;
         private final ResultSet resultSet;
         private final String requestedCollection;
         private final String mustBeHeldBy;
         private final String explicitSet;
         private final boolean includeDependenciesInTimeInterval;
-        private final Stack<Document> resultingDocuments = new Stack<>();
-        private boolean firstAccess = true;
+        private final ArrayDeque<Document> resultingDocuments = new ArrayDeque<>();
+        // Changed auth records in the current batch whose dependers are yet to be loaded, in pages after lastDepender
+        private Set<String> dependersOf = Set.of();
+        // Everything queued so far, so that a record depending on several changed records is only sent once
+        private final Set<String> seenIds = new HashSet<>();
+        private final List<Document> changedAuths = new ArrayList<>();
+        private boolean exhausted = false;
+        // The last row of the current batch, and the last row everything has been returned for
+        private Position currentPosition = null;
+        private Position completedPosition = null;
+        // The last depender of the current batch that has been loaded, in id order
+        private String lastDepender = "";
+        // Set when resuming among the dependers of a batch, until that batch has been read again
+        private Position resumedBatch;
+        // A row read past the end of a resumed batch, it is the first row of the next batch
+        private Position aheadPosition = null;
+        private String aheadData = null;
 
         public ResultIterator(PreparedStatement statement, String requestedCollection, String mustBeHeldBy,
-                              boolean includeDependenciesInTimeInterval, String explicitSet)
+                              boolean includeDependenciesInTimeInterval, String explicitSet, Position after)
                 throws SQLException {
             this.statement = statement;
             this.resultSet = statement.executeQuery();
@@ -46,45 +117,30 @@ public class Helpers
             this.mustBeHeldBy = mustBeHeldBy;
             this.includeDependenciesInTimeInterval = includeDependenciesInTimeInterval;
             this.explicitSet = explicitSet;
+            if (after != null && after.isAmongDependers())
+            {
+                this.resumedBatch = after;
+                this.currentPosition = after.modified != null ? new Position(after.modified, after.id) : null;
+            }
         }
 
-        private boolean isHeld(Document doc, String bySigel)
+        private boolean inExplicitSet(Document doc)
         {
-            if (bySigel == null)
-                return false;
-            
-            List<Document> holdings = OaiPmh.s_whelk.getAttachedHoldings(doc.getThingIdentifiers());
-
-            for (Document holding : holdings)
-            {
-                String sigel = holding.getHeldBySigel();
-                if (bySigel.equals(sigel))
-                {
-                    return true;
-                }
-            }
+            // Beware: This <marc:..>-stuff is not future proof!
+            if (explicitSet == null)
+                return true;
+            else if (explicitSet.equals("nb"))
+                return NB_ENCODING_LEVEL.equals(doc.getEncodingLevel());
+            else if (explicitSet.equals("sao"))
+                return SAO_SCHEME.equals(doc.getThingInScheme());
             return false;
         }
 
         private void queueDocument(Document doc)
         {
-            if (explicitSet == null)
-            {
-                resultingDocuments.push(doc);
-            }
-            // Beware: This <marc:..>-stuff is not future proof!
-            else if (explicitSet.equals("nb") &&
-                    doc.getEncodingLevel() != null &&
-                    doc.getEncodingLevel().equals("marc:FullLevel"))
-            {
-                resultingDocuments.push(doc);
-            }
-            else if (explicitSet.equals("sao") &&
-                    doc.getThingInScheme() != null &&
-                    doc.getThingInScheme().equals("https://id.kb.se/term/sao"))
-            {
-                resultingDocuments.push(doc);
-            }
+            // The records of the rows of a resumed batch have already been sent
+            if (inExplicitSet(doc) && seenIds.add(doc.getShortId()) && resumedBatch == null)
+                resultingDocuments.add(doc);
         }
 
         private void emitAffected(Document updated)
@@ -103,38 +159,18 @@ public class Helpers
                 if (requestedCollection.equals("auth") &&
                         (type == null || !OaiPmh.workDerivativeTypes.contains(type)))
                     queueDocument(updated);
-                if (includeDependenciesInTimeInterval && (requestedCollection.equals("bib") || requestedCollection.equals("hold")) && hasCardChanged(updated))
+                if (includeDependenciesInTimeInterval && (requestedCollection.equals("bib") || requestedCollection.equals("hold")))
                 {
-                    List<Tuple2<String, String>> dependers = OaiPmh.s_whelk.getStorage().followDependers(updated.getShortId(), JsonLd.getNON_DEPENDANT_RELATIONS());
-                    for (Tuple2<String, String> depender : dependers)
-                    {
-                        String dependerId = depender.getV1();
-                        Document dependerDocument = OaiPmh.s_whelk.getDocument(dependerId);
-                        String dependerCollection = LegacyIntegrationTools.determineLegacyCollection(dependerDocument, OaiPmh.s_whelk.getJsonld());
-                        if (dependerCollection.equals("bib") && requestedCollection.equals("bib"))
-                        {
-                            if (mustBeHeldBy == null || isHeld(dependerDocument, mustBeHeldBy))
-                                queueDocument(dependerDocument);
-                        }
-                        else if (dependerCollection.equals("hold") && requestedCollection.equals("hold"))
-                        {
-                            String sigel = dependerDocument.getHeldBySigel();
-                            if (mustBeHeldBy == null || mustBeHeldBy.equals(sigel))
-                            {
-                                queueDocument(dependerDocument);
-                            }
-                        }
-                    }
+                    // Dependers are looked up for the whole batch, see queueDependers()
+                    changedAuths.add(updated);
                 }
             }
             else if (updatedCollection.equals("bib"))
             {
+                // Only bib records held by mustBeHeldBy are selected, see getSetCondition()
                 if (requestedCollection.equals("bib"))
                 {
-                    if (mustBeHeldBy == null || isHeld(updated, mustBeHeldBy))
-                    {
-                        queueDocument(updated);
-                    }
+                    queueDocument(updated);
                 }
             }
             else if (updatedCollection.equals("hold"))
@@ -151,48 +187,156 @@ public class Helpers
 
         }
 
-        private boolean hasCardChanged(Document updated) {
-            Document previousVersion = OaiPmh.s_whelk.getStorage().load(updated.getShortId(), "-1");
-            if (previousVersion == null) {
-                return true;
+        /**
+         * Set up loading the dependers of those of changedAuths whose card counts as changed.
+         *
+         * Only auth records without any stored version count as changed. That is what comparing the card with the
+         * previous version one record at a time did: it loaded the latest version as the previous one, so the
+         * cards of versioned records never differed.
+         *
+         * @param after only load dependers after this id, "" for all
+         */
+        private void queueDependers(String after)
+        {
+            lastDepender = after;
+            if (changedAuths.isEmpty())
+                return;
+
+            List<String> ids = new ArrayList<>();
+            for (Document doc : changedAuths)
+                ids.add(doc.getShortId());
+            changedAuths.clear();
+            dependersOf = OaiPmh.s_whelk.getStorage().filterWithoutVersions(ids);
+        }
+
+        /**
+         * Load the next page of dependers and queue those in the requested set
+         */
+        private void loadDependers()
+        {
+            SortedSet<String> page = OaiPmh.s_whelk.getStorage().followDependersOfAll(dependersOf,
+                    JsonLd.getNON_DEPENDANT_RELATIONS(), lastDepender, DEPENDERS_PER_BATCH);
+            if (page.size() < DEPENDERS_PER_BATCH)
+                dependersOf = Set.of();
+            if (page.isEmpty())
+                return;
+            lastDepender = page.last();
+
+            List<String> ids = new ArrayList<>();
+            for (String id : page)
+            {
+                // Whether a record is sent only depends on its current data, so it doesn't matter which row it's found through
+                if (seenIds.add(id))
+                    ids.add(id);
+            }
+            Map<String, Document> dependers = OaiPmh.s_whelk.bulkLoad(ids);
+
+            Set<String> heldBibIds = null;
+            if (requestedCollection.equals("bib") && mustBeHeldBy != null)
+            {
+                heldBibIds = OaiPmh.s_whelk.getStorage().filterBibIdsByHeldBy(dependers.keySet(),
+                        List.of(LegacyIntegrationTools.legacySigelToUri(mustBeHeldBy)));
+            }
+
+            for (String dependerId : ids)
+            {
+                Document dependerDocument = dependers.get(dependerId);
+                if (dependerDocument == null)
+                    continue;
+                String dependerCollection = LegacyIntegrationTools.determineLegacyCollection(dependerDocument, OaiPmh.s_whelk.getJsonld());
+                if (dependerCollection.equals("bib") && requestedCollection.equals("bib"))
+                {
+                    if (heldBibIds == null || heldBibIds.contains(dependerId))
+                        queueDepender(dependerDocument);
+                }
+                else if (dependerCollection.equals("hold") && requestedCollection.equals("hold"))
+                {
+                    String sigel = dependerDocument.getHeldBySigel();
+                    if (mustBeHeldBy == null || mustBeHeldBy.equals(sigel))
+                    {
+                        queueDepender(dependerDocument);
+                    }
+                }
             }
-            
-            var jsonLd = OaiPmh.s_whelk.getJsonld();
-            var oldCard = jsonLd.toCard(previousVersion.data);
-            var newCard = jsonLd.toCard(updated.data);
-            return !oldCard.equals(newCard);
         }
 
-        public boolean hasNext()
+        // The id is already in seenIds
+        private void queueDepender(Document doc)
         {
-            try
+            if (inExplicitSet(doc))
+                resultingDocuments.add(doc);
+        }
+
+        /**
+         * Read the next batch of rows
+         *
+         * @return false if there are no more rows
+         */
+        private boolean fetchRows() throws SQLException, IOException
+        {
+            // Everything from the previous batch has been returned by next()
+            completedPosition = currentPosition;
+            int rows = 0;
+            while (!exhausted && rows < ROWS_PER_BATCH)
             {
-                if ( firstAccess && (!resultSet.isBeforeFirst()) ) // Empty initial resultset?
+                Position position;
+                String data;
+                if (aheadPosition != null)
                 {
-                    return false;
+                    position = aheadPosition;
+                    data = aheadData;
+                    aheadPosition = null;
+                    aheadData = null;
                 }
-                else if (!resultingDocuments.isEmpty()) // Stuff already in the queue?
+                else if (resultSet.next())
                 {
-                    return true;
+                    position = new Position(resultSet.getTimestamp("modified").toInstant(), resultSet.getString("id"));
+                    data = resultSet.getString("data");
                 }
-                else // More to fetch from db?
+                else
                 {
-                    firstAccess = false;
-                    while (resultSet.next())
-                    {
-                        String data = resultSet.getString("data");
+                    exhausted = true;
+                    break;
+                }
 
-                        Document updated = new Document(mapper.readValue(data, HashMap.class));
-                        emitAffected(updated);
+                // A resumed batch ends where it ended before, rows that were in it and have been modified since
+                // are no longer there, but later rows must not take their place
+                if (resumedBatch != null && resumedBatch.isAfterBatchEnd(position.modified, position.id))
+                {
+                    aheadPosition = position;
+                    aheadData = data;
+                    break;
+                }
 
-                        // Did reading this record from the DB result in anything new in the export flow?
-                        if (!resultingDocuments.isEmpty())
-                            return true;
-                    }
+                ++rows;
+                currentPosition = position;
+                Document updated = new Document(mapper.readValue(data, HashMap.class));
+                emitAffected(updated);
+            }
+            if (resumedBatch != null)
+            {
+                // The batch may be gone entirely, its end is still where to continue after
+                currentPosition = new Position(resumedBatch.batchEndModified, resumedBatch.batchEndId);
+                queueDependers(resumedBatch.lastDepender);
+                resumedBatch = null;
+                return true;
+            }
+            queueDependers("");
+            return rows > 0;
+        }
 
-                    // We've gone over everything that's changed and there is nothing more to export.
-                    return false;
+        public boolean hasNext()
+        {
+            try
+            {
+                while (resultingDocuments.isEmpty())
+                {
+                    if (!dependersOf.isEmpty())
+                        loadDependers();
+                    else if (!fetchRows())
+                        return false; // We've gone over everything that's changed and there is nothing more to export.
                 }
+                return true;
             } catch (SQLException | IOException e)
             {
                 try
@@ -208,7 +352,25 @@ public class Helpers
 
         public Document next()
         {
-            return resultingDocuments.pop();
+            return resultingDocuments.poll();
+        }
+
+        /**
+         * Where to continue after so that exactly what hasn't been returned by next() yet is returned.
+         *
+         * Rows are handled in batches. The records of a batch are returned first, then its dependers a chunk at
+         * a time, in id order. The list can only be cut between these, so this is null while documents that
+         * have been read are still to be returned by next().
+         */
+        public Position getResumePosition()
+        {
+            if (!resultingDocuments.isEmpty() || currentPosition == null)
+                return null;
+            if (dependersOf.isEmpty())
+                return currentPosition;
+            return new Position(completedPosition != null ? completedPosition.modified : null,
+                    completedPosition != null ? completedPosition.id : null,
+                    currentPosition.modified, currentPosition.id, lastDepender);
         }
 
         public void close() throws SQLException {
@@ -260,11 +422,12 @@ public class Helpers
     }
 
     private static PreparedStatement getOpenIntervalStatement(Connection connection, ZonedDateTime fromDateTime,
-                                                                ZonedDateTime untilDateTime, boolean includeSilentChanges)
+                                                                ZonedDateTime untilDateTime, boolean includeSilentChanges,
+                                                                SetCondition setCondition, Position after)
             throws SQLException
     {
         PreparedStatement preparedStatement;
-        String sql = "SELECT data FROM lddb WHERE collection in ('bib', 'auth', 'hold')";
+        String sql = "SELECT id, modified, data FROM lddb WHERE " + setCondition.sql;
 
         if (fromDateTime != null)
         {
@@ -280,10 +443,11 @@ public class Helpers
             else
                 sql += " AND modified <= ? ";
         }
+        sql += keysetCondition(after);
 
         preparedStatement = connection.prepareStatement(sql);
         preparedStatement.setFetchSize(512);
-        int parameterIndex = 1;
+        int parameterIndex = setCondition.setParameters(preparedStatement, 1);
         if (fromDateTime != null)
         {
             Timestamp fromTimeStamp = new Timestamp(fromDateTime.toInstant().getEpochSecond() * 1000L);
@@ -298,16 +462,18 @@ public class Helpers
             if (includeSilentChanges)
                 preparedStatement.setTimestamp(parameterIndex++, untilTimeStamp);
         }
+        setKeysetParameters(preparedStatement, parameterIndex, after);
 
         return preparedStatement;
     }
 
     private static PreparedStatement getClosedIntervalStatement(Connection connection, ZonedDateTime fromDateTime,
-                                                      ZonedDateTime untilDateTime, boolean includeSilentChanges)
+                                                      ZonedDateTime untilDateTime, boolean includeSilentChanges,
+                                                      SetCondition setCondition, Position after)
             throws SQLException
     {
         PreparedStatement preparedStatement;
-        String sql = "SELECT data FROM lddb WHERE collection in ('bib', 'auth', 'hold')";
+        String sql = "SELECT id, modified, data FROM lddb WHERE " + setCondition.sql;
 
         if (includeSilentChanges)
         {
@@ -317,13 +483,14 @@ public class Helpers
         {
             sql += " AND ( modified BETWEEN ? AND ? ) ";
         }
+        sql += keysetCondition(after);
 
         preparedStatement = connection.prepareStatement(sql);
         preparedStatement.setFetchSize(512);
 
         Timestamp fromTimeStamp = new Timestamp(fromDateTime.toInstant().getEpochSecond() * 1000L);
         Timestamp untilTimeStamp = new Timestamp(untilDateTime.toInstant().getEpochSecond() * 1000L);
-        int parameterIndex = 1;
+        int parameterIndex = setCondition.setParameters(preparedStatement, 1);
         preparedStatement.setTimestamp(parameterIndex++, fromTimeStamp);
         preparedStatement.setTimestamp(parameterIndex++, untilTimeStamp);
         if (includeSilentChanges)
@@ -331,31 +498,53 @@ public class Helpers
             preparedStatement.setTimestamp(parameterIndex++, fromTimeStamp);
             preparedStatement.setTimestamp(parameterIndex++, untilTimeStamp);
         }
+        setKeysetParameters(preparedStatement, parameterIndex, after);
 
         return preparedStatement;
     }
 
+    /**
+     * Lists are sent in (modified, id) order so that they can be resumed after any row. A record that is
+     * modified while a list is harvested moves towards its end, so it is not missed.
+     */
+    private static String keysetCondition(Position after)
+    {
+        String sql = "";
+        if (after != null && after.modified != null)
+            sql += " AND modified >= ? AND (modified, id) > (?, ?) ";
+        return sql + " ORDER BY modified, id ";
+    }
+
+    private static void setKeysetParameters(PreparedStatement preparedStatement, int parameterIndex, Position after)
+            throws SQLException
+    {
+        if (after == null || after.modified == null)
+            return;
+        Timestamp modified = Timestamp.from(after.modified);
+        preparedStatement.setTimestamp(parameterIndex++, modified);
+        preparedStatement.setTimestamp(parameterIndex++, modified);
+        preparedStatement.setString(parameterIndex, after.id);
+    }
+
     public static ResultIterator getMatchingDocuments(Connection connection, ZonedDateTime fromDateTime,
                                                       ZonedDateTime untilDateTime, SetSpec setSpec, String id,
                                                       boolean includeDependenciesInTimeInterval,
                                                       boolean includeSilentChanges)
             throws SQLException
     {
-        PreparedStatement preparedStatement;
-        if (id == null)
-        {
-            if (fromDateTime == null || untilDateTime == null)
-                preparedStatement = getOpenIntervalStatement(connection, fromDateTime, untilDateTime, includeSilentChanges);
-            else
-                preparedStatement = getClosedIntervalStatement(connection, fromDateTime, untilDateTime, includeSilentChanges);
-        }
-        else
-        {
-            String sql = "SELECT data FROM lddb WHERE id = ?";
-            preparedStatement = connection.prepareStatement(sql);
-            preparedStatement.setString(1, id);
-        }
+        return getMatchingDocuments(connection, fromDateTime, untilDateTime, setSpec, id,
+                includeDependenciesInTimeInterval, includeSilentChanges, null);
+    }
 
+    /**
+     * @param after position to continue after, null to start from the beginning
+     */
+    public static ResultIterator getMatchingDocuments(Connection connection, ZonedDateTime fromDateTime,
+                                                      ZonedDateTime untilDateTime, SetSpec setSpec, String id,
+                                                      boolean includeDependenciesInTimeInterval,
+                                                      boolean includeSilentChanges, Position after)
+            throws SQLException
+    {
         // Extract requested marc:collection and explicit set, if any, from setSpec
         String requestedCollection = null;
         String mustBeHeldBy = null;
@@ -381,7 +570,91 @@ public class Helpers
             }
         }
 
+        PreparedStatement preparedStatement;
+        if (id == null)
+        {
+            SetCondition setCondition = getSetCondition(requestedCollection, mustBeHeldBy, explicitSet,
+                    includeDependenciesInTimeInterval);
+            if (fromDateTime == null || untilDateTime == null)
+                preparedStatement = getOpenIntervalStatement(connection, fromDateTime, untilDateTime, includeSilentChanges, setCondition, after);
+            else
+                preparedStatement = getClosedIntervalStatement(connection, fromDateTime, untilDateTime, includeSilentChanges, setCondition, after);
+        }
+        else
+        {
+            String sql = "SELECT id, modified, data FROM lddb WHERE id = ?";
+            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement.setString(1, id);
+        }
+
         return new ResultIterator(preparedStatement, requestedCollection, mustBeHeldBy,
-                includeDependenciesInTimeInterval, explicitSet);
+                includeDependenciesInTimeInterval, explicitSet, after);
+    }
+
+    /**
+     * An SQL condition on lddb and its parameters
+     */
+    private static class SetCondition
+    {
+        final String sql;
+        final List<String> parameters;
+
+        SetCondition(String sql, List<String> parameters)
+        {
+            this.sql = sql;
+            this.parameters = parameters;
+        }
+
+        /**
+         * @return the next parameter index
+         */
+        int setParameters(PreparedStatement preparedStatement, int parameterIndex) throws SQLException
+        {
+            for (String parameter : parameters)
+                preparedStatement.setString(parameterIndex++, parameter);
+            return parameterIndex;
+        }
+    }
+
+    /**
+     * Select only the rows in lddb that can result in records in the requested set, so that other rows are never
+     * fetched. ResultIterator.emitAffected() still decides what is sent, e.g. which dependers of an auth record.
+     */
+    private static SetCondition getSetCondition(String requestedCollection, String mustBeHeldBy, String explicitSet,
+                                                boolean includeDependenciesInTimeInterval)
+    {
+        List<String> parameters = new ArrayList<>();
+        if (requestedCollection == null)
+            return new SetCondition(" collection in ('bib', 'auth', 'hold') ", parameters);
+
+        String sql = "collection = ?";
+        parameters.add(requestedCollection);
+        if ("nb".equals(explicitSet))
+        {
+            sql += " AND data#>>'{@graph,0,encodingLevel}' = ?";
+            parameters.add(NB_ENCODING_LEVEL);
+        }
+        else if ("sao".equals(explicitSet))
+        {
+            sql += " AND data#>>'{@graph,1,inScheme,@id}' = ?";
+            parameters.add(SAO_SCHEME);
+        }
+        else if (mustBeHeldBy != null && requestedCollection.equals(SetSpec.SET_BIB))
+        {
+            sql += " AND " + IS_HELD_BY;
+            parameters.add(LegacyIntegrationTools.legacySigelToUri(mustBeHeldBy));
+        }
+        else if (mustBeHeldBy != null && requestedCollection.equals(SetSpec.SET_HOLD))
+        {
+            sql += " AND data#>>'{@graph,1,heldBy,@id}' = ?";
+            parameters.add(LegacyIntegrationTools.legacySigelToUri(mustBeHeldBy));
+        }
+
+        // Changed auth records can make bib and hold records affected, see ResultIterator.emitAffected()
+        if (includeDependenciesInTimeInterval &&
+                (requestedCollection.equals(SetSpec.SET_BIB) || requestedCollection.equals(SetSpec.SET_HOLD)))
+            sql = "(" + sql + ") OR collection = 'auth'";
+
+        return new SetCondition(" (" + sql + ") ", parameters);
     }
 }
@@ -48,7 +48,7 @@ public class Identify
         writer.writeEndElement(); // adminEmail
 
         writer.writeStartElement("earliestDatestamp");
-        try (Connection dbconn = OaiPmh.s_whelk.getStorage().getOuterConnection();
+        try (Connection dbconn = OaiPmh.s_whelk.getStorage().getOuterReadOnlyConnection();
              PreparedStatement preparedStatement = prepareStatement(dbconn);
              ResultSet resultSet = preparedStatement.executeQuery())
         {
@@ -5,7 +5,9 @@ import javax.servlet.http.HttpServletResponse;
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.*;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeParseException;
@@ -44,7 +46,7 @@ public class ListRecords
         String from = request.getParameter(FROM_PARAM); // optional
         String until = request.getParameter(UNTIL_PARAM); // optional
         String set = request.getParameter(SET_PARAM); // optional
-        String resumptionToken = request.getParameter(RESUMPTION_PARAM); // exclusive, not supported/used
+        String resumptionToken = request.getParameter(RESUMPTION_PARAM); // exclusive
         String metadataPrefix = request.getParameter(FORMAT_PARAM); // required
 
         // optional and not technically legal OAI-PMH
@@ -55,13 +57,36 @@ public class ListRecords
                 FROM_PARAM, UNTIL_PARAM, SET_PARAM, RESUMPTION_PARAM, FORMAT_PARAM, DELETED_DATA_PARAM, INCLUDE_SILENT_PARAM))
             return;
 
-        // We do not use resumption tokens.
+        ResumptionToken token = null;
         if (resumptionToken != null)
         {
-            failedRequests.labels(OaiPmh.OAIPMH_ERROR_BAD_RESUMPTION_TOKEN).inc();
-            ResponseCommon.sendOaiPmhError(OaiPmh.OAIPMH_ERROR_BAD_RESUMPTION_TOKEN,
-                    "No such resumption token was issued", request, response);
-            return;
+            if (from != null || until != null || set != null || metadataPrefix != null ||
+                    request.getParameter(DELETED_DATA_PARAM) != null || request.getParameter(INCLUDE_SILENT_PARAM) != null)
+            {
+                failedRequests.labels(OaiPmh.OAIPMH_ERROR_BAD_ARGUMENT).inc();
+                ResponseCommon.sendOaiPmhError(OaiPmh.OAIPMH_ERROR_BAD_ARGUMENT,
+                        "resumptionToken is an exclusive argument.", request, response);
+                return;
+            }
+
+            try
+            {
+                token = ResumptionToken.decode(resumptionToken);
+            } catch (IllegalArgumentException e)
+            {
+                failedRequests.labels(OaiPmh.OAIPMH_ERROR_BAD_RESUMPTION_TOKEN).inc();
+                ResponseCommon.sendOaiPmhError(OaiPmh.OAIPMH_ERROR_BAD_RESUMPTION_TOKEN,
+                        "No such resumption token was issued", request, response);
+                return;
+            }
+
+            // The token holds the arguments of the request that started the list
+            from = token.from;
+            until = token.until;
+            set = token.set;
+            metadataPrefix = token.metadataPrefix;
+            withDeletedData = token.withDeletedData;
+            withSilentChanges = token.withSilentChanges;
         }
 
         if (metadataPrefix == null)
@@ -106,26 +131,39 @@ public class ListRecords
             return;
         }
 
-        try (Connection dbconn = OaiPmh.s_whelk.getStorage().getOuterConnection())
+        try (Connection dbconn = OaiPmh.s_whelk.getStorage().getOuterReadOnlyConnection())
         {
             dbconn.setAutoCommit(false);
             boolean includeDependencies = metadataPrefix.contains(OaiPmh.FORMAT_EXPANDED_POSTFIX) ||
                     metadataPrefix.contains("marcxml");
 
+            Helpers.Position after = token != null ? token.position : null;
+            if (token == null)
+                token = new ResumptionToken(metadataPrefix, set, from, until, withDeletedData, withSilentChanges);
+
             try (Helpers.ResultIterator resultIterator = Helpers.getMatchingDocuments(dbconn, fromDateTime,
-                    untilDateTime, setSpec, null, includeDependencies, withSilentChanges))
+                    untilDateTime, setSpec, null, includeDependencies, withSilentChanges, after))
             {
-                respond(request, response, metadataPrefix, onlyIdentifiers,
-                        includeDependencies, withDeletedData, resultIterator);
+                respond(request, response, token, after != null, onlyIdentifiers,
+                        includeDependencies, resultIterator);
             } finally {
                 dbconn.commit();
             }
         }
     }
 
-    private static void respond(HttpServletRequest request, HttpServletResponse response,
-                                String requestedFormat, boolean onlyIdentifiers, boolean embellish,
-                                boolean withDeletedData, Helpers.ResultIterator resultIterator)
+    /**
+     * Send records until the list ends or the response has reached OaiPmh.maxRecordsPerResponse records or
+     * roughly OaiPmh.maxBytesPerResponse bytes. In the latter case the response ends with a resumptionToken
+     * for the rest of the list. A response can only end after all records of a batch of rows in lddb, or a
+     * chunk of their dependers, so the limits can be exceeded somewhat.
+     *
+     * @param list the list to send, positioned where this response starts
+     * @param resumed true if the request was made with a resumption token
+     */
+    private static void respond(HttpServletRequest request, HttpServletResponse response, ResumptionToken list,
+                                boolean resumed, boolean onlyIdentifiers, boolean embellish,
+                                Helpers.ResultIterator resultIterator)
             throws IOException, XMLStreamException, SQLException
     {
         // Is the resultset empty?
@@ -138,7 +176,8 @@ public class ListRecords
 
         // Build the xml response feed
         XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
-        XMLStreamWriter writer = xmlOutputFactory.createXMLStreamWriter(response.getOutputStream());
+        CountingOutputStream out = new CountingOutputStream(response.getOutputStream());
+        XMLStreamWriter writer = xmlOutputFactory.createXMLStreamWriter(out);
 
         ResponseCommon.writeOaiPmhHeader(writer, request, true);
 
@@ -147,13 +186,61 @@ public class ListRecords
         else
             writer.writeStartElement("ListRecords");
 
+        long count = 0;
+        ResumptionToken next = null;
         while (resultIterator.hasNext())
         {
-            ResponseCommon.emitRecord(resultIterator.next(), writer, requestedFormat,
-                    onlyIdentifiers, embellish, withDeletedData);
+            ResponseCommon.emitRecord(resultIterator.next(), writer, list.metadataPrefix,
+                    onlyIdentifiers, embellish, list.withDeletedData);
+            ++count;
+
+            if (count >= OaiPmh.maxRecordsPerResponse || out.count >= OaiPmh.maxBytesPerResponse)
+            {
+                // Before hasNext(), which reads on
+                Helpers.Position position = resultIterator.getResumePosition();
+                if (position != null && resultIterator.hasNext())
+                {
+                    next = list.resumeAfter(position, list.cursor + count);
+                    break;
+                }
+            }
+        }
+
+        // The last response of a resumed list has an empty token
+        if (next != null || resumed)
+        {
+            writer.writeStartElement("resumptionToken");
+            writer.writeAttribute("cursor", Long.toString(list.cursor));
+            if (next != null)
+                writer.writeCharacters(next.encode());
+            writer.writeEndElement(); // resumptionToken
         }
 
         writer.writeEndElement(); // ListIdentifiers/ListRecords
         ResponseCommon.writeOaiPmhClose(writer, request);
     }
+
+    private static class CountingOutputStream extends FilterOutputStream
+    {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
 }
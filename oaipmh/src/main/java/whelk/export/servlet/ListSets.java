@@ -95,7 +95,7 @@ public class ListSets
         writer.writeEndElement(); // set
 
         // Dynamic sigel-sets
-        try (Connection dbconn = OaiPmh.s_whelk.getStorage().getOuterConnection();
+        try (Connection dbconn = OaiPmh.s_whelk.getStorage().getOuterReadOnlyConnection();
              PreparedStatement preparedStatement = prepareStatement(dbconn);
              ResultSet resultSet = preparedStatement.executeQuery())
         {
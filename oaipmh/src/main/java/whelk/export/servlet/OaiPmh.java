@@ -77,6 +77,11 @@ public class OaiPmh extends HttpServlet
     // Placed here, because the call to generate this is expensive, and should not be done on every request.
     public static Set<String> workDerivativeTypes;
 
+    // ListRecords/ListIdentifiers responses are cut off with a resumptionToken after this many records or bytes,
+    // see the init-params in web.xml
+    public static int maxRecordsPerResponse = 10_000;
+    public static long maxBytesPerResponse = 100L * 1024L * 1024L;
+
     private final Logger logger = LogManager.getLogger(this.getClass());
 
     static
@@ -111,6 +116,12 @@ public class OaiPmh extends HttpServlet
     public void init()
     {
         workDerivativeTypes = new HashSet<>(s_whelk.getJsonld().getSubClasses("Work"));
+
+        if (getInitParameter("maxRecordsPerResponse") != null)
+            maxRecordsPerResponse = Integer.parseInt(getInitParameter("maxRecordsPerResponse"));
+        if (getInitParameter("maxBytesPerResponse") != null)
+            maxBytesPerResponse = Long.parseLong(getInitParameter("maxBytesPerResponse"));
+        logger.info("maxRecordsPerResponse: {}, maxBytesPerResponse: {}", maxRecordsPerResponse, maxBytesPerResponse);
     }
 
     public void destroy()
@@ -3,9 +3,12 @@ package whelk.export.servlet;
 import org.apache.cxf.staxutils.StaxUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.codehaus.stax2.XMLStreamWriter2;
+import se.kb.libris.util.marc.MarcRecord;
 import whelk.Document;
 import whelk.JsonLd;
 import whelk.Link;
+import whelk.converter.marc.JsonLD2MarcXMLConverter;
 import whelk.util.LegacyIntegrationTools;
 
 import javax.servlet.http.HttpServletRequest;
@@ -14,8 +17,11 @@ import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
@@ -26,6 +32,7 @@ public class ResponseCommon
 {
     private static final Logger logger = LogManager.getLogger(ResponseCommon.class);
     private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+    private static final XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
 
     /**
      * Send a properly formatted OAI-PMH error response to the requesting harvester.
@@ -105,18 +112,46 @@ public class ResponseCommon
         logger.info("Response sent successfully to {}:{}.", req.getRemoteAddr(), req.getRemotePort());
     }
 
-    public static void writeConvertedDocument(XMLStreamWriter writer, String formatPrefix, Document jsonLDdoc)
+    /**
+     * @param embellished true if jsonLDdoc is embellished, then the conversion is cached (see
+     *                    PostgreSQLComponent.loadConverted()) since the same records are harvested over and over
+     */
+    public static void writeConvertedDocument(XMLStreamWriter writer, String formatPrefix, Document jsonLDdoc,
+                                              boolean embellished)
             throws IOException, XMLStreamException
     {
         OaiPmh.FormatDescription formatDescription = OaiPmh.supportedFormats.get(formatPrefix);
 
+        if (embellished && formatDescription.converter != null)
+        {
+            byte[] converted;
+            try
+            {
+                converted = OaiPmh.s_whelk.getStorage().loadConverted(jsonLDdoc, baseFormat(formatPrefix),
+                        () -> convert(formatDescription, jsonLDdoc));
+            }
+            catch (Exception | Error e) // Depending on the converter, a variety of problems may arise here
+            {
+                writer.writeCharacters("Error: Document conversion failed.");
+                logger.error("Conversion failed for document: " + jsonLDdoc.getShortId(), e);
+                return;
+            }
+            writeConverted(writer, formatDescription, converted);
+            return;
+        }
+
         // Convert if the format has a converter (otherwise assume jsonld)
         String convertedText = null;
+        MarcRecord marcRecord = null;
         if (formatDescription.converter != null)
         {
             try
             {
-                convertedText = (String) formatDescription.converter.convert(jsonLDdoc.data, jsonLDdoc.getShortId()).get(JsonLd.getNON_JSON_CONTENT_KEY());
+                // MARCXML is written straight from the record, instead of serialized to text and parsed again
+                if (formatDescription.converter instanceof JsonLD2MarcXMLConverter)
+                    marcRecord = ((JsonLD2MarcXMLConverter) formatDescription.converter).convertToRecord(jsonLDdoc.data, jsonLDdoc.getShortId());
+                else
+                    convertedText = (String) formatDescription.converter.convert(jsonLDdoc.data, jsonLDdoc.getShortId()).get(JsonLd.getNON_JSON_CONTENT_KEY());
             }
             catch (Exception | Error e) // Depending on the converter, a variety of problems may arise here
             {
@@ -129,12 +164,66 @@ public class ResponseCommon
             convertedText = jsonLDdoc.getDataAsString();
 
         // If the format is not XML, it needs to be embedded as CDATA, to not interfere with the response XML format.
-        if (formatDescription.isXmlFormat)
+        if (marcRecord != null)
+            JsonLD2MarcXMLConverter.writeRecord(marcRecord, writer);
+        else if (formatDescription.isXmlFormat)
             StaxUtils.copy(xmlInputFactory.createXMLStreamReader(new StringReader(convertedText)), writer);
         else
             writer.writeCData(convertedText);
     }
 
+    /**
+     * The same as written by writeConvertedDocument() without cache, as UTF-8. XML is written as a fragment,
+     * i.e. without XML declaration, so that it can be inserted as is.
+     */
+    private static byte[] convert(OaiPmh.FormatDescription formatDescription, Document jsonLDdoc)
+    {
+        MarcRecord marcRecord = null;
+        String convertedText = null;
+        if (formatDescription.converter instanceof JsonLD2MarcXMLConverter)
+            marcRecord = ((JsonLD2MarcXMLConverter) formatDescription.converter).convertToRecord(jsonLDdoc.data, jsonLDdoc.getShortId());
+        else
+            convertedText = (String) formatDescription.converter.convert(jsonLDdoc.data, jsonLDdoc.getShortId()).get(JsonLd.getNON_JSON_CONTENT_KEY());
+
+        if (!formatDescription.isXmlFormat)
+            return convertedText.getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try
+        {
+            XMLStreamWriter writer = xmlOutputFactory.createXMLStreamWriter(out, "UTF-8");
+            if (marcRecord != null)
+                JsonLD2MarcXMLConverter.writeRecord(marcRecord, writer);
+            else
+                StaxUtils.copy(xmlInputFactory.createXMLStreamReader(new StringReader(convertedText)), writer);
+            writer.close();
+        }
+        catch (XMLStreamException e)
+        {
+            throw new RuntimeException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeConverted(XMLStreamWriter writer, OaiPmh.FormatDescription formatDescription, byte[] converted)
+            throws XMLStreamException
+    {
+        if (!formatDescription.isXmlFormat)
+            writer.writeCData(new String(converted, StandardCharsets.UTF_8));
+        else if (writer instanceof XMLStreamWriter2) // Woodstox, which comes with CXF
+            ((XMLStreamWriter2) writer).writeRaw(new String(converted, StandardCharsets.UTF_8));
+        else
+            StaxUtils.copy(xmlInputFactory.createXMLStreamReader(new ByteArrayInputStream(converted)), writer);
+    }
+
+    /**
+     * The format without postfixes, i.e. the one converted to
+     */
+    private static String baseFormat(String formatPrefix)
+    {
+        return formatPrefix.replace(OaiPmh.FORMAT_INCLUDE_HOLD_POSTFIX, "").replace(OaiPmh.FORMAT_EXPANDED_POSTFIX, "");
+    }
+
     public static void emitRecord(Document document, XMLStreamWriter writer, String requestedFormat,
                                   boolean onlyIdentifiers, boolean embellish, boolean withDeletedData)
             throws SQLException, XMLStreamException, IOException
@@ -183,7 +272,7 @@ public class ResponseCommon
         if (!onlyIdentifiers && (!document.getDeleted() || withDeletedData))
         {
             writer.writeStartElement("metadata");
-            ResponseCommon.writeConvertedDocument(writer, requestedFormat, document);
+            ResponseCommon.writeConvertedDocument(writer, requestedFormat, document, embellish);
             writer.writeEndElement(); // metadata
         }
 
@@ -242,7 +331,8 @@ public class ResponseCommon
             writer.writeStartElement("holding");
             writer.writeAttribute("sigel", sigel);
             writer.writeAttribute("id", holding.getShortId());
-            ResponseCommon.writeConvertedDocument(writer, requestedFormat, holding);
+            // Converted without the cache, see writeConvertedDocument()
+            ResponseCommon.writeConvertedDocument(writer, requestedFormat, holding, false);
             writer.writeEndElement(); // holding
         }
 
@@ -260,7 +350,7 @@ public class ResponseCommon
 
                 writer.writeStartElement("auth");
                 writer.writeAttribute("id", auth.getShortId());
-                ResponseCommon.writeConvertedDocument(writer, requestedFormat, auth);
+                ResponseCommon.writeConvertedDocument(writer, requestedFormat, auth, true);
                 writer.writeEndElement(); // auth
             }
         }
@@ -0,0 +1,135 @@
+package whelk.export.servlet;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+
+/**
+ * A stateless resumption token (see OAI-PMH 2.0 specification). It holds the arguments of the original
+ * ListRecords/ListIdentifiers request and the position in the list to continue after, see Helpers.Position.
+ *
+ * Since nothing is kept on the server, tokens never expire and any instance can resume a list.
+ */
+public class ResumptionToken
+{
+    private static final String VERSION = "2";
+    private static final String SEPARATOR = "|";
+    private static final int FIELDS = 13;
+    // Tokens from before lists could be resumed among the dependers of a batch
+    private static final String VERSION_1 = "1";
+    private static final int FIELDS_1 = 10;
+
+    public final String metadataPrefix;
+    public final String set;
+    public final String from;
+    public final String until;
+    public final boolean withDeletedData;
+    public final boolean withSilentChanges;
+    public final Helpers.Position position;
+    // The number of records sent before this position
+    public final long cursor;
+
+    public ResumptionToken(String metadataPrefix, String set, String from, String until, boolean withDeletedData,
+                           boolean withSilentChanges, Helpers.Position position, long cursor)
+    {
+        this.metadataPrefix = metadataPrefix;
+        this.set = set;
+        this.from = from;
+        this.until = until;
+        this.withDeletedData = withDeletedData;
+        this.withSilentChanges = withSilentChanges;
+        this.position = position;
+        this.cursor = cursor;
+    }
+
+    /**
+     * A token for the start of a list, i.e. with no position
+     */
+    public ResumptionToken(String metadataPrefix, String set, String from, String until, boolean withDeletedData,
+                           boolean withSilentChanges)
+    {
+        this(metadataPrefix, set, from, until, withDeletedData, withSilentChanges, null, 0);
+    }
+
+    /**
+     * @return a token for the same list, continuing after position
+     */
+    public ResumptionToken resumeAfter(Helpers.Position position, long cursor)
+    {
+        return new ResumptionToken(metadataPrefix, set, from, until, withDeletedData, withSilentChanges,
+                position, cursor);
+    }
+
+    public String encode()
+    {
+        String token = String.join(SEPARATOR, VERSION, metadataPrefix, orEmpty(set), orEmpty(from), orEmpty(until),
+                Boolean.toString(withDeletedData), Boolean.toString(withSilentChanges),
+                orEmpty(position.modified), orEmpty(position.id), orEmpty(position.batchEndModified),
+                orEmpty(position.batchEndId), orEmpty(position.lastDepender), Long.toString(cursor));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the token wasn't issued by encode()
+     */
+    public static ResumptionToken decode(String token)
+    {
+        String[] fields;
+        try
+        {
+            fields = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split("\\|", -1);
+        } catch (IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException("Not a resumption token: " + token);
+        }
+
+        boolean version1 = fields.length == FIELDS_1 && fields[0].equals(VERSION_1);
+        if (!version1 && (fields.length != FIELDS || !fields[0].equals(VERSION)))
+            throw new IllegalArgumentException("Not a resumption token: " + token);
+
+        try
+        {
+            Helpers.Position position;
+            if (version1)
+            {
+                position = new Helpers.Position(Instant.parse(fields[7]), nonEmpty(fields[8]));
+            }
+            else
+            {
+                // Among the dependers of the first batch there is no row before the batch
+                position = new Helpers.Position(instantOrNull(fields[7]), orNull(fields[8]),
+                        instantOrNull(fields[9]), orNull(fields[10]), fields[10].isEmpty() ? null : fields[11]);
+                if (position.modified == null && !position.isAmongDependers())
+                    throw new IllegalArgumentException();
+            }
+            return new ResumptionToken(nonEmpty(fields[1]), orNull(fields[2]), orNull(fields[3]), orNull(fields[4]),
+                    Boolean.parseBoolean(fields[5]), Boolean.parseBoolean(fields[6]), position,
+                    Long.parseLong(fields[fields.length - 1]));
+        } catch (RuntimeException e)
+        {
+            throw new IllegalArgumentException("Not a resumption token: " + token);
+        }
+    }
+
+    private static String orEmpty(Object o)
+    {
+        return o == null ? "" : o.toString();
+    }
+
+    private static String nonEmpty(String s)
+    {
+        if (s.isEmpty())
+            throw new IllegalArgumentException();
+        return s;
+    }
+
+    private static Instant instantOrNull(String s)
+    {
+        return s.isEmpty() ? null : Instant.parse(s);
+    }
+
+    private static String orNull(String s)
+    {
+        return s.isEmpty() ? null : s;
+    }
+}
@@ -185,7 +185,7 @@ class Crud extends HttpServlet {
         } else if (doc.deleted) {
             throw new OtherStatusException("Document has been deleted.", HttpServletResponse.SC_GONE)
         } else if (request.getView() == CrudGetRequest.View.CHANGE_SETS) {
-            History history = new History(whelk.storage.loadDocumentHistory(doc.getShortId()), jsonld)
+            History history = whelk.storage.getHistory(doc.getShortId())
             ETag eTag = ETag.plain(doc.getChecksum(jsonld))
             def body = history.m_changeSetsMap
             sendGetResponse(response, body, eTag, request.getPath(), request.getContentType(), request.getId())
@@ -109,5 +109,6 @@ class RefreshAPI extends HttpServlet
     void refreshQuietly(Document doc) {
         whelk.storage.refreshDerivativeTables(doc)
         whelk.elastic.index(doc, whelk)
+        whelk.elastic.flushIndexingQueue()
     }
 }
@@ -11,6 +11,7 @@ import whelk.Whelk
 import whelk.component.PostgreSQLComponent
 import whelk.exception.ModelValidationException
 import whelk.history.DocumentVersion
+import whelk.history.History
 import whelk.rest.security.AccessControl
 import whelk.util.LegacyIntegrationTools
 
@@ -815,11 +816,11 @@ class CrudSpec extends Specification {
         storage.load(_, _) >> {
             new Document(["@graph": [["@id": id, "foo": "bar"]]])
         }
-        storage.loadDocumentHistory(_) >> {
-            [
+        storage.getHistory(_) >> {
+            new History([
                 new DocumentVersion(new Document(['@graph': [['modified':'2022-02-02T12:00:00Z'], ['a': 'x']]]), "foo", ""),
                 new DocumentVersion(new Document(['@graph': [['modified':'2022-02-02T12:00:00Z'], ['a': 'y']]]), "bar", ""),
-            ]
+            ], whelk.jsonld)
         }
 
         when:
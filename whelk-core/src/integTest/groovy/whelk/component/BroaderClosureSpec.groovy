@@ -0,0 +1,106 @@
+package whelk.component
+
+import spock.lang.Specification
+import whelk.Document
+import whelk.IdGenerator
+import whelk.Whelk
+
+/**
+ * lddb__broader_closure is kept up to date when broader relations change. Needs a database, see integTest.
+ */
+class BroaderClosureSpec extends Specification {
+
+    static Whelk whelk = null
+
+    static {
+        try {
+            whelk = Whelk.createLoadedCoreWhelk()
+        } catch (Exception e) {
+            System.err.println("Unable to instantiate whelk: $e")
+        }
+    }
+
+    List<String> created = []
+
+    def cleanup() {
+        created.reverse().each { String id -> whelk.storage.remove(id, 'xl', 'BroaderClosureSpec', true) }
+    }
+
+    def "recompute the closure when something is moved"() {
+        given:
+        String a = create('a')
+        String b1 = create('b1', a)
+        String b2 = create('b2', a)
+        String c = create('c', b1)
+        String d = create('d', c)
+
+        expect:
+        whelk.relations.isImpliedBy(b1, d)
+        !whelk.relations.isImpliedBy(b2, d)
+
+        when:
+        setBroader(c, [b2])
+
+        then:
+        whelk.relations.isImpliedBy(a, d)
+        whelk.relations.isImpliedBy(b2, c)
+        whelk.relations.isImpliedBy(b2, d)
+        !whelk.relations.isImpliedBy(b1, c)
+        !whelk.relations.isImpliedBy(b1, d)
+        whelk.relations.followReverseBroader(b1).isEmpty()
+        whelk.relations.followReverseBroader(b2) == [c, d] as Set
+    }
+
+    def "recompute overlapping parts of the closure concurrently"() {
+        given:
+        String a = create('a')
+        String b1 = create('b1', a)
+        String b2 = create('b2', a)
+        String c = create('c', b1)
+        String d = create('d', c)
+        List<Throwable> errors = Collections.synchronizedList([])
+
+        when: 'c is moved back and forth, while d is moved between c and b2'
+        List<Thread> threads = [
+                Thread.start { 10.times { int i -> tryTo(errors) { setBroader(c, [i % 2 ? b1 : b2]) } } },
+                Thread.start { 10.times { int i -> tryTo(errors) { setBroader(d, [i % 2 ? c : b2]) } } },
+        ]
+        threads*.join()
+
+        then:
+        errors == []
+        whelk.relations.followReverseBroader(a) == [b1, b2, c, d] as Set
+        whelk.relations.followReverseBroader(b1) == [c, d] as Set
+        whelk.relations.followReverseBroader(b2).isEmpty()
+        whelk.relations.followReverseBroader(c) == [d] as Set
+    }
+
+    private String create(String label, String broader = null) {
+        String id = IdGenerator.generate()
+        String thingIri = Document.BASE_URI.resolve(id + '#it').toString()
+        Map thing = ['@id': thingIri, '@type': 'Topic', 'prefLabel': "BroaderClosureSpec $label".toString()]
+        if (broader) {
+            thing['broader'] = [['@id': broader]]
+        }
+        Map record = ['@id': Document.BASE_URI.resolve(id).toString(), '@type': 'Record', 'mainEntity': ['@id': thingIri]]
+
+        whelk.storage.createDocument(new Document(['@graph': [record, thing]]), 'xl', 'BroaderClosureSpec', 'auth', false)
+        created << id
+        return thingIri
+    }
+
+    private void setBroader(String thingIri, List<String> broader) {
+        String id = whelk.storage.getSystemIdByThingId(thingIri)
+        whelk.storage.storeUpdate(id, true, false, 'xl', 'BroaderClosureSpec', { Document doc ->
+            doc.data['@graph'][1]['broader'] = broader.collect { ['@id': it] }
+        })
+    }
+
+    private static void tryTo(List<Throwable> errors, Closure c) {
+        try {
+            c.call()
+        } catch (Throwable e) {
+            errors << e
+        }
+    }
+}
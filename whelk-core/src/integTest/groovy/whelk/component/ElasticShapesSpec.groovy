@@ -0,0 +1,47 @@
+package whelk.component
+
+import spock.lang.Specification
+import whelk.Document
+import whelk.IdGenerator
+import whelk.Whelk
+
+/**
+ * lddb__elastic_shapes. Needs a database, see integTest.
+ */
+class ElasticShapesSpec extends Specification {
+
+    static Whelk whelk = null
+
+    static {
+        try {
+            whelk = Whelk.createLoadedCoreWhelk()
+        } catch (Exception e) {
+            System.err.println("Unable to instantiate whelk: $e")
+        }
+    }
+
+    def "remove the shape when the document is removed"() {
+        given:
+        String id = create()
+        whelk.storage.storeElasticShapes([new ElasticShapeCache.Shape(id, 'key', '{}')])
+
+        expect:
+        whelk.storage.loadElasticShapes([id]).keySet() == [id] as Set
+
+        when:
+        whelk.storage.remove(id, 'xl', 'ElasticShapesSpec', true)
+
+        then:
+        whelk.storage.loadElasticShapes([id]).isEmpty()
+    }
+
+    private static String create() {
+        String id = IdGenerator.generate()
+        String thingIri = Document.BASE_URI.resolve(id + '#it').toString()
+        Map thing = ['@id': thingIri, '@type': 'Topic', 'prefLabel': 'ElasticShapesSpec']
+        Map record = ['@id': Document.BASE_URI.resolve(id).toString(), '@type': 'Record', 'mainEntity': ['@id': thingIri]]
+
+        whelk.storage.createDocument(new Document(['@graph': [record, thing]]), 'xl', 'ElasticShapesSpec', 'auth', false)
+        return id
+    }
+}
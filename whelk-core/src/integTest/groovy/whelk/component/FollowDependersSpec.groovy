@@ -0,0 +1,91 @@
+package whelk.component
+
+import spock.lang.Specification
+import whelk.Document
+import whelk.IdGenerator
+import whelk.JsonLd
+import whelk.Whelk
+
+/**
+ * PostgreSQLComponent.followDependersOfAll(). Needs a database, see integTest.
+ */
+class FollowDependersSpec extends Specification {
+
+    static Whelk whelk = null
+
+    static {
+        try {
+            whelk = Whelk.createLoadedCoreWhelk()
+        } catch (Exception e) {
+            System.err.println("Unable to instantiate whelk: $e")
+        }
+    }
+
+    List<String> created = []
+
+    def cleanup() {
+        created.reverse().each { String id -> whelk.storage.remove(id, 'xl', 'FollowDependersSpec', true) }
+    }
+
+    def "follow dependers directly and indirectly, in id order"() {
+        given:
+        String a = create([:])
+        String b = create(['subject': [link(a)]])
+        String c = create(['subject': [link(b)]])
+        String x = create([:])
+        String y = create(['subject': [link(x)]])
+
+        expect:
+        whelk.storage.followDependersOfAll([a]).toList() == [b, c].sort()
+        whelk.storage.followDependersOfAll([b]).toList() == [c]
+        whelk.storage.followDependersOfAll([a, x]).toList() == [b, c, y].sort()
+        whelk.storage.followDependersOfAll([c]).isEmpty()
+    }
+
+    def "page through dependers after a given id"() {
+        given:
+        String a = create([:])
+        List<String> dependers = (1..5).collect { create(['subject': [link(a)]]) }.sort()
+
+        expect:
+        whelk.storage.followDependersOfAll([a], [], '', 2).toList() == dependers[0..1]
+        whelk.storage.followDependersOfAll([a], [], dependers[1], 2).toList() == dependers[2..3]
+        whelk.storage.followDependersOfAll([a], [], dependers[3], 2).toList() == [dependers[4]]
+        whelk.storage.followDependersOfAll([a], [], dependers[4], 2).isEmpty()
+    }
+
+    def "filter out documents with stored versions"() {
+        given:
+        String a = create([:])
+
+        expect:
+        whelk.storage.filterWithoutVersions([a, 'nosuchid']) == (whelk.storage.versioning ? ['nosuchid'] : [a, 'nosuchid']) as Set
+    }
+
+    def "don't follow excluded relations"() {
+        given:
+        String a = create([:])
+        String narrower = create(['broader': [link(a)]])
+        String b = create(['subject': [link(a)]])
+        String c = create(['subject': [link(narrower)]])
+
+        expect:
+        whelk.storage.followDependersOfAll([a]).toList() == [narrower, b, c].sort()
+        whelk.storage.followDependersOfAll([a], JsonLd.NON_DEPENDANT_RELATIONS).toList() == [b]
+    }
+
+    private String create(Map properties) {
+        String id = IdGenerator.generate()
+        String thingIri = Document.BASE_URI.resolve(id + '#it').toString()
+        Map thing = ['@id': thingIri, '@type': 'Topic', 'prefLabel': 'FollowDependersSpec'] + properties
+        Map record = ['@id': Document.BASE_URI.resolve(id).toString(), '@type': 'Record', 'mainEntity': ['@id': thingIri]]
+
+        whelk.storage.createDocument(new Document(['@graph': [record, thing]]), 'xl', 'FollowDependersSpec', 'auth', false)
+        created << id
+        return id
+    }
+
+    private static Map link(String id) {
+        return ['@id': Document.BASE_URI.resolve(id + '#it').toString()]
+    }
+}
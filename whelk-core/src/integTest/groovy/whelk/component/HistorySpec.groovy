@@ -0,0 +1,84 @@
+package whelk.component
+
+import spock.lang.Specification
+import whelk.Document
+import whelk.IdGenerator
+import whelk.Whelk
+
+import java.sql.Connection
+import java.sql.PreparedStatement
+import java.sql.ResultSet
+
+/**
+ * PostgreSQLComponent.getHistory() and lddb__history. Needs a database, see integTest.
+ */
+class HistorySpec extends Specification {
+
+    static Whelk whelk = null
+
+    static {
+        try {
+            whelk = Whelk.createLoadedCoreWhelk()
+        } catch (Exception e) {
+            System.err.println("Unable to instantiate whelk: $e")
+        }
+    }
+
+    def "remove the saved history when the document is removed"() {
+        given:
+        String id = create()
+        whelk.storage.getHistory(id)
+
+        expect:
+        numHistories(id) == 1
+
+        when:
+        whelk.storage.remove(id, 'xl', 'HistorySpec', true)
+
+        then:
+        numHistories(id) == 0
+    }
+
+    def "empty history of a document without versions"() {
+        given:
+        boolean versioning = whelk.storage.versioning
+        whelk.storage.versioning = false
+        String id
+        try {
+            id = create()
+        } finally {
+            whelk.storage.versioning = versioning
+        }
+
+        when:
+        def history = whelk.storage.getHistory(id)
+
+        then:
+        history.getNumberOfVersions() == 0
+        history.m_changeSetsMap['changeSets'] == []
+
+        cleanup:
+        whelk.storage.remove(id, 'xl', 'HistorySpec', true)
+    }
+
+    private static String create() {
+        String id = IdGenerator.generate()
+        String thingIri = Document.BASE_URI.resolve(id + '#it').toString()
+        Map thing = ['@id': thingIri, '@type': 'Topic', 'prefLabel': 'HistorySpec']
+        Map record = ['@id': Document.BASE_URI.resolve(id).toString(), '@type': 'Record', 'mainEntity': ['@id': thingIri]]
+
+        whelk.storage.createDocument(new Document(['@graph': [record, thing]]), 'xl', 'HistorySpec', 'auth', false)
+        return id
+    }
+
+    private static int numHistories(String id) {
+        return whelk.storage.withDbConnection {
+            Connection connection = whelk.storage.getMyConnection()
+            PreparedStatement statement = connection.prepareStatement("SELECT count(*) FROM lddb__history WHERE id = ?")
+            statement.setString(1, id)
+            ResultSet rs = statement.executeQuery()
+            rs.next()
+            return rs.getInt(1)
+        }
+    }
+}
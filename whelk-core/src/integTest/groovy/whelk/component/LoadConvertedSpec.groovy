@@ -0,0 +1,172 @@
+package whelk.component
+
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+import whelk.Document
+import whelk.IdGenerator
+import whelk.Whelk
+
+import java.sql.Connection
+import java.sql.PreparedStatement
+import java.sql.ResultSet
+
+import static whelk.component.PostgreSQLComponent.NotificationType.EMBELLISHED_CACHE_INVALIDATE
+
+/**
+ * PostgreSQLComponent.loadConverted(). Needs a database, see integTest.
+ */
+class LoadConvertedSpec extends Specification {
+
+    static Whelk whelk = null
+
+    static {
+        try {
+            whelk = Whelk.createLoadedCoreWhelk()
+        } catch (Exception e) {
+            System.err.println("Unable to instantiate whelk: $e")
+        }
+    }
+
+    def conditions = new PollingConditions(timeout: 5)
+
+    boolean shared
+    ConvertedCache local
+    List<String> created = []
+    int conversions = 0
+
+    def setup() {
+        shared = whelk.storage.convertedCacheShared
+        local = whelk.storage.convertedCache
+        whelk.storage.convertedCacheShared = true
+        whelk.storage.convertedCache = new ConvertedCache(1024 * 1024)
+    }
+
+    def cleanup() {
+        whelk.storage.convertedCacheShared = shared
+        whelk.storage.convertedCache = local
+        created.reverse().each { String id -> whelk.storage.remove(id, 'xl', 'LoadConvertedSpec', true) }
+    }
+
+    def "share conversions of embellished documents through lddb__converted"() {
+        given:
+        Document doc = createEmbellished()
+
+        when:
+        byte[] data = load(doc)
+
+        then:
+        conversions == 1
+        convertedVersions(doc.shortId) == [ConvertedCache.version(doc)]
+
+        when: 'on another instance, i.e. not in the local cache'
+        whelk.storage.convertedCache.invalidateAll()
+
+        then:
+        load(doc) == data
+        conversions == 1
+    }
+
+    def "don't share conversions of data that lddb__embellished no longer holds"() {
+        given:
+        Document doc = createEmbellished()
+        load(doc)
+        Document changed = doc.clone()
+        changed.data['@graph'][0]['recordStatus'] = 'marc:CorrectedOrRevised'
+
+        when:
+        load(changed)
+
+        then:
+        conversions == 2
+        convertedVersions(doc.shortId) == [ConvertedCache.version(doc)]
+        whelk.storage.convertedCache.get(doc.shortId, 'marcxml', ConvertedCache.version(changed)) != null
+    }
+
+    def "convert documents that aren't in lddb__embellished without sharing the conversion"() {
+        given:
+        Document doc = create()
+
+        when:
+        byte[] data = load(doc)
+
+        then:
+        data == converted(doc)
+        convertedVersions(doc.shortId) == []
+
+        when:
+        whelk.storage.convertedCache.invalidateAll()
+        load(doc)
+
+        then:
+        conversions == 2
+    }
+
+    def "invalidate local conversions when notified"() {
+        given:
+        Document doc = createEmbellished()
+        load(doc)
+
+        when:
+        whelk.storage.sendNotification(EMBELLISHED_CACHE_INVALIDATE, [doc.shortId])
+
+        then:
+        conditions.eventually {
+            assert whelk.storage.convertedCache.get(doc.shortId, 'marcxml', ConvertedCache.version(doc)) == null
+        }
+    }
+
+    def "delete shared conversions with the embellished document"() {
+        given:
+        Document doc = createEmbellished()
+        load(doc)
+
+        when:
+        whelk.storage.storeUpdate(doc.shortId, false, false, 'xl', 'LoadConvertedSpec', { Document d ->
+            d.data['@graph'][1]['prefLabel'] = 'LoadConvertedSpec changed'
+        })
+
+        then:
+        convertedVersions(doc.shortId) == []
+        whelk.storage.convertedCache.get(doc.shortId, 'marcxml', ConvertedCache.version(doc)) == null
+    }
+
+    private byte[] load(Document doc) {
+        return whelk.storage.loadConverted(doc, 'marcxml', {
+            conversions++
+            return converted(doc)
+        })
+    }
+
+    private static byte[] converted(Document doc) {
+        return "<record id=\"${doc.shortId}\" version=\"${ConvertedCache.version(doc)}\"/>".getBytes('UTF-8')
+    }
+
+    private Document createEmbellished() {
+        return whelk.loadEmbellished(create().shortId)
+    }
+
+    private Document create() {
+        String id = IdGenerator.generate()
+        String thingIri = Document.BASE_URI.resolve(id + '#it').toString()
+        Map thing = ['@id': thingIri, '@type': 'Topic', 'prefLabel': 'LoadConvertedSpec']
+        Map record = ['@id': Document.BASE_URI.resolve(id).toString(), '@type': 'Record', 'mainEntity': ['@id': thingIri]]
+
+        whelk.storage.createDocument(new Document(['@graph': [record, thing]]), 'xl', 'LoadConvertedSpec', 'auth', false)
+        created << id
+        return whelk.storage.load(id)
+    }
+
+    private static List<String> convertedVersions(String id) {
+        return whelk.storage.withDbConnection {
+            Connection connection = whelk.storage.getMyConnection()
+            PreparedStatement statement = connection.prepareStatement("SELECT version FROM lddb__converted WHERE id = ?")
+            statement.setString(1, id)
+            ResultSet rs = statement.executeQuery()
+            List<String> versions = []
+            while (rs.next()) {
+                versions << rs.getString(1)
+            }
+            return versions
+        }
+    }
+}
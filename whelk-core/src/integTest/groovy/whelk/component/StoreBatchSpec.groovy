@@ -0,0 +1,160 @@
+package whelk.component
+
+import spock.lang.Specification
+import whelk.Document
+import whelk.IdGenerator
+import whelk.Whelk
+import whelk.component.PostgreSQLComponent.BatchResult
+import whelk.exception.StorageCreateFailedException
+
+import static whelk.component.PostgreSQLComponent.BatchResult.Outcome.CREATED
+import static whelk.component.PostgreSQLComponent.BatchResult.Outcome.NOT_CREATED
+
+/**
+ * PostgreSQLComponent.storeBatch(). Needs a database, see integTest.
+ */
+class StoreBatchSpec extends Specification {
+
+    static Whelk whelk = null
+
+    static {
+        try {
+            whelk = Whelk.createLoadedCoreWhelk()
+        } catch (Exception e) {
+            System.err.println("Unable to instantiate whelk: $e")
+        }
+    }
+
+    List<String> created = []
+
+    def cleanup() {
+        created.reverse().each { String id -> whelk.storage.remove(id, 'xl', 'StoreBatchSpec', true) }
+    }
+
+    def "create every document in the batch"() {
+        given:
+        List<Document> docs = (1..3).collect { doc('Instance') }
+
+        when:
+        List<BatchResult> results = store(docs, 'bib')
+
+        then:
+        results*.outcome == [CREATED, CREATED, CREATED]
+        results*.document == docs
+        docs.every { whelk.storage.load(it.shortId) != null }
+    }
+
+    def "store nothing when a document collides on system id"() {
+        given:
+        Document existing = doc('Instance')
+        store([existing], 'bib')
+
+        Document ok = doc('Instance')
+        Document sameId = doc('Instance')
+        sameId.setId(existing.getShortId())
+
+        when:
+        store([ok, sameId], 'bib')
+
+        then:
+        thrown(StorageCreateFailedException)
+        whelk.storage.load(ok.shortId) == null
+    }
+
+    def "store nothing when a document collides on URI with another in the batch"() {
+        given:
+        Document first = doc('Instance')
+        Document sameThingIri = doc('Instance')
+        sameThingIri.data['@graph'][1]['sameAs'] = [['@id': first.getThingIdentifiers()[0]]]
+
+        when:
+        store([first, sameThingIri], 'bib')
+
+        then:
+        thrown(StorageCreateFailedException)
+        whelk.storage.load(first.shortId) == null
+    }
+
+    def "check holdings like when creating one at a time"() {
+        given:
+        Document bib = doc('Instance')
+        String sigel = 'https://libris.kb.se/library/StoreBatchSpec'
+        Document holding = holdingOf(bib, sigel)
+        Document otherSigel = holdingOf(bib, sigel + '2')
+        Document noBib = doc('Item', ['itemOf': ['@id': 'https://libris.kb.se/nonexisting#it'], 'heldBy': ['@id': sigel]])
+
+        when:
+        store([bib], 'bib')
+        List<BatchResult> results = store([holding, otherSigel, noBib], 'hold')
+
+        then:
+        results*.outcome == [CREATED, CREATED, NOT_CREATED]
+
+        when: 'a holding for the same sigel and bib in a later batch'
+        store([holdingOf(bib, sigel)], 'hold')
+
+        then:
+        thrown(PostgreSQLComponent.ConflictingHoldException)
+    }
+
+    def "store nothing when two holdings in the batch are for the same sigel and bib"() {
+        given:
+        Document bib = doc('Instance')
+        String sigel = 'https://libris.kb.se/library/StoreBatchSpec'
+        Document holding = holdingOf(bib, sigel)
+
+        when:
+        store([bib], 'bib')
+        store([holding, holdingOf(bib, sigel)], 'hold')
+
+        then:
+        thrown(PostgreSQLComponent.ConflictingHoldException)
+        whelk.storage.load(holding.shortId) == null
+    }
+
+    def "store nothing when the batch can't be written"() {
+        given:
+        Document a = doc('Instance')
+        // Not accepted by jsonb, fails when written and not when checked
+        Document broken = doc('Instance', ['label': 'nul \u0000'])
+
+        when:
+        store([a, broken], 'bib')
+
+        then:
+        thrown(Exception)
+        whelk.storage.load(a.shortId) == null
+        whelk.storage.load(broken.shortId) == null
+    }
+
+    def "save identifiers and dependencies of documents linking to each other in the batch"() {
+        given:
+        Document work = doc('Work')
+        Document instance = doc('Instance', ['instanceOf': ['@id': work.getThingIdentifiers()[0]]])
+
+        when:
+        store([instance, work], 'bib')
+
+        then:
+        whelk.storage.getSystemIdByIri(work.getThingIdentifiers()[0]) == work.shortId
+        whelk.storage.getDependencies(instance.shortId) == [work.shortId] as Set
+    }
+
+    private List<BatchResult> store(List<Document> docs, String collection) {
+        List<BatchResult> results = whelk.storage.storeBatch(docs, 'xl', 'StoreBatchSpec', collection)
+        created.addAll(results.findAll { it.outcome == CREATED }.collect { it.document.shortId })
+        return results
+    }
+
+    private Document holdingOf(Document bib, String sigel) {
+        return doc('Item', ['itemOf': ['@id': bib.getThingIdentifiers()[0]], 'heldBy': ['@id': sigel]])
+    }
+
+    private static Document doc(String type, Map properties = [:]) {
+        String id = IdGenerator.generate()
+        String thingIri = Document.BASE_URI.resolve(id + '#it').toString()
+        Map record = ['@id': Document.BASE_URI.resolve(id).toString(), '@type': 'Record', 'mainEntity': ['@id': thingIri]]
+        Map thing = ['@id': thingIri, '@type': type] + properties
+        return new Document(['@graph': [record, thing]])
+    }
+}
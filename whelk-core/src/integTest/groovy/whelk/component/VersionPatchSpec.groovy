@@ -0,0 +1,129 @@
+package whelk.component
+
+import spock.lang.Specification
+import whelk.Document
+import whelk.IdGenerator
+import whelk.Whelk
+
+import java.sql.Connection
+import java.sql.PreparedStatement
+import java.sql.ResultSet
+
+/**
+ * Document versions stored as patches against snapshots, see versionSnapshotInterval. Needs a database, see integTest.
+ */
+class VersionPatchSpec extends Specification {
+
+    static Whelk whelk = null
+
+    static {
+        try {
+            whelk = Whelk.createLoadedCoreWhelk()
+        } catch (Exception e) {
+            System.err.println("Unable to instantiate whelk: $e")
+        }
+    }
+
+    int interval
+    List<String> created = []
+
+    def setup() {
+        interval = whelk.storage.versionSnapshotInterval
+        whelk.storage.versionSnapshotInterval = 3
+    }
+
+    def cleanup() {
+        whelk.storage.versionSnapshotInterval = interval
+        created.reverse().each { String id -> whelk.storage.remove(id, 'xl', 'VersionPatchSpec', true) }
+    }
+
+    def "load every version by checksum"() {
+        given:
+        Document doc = createWithVersions(5)
+        List<Document> versions = whelk.storage.loadAllVersions(doc.shortId)
+
+        expect:
+        versions.size() == 5
+        numPatches(doc.shortId) == 3
+        versions.every { loadByChecksum(doc, it).data == it.data }
+        versions*.getChecksum(whelk.jsonld).toSet().size() == 5
+    }
+
+    def "load every version by checksum after packing and unpacking"() {
+        given:
+        Document doc = createWithVersions(5)
+        List<Document> versions = whelk.storage.loadAllVersions(doc.shortId)
+
+        when:
+        whelk.storage.packVersions(doc.shortId, 1)
+
+        then:
+        numPatches(doc.shortId) == 0
+        versions.every { loadByChecksum(doc, it).data == it.data }
+
+        when:
+        int packed = whelk.storage.packVersions(doc.shortId, 2)
+
+        then:
+        packed == 2
+        numPatches(doc.shortId) == 2
+        versions.every { loadByChecksum(doc, it).data == it.data }
+        whelk.storage.loadAllVersions(doc.shortId)*.data == versions*.data
+    }
+
+    def "delete patches together with their snapshot"() {
+        given:
+        Document doc = createWithVersions(3)
+
+        when:
+        deleteVersions(doc.shortId, 'data IS NOT NULL')
+
+        then:
+        whelk.storage.loadAllVersions(doc.shortId) == []
+    }
+
+    private Document createWithVersions(int numVersions) {
+        String id = IdGenerator.generate()
+        String thingIri = Document.BASE_URI.resolve(id + '#it').toString()
+        Map record = ['@id': Document.BASE_URI.resolve(id).toString(), '@type': 'Record', 'mainEntity': ['@id': thingIri]]
+        Map thing = ['@id': thingIri, '@type': 'Instance', 'hasTitle': [['@type': 'Title', 'mainTitle': 'VersionPatchSpec']],
+                     // Big enough for a changed title to be stored as a patch
+                     'summary': [['@type': 'Summary', 'label': 'VersionPatchSpec ' * 100]]]
+        Document doc = new Document(['@graph': [record, thing]])
+
+        whelk.storage.createDocument(doc, 'xl', 'VersionPatchSpec', 'bib', false)
+        created << id
+        (2..numVersions).each { int i ->
+            whelk.storage.storeUpdate(id, false, false, 'xl', 'VersionPatchSpec', { Document d ->
+                d.data['@graph'][1]['hasTitle'][0]['mainTitle'] = "VersionPatchSpec $i".toString()
+            })
+        }
+        return doc
+    }
+
+    private static Document loadByChecksum(Document doc, Document version) {
+        return whelk.storage.loadDocumentByMainId(doc.getCompleteId(), version.getChecksum(whelk.jsonld))
+    }
+
+    private static int numPatches(String id) {
+        return whelk.storage.withDbConnection {
+            Connection connection = whelk.storage.getMyConnection()
+            PreparedStatement statement = connection.prepareStatement(
+                    "SELECT count(*) FROM lddb__versions WHERE id = ? AND patch IS NOT NULL")
+            statement.setString(1, id)
+            ResultSet rs = statement.executeQuery()
+            rs.next()
+            return rs.getInt(1)
+        }
+    }
+
+    private static void deleteVersions(String id, String condition) {
+        whelk.storage.withDbConnection {
+            Connection connection = whelk.storage.getMyConnection()
+            PreparedStatement statement = connection.prepareStatement(
+                    "DELETE FROM lddb__versions WHERE id = ? AND $condition")
+            statement.setString(1, id)
+            statement.executeUpdate()
+        }
+    }
+}
@@ -736,7 +736,44 @@ class Document {
         return node
     }
 
+    /**
+     * Copies a JSON-LD tree of Maps, Lists and immutable values (Strings, Numbers, Booleans).
+     * Map key order is preserved. Anything else falls back to a copy via Java serialization.
+     */
+    @CompileStatic
     static Object deepCopy(Object orig) {
+        if (orig == null || orig instanceof String || orig instanceof Number || orig instanceof Boolean) {
+            return orig
+        }
+        else if (orig instanceof Map) {
+            Map map = (Map) orig
+            Map copy = new LinkedHashMap(capacity(map.size()))
+            for (Map.Entry entry : (Set<Map.Entry>) map.entrySet()) {
+                copy.put(entry.getKey(), deepCopy(entry.getValue()))
+            }
+            return copy
+        }
+        else if (orig instanceof List) {
+            List list = (List) orig
+            List copy = new ArrayList(list.size())
+            for (Object element : list) {
+                copy.add(deepCopy(element))
+            }
+            return copy
+        }
+        else if (orig instanceof GString) {
+            return orig.toString()
+        }
+        else {
+            return serializationCopy(orig)
+        }
+    }
+
+    private static int capacity(int size) {
+        return (int) (size / 0.75f) + 1
+    }
+
+    static Object serializationCopy(Object orig) {
         //TODO: see https://jira.kb.se/browse/LXL-270
         try {
             ByteArrayOutputStream bos = new ByteArrayOutputStream()
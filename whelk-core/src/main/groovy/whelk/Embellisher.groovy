@@ -1,6 +1,7 @@
 package whelk
 
 import groovy.transform.CompileStatic
+import io.prometheus.client.Counter
 
 import java.util.function.BiFunction
 import java.util.function.Function
@@ -14,6 +15,10 @@ class Embellisher {
 
     static final int MAX_REVERSE_LINKS = 512
 
+    private static final Counter unattributed = Counter.build()
+            .name("embellish_unattributed")
+            .help("Number of times a batch embellish could not tell what an IRI found and loaded again for one document.").register()
+
     JsonLd jsonld
     Collection<String> embellishLevels = DEFAULT_EMBELLISH_LEVELS
     Collection<String> integralRelations = DEFAULT_INTEGRAL_RELATIONS
@@ -22,6 +27,8 @@ class Embellisher {
     Function<Iterable<String>, Iterable<Map>> getDocs
     Function<Iterable<String>, Iterable<Map>> getCards
     BiFunction<String, List<String>, Set<String>> getByReverseRelation
+    // Optional, for looking up reverse relations of a whole batch at once
+    Function<Collection<Link>, Map<Link, Set<String>>> getByReverseRelationBatch
 
     Embellisher(
             JsonLd jsonld,
@@ -42,7 +49,28 @@ class Embellisher {
 
     // FIXME: describe me
     void embellish(Document document) {
-        jsonld.embellish(document.data, getEmbellishData(document))
+        embellishAll([document])
+    }
+
+    /**
+     * Embellish several documents at once. What the documents link to is loaded with one getDocs/getCards call
+     * per step and level for all of them, instead of per document.
+     *
+     * The result for each document is the same as from embellish(document).
+     */
+    void embellishAll(Collection<Document> documents) {
+        Map<Document, State> states = new IdentityHashMap<>()
+        for (Document document : documents) {
+            if (!document.getThingIdentifiers().isEmpty()) {
+                states.put(document, new State(document))
+            }
+        }
+
+        getEmbellishData(states.values().toList())
+
+        for (Document document : documents) {
+            jsonld.embellish(document.data, states.get(document)?.result ?: [])
+        }
     }
 
     void setEmbellishLevels(List<String> embellishLevels) {
@@ -57,49 +85,75 @@ class Embellisher {
         this.followInverse = followInverse
     }
 
-    private List getEmbellishData(Document document) {
-        if (document.getThingIdentifiers().isEmpty()) {
-            return []
+    /**
+     * Embellishment of one document in progress
+     */
+    private static class State {
+        final Document document
+        final Set<String> visitedIris = new HashSet<>()
+        List result = []
+        Set<Link> links
+        List<Map> docs
+        List<Map> previousLevelDocs
+
+        State(Document document) {
+            this.document = document
+            visitedIris.addAll(plusWithoutHash(document.getThingIdentifiers()))
         }
+    }
 
-        List<Map> start = [document.data]
-
-        Set<String> visitedIris = new HashSet<>()
-        visitedIris.addAll(plusWithoutHash(document.getThingIdentifiers()))
-
-        def docs = fetchIntegral('full', start, integral(getAllLinks(start)), visitedIris).collect()
+    private void getEmbellishData(List<State> states) {
+        if (states.isEmpty()) {
+            return
+        }
 
-        List result = docs.collect()
-        Set<Link> links = getAllLinks(start + docs)
-        Iterable<Map> previousLevelDocs = start + docs
+        Map<State, Set<Link>> integralLinks = [:]
+        for (State s : states) {
+            integralLinks[s] = integral(getAllLinks([s.document.data]))
+        }
+        fetchIntegral('full', integralLinks).each { State s, List<Map> docs ->
+            List<Map> start = [s.document.data]
+            s.result = docs.collect()
+            s.links = getAllLinks(start + docs)
+            s.previousLevelDocs = start + docs
+        }
         String previousLens = 'full'
 
         for (String lens : embellishLevels) {
-            docs = fetchNonVisited(lens, uniqueIris(links), visitedIris)
-            links = getAllLinks(docs)
-            
-            def integralDocs = fetchIntegral(lens, docs, integral(links), visitedIris)
-            docs += integralDocs
-            links += getAllLinks(integralDocs)
+            Map<State, Set<String>> iris = [:]
+            for (State s : states) {
+                iris[s] = uniqueIris(s.links)
+            }
+            fetchNonVisited(lens, iris).each { State s, List<Map> docs ->
+                s.docs = docs
+                s.links = getAllLinks(docs)
+                integralLinks[s] = integral(s.links)
+            }
+
+            fetchIntegral(lens, integralLinks).each { State s, List<Map> integralDocs ->
+                s.docs += integralDocs
+                s.links += getAllLinks(integralDocs)
+            }
 
             if (followInverse) {
-                previousLevelDocs.each {
-                    def inverseDocs = insertInverse(previousLens, it, lens, visitedIris)
-                    docs += inverseDocs
-                    links += getAllLinks(inverseDocs)
+                insertInverse(previousLens, states, lens).each { State s, List<Map> inverseDocs ->
+                    s.docs += inverseDocs
+                    s.links += getAllLinks(inverseDocs)
+                }
+                for (State s : states) {
+                    s.previousLevelDocs = s.docs
                 }
-                previousLevelDocs = docs
                 previousLens = lens
             }
 
-            result += docs
+            for (State s : states) {
+                s.result += s.docs
+            }
         }
         if (followInverse) {
             // Last level: add reverse links, but don't include documents linking here in embellish graph
-            previousLevelDocs.each { insertInverse(previousLens, it, null, visitedIris) }
+            insertInverse(previousLens, states, null)
         }
-
-        return result
     }
     
     private static Set<Link> getAllLinks(Iterable<Map> docs) {
@@ -128,35 +182,166 @@ class Embellisher {
         return integral
     }
 
-    private Iterable<Map> fetchNonVisited(String lens, Set<String> iris, Set<String> visitedIris) {
-        def data = load(lens, iris - visitedIris)
+    private Map<State, List<Map>> fetchNonVisited(String lens, Map<State, Set<String>> iris) {
+        Set<String> toLoad = new HashSet<>()
+        int numRequests = 0
+        iris.each { State s, Set<String> i ->
+            Set<String> nonVisited = i - s.visitedIris
+            if (!nonVisited.isEmpty()) {
+                toLoad.addAll(nonVisited)
+                numRequests++
+            }
+        }
+        Loaded loaded = load(lens, toLoad, numRequests)
+
+        Map<State, List<Map>> result = [:]
+        iris.each { State s, Set<String> i -> result[s] = fetchNonVisited(loaded, i, s.visitedIris) }
+        return result
+    }
+
+    private List<Map> fetchNonVisited(Loaded loaded, Set<String> iris, Set<String> visitedIris) {
+        def data = pick(loaded, iris - visitedIris)
         visitedIris.addAll(data.collectMany { plusWithoutHash(new Document(it).getThingIdentifiers()) })
         visitedIris.addAll(iris)
         return data
     }
 
-    private Iterable<Map> fetchIntegral(String lens, Iterable<Map> docs, Set<Link> integralLinks, Set<String> visitedIris) {
-        List<Map> result = []
-        while(true) {
-            docs = fetchNonVisited(lens, uniqueIris(integralLinks), visitedIris)
-            integralLinks = integral(getAllLinks(docs))
+    private Map<State, List<Map>> fetchIntegral(String lens, Map<State, Set<Link>> integralLinks) {
+        Map<State, List<Map>> result = [:]
+        for (State s : integralLinks.keySet()) {
+            result[s] = []
+        }
 
-            if (docs.isEmpty()) {
-                break
-            }
-            else {
-                result += docs
+        while (!integralLinks.isEmpty()) {
+            Map<State, Set<String>> iris = [:]
+            integralLinks.each { State s, Set<Link> links -> iris[s] = uniqueIris(links) }
+
+            integralLinks = [:]
+            fetchNonVisited(lens, iris).each { State s, List<Map> docs ->
+                if (!docs.isEmpty()) {
+                    result[s].addAll(docs)
+                    integralLinks[s] = integral(getAllLinks(docs))
+                }
             }
         }
 
         return result
     }
 
-    private Iterable<Map> load(String lens, Set<String> iris) {
+    /**
+     * Data loaded for a set of IRIs, shared by all documents in a batch
+     */
+    private static class Loaded {
+        final String lens
+        final List<Map> data
+        // Number of sets of IRIs that were loaded together, i.e. the number of times pick() will be called
+        final int numRequests
+        // index in data by the IRIs that were asked for
+        final Map<String, List<Integer>> byIri = [:]
+        // The same document can be loaded more than once, e.g. once for each of its IRIs asked for
+        final List<Object> documentKeys = []
+        final Set<Integer> pickedOnce = new HashSet<>()
+        // index in data of what was found by an IRI that is not in it, e.g. a replaced id
+        final List<Integer> unidentified = []
+        // IRIs asked for that found something they are not in
+        final Set<String> foundByOtherIri = new HashSet<>()
+
+        Loaded(String lens, List<Map> data, Set<String> iris, int numRequests) {
+            this.lens = lens
+            this.data = data
+            this.numRequests = numRequests
+            data.eachWithIndex { Map d, int i ->
+                boolean identified = false
+                for (String id : identifiers(d)) {
+                    if (iris.contains(id)) {
+                        byIri.computeIfAbsent(id, { [] }).add(i)
+                        identified = true
+                    }
+                }
+                if (!identified) {
+                    unidentified.add(i)
+                }
+                Object record = d[JsonLd.GRAPH_KEY] instanceof List ? ((List) d[JsonLd.GRAPH_KEY])[0] : null
+                Object recordId = record instanceof Map ? ((Map) record)[JsonLd.ID_KEY] : null
+                documentKeys.add(recordId ?: i)
+            }
+        }
+
+        Map take(int i) {
+            // Documents in the same batch must not share anything, the reverse links are added in place
+            return pickedOnce.add(i) ? data[i] : (Map) Document.deepCopy(data[i])
+        }
+    }
+
+    private Loaded load(String lens, Set<String> iris, int numRequests) {
+        Loaded loaded = new Loaded(lens, iris.isEmpty() ? [] : fetch(lens, iris), iris, numRequests)
+
+        // When several sets of IRIs were loaded together, what an IRI not in the loaded data found (e.g. a replaced
+        // id) can't be told apart from what the other IRIs found. Most often such IRIs found nothing, check that first.
+        Set<String> notFound = iris - loaded.byIri.keySet()
+        if (numRequests > 1 && !notFound.isEmpty() && !loaded.data.isEmpty() && !fetch(lens, notFound).isEmpty()) {
+            for (String iri : notFound) {
+                if (!fetch(lens, Collections.singleton(iri)).isEmpty()) {
+                    loaded.foundByOtherIri.add(iri)
+                }
+            }
+        }
+
+        return loaded
+    }
+
+    /**
+     * @return what loading exactly these IRIs returns, in the order it was loaded and with every document only once
+     */
+    private List<Map> pick(Loaded loaded, Set<String> iris) {
         if (iris.isEmpty()) {
             return []
         }
 
+        SortedSet<Integer> indices = new TreeSet<>()
+        Set<String> notFound = new HashSet<>()
+        for (String iri : iris) {
+            List<Integer> found = loaded.byIri[iri]
+            if (found == null) {
+                notFound.add(iri)
+            }
+            else {
+                indices.addAll(found)
+            }
+        }
+
+        List<Map> data = []
+        if (notFound.any { loaded.foundByOtherIri.contains(it) }) {
+            // Can't tell what these IRIs found among what was loaded for the whole batch, load them on their own
+            unattributed.inc()
+            log.debug("Loading ${iris} again, could not tell what ${notFound.intersect(loaded.foundByOtherIri)} found")
+            data = fetch(loaded.lens, iris)
+        }
+        else {
+            if (!notFound.isEmpty() && loaded.numRequests == 1) {
+                indices.addAll(loaded.unidentified)
+            }
+            Set<Object> picked = new HashSet<>()
+            for (Integer i : indices) {
+                if (picked.add(loaded.documentKeys[i])) {
+                    data.add(loaded.take(i))
+                }
+            }
+        }
+
+        if (loaded.lens == 'search-chips') {
+            // NB! This depends on search-chips being subsets of cards. Since we shrink the cards to search-chips. 
+            var searchChips = true
+            data = data.collect{ (Map) jsonld.toChip(it, [], searchChips) }
+        }
+        else if (loaded.lens == 'chips') {
+            data = data.collect{ (Map) jsonld.toChip(it) }
+        }
+
+        return data
+    }
+
+    private List<Map> fetch(String lens, Set<String> iris) {
         def data = lens == 'full'
                 ? getDocs.apply(iris.collect()) // NB! this collect must be here, see comment below!
                 : getCards.apply(iris.collect()) // NB! this collect must be here, see comment below!
@@ -172,49 +357,116 @@ class Embellisher {
         // at java_util_function_Function$apply.call(Unknown Source) ~[?:?]
         // at whelk.Embellisher.load(Embellisher.groovy:149) ~[main/:?]
 
-        if (lens == 'search-chips') {
-            // NB! This depends on search-chips being subsets of cards. Since we shrink the cards to search-chips. 
-            var searchChips = true
-            data = data.collect{ (Map) jsonld.toChip(it, [], searchChips) }
-        }
-        else if (lens == 'chips') {
-            data = data.collect{ (Map) jsonld.toChip(it) }
-        }
-
-        return data
+        return data.collect()
     }
 
-    private Iterable<Map> insertInverse(String forLens, Map thing, String applyLens, Set<String> visitedIris) {
-        Set<String> inverseRelations = jsonld.getInverseProperties(thing, forLens)
-        if (inverseRelations.isEmpty()) {
-            return Collections.EMPTY_LIST
+    private static Set<String> identifiers(Map data) {
+        Set<String> ids = new HashSet<>()
+        for (Object item : (List) data[JsonLd.GRAPH_KEY]) {
+            if (item instanceof Map) {
+                Map m = (Map) item
+                if (m[JsonLd.ID_KEY]) {
+                    ids.add((String) m[JsonLd.ID_KEY])
+                }
+                for (Object sameAs : JsonLd.asList(m[JsonLd.JSONLD_ALT_ID_KEY])) {
+                    if (sameAs instanceof Map && ((Map) sameAs)[JsonLd.ID_KEY]) {
+                        ids.add((String) ((Map) sameAs)[JsonLd.ID_KEY])
+                    }
+                }
+            }
         }
+        return ids
+    }
 
-        List<Map> cards = []
-        String iri = new Document(thing).getThingIdentifiers().first()
-        for (String relation : inverseRelations) {
-            Set<String> irisLinkingHere = getByReverseRelation.apply(iri, [relation])
-            if (irisLinkingHere.isEmpty()) {
-                continue
+    private Map<State, List<Map>> insertInverse(String forLens, List<State> states, String applyLens) {
+        Map<State, List<Tuple2<Map, Link>>> inverseLinks = [:]
+        Set<Link> allLinks = new HashSet<>()
+        for (State s : states) {
+            List<Tuple2<Map, Link>> links = []
+            for (Map thing : s.previousLevelDocs) {
+                Set<String> inverseRelations = jsonld.getInverseProperties(thing, forLens)
+                String iri = null
+                for (String relation : inverseRelations) {
+                    iri = iri ?: new Document(thing).getThingIdentifiers().first()
+                    links.add(new Tuple2<Map, Link>(thing, new Link(iri: iri, relation: relation)))
+                }
             }
+            inverseLinks[s] = links
+            allLinks.addAll(links.collect { it.v2 })
+        }
 
-            if (irisLinkingHere.size() > MAX_REVERSE_LINKS) {
-                log.warn("MAX_REVERSE_LINKS exceeded. $iri $JsonLd.REVERSE_KEY $relation " +
-                        "(${irisLinkingHere.size()} > $MAX_REVERSE_LINKS)")
-                irisLinkingHere = irisLinkingHere.take(MAX_REVERSE_LINKS).toSet()
+        Map<Link, Set<String>> irisLinkingHere = getByReverseRelations(allLinks)
+
+        Loaded loaded = null
+        if (applyLens) {
+            Set<String> toLoad = new HashSet<>()
+            int numRequests = 0
+            inverseLinks.each { State s, List<Tuple2<Map, Link>> links ->
+                links.each {
+                    Set<String> nonVisited = limit(irisLinkingHere[it.v2]) - s.visitedIris
+                    if (!nonVisited.isEmpty()) {
+                        toLoad.addAll(nonVisited)
+                        numRequests++
+                    }
+                }
             }
+            loaded = load(applyLens, toLoad, numRequests)
+        }
 
-            Map theThing = ((List) thing[JsonLd.GRAPH_KEY])[1]
-            if (!theThing[JsonLd.REVERSE_KEY]) {
-                theThing[JsonLd.REVERSE_KEY] = [:]
+        Map<State, List<Map>> result = [:]
+        inverseLinks.each { State s, List<Tuple2<Map, Link>> links ->
+            List<Map> cards = []
+            for (Tuple2<Map, Link> link : links) {
+                Map thing = link.v1
+                String iri = link.v2.iri
+                String relation = link.v2.relation
+
+                Set<String> iris = irisLinkingHere[link.v2]
+                if (iris.isEmpty()) {
+                    continue
+                }
+
+                if (iris.size() > MAX_REVERSE_LINKS) {
+                    log.warn("MAX_REVERSE_LINKS exceeded. $iri $JsonLd.REVERSE_KEY $relation " +
+                            "(${iris.size()} > $MAX_REVERSE_LINKS)")
+                    iris = limit(iris)
+                }
+
+                Map theThing = ((List) thing[JsonLd.GRAPH_KEY])[1]
+                if (!theThing[JsonLd.REVERSE_KEY]) {
+                    theThing[JsonLd.REVERSE_KEY] = [:]
+                }
+
+                theThing[JsonLd.REVERSE_KEY][relation] = iris.collect { [(JsonLd.ID_KEY): it] }
+                if (applyLens) {
+                    cards.addAll(fetchNonVisited(loaded, iris, s.visitedIris))
+                }
             }
+            result[s] = cards
+        }
+        return result
+    }
+
+    private static Set<String> limit(Set<String> irisLinkingHere) {
+        return irisLinkingHere.size() > MAX_REVERSE_LINKS
+                ? irisLinkingHere.take(MAX_REVERSE_LINKS).toSet()
+                : irisLinkingHere
+    }
 
-            theThing[JsonLd.REVERSE_KEY][relation] = irisLinkingHere.collect { [(JsonLd.ID_KEY): it] }
-            if (applyLens) {
-                cards.addAll(fetchNonVisited(applyLens, irisLinkingHere, visitedIris))
+    private Map<Link, Set<String>> getByReverseRelations(Set<Link> links) {
+        Map<Link, Set<String>> result = [:]
+        if (getByReverseRelationBatch) {
+            Map<Link, Set<String>> found = getByReverseRelationBatch.apply(links)
+            for (Link link : links) {
+                result[link] = found[link] ?: Collections.<String>emptySet()
             }
         }
-        return cards
+        else {
+            for (Link link : links) {
+                result[link] = getByReverseRelation.apply(link.iri, [link.relation])
+            }
+        }
+        return result
     }
 
     private static List<String> plusWithoutHash(List<String> iris) {
@@ -96,6 +96,9 @@ class JsonLd {
      */
     Set<String> repeatableTerms
 
+    // Terms declared as set containers in the context, looked up for every list when checksumming
+    private Set<String> setContainerTerms = Collections.emptySet()
+
     /**
      * Make an instance to encapsulate model driven behaviour.
      */
@@ -131,6 +134,8 @@ class JsonLd {
     void setSupportData(Map contextData, Map displayData, Map vocabData) {
         context = getNormalizedContext(contextData)
 
+        setContainerTerms = context.keySet().findAll { resolveSetContainer(it) } as Set<String>
+
         repeatableTerms = context.findResults { key, value ->
             if (isSetContainer(value) || isListContainer(value))
                 return key
@@ -268,7 +273,12 @@ class JsonLd {
     }
 
     boolean isSetContainer(String property) {
-        context?.get(property)?.with(this.&isSetContainer) ?: false
+        setContainerTerms.contains(property)
+    }
+
+    private boolean resolveSetContainer(String property) {
+        def dfn = context.get(property)
+        return dfn instanceof String ? resolveSetContainer((String) dfn) : isSetContainer(dfn)
     }
     
     boolean isSetContainer(dfn) {
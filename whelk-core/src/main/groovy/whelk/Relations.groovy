@@ -1,9 +1,11 @@
 package whelk
 
+import whelk.component.LinkGraph
 import whelk.component.PostgreSQLComponent
 
 class Relations {
     public static final List<String> BROADER_RELATIONS = ['broader', 'broadMatch', 'exactMatch', 'locatedIn']
+    private static final List<String> SYMMETRIC_BROADER_RELATIONS = BROADER_RELATIONS.findAll { isSymmetric(it) }
 
     PostgreSQLComponent storage
 
@@ -11,12 +13,26 @@ class Relations {
         this.storage = storage
     }
 
+    // The transitive closure of BROADER_RELATIONS is kept in lddb__broader_closure.
+    // When the link graph has all BROADER_RELATIONS it is followed in memory instead.
     boolean isImpliedBy(String broaderIri, String narrowerIri) {
-        return isReachable(narrowerIri, broaderIri, BROADER_RELATIONS)
+        LinkGraph graph = broaderGraph()
+        if (graph) {
+            return graph.isReachable(narrowerIri, broaderIri, BROADER_RELATIONS, SYMMETRIC_BROADER_RELATIONS)
+        }
+        return storage.isInBroaderClosure(narrowerIri, broaderIri)
     }
 
     Set<String> followReverseBroader(String iri) {
-        return followReverse(iri, BROADER_RELATIONS)
+        LinkGraph graph = broaderGraph()
+        if (graph) {
+            return graph.followReverse(iri, BROADER_RELATIONS, SYMMETRIC_BROADER_RELATIONS)
+        }
+        return storage.getNarrowerClosure(iri)
+    }
+
+    private LinkGraph broaderGraph() {
+        return storage.dependencyCache?.getLinkGraph(BROADER_RELATIONS)
     }
 
     Set<String> getBy(String iri, List<String> relations) {
@@ -25,6 +41,10 @@ class Relations {
         return result
     }
 
+    Map<Link, Set<String>> getByReverse(Collection<Link> links) {
+        return storage.getByReverseRelations(links).collectEntries { link, iris -> [(link): new HashSet<>(iris)] }
+    }
+
     Set<String> getByReverse(String iri, List<String> relations) {
         Set<String> result = new HashSet<>()
         relations.each { result.addAll(storage.getByReverseRelation(iri, it)) }
@@ -35,53 +55,7 @@ class Relations {
         storage.getIncomingLinkCountByRelation(iri)
     }
 
-    private boolean isReachable(String fromIri, String toIri, List<String> relations) {
-        Set<String> visited = []
-        List<String> stack = [fromIri]
-
-        while (!stack.isEmpty()) {
-            String iri = stack.pop()
-            for (String relation : relations) {
-                Set<String> dependencies = new HashSet<>(storage.getByRelation(iri, relation))
-                if (isSymmetric(relation)) {
-                    dependencies.addAll(storage.getByReverseRelation(iri, relation))
-                }
-                if (dependencies.contains(toIri)) {
-                    return true
-                }
-                dependencies.removeAll(visited)
-                visited.addAll(dependencies)
-                stack.addAll(dependencies)
-            }
-        }
-
-        return false
-    }
-
-    private Set<String> followReverse(String iri, List<String> relations) {
-        Set<String> iris = []
-        List<String> stack = [iri]
-
-        while (!stack.isEmpty()) {
-            String id = stack.pop()
-            
-            Set<String> dependers = new HashSet<>()
-            for (String relation : relations) {
-                dependers.addAll(storage.getByReverseRelation(id, relation))
-                if (isSymmetric(relation)) {
-                    dependers.addAll(storage.getByRelation(id, relation))
-                }
-            }
-            
-            dependers.removeAll(iris)
-            stack.addAll(dependers)
-            iris.addAll(dependers)
-        }
-
-        return iris
-    }
-    
-    private static boolean isSymmetric(String relation) {
+    static boolean isSymmetric(String relation) {
         // FIXME get from vocab
         relation == "exactMatch"
     }
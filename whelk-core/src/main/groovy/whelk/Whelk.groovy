@@ -8,6 +8,7 @@ import whelk.component.CachingPostgreSQLComponent
 import whelk.component.DocumentNormalizer
 import whelk.component.ElasticSearch
 import whelk.component.PostgreSQLComponent
+import whelk.component.PostgreSQLComponent.BatchResult
 import whelk.component.PostgreSQLComponent.UpdateAgent
 import whelk.component.SparqlUpdater
 import whelk.converter.marc.MarcFrameConverter
@@ -24,6 +25,12 @@ import whelk.util.PropertyLoader
 import whelk.util.Romanizer
 
 import java.time.ZoneId
+import java.util.function.Function
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 
 /**
  * The Whelk is the root component of the XL system.
@@ -32,6 +39,11 @@ import java.time.ZoneId
 @CompileStatic
 class Whelk {
     ThreadGroup indexers = new ThreadGroup("dep-reindex")
+    // Bounded, when it is full the saving thread does the indexing itself instead of starting more threads
+    private ExecutorService indexingExecutor = new ThreadPoolExecutor(8, 8, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(1000),
+            { Runnable r -> new Thread(indexers, r) } as ThreadFactory,
+            new ThreadPoolExecutor.CallerRunsPolicy()).tap { allowCoreThreadTimeOut(true) }
     PostgreSQLComponent storage
     ElasticSearch elastic
     SparqlUpdater sparqlUpdater
@@ -91,6 +103,10 @@ class Whelk {
     Whelk(PostgreSQLComponent pg, ElasticSearch es) {
         this(pg)
         this.elastic = es
+        es.startRetryQueue(this)
+        if (es.shapeCacheEnabled) {
+            es.enableShapeCache(pg)
+        }
         log.info("Using index: $elastic")
     }
 
@@ -305,21 +321,28 @@ class Whelk {
             return
         }
         
+        // Reads made when indexing must see what this thread has just written, also on another thread
+        long lsn = storage.getLastWriteLsn()
+        boolean sync = isBatchJobThread()
         Runnable reindex = {
             try {
-                runnable.run()
+                storage.withReadsAfter(lsn) { runnable.run() }
+                if (sync) {
+                    // Indexed when the call returns, operations are otherwise sent in the background
+                    elastic.flushIndexingQueue()
+                }
             }
             catch (Exception e) {
                 log.error("Error reindexing: $e", e)
             }
         }
         
-        if (isBatchJobThread()) {
+        if (sync) {
             // Update them synchronously
             reindex.run()
         } else {
-            // else use a fire-and-forget thread
-            new Thread(indexers, reindex).start()
+            // else fire-and-forget
+            indexingExecutor.execute(reindex)
         }
     }
 
@@ -383,6 +406,17 @@ class Whelk {
             }
         }
 
+        collidingSystemIDs.addAll(getTypedIdCollisions(document, includingTypedIDs))
+
+        return collidingSystemIDs
+    }
+
+    /**
+     * @param includingTypedIDs if false, collisions are only logged and nothing is returned
+     */
+    private List<Tuple2<String, String>> getTypedIdCollisions(Document document, boolean includingTypedIDs) {
+        List<Tuple2<String, String>> collidingSystemIDs = []
+
         // Typed id queries on:
         List<Tuple> typedIDs = document.getTypedRecordIdentifiers()
         typedIDs.addAll(document.getTypedThingIdentifiers())
@@ -441,6 +475,37 @@ class Whelk {
         return success
     }
 
+    /**
+     * Create many documents in one transaction, see PostgreSQLComponent.storeBatch().
+     * Collisions on URIs are checked by storeBatch(). Collisions on typed ids are only logged, same as in
+     * createDocument().
+     *
+     * @return the outcome of each document, in the same order as documents
+     */
+    List<BatchResult> createDocuments(List<Document> documents, String changedIn, String changedBy, String collection) {
+        for (Document document : documents) {
+            normalize(document)
+            boolean detectCollisionsOnTypedIDs = false
+            getTypedIdCollisions(document, detectCollisionsOnTypedIDs)
+        }
+
+        List<BatchResult> results = storage.storeBatch(documents, changedIn, changedBy, collection)
+        List<Document> created = results.findAll { BatchResult r -> r.outcome == BatchResult.Outcome.CREATED }
+                .collect { BatchResult r -> r.document }
+        if (created) {
+            indexAsyncOrSync {
+                elastic.bulkIndex(created, this)
+                if (!skipIndexDependers) {
+                    created.each { Document document ->
+                        reindexAffected(document, new TreeSet<>(), document.getExternalRefs())
+                    }
+                }
+            }
+            sparqlUpdater?.pollNow()
+        }
+        return results
+    }
+
     /**
      * The UpdateAgent SHOULD be a pure function since the update will be retried in case the document
      * was modified in another transaction.
@@ -510,18 +575,42 @@ class Whelk {
     }
 
     void embellish(Document document, List<String> levels = null) {
-        def docsByIris = { List<String> iris -> bulkLoad(iris).values().collect{ it.data } }
-        Embellisher e = new Embellisher(jsonld, docsByIris, storage.&getCards, relations.&getByReverse)
+        embellishAll([document], levels)
+    }
 
+    /**
+     * Embellish documents in batch, the result for each document is the same as from embellish()
+     */
+    void embellishAll(Collection<Document> documents, List<String> levels = null) {
         if (levels) {
+            Embellisher e = createEmbellisher()
             e.setEmbellishLevels(levels)
+            e.embellishAll(documents)
+            return
         }
-        else if (document.getThingType() == 'Item') {
+
+        List<Document> items = []
+        List<Document> other = []
+        for (Document document : documents) {
+            (document.getThingType() == 'Item' ? items : other).add(document)
+        }
+
+        if (items) {
+            Embellisher e = createEmbellisher()
             e.setEmbellishLevels(['cards'])
             e.setFollowInverse(false)
+            e.embellishAll(items)
         }
+        if (other) {
+            createEmbellisher().embellishAll(other)
+        }
+    }
 
-        e.embellish(document)
+    private Embellisher createEmbellisher() {
+        def docsByIris = { List<String> iris -> bulkLoad(iris).values().collect{ it.data } }
+        Embellisher e = new Embellisher(jsonld, docsByIris, storage.&getCards, relations.&getByReverse)
+        e.getByReverseRelationBatch = { Collection<Link> links -> relations.getByReverse(links) } as Function<Collection<Link>, Map<Link, Set<String>>>
+        return e
     }
 
     /**
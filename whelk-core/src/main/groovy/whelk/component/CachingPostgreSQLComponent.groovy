@@ -1,20 +1,43 @@
 package whelk.component
 
+import com.google.common.cache.Cache
 import com.google.common.cache.CacheBuilder
 import com.google.common.cache.CacheLoader
 import com.google.common.cache.LoadingCache
 import groovy.util.logging.Log4j2 as Log
 import whelk.Document
+import whelk.util.Metrics
 
 import java.sql.Connection
 
+import static whelk.util.Jackson.mapper
+
+/**
+ * Cards are cached by system id as serialized JSON, which takes a fraction of the memory of the parsed Map.
+ * IRIs are mapped to system ids in a separate cache.
+ *
+ * Both caches are kept coherent across instances: changed and deleted cards are evicted on all instances
+ * via CARD_CACHE_INVALIDATE notifications, see PostgreSQLComponent.refreshDerivativeTables().
+ */
 @Log
 class CachingPostgreSQLComponent extends PostgreSQLComponent {
-    private static final int CARD_CACHE_MAX_SIZE = 250_000
-    private LoadingCache<String, Map> cardCache
+    private static final String PROPERTY_CARD_CACHE_SIZE = "cardCacheSize"
+    private static final int DEFAULT_CARD_CACHE_SIZE = 250_000
+    // IRIs not belonging to any record
+    private static final String NON_EXISTING = ""
+
+    private int cardCacheSize = DEFAULT_CARD_CACHE_SIZE
+    // IRI -> system id
+    private LoadingCache<String, String> idCache
+    // system id -> card as UTF-8 encoded JSON
+    private Cache<String, byte[]> cardCache
 
     CachingPostgreSQLComponent(Properties properties) {
         super(properties)
+        if (properties.getProperty(PROPERTY_CARD_CACHE_SIZE)) {
+            cardCacheSize = Integer.parseInt(properties.getProperty(PROPERTY_CARD_CACHE_SIZE))
+        }
+        log.info("$PROPERTY_CARD_CACHE_SIZE: $cardCacheSize")
         initCaches()
     }
 
@@ -22,58 +45,89 @@ class CachingPostgreSQLComponent extends PostgreSQLComponent {
     void logStats() {
         super.logStats()
         log.info("Card cache: ${cardCache.stats()}")
+        log.info("Card id cache: ${idCache.stats()}")
     }
 
+    /**
+     * Same as PostgreSQLComponent.getCards(), every card once and in order of system id
+     */
     @Override
     Iterable<Map> getCards(Iterable<String> iris) {
-        cardCache.getAll(iris).values().findAll{ !it.isEmpty() }
+        Map<String, String> ids = idCache.getAll(iris)
+        Map<String, Map> cards = new TreeMap<>(getCardsById(ids.values().findAll { it != NON_EXISTING }.toSet()))
+        return cards.values().findAll { it }
     }
 
     @Override
     Map getCard(String iri) {
-        return cardCache.get(iri)
+        String id = idCache.get(iri)
+        if (id == NON_EXISTING) {
+            return super.getCard(iri)
+        }
+        return getCardsById([id])[id] ?: super.getCard(iri)
     }
 
     @Override
     protected boolean storeCard(CardEntry cardEntry, Connection connection) {
         boolean change = super.storeCard(cardEntry, connection)
         Document card = cardEntry.getCard()
-        card.getThingIdentifiers().each { id ->
-            cardCache.put(id, card.data)
-        }
+        cardCache.put(card.getShortId(), mapper.writeValueAsBytes(card.data))
 
         return change
     }
 
     @Override
-    protected void deleteCard(Document doc, Connection connection) {
-        super.deleteCard(doc, connection)
-        doc.getThingIdentifiers().each { id ->
-            cardCache.invalidate(id)
-        }
+    protected void invalidateCards(Collection<String> keys) {
+        idCache.invalidateAll(keys)
+        cardCache.invalidateAll(keys)
+    }
+
+    @Override
+    protected void invalidateAllCards() {
+        idCache.invalidateAll()
+        cardCache.invalidateAll()
     }
 
-    private Map superGetCard(String iri) {
-        return super.getCard(iri)
+    private Map<String, Map> getCardsById(Set<String> ids) {
+        Map<String, Map> result = [:]
+        cardCache.getAllPresent(ids).each { String id, byte[] card ->
+            result[id] = mapper.readValue(card, Map)
+        }
+
+        Set<String> missing = ids - result.keySet()
+        if (missing) {
+            createAndAddMissingCards(bulkLoadCards(missing)).each { String id, Map card ->
+                cardCache.put(id, mapper.writeValueAsBytes(card))
+                result[id] = card
+            }
+        }
+
+        return result
     }
 
     void initCaches() {
         cardCache = CacheBuilder.newBuilder()
-                .maximumSize(CARD_CACHE_MAX_SIZE)
+                .maximumSize(cardCacheSize)
+                .recordStats()
+                .build()
+
+        idCache = CacheBuilder.newBuilder()
+                .maximumSize(cardCacheSize)
                 .recordStats()
-                .build(new CacheLoader<String, Map>() {
+                .build(new CacheLoader<String, String>() {
                     @Override
-                    Map load(String iri) throws Exception {
-                        return superGetCard(iri)
+                    String load(String iri) throws Exception {
+                        return getSystemIdByIri(iri) ?: NON_EXISTING
                     }
 
                     @Override
-                    Map<String, Map> loadAll(Iterable<? extends String> iris) throws Exception {
+                    Map<String, String> loadAll(Iterable<? extends String> iris) throws Exception {
                         def irisToIds = getSystemIdsByIris(iris)
-                        def cards = createAndAddMissingCards(bulkLoadCards(irisToIds.values()))
-                        cards.put('NON-EXISTING', Collections.emptyMap())
-                        return iris.collectEntries { [it, cards.get(irisToIds.get(it) ?: "NON-EXISTING")] }
+                        return iris.collectEntries { [it, irisToIds.get(it) ?: NON_EXISTING] }
                     }
                 })
+
+        Metrics.cacheMetrics.addCache('cards', cardCache)
+        Metrics.cacheMetrics.addCache('cardIds', idCache)
     }
 }
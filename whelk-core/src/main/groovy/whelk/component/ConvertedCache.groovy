@@ -0,0 +1,100 @@
+package whelk.component
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import com.google.common.cache.Weigher
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log4j2 as Log
+import whelk.Document
+import whelk.util.Metrics
+
+import java.security.MessageDigest
+
+import static whelk.util.Jackson.mapper
+
+/**
+ * In-process cache in front of lddb__converted, see PostgreSQLComponent.loadConverted().
+ *
+ * Converted documents are kept as bytes keyed by system id and format, together with the version of the
+ * embellished document they were converted from, see version(). Bounded by total size in bytes. Entries are
+ * invalidated together with the embellished document. One converted before an invalidation may still be put
+ * after it, but is then only returned for the same embellished data.
+ */
+@Log
+@CompileStatic
+class ConvertedCache {
+    private static class Converted {
+        final String version
+        final byte[] data
+
+        Converted(String version, byte[] data) {
+            this.version = version
+            this.data = data
+        }
+    }
+
+    // system id -> format -> converted
+    private final Cache<String, Map<String, Converted>> cache
+
+    ConvertedCache(long maxSizeBytes) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxSizeBytes)
+                .weigher(new Weigher<String, Map<String, Converted>>() {
+                    @Override
+                    int weigh(String id, Map<String, Converted> formats) {
+                        int size = id.length() * 2
+                        for (Map.Entry<String, Converted> entry : formats.entrySet()) {
+                            size += entry.key.length() * 2 + entry.value.version.length() * 2 + entry.value.data.length
+                        }
+                        return size
+                    }
+                })
+                .recordStats()
+                .build()
+
+        Metrics.cacheMetrics.addCache('convertedCache', cache)
+    }
+
+    /**
+     * A digest of all of the embellished data, including e.g. modified and recordStatus which are part of MARCXML
+     */
+    static String version(Document embellished) {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256")
+        return digest.digest(mapper.writeValueAsBytes(embellished.data)).encodeHex().toString()
+    }
+
+    byte[] get(String id, String format, String version) {
+        Converted converted = cache.getIfPresent(id)?.get(format)
+        return converted?.version == version ? converted.data : null
+    }
+
+    void put(String id, String format, String version, byte[] data) {
+        Map<String, Converted> formats = new HashMap<>()
+        // Other formats are only kept if converted from the same version
+        Map<String, Converted> cached = cache.getIfPresent(id)
+        if (cached != null) {
+            for (Map.Entry<String, Converted> entry : cached.entrySet()) {
+                if (entry.value.version == version) {
+                    formats.put(entry.key, entry.value)
+                }
+            }
+        }
+        formats.put(format, new Converted(version, data))
+        // Replaced rather than modified, since the weight is only computed on put
+        cache.put(id, Collections.unmodifiableMap(formats))
+    }
+
+    void invalidate(Collection<String> ids) {
+        if (ids) {
+            cache.invalidateAll(ids)
+        }
+    }
+
+    void invalidateAll() {
+        cache.invalidateAll()
+    }
+
+    void logStats() {
+        log.info("convertedCache: ${cache.stats()}")
+    }
+}
@@ -7,16 +7,17 @@ import com.google.common.util.concurrent.ListenableFuture
 import com.google.common.util.concurrent.ListenableFutureTask
 import com.google.common.util.concurrent.ThreadFactoryBuilder
 import groovy.util.logging.Log4j2 as Log
-import io.prometheus.client.guava.cache.CacheMetricsCollector
 import whelk.Document
 import whelk.Link
 import whelk.exception.MissingMainIriException
+import whelk.util.Metrics
 
 import java.util.concurrent.Callable
 import java.util.concurrent.Executor
 import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
 import java.util.function.BiFunction
+import java.util.function.Function
 import java.util.function.Supplier
 
 import static whelk.component.PostgreSQLComponent.NotificationType.DEPENDENCY_CACHE_INVALIDATE
@@ -26,10 +27,11 @@ class DependencyCache {
     private static final int CACHE_SIZE = 50_000
     private static final int REFRESH_INTERVAL_MINUTES = 5
 
-    private static final CacheMetricsCollector cacheMetrics = new CacheMetricsCollector().register()
-
     PostgreSQLComponent storage
 
+    // Answers lookups for the relations it covers once loaded, see enableLinkGraph()
+    LinkGraph linkGraph
+
     private Executor cacheRefresher = Executors.newSingleThreadExecutor(
             new ThreadFactoryBuilder().setDaemon(true).build())
 
@@ -37,7 +39,7 @@ class DependencyCache {
             .maximumSize(CACHE_SIZE)
             .refreshAfterWrite(REFRESH_INTERVAL_MINUTES, TimeUnit.MINUTES)
             .recordStats()
-            .build(loader(storage.&getDependersOfType))
+            .build(loader(storage.&getDependersOfType, storage.&getDependersOfTypeByThingIris))
 
     private LoadingCache<Link, Set<String>> dependenciesCache = CacheBuilder.newBuilder()
             .maximumSize(CACHE_SIZE)
@@ -48,18 +50,49 @@ class DependencyCache {
     DependencyCache(PostgreSQLComponent storage) {
         this.storage = storage
 
-        cacheMetrics.addCache('dependersCache', dependersCache)
-        cacheMetrics.addCache('dependencyCache', dependenciesCache)
+        Metrics.cacheMetrics.addCache('dependersCache', dependersCache)
+        Metrics.cacheMetrics.addCache('dependencyCache', dependenciesCache)
+    }
+
+    /**
+     * Keep all links with relations in memory.
+     * The links are loaded by invalidateAll(), i.e. when the notification listener has connected.
+     */
+    void enableLinkGraph(List<String> relations) {
+        linkGraph = new LinkGraph(storage, relations)
+    }
+
+    /**
+     * @return the link graph if it is loaded and has all relations
+     */
+    LinkGraph getLinkGraph(Collection<String> relations) {
+        return linkGraph?.isReady() && linkGraph.covers(relations) ? linkGraph : null
     }
 
     Set<String> getDependenciesOfType(String iri, String typeOfRelation) {
+        LinkGraph graph = getLinkGraph([typeOfRelation])
+        if (graph) {
+            return graph.getDependencies(iri, typeOfRelation)
+        }
         return dependenciesCache.getUnchecked(new Link(iri: iri, relation: typeOfRelation))
     }
 
     Set<String> getDependersOfType(String iri, String typeOfRelation) {
+        LinkGraph graph = getLinkGraph([typeOfRelation])
+        if (graph) {
+            return graph.getDependers(iri, typeOfRelation)
+        }
         return dependersCache.getUnchecked(new Link(iri: iri, relation: typeOfRelation))
     }
 
+    Map<Link, Set<String>> getDependersOfType(Collection<Link> links) {
+        LinkGraph graph = getLinkGraph(links.collect { it.relation })
+        if (graph) {
+            return links.collectEntries { [(it): graph.getDependers(it.iri, it.relation)] }
+        }
+        return dependersCache.getAll(links)
+    }
+
     void invalidate(Document createdDoc) {
         def i = []
         createdDoc.getThingIdentifiers().each { fromIri ->
@@ -113,11 +146,13 @@ class DependencyCache {
     void invalidate(String fromIri, Link link) {
         dependersCache.invalidate(link)
         dependenciesCache.invalidate(new Link(iri: fromIri, relation: link.relation))
+        linkGraph?.refresh(fromIri, link.relation)
     }
     
     void invalidateAll() {
         dependenciesCache.invalidateAll()
         dependersCache.invalidateAll()
+        linkGraph?.reload()
     }
 
     void logStats() {
@@ -125,7 +160,8 @@ class DependencyCache {
         log.info("dependenciesCache: ${dependenciesCache.stats()}")
     }
     
-    private CacheLoader<Link, Set<String>> loader(BiFunction<String, String, Set> func) {
+    private CacheLoader<Link, Set<String>> loader(BiFunction<String, String, Set> func,
+                                                  Function<Collection<Link>, Map<Link, Set<String>>> bulkFunc = null) {
         return new CacheLoader<Link, Set<String>>() {
             @Override
             Set<String> load(Link link) {
@@ -143,6 +179,19 @@ class DependencyCache {
                 }
             }
             
+            @Override
+            Map<Link, Set<String>> loadAll(Iterable<? extends Link> links) {
+                if (!bulkFunc) {
+                    return super.loadAll(links)
+                }
+
+                Map<Link, Set<String>> loaded = bulkFunc.apply(links.collect())
+                return links.collectEntries { Link link ->
+                    Set<String> iris = loaded[link]
+                    [(link): iris ? Collections.unmodifiableSet(iris) : Collections.EMPTY_SET]
+                }
+            }
+
             private String tryGetThingMainIriBySystemId(String systemId) {
                 try {
                     return storage.getThingMainIriBySystemId(systemId)
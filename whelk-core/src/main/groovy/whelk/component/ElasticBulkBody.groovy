@@ -0,0 +1,158 @@
+package whelk.component
+
+import org.apache.http.HttpEntity
+import org.apache.http.entity.AbstractHttpEntity
+import org.apache.http.entity.ContentType
+
+import java.nio.charset.StandardCharsets
+
+/**
+ * Body of an Elasticsearch _bulk request.
+ *
+ * Items are kept as separate UTF-8 encoded NDJSON rows and are written one at a time to the connection when
+ * the request is sent, instead of being joined into one string.
+ */
+class ElasticBulkBody {
+    private static final byte NEWLINE = 0x0A // '\n'
+
+    private final List<byte[]> items = []
+    // System id of each item
+    private final List<String> ids = []
+    private long sizeBytes = 0
+
+    /**
+     * @param id system id of the document
+     * @param action the action and metadata row
+     * @param source the document or partial document row, if the action has one
+     */
+    void add(String id, String action, String source = null) {
+        byte[] a = action.getBytes(StandardCharsets.UTF_8)
+        byte[] s = source != null ? source.getBytes(StandardCharsets.UTF_8) : null
+
+        byte[] item = new byte[a.length + 1 + (s != null ? s.length + 1 : 0)]
+        System.arraycopy(a, 0, item, 0, a.length)
+        item[a.length] = NEWLINE
+        if (s != null) {
+            System.arraycopy(s, 0, item, a.length + 1, s.length)
+            item[item.length - 1] = NEWLINE
+        }
+
+        addItem(id, item)
+    }
+
+    void addAll(ElasticBulkBody other) {
+        items.addAll(other.items)
+        ids.addAll(other.ids)
+        sizeBytes += other.sizeBytes
+    }
+
+    /**
+     * @param indices positions of items in this body, same as in the items of the _bulk response
+     */
+    ElasticBulkBody select(Collection<Integer> indices) {
+        ElasticBulkBody result = new ElasticBulkBody()
+        indices.each { int i -> result.addItem(ids[i], items[i]) }
+        return result
+    }
+
+    String id(int index) {
+        return ids[index]
+    }
+
+    List<String> ids() {
+        return Collections.unmodifiableList(ids)
+    }
+
+    int size() {
+        return items.size()
+    }
+
+    long sizeBytes() {
+        return sizeBytes
+    }
+
+    boolean isEmpty() {
+        return items.isEmpty()
+    }
+
+    /**
+     * Split in bodies of at most maxBytes each. An item larger than maxBytes gets a body of its own.
+     */
+    List<ElasticBulkBody> split(long maxBytes) {
+        if (sizeBytes <= maxBytes) {
+            return [this]
+        }
+
+        List<ElasticBulkBody> result = []
+        ElasticBulkBody current = new ElasticBulkBody()
+        for (int i = 0; i < items.size(); i++) {
+            byte[] item = items[i]
+            if (!current.isEmpty() && current.sizeBytes + item.length > maxBytes) {
+                result.add(current)
+                current = new ElasticBulkBody()
+            }
+            current.addItem(ids[i], item)
+        }
+        if (!current.isEmpty()) {
+            result.add(current)
+        }
+        return result
+    }
+
+    private void addItem(String id, byte[] item) {
+        items.add(item)
+        ids.add(id)
+        sizeBytes += item.length
+    }
+
+    HttpEntity toEntity(String contentType) {
+        return new Entity(contentType)
+    }
+
+    // Repeatable, since throttled requests are sent again
+    private class Entity extends AbstractHttpEntity {
+        Entity(String contentType) {
+            setContentType(ContentType.create(contentType, StandardCharsets.UTF_8).toString())
+        }
+
+        @Override
+        boolean isRepeatable() {
+            return true
+        }
+
+        @Override
+        long getContentLength() {
+            return sizeBytes
+        }
+
+        // Reads the items in place, nothing is copied
+        @Override
+        InputStream getContent() {
+            Iterator<byte[]> remaining = items.iterator()
+            return new SequenceInputStream(new Enumeration<InputStream>() {
+                @Override
+                boolean hasMoreElements() {
+                    return remaining.hasNext()
+                }
+
+                @Override
+                InputStream nextElement() {
+                    return new ByteArrayInputStream(remaining.next())
+                }
+            })
+        }
+
+        @Override
+        void writeTo(OutputStream out) {
+            for (byte[] item : items) {
+                out.write(item)
+            }
+            out.flush()
+        }
+
+        @Override
+        boolean isStreaming() {
+            return false
+        }
+    }
+}
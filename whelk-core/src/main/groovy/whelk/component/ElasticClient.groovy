@@ -139,6 +139,30 @@ class ElasticClient {
         }
     }
 
+    /**
+     * POST a request body that is written directly to the connection, see ElasticBulkBody.
+     * The response is passed as a stream to the parser, and is not read into memory as a whole.
+     */
+    def <T> T performStreamingRequest(String path, HttpEntity body, Function<InputStream, T> responseParser)
+            throws ElasticIOException, UnexpectedHttpStatusException {
+        try {
+            def nodes = cycleNodes()
+            if (useCircuitBreaker) {
+                globalRetry.executeSupplier({ -> nodes.next().performStreamingRequest(path, body, responseParser) })
+            }
+            else {
+                nodes.next().performStreamingRequest(path, body, responseParser)
+            }
+        }
+        catch (UnexpectedHttpStatusException e) {
+            throw e
+        }
+        catch (Exception e) {
+            log.warn("Request to ElasticSearch failed: ${e}", e)
+            throw new ElasticIOException(e.getMessage(), e)
+        }
+    }
+
     private Iterator<ElasticNode> cycleNodes() {
         def cycle = Iterators.cycle(elasticNodes)
         Iterators.advance(cycle, random.nextInt(elasticNodes.size()))
@@ -176,9 +200,45 @@ class ElasticClient {
             }
         }
 
+        def <T> T performStreamingRequest(String path, HttpEntity body, Function<InputStream, T> responseParser) {
+            HttpPost request = new HttpPost(host + path)
+            request.setEntity(body)
+            try {
+                return sendRequestRetry4XX(request) { HttpResponse response ->
+                    int statusCode = response.getStatusLine().getStatusCode()
+                    if (statusCode >= 200 && statusCode < 300) {
+                        InputStream content = response.getEntity().getContent()
+                        try {
+                            return responseParser.apply(content)
+                        }
+                        finally {
+                            content.close()
+                        }
+                    }
+                    else {
+                        throw new UnexpectedHttpStatusException(EntityUtils.toString(response.getEntity()), statusCode)
+                    }
+                }
+            }
+            finally {
+                request.reset()
+                request.releaseConnection()
+            }
+        }
+
         private Tuple2<Integer, String> sendRequest(HttpRequestBase request) {
             try {
-                return sendRequestRetry4XX(request)
+                return sendRequestRetry4XX(request) { HttpResponse response ->
+                    def result = new Tuple2(response.getStatusLine().getStatusCode(), EntityUtils.toString(response.getEntity()))
+
+                    if (log.isDebugEnabled()) {
+                        String r = result.v2
+                        if (r.size() < 50_000) {
+                            log.debug("Elastic response: $r")
+                        }
+                    }
+                    return result
+                }
             }
             catch (Exception e) {
                 throw new RuntimeException(e.getMessage(), e)
@@ -189,22 +249,14 @@ class ElasticClient {
             }
         }
 
-        private Tuple2<Integer, String> sendRequestRetry4XX(HttpRequestBase request) {
+        private <T> T sendRequestRetry4XX(HttpRequestBase request, Closure<T> handleResponse) {
             int backOffSeconds = 1
             while (true) {
                 HttpResponse response = httpClient.execute(request)
                 int statusCode = response.getStatusLine().getStatusCode()
 
                 if (statusCode != 429 && statusCode != 409) {
-                    def result = new Tuple2(statusCode, EntityUtils.toString(response.getEntity()))
-
-                    if (log.isDebugEnabled()) {
-                        String r = result.v2
-                        if (r.size() < 50_000) {
-                            log.debug("Elastic response: $r")
-                        }
-                    }
-                    return result
+                    return handleResponse(response)
                 } else {
                     if (backOffSeconds > MAX_BACKOFF_S) {
                         throw new RetriesExceededException("Max retries exceeded: HTTP 4XX from ElasticSearch")
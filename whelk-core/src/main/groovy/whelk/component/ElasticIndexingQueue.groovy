@@ -0,0 +1,242 @@
+package whelk.component
+
+import groovy.util.logging.Log4j2 as Log
+import io.prometheus.client.Counter
+import io.prometheus.client.Gauge
+import io.prometheus.client.Summary
+import whelk.Whelk
+
+/**
+ * Collects single document index, delete and reverse link counter operations and sends them to
+ * Elasticsearch as _bulk requests, when there are enough of them or the oldest has waited long enough.
+ *
+ * Operations on the same id are merged while waiting, at most one operation per id is in flight at a time.
+ * Callers block when the queue is full.
+ */
+@Log
+class ElasticIndexingQueue {
+    static final int DEFAULT_CAPACITY = 10_000
+    static final int DEFAULT_BATCH_SIZE = 100
+    static final long DEFAULT_MAX_DELAY_MS = 500
+    static final int DEFAULT_NUM_SENDERS = 2
+
+    private static final Gauge queueDepth = Gauge.build()
+            .name("elastic_indexing_queue_depth")
+            .help("Number of operations waiting to be sent to Elasticsearch.").register()
+
+    private static final Counter coalesced = Counter.build()
+            .name("elastic_indexing_coalesced")
+            .help("Number of operations merged with an already queued operation for the same id.").register()
+
+    private static final Summary batchSize = Summary.build()
+            .quantile(0.5, 0.05)
+            .quantile(0.95, 0.01)
+            .name("elastic_indexing_batch_size")
+            .help("Number of operations per _bulk request.").register()
+
+    private static final Summary flushLatency = Summary.build()
+            .quantile(0.5, 0.05)
+            .quantile(0.95, 0.01)
+            .quantile(0.99, 0.001)
+            .name("elastic_indexing_flush_latency_seconds")
+            .help("Time from an operation being queued until its batch has been sent.").register()
+
+    interface BulkSender {
+        void send(Collection<Operation> operations)
+    }
+
+    static class Operation {
+        enum Type { INDEX, DELETE, UPDATE_REVERSE_LINKS }
+
+        final Type type
+        final String id
+        final int delta
+        final Whelk whelk
+        // WAL position of the write that the operation was queued after, the document is read as of at least it
+        final long lsn
+        final long queuedAt
+
+        private Operation(Type type, String id, int delta, Whelk whelk, long lsn = 0, long queuedAt = System.nanoTime()) {
+            this.type = type
+            this.id = id
+            this.delta = delta
+            this.whelk = whelk
+            this.lsn = lsn
+            this.queuedAt = queuedAt
+        }
+
+        /**
+         * The document is loaded when sent, see PostgreSQLComponent.withReadsAfter()
+         */
+        static Operation index(String id, Whelk whelk) {
+            new Operation(Type.INDEX, id, 0, whelk, whelk ? whelk.storage.getLastWriteLsn() : 0)
+        }
+
+        /**
+         * Used when reading operations back from the retry queue, INDEX operations also need a Whelk, see index()
+         */
+        static Operation of(Type type, String id, int delta) {
+            new Operation(type, id, delta, null)
+        }
+
+        static Operation delete(String id) {
+            new Operation(Type.DELETE, id, 0, null)
+        }
+
+        static Operation updateReverseLinks(String id, int delta) {
+            new Operation(Type.UPDATE_REVERSE_LINKS, id, delta, null)
+        }
+
+        /**
+         * @return an operation with the combined effect of this and a newer operation on the same id
+         */
+        Operation mergeWith(Operation newer) {
+            if (newer.type != Type.UPDATE_REVERSE_LINKS) {
+                return new Operation(newer.type, id, newer.delta, newer.whelk, Math.max(lsn, newer.lsn), queuedAt)
+            }
+            if (type == Type.UPDATE_REVERSE_LINKS) {
+                return new Operation(type, id, delta + newer.delta, null, 0, queuedAt)
+            }
+            // A queued index operation reads the current link count when sent, and there is nothing to count
+            // on a deleted document
+            return this
+        }
+    }
+
+    private final BulkSender sender
+    private final int capacity
+    private final int maxBatchSize
+    private final long maxDelayMs
+
+    private final LinkedHashMap<String, Operation> pending = new LinkedHashMap<>()
+    private final Set<String> inFlight = new HashSet<>()
+
+    ElasticIndexingQueue(BulkSender sender, int capacity = DEFAULT_CAPACITY, int maxBatchSize = DEFAULT_BATCH_SIZE,
+                         long maxDelayMs = DEFAULT_MAX_DELAY_MS, int numSenders = DEFAULT_NUM_SENDERS) {
+        this.sender = sender
+        this.capacity = capacity
+        this.maxBatchSize = maxBatchSize
+        this.maxDelayMs = maxDelayMs
+
+        numSenders.times { i ->
+            Thread t = new Thread(this.&sendLoop, "ElasticIndexingQueue-$i")
+            t.setDaemon(true)
+            t.start()
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this.&flush, "ElasticIndexingQueue-flush"))
+    }
+
+    synchronized void add(Operation operation) {
+        while (pending.size() >= capacity && !pending.containsKey(operation.id)) {
+            wait()
+        }
+
+        Operation existing = pending.get(operation.id)
+        if (existing) {
+            coalesced.inc()
+            pending.put(operation.id, existing.mergeWith(operation))
+        }
+        else {
+            pending.put(operation.id, operation)
+        }
+        queueDepth.set(pending.size())
+
+        if (pending.size() >= maxBatchSize) {
+            notifyAll()
+        }
+    }
+
+    /**
+     * Send everything that is queued, in the calling thread.
+     * Returns when all operations have been sent, including those already being sent by other threads.
+     */
+    void flush() {
+        while (true) {
+            List<Operation> batch
+            synchronized (this) {
+                if (pending.isEmpty() && inFlight.isEmpty()) {
+                    return
+                }
+                batch = takeBatch(false)
+                if (!batch) {
+                    // Everything left is in flight or waiting for an in-flight operation on the same id
+                    wait(maxDelayMs)
+                    continue
+                }
+            }
+            send(batch)
+        }
+    }
+
+    int size() {
+        synchronized (this) {
+            return pending.size()
+        }
+    }
+
+    private void sendLoop() {
+        while (true) {
+            try {
+                send(takeBatch(true))
+            }
+            catch (InterruptedException ignored) {
+                return
+            }
+            catch (Exception e) {
+                log.error("Error sending batch to Elasticsearch: $e", e)
+            }
+        }
+    }
+
+    private void send(List<Operation> batch) {
+        try {
+            sender.send(batch)
+            batchSize.observe(batch.size())
+            long now = System.nanoTime()
+            batch.each { flushLatency.observe((now - it.queuedAt) / 1e9d) }
+        }
+        finally {
+            synchronized (this) {
+                batch.each { inFlight.remove(it.id) }
+                notifyAll()
+            }
+        }
+    }
+
+    private synchronized List<Operation> takeBatch(boolean wait) {
+        while (wait) {
+            int available = pending.size() - inFlight.count { pending.containsKey(it) }
+            if (available >= maxBatchSize) {
+                break
+            }
+            if (available > 0) {
+                long oldestAge = (System.nanoTime() - oldestAvailable().queuedAt).intdiv(1_000_000)
+                if (oldestAge >= maxDelayMs) {
+                    break
+                }
+                wait(maxDelayMs - oldestAge)
+            }
+            else {
+                wait()
+            }
+        }
+
+        List<Operation> batch = []
+        Iterator<Operation> it = pending.values().iterator()
+        while (it.hasNext() && batch.size() < maxBatchSize) {
+            Operation operation = it.next()
+            if (!inFlight.contains(operation.id)) {
+                it.remove()
+                inFlight.add(operation.id)
+                batch.add(operation)
+            }
+        }
+        queueDepth.set(pending.size())
+        notifyAll()
+        return batch
+    }
+
+    private Operation oldestAvailable() {
+        pending.values().find { !inFlight.contains(it.id) }
+    }
+}
@@ -3,6 +3,8 @@ package whelk.component
 import groovy.json.JsonOutput
 import groovy.util.logging.Log4j2 as Log
 import org.apache.commons.codec.binary.Base64
+import org.codehaus.jackson.JsonParser
+import org.codehaus.jackson.JsonToken
 import se.kb.libris.utils.isbn.ConvertException
 import se.kb.libris.utils.isbn.Isbn
 import se.kb.libris.utils.isbn.IsbnException
@@ -10,12 +12,14 @@ import se.kb.libris.utils.isbn.IsbnParser
 import whelk.Document
 import whelk.JsonLd
 import whelk.Whelk
+import whelk.component.ElasticIndexingQueue.Operation
 import whelk.exception.InvalidQueryException
 import whelk.exception.UnexpectedHttpStatusException
 import whelk.util.DocumentUtil
 import whelk.util.Unicode
 
-import java.util.concurrent.LinkedBlockingQueue
+import javax.sql.DataSource
+import java.util.function.Function
 
 import static whelk.JsonLd.asList
 import static whelk.exception.UnexpectedHttpStatusException.isBadRequest
@@ -26,6 +30,16 @@ import static whelk.util.Jackson.mapper
 class ElasticSearch {
     static final String BULK_CONTENT_TYPE = "application/x-ndjson"
     static final String SEARCH_TYPE = "dfs_query_then_fetch"
+    static final String PROPERTY_SHAPE_CACHE = "elasticShapeCache"
+
+    // Only what is needed to find failed items
+    static final String BULK_PATH = '/_bulk?filter_path=took,errors,items.*.status,items.*.error'
+    // Bulk index requests are split to stay below this size
+    static final long MAX_BULK_SIZE_BYTES = 10 * 1024 * 1024
+    // Items rejected because Elasticsearch is overloaded are resent this many times, then put in the retry queue
+    static final int MAX_REJECTED_RETRIES = 3
+    static final long REJECTED_BACKOFF_MS = 1000
+    static final Set<Integer> REJECTED_STATUS = [429, 503] as Set
 
     // FIXME: de-KBV/Libris-ify: configurable
     static final List<String> REMOVABLE_BASE_URIS = [
@@ -51,7 +65,15 @@ class ElasticSearch {
     private ElasticClient bulkClient
     private boolean isPitApiAvailable = false
 
-    private final Queue<Runnable> indexingRetryQueue = new LinkedBlockingQueue<>()
+    private static final int RETRY_QUEUE_TAKE_NUM = 500
+
+    private final ElasticIndexingQueue indexingQueue
+    // Failed operations are persisted in lddb__elastic_retry_q and lddb__elastic_dead_letters, see startRetryQueue()
+    private PostgreSQLComponent storage
+
+    // Shaped documents stored in lddb__elastic_shapes, see enableShapeCache()
+    boolean shapeCacheEnabled = false
+    private ElasticShapeCache shapeCache
 
     ElasticSearch(Properties props) {
         this(
@@ -59,6 +81,8 @@ class ElasticSearch {
                 props.getProperty("elasticCluster"),
                 props.getProperty("elasticIndex")
         )
+        shapeCacheEnabled = props.getProperty(PROPERTY_SHAPE_CACHE) == 'true'
+        log.info("$PROPERTY_SHAPE_CACHE: $shapeCacheEnabled")
     }
 
     ElasticSearch(String elasticHost, String elasticCluster, String elasticIndex) {
@@ -68,18 +92,62 @@ class ElasticSearch {
 
         client = ElasticClient.withDefaultHttpClient(elasticHosts)
         bulkClient = ElasticClient.withBulkHttpClient(elasticHosts)
+        indexingQueue = new ElasticIndexingQueue({ Collection<Operation> ops -> sendBulk(ops) } as ElasticIndexingQueue.BulkSender)
+
+        initSettings()
+    }
+
+    // for testing
+    ElasticSearch(ElasticIndexingQueue.BulkSender sender) {
+        indexingQueue = new ElasticIndexingQueue(sender)
+    }
+
+    /**
+     * Start retrying failed operations. Until this is called failed operations are only logged.
+     */
+    void startRetryQueue(Whelk whelk) {
+        PostgreSQLComponent storage = whelk.storage
+        DataSource connectionPool = storage.createAdditionalConnectionPool("ElasticIndexingRetries", 1)
+        // Rejected operations are put back in the queue when the batch they were taken in has been committed
+        List<Operation> rejected = Collections.synchronizedList([])
+        ElasticIndexingQueue.BulkSender sender = { Collection<Operation> operations ->
+            try {
+                rejected.addAll(bulk(operations.collect { it.type == Operation.Type.INDEX ? Operation.index(it.id, whelk) : it }))
+            }
+            catch (Exception e) {
+                if (!isBadRequest(e)) {
+                    throw e
+                }
+                log.error("Failed to send ${operations.collect { it.id }} to elastic: $e", e)
+            }
+        } as ElasticIndexingQueue.BulkSender
 
+        this.storage = storage
         new Timer("ElasticIndexingRetries", true).schedule(new TimerTask() {
             void run() {
-                indexingRetryQueue.size().times {
-                    Runnable entry = indexingRetryQueue.poll()
-                    if (entry != null)
-                        entry.run()
+                try {
+                    // Run as long as there are operations due and elastic accepts them
+                    while (storage.elasticRetryQueueTake(sender, RETRY_QUEUE_TAKE_NUM, connectionPool) && !rejected) {
+                    }
+                }
+                catch (Exception e) {
+                    log.warn("Error retrying elastic operations: $e", e)
+                }
+                finally {
+                    if (rejected) {
+                        addToRetryQueue(new ArrayList<>(rejected))
+                        rejected.clear()
+                    }
                 }
             }
         }, 60*1000, 10*1000)
-        
-        initSettings()
+    }
+
+    /**
+     * Reuse shaped documents when neither the document nor anything it is embellished with has changed
+     */
+    void enableShapeCache(PostgreSQLComponent storage) {
+        shapeCache = new ElasticShapeCache(storage)
     }
 
     void initSettings() {
@@ -179,24 +247,211 @@ class ElasticSearch {
 
     void bulkIndex(Collection<Document> docs, Whelk whelk) {
         if (docs) {
-            String bulkString = docs.findResults{ doc ->
+            sendBulkIndex(createBulkIndexBody(docs, whelk))
+        }
+    }
+
+    /**
+     * Shape documents for indexing. The result is the body of a _bulk request, see sendBulkIndex().
+     * Documents that could not be shaped are left out.
+     */
+    ElasticBulkBody createBulkIndexBody(Collection<Document> docs, Whelk whelk) {
+        ElasticBulkBody body = new ElasticBulkBody()
+        // Embellish all documents in one batch
+        List<Document> copies = docs.collect { it.clone() }
+        try {
+            whelk.embellishAll(copies, ['search-chips'])
+        } catch (Exception e) {
+            log.warn("Failed to embellish batch, embellishing one document at a time: $e", e)
+            copies = null
+        }
+
+        // Keys must be computed before shaping, shaping modifies the copies
+        Map<String, String> keys = [:]
+        if (shapeCache && copies) {
+            docs.eachWithIndex { Document doc, int i ->
                 try {
-                    String shapedData = getShapeForIndex(doc, whelk)
-                    String action = createActionRow(doc)
-                    return "${action}\n${shapedData}\n"
+                    keys[doc.getShortId()] = shapeCache.key(copies[i], whelk.jsonld)
                 } catch (Exception e) {
-                    if (doc.getShortId() == null) {
-                        log.error("Document has null shortId, something is wrong. Some details: " + doc.toVerboseString(), e);
-                    } else {
-                        log.error("Failed to index ${doc.getShortId()} in elastic: $e", e)
+                    log.warn("Failed to compute shape key for ${doc.getShortId()}: $e", e)
+                }
+            }
+        }
+        Map<String, String> cached = shapeCache ? shapeCache.get(keys) : [:]
+
+        Map<String, Long> incomingLinkCounts = whelk.getStorage().getIncomingLinkCounts(docs.collect { it.getShortId() }.findAll())
+
+        List<ElasticShapeCache.Shape> newShapes = []
+        docs.eachWithIndex { Document doc, int i ->
+            try {
+                String id = doc.getShortId()
+                String shape = cached[id]
+                if (shape == null) {
+                    shape = copies ? getShape(doc, copies[i], whelk) : getShape(doc, embellishedCopy(doc, whelk), whelk)
+                    if (keys[id]) {
+                        newShapes << new ElasticShapeCache.Shape(id, keys[id], shape)
+                    }
+                }
+                body.add(id, createActionRow(doc), withReverseLinks(shape, incomingLinkCounts.getOrDefault(id, 0L)))
+            } catch (Exception e) {
+                if (doc.getShortId() == null) {
+                    log.error("Document has null shortId, something is wrong. Some details: " + doc.toVerboseString(), e);
+                } else {
+                    log.error("Failed to index ${doc.getShortId()} in elastic: $e", e)
+                }
+            }
+        }
+
+        shapeCache?.put(newShapes)
+        return body
+    }
+
+    /**
+     * Send a body created by createBulkIndexBody(), in requests of at most MAX_BULK_SIZE_BYTES
+     */
+    void sendBulkIndex(ElasticBulkBody body) {
+        if (body.isEmpty()) {
+            return
+        }
+
+        long start = System.currentTimeMillis()
+        List<String> rejected = sendBulkBody(body, MAX_BULK_SIZE_BYTES)
+        log.info("Bulk indexed ${body.size() - rejected.size()} docs (${body.sizeBytes()} bytes) in ${System.currentTimeMillis() - start} ms")
+        if (rejected) {
+            log.warn("Elasticsearch rejected ${rejected.size()} docs, placing in retry queue")
+            addToRetryQueue(rejected.collect { Operation.of(Operation.Type.INDEX, it, 0) })
+        }
+    }
+
+    /**
+     * Send a body in requests of at most maxBytes each.
+     *
+     * Items rejected by Elasticsearch because it is overloaded (429/503) are resent on their own, with backoff
+     * and in smaller requests. Items that fail for other reasons are put in the dead letter table.
+     *
+     * @return system ids of items that were not accepted after MAX_REJECTED_RETRIES retries
+     * @throws Exception if the first request fails, i.e. nothing was sent
+     */
+    private List<String> sendBulkBody(ElasticBulkBody body, long maxBytes) {
+        ElasticBulkBody remaining = body
+        long backoffMs = REJECTED_BACKOFF_MS
+        boolean anySent = false
+        for (int attempt = 0; ; attempt++) {
+            ElasticBulkBody rejected = new ElasticBulkBody()
+            List<ElasticBulkBody> parts = remaining.split(maxBytes)
+            for (int i = 0; i < parts.size(); i++) {
+                ElasticBulkBody part = parts[i]
+                BulkResponse response
+                try {
+                    response = bulkClient.performStreamingRequest(BULK_PATH, part.toEntity(BULK_CONTENT_TYPE),
+                            { InputStream content -> BulkResponse.parse(content) } as Function<InputStream, BulkResponse>)
+                }
+                catch (Exception e) {
+                    if (!anySent) {
+                        throw e
                     }
-                    return null
+                    // Some items have already been sent, only the unsent can be retried
+                    log.warn("Failed to send bulk request: $e", e)
+                    parts.drop(i).each { rejected.addAll(it) }
+                    return rejected.ids()
                 }
-            }.join('')
+                anySent = true
+                log.debug("Bulk sent ${part.size()} items in ${response.took} ms")
+                response.failures.each { it.id = part.id(it.index) }
+
+                List<BulkResponse.Failure> rejectedItems = response.failures.findAll { it.status in REJECTED_STATUS }
+                rejected.addAll(part.select(rejectedItems*.index))
+                handleFailures(response.failures - rejectedItems)
+            }
+
+            if (rejected.isEmpty()) {
+                return []
+            }
+            if (attempt == MAX_REJECTED_RETRIES) {
+                return rejected.ids()
+            }
+
+            log.info("Elasticsearch rejected ${rejected.size()} items, resending in $backoffMs ms")
+            Thread.sleep(backoffMs)
+            backoffMs *= 2
+            maxBytes = Math.max(maxBytes.intdiv(2) as long, 1L)
+            remaining = rejected
+        }
+    }
+
+    private void handleFailures(List<BulkResponse.Failure> failures) {
+        List<BulkResponse.Failure> deadLetters = []
+        failures.each { BulkResponse.Failure f ->
+            // OK. All dependers must be removed before the dependee in lddb. But the index update can happen
+            // in any order, so the dependee might already be gone when trying to update the counter.
+            if (f.status != 404) {
+                log.error("Failed to ${f.action} ${f.id} in elastic: ${f.error}")
+                deadLetters << f
+            }
+        }
+
+        if (deadLetters && storage) {
+            try {
+                storage.elasticDeadLetterAdd(deadLetters)
+            } catch (Exception e) {
+                log.error("Failed to add ${deadLetters*.id} to dead letters: $e", e)
+            }
+        }
+    }
+
+    /**
+     * Response to a _bulk request, parsed as a stream keeping only failed items
+     */
+    static class BulkResponse {
+        static class Failure {
+            // position in the request
+            int index
+            String action
+            // system id, not set when parsing, see ElasticBulkBody.id()
+            String id
+            int status
+            Map error
+        }
 
-            String response = bulkClient.performRequest('POST', '/_bulk', bulkString, BULK_CONTENT_TYPE)
-            Map responseMap = mapper.readValue(response, Map)
-            log.info("Bulk indexed ${docs.count{it}} docs in ${responseMap.took} ms")
+        long took
+        List<Failure> failures = []
+
+        static BulkResponse parse(InputStream content) {
+            BulkResponse response = new BulkResponse()
+            JsonParser parser = mapper.getJsonFactory().createJsonParser(content)
+            try {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new IOException("Unexpected _bulk response: ${parser.getCurrentToken()}")
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName()
+                    parser.nextToken()
+                    if (field == 'took') {
+                        response.took = parser.getLongValue()
+                    }
+                    else if (field == 'items') {
+                        // [{"index": {"_id": ..., "status": ..., "error": ...}}, ...]
+                        int index = 0
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            Map<String, Map> item = mapper.readValue(parser, Map)
+                            item.each { String action, Map result ->
+                                if (result.error) {
+                                    response.failures << new Failure(index: index, action: action,
+                                            status: result.status as int, error: result.error as Map)
+                                }
+                            }
+                            index++
+                        }
+                    }
+                    else {
+                        parser.skipChildren()
+                    }
+                }
+            }
+            finally {
+                parser.close()
+            }
+            return response
         }
     }
 
@@ -207,7 +462,7 @@ class ElasticSearch {
         } catch (Exception e) {
             if (!isBadRequest(e)) {
                 log.error("Failed to index batch ${ids} in elastic, placing in retry queue: $e", e)
-                indexingRetryQueue.add({ -> bulkIndexWithRetry(ids, whelk) })
+                addToRetryQueue(ids.collect { Operation.index(it, whelk) })
             }
             else {
                 log.error("Failed to index ${ids} in elastic: $e", e)
@@ -221,97 +476,146 @@ class ElasticSearch {
         return mapper.writeValueAsString(action)
     }
 
+    /**
+     * Queue a document for indexing. It is sent in a _bulk request together with other queued operations.
+     * Call flushIndexingQueue() if it must be indexed when the call returns.
+     */
     void index(Document doc, Whelk whelk) {
-        // The justification for this uncomfortable catch-all, is that an index-failure must raise an alert (log entry)
-        // _internally_ but be otherwise invisible to clients (If postgres writing was ok, the save is considered ok).
-        try {
-            String response = client.performRequest(
-                    'PUT',
-                    "/${indexName}/_doc/${toElasticId(doc.getShortId())}",
-                    getShapeForIndex(doc, whelk))
-            if (log.isDebugEnabled()) {
-                Map responseMap = mapper.readValue(response, Map)
-                log.debug("Indexed the document ${doc.getShortId()} as ${indexName}/_doc/${responseMap['_id']} as version ${responseMap['_version']}")
-            }
-        } catch (Exception e) {
-            if (!isBadRequest(e)) {
-                log.error("Failed to index ${doc.getShortId()} in elastic, placing in retry queue: $e", e)
-                indexingRetryQueue.add({ -> index(doc, whelk) })
-            }
-            else {
-                log.error("Failed to index ${doc.getShortId()} in elastic: $e", e)
-            }
-        }
+        indexingQueue.add(Operation.index(doc.getShortId(), whelk))
     }
 
     void incrementReverseLinks(String shortId) {
-        updateReverseLinkCounter(shortId, 1)
+        indexingQueue.add(Operation.updateReverseLinks(shortId, 1))
     }
 
     void decrementReverseLinks(String shortId) {
-        updateReverseLinkCounter(shortId, -1)
+        indexingQueue.add(Operation.updateReverseLinks(shortId, -1))
     }
 
-    private void updateReverseLinkCounter(String shortId, int deltaCount) {
-        String body = """
-        {
-            "script" : {
-                "source": "ctx._source.reverseLinks.totalItems += $deltaCount",
-                "lang": "painless"
-            }
+    void remove(String identifier) {
+        if (log.isDebugEnabled()) {
+            log.debug("Deleting object with identifier ${toElasticId(identifier)}.")
         }
-        """.stripIndent()
+        indexingQueue.add(Operation.delete(identifier))
+    }
+
+    /**
+     * Send everything queued by index(), remove() and the reverse link counters, in the calling thread.
+     * Returns when it has been sent.
+     */
+    void flushIndexingQueue() {
+        indexingQueue.flush()
+    }
 
+    private void sendBulk(Collection<Operation> operations) {
+        // The justification for this uncomfortable catch-all, is that an index-failure must raise an alert (log entry)
+        // _internally_ but be otherwise invisible to clients (If postgres writing was ok, the save is considered ok).
         try {
-            client.performRequest(
-                    'POST',
-                    "/${indexName}/_update/${toElasticId(shortId)}",
-                    body)
-        }
-        catch (Exception e) {
-            if (isBadRequest(e)) {
-                log.warn("Failed to update reverse link counter ($deltaCount) for $shortId: $e", e)
+            List<Operation> rejected = bulk(operations)
+            if (rejected) {
+                log.warn("Elasticsearch rejected ${rejected.collect { it.id }}, placing in retry queue")
+                addToRetryQueue(rejected)
             }
-            else if (isNotFound(e)) {
-                // OK. All dependers must be removed before the dependee in lddb. But the index update can happen
-                // in any order, so the dependee might already be gone when trying to decrement the counter.
-                log.info("Could not update reverse link counter ($deltaCount) for $shortId: $e, it does not exist", e)
+        } catch (Exception e) {
+            if (!isBadRequest(e)) {
+                log.error("Failed to send ${operations.collect { it.id }} to elastic, placing in retry queue: $e", e)
+                addToRetryQueue(operations)
             }
             else {
-                log.warn("Failed to update reverse link counter ($deltaCount) for $shortId: $e, placing in retry queue.", e)
-                indexingRetryQueue.add({ -> updateReverseLinkCounter(shortId, deltaCount) })
+                log.error("Failed to send ${operations.collect { it.id }} to elastic: $e", e)
             }
         }
     }
-    
-    void remove(String identifier) {
-        if (log.isDebugEnabled()) {
-            log.debug("Deleting object with identifier ${toElasticId(identifier)}.")
+
+    private void addToRetryQueue(Collection<Operation> operations) {
+        if (!storage) {
+            log.error("No retry queue, ${operations.collect { it.id }} will not be retried")
+            return
         }
-        def dsl = ["query":["term":["_id":toElasticId(identifier)]]]
         try {
-            def response = client.performRequest('POST',
-                    "/${indexName}/_delete_by_query",
-                    JsonOutput.toJson(dsl))
+            storage.elasticRetryQueueAdd(operations)
+        } catch (Exception e) {
+            log.error("Failed to add ${operations.collect { it.id }} to retry queue: $e", e)
+        }
+    }
+
+    /**
+     * Not split by size. If only some requests were sent, retrying the batch would apply reverse link deltas twice.
+     *
+     * @return operations that Elasticsearch kept rejecting, to be retried later
+     */
+    private List<Operation> bulk(Collection<Operation> operations) {
+        ElasticBulkBody body = createBulkRows(operations)
+        if (body.isEmpty()) {
+            return []
+        }
+
+        Set<String> rejected = sendBulkBody(body, Long.MAX_VALUE) as Set
+        return operations.findAll { it.id in rejected }.toList()
+    }
+
+    private ElasticBulkBody createBulkRows(Collection<Operation> operations) {
+        ElasticBulkBody body = new ElasticBulkBody()
 
-            Map responseMap = mapper.readValue(response, Map)
-            if (log.isDebugEnabled()) {
-                log.debug("Response: ${responseMap.deleted} of ${responseMap.total} objects deleted")
+        operations.findAll { it.type == Operation.Type.INDEX }.groupBy { it.whelk }.each { Whelk whelk, List<Operation> ops ->
+            // Load the current version, a document may have been updated again while waiting in the queue.
+            // The writes were made by other threads, so make sure they are seen also when reading on a replica.
+            body.addAll((ElasticBulkBody) whelk.storage.withReadsAfter(ops.collect { it.lsn }.max()) {
+                createBulkIndexBody(whelk.bulkLoad(ops.collect { it.id }).values(), whelk)
+            })
+        }
+
+        operations.each { op ->
+            def meta = ["_index": indexName, "_id": toElasticId(op.id)]
+            if (op.type == Operation.Type.DELETE) {
+                body.add(op.id, mapper.writeValueAsString(["delete": meta]))
             }
-            if (responseMap.deleted == 0) {
-                log.warn("Record with id $identifier was not deleted from the Elasticsearch index.")
+            else if (op.type == Operation.Type.UPDATE_REVERSE_LINKS) {
+                def script = ["script": [
+                        "source": "ctx._source.reverseLinks.totalItems += params.delta",
+                        "lang"  : "painless",
+                        "params": ["delta": op.delta]
+                ]]
+                body.add(op.id, mapper.writeValueAsString(["update": meta]), mapper.writeValueAsString(script))
             }
         }
-        catch(Exception e) {
-            log.warn("Record with id $identifier was not deleted from the Elasticsearch index: $e")
-        }
+
+        return body
     }
 
     String getShapeForIndex(Document document, Whelk whelk) {
+        String shape = getShape(document, embellishedCopy(document, whelk), whelk)
+        return withReverseLinks(shape, whelk.getStorage().getIncomingLinkCount(document.getShortId()))
+    }
+
+    private static Document embellishedCopy(Document document, Whelk whelk) {
         Document copy = document.clone()
         
         whelk.embellish(copy, ['search-chips'])
 
+        return copy
+    }
+
+    /**
+     * Add the number of incoming links to a shaped document.
+     * The count is kept out of the shape itself since it changes without the document changing.
+     */
+    static String withReverseLinks(String shape, long incomingLinkCount) {
+        if (!shape.startsWith('{') || shape == '{}') {
+            return shape
+        }
+        String reverseLinks = mapper.writeValueAsString(['reverseLinks': [
+                (JsonLd.TYPE_KEY) : 'PartialCollectionView',
+                'totalItems' : incomingLinkCount]])
+        // {"reverseLinks":{...}} + {...} -> {"reverseLinks":{...},...}
+        return reverseLinks.substring(0, reverseLinks.length() - 1) + ',' + shape.substring(1)
+    }
+
+    /**
+     * @param copy a copy of document, embellished with search-chips
+     * @return the document shaped for indexing, without reverseLinks
+     */
+    private String getShape(Document document, Document copy, Whelk whelk) {
         if (log.isDebugEnabled()) {
             log.debug("Framing ${document.getShortId()}")
         }
@@ -324,7 +628,7 @@ class ElasticSearch {
                 graph.take(originalSize).collect { toSearchCard(whelk, it, links) } +
                 graph.drop(originalSize).collect { getShapeForEmbellishment(whelk, it) }
 
-        setComputedProperties(copy, links, whelk)
+        setComputedProperties(copy, links)
         copy.setThingMeta(document.getCompleteId())
         List<String> thingIds = document.getThingIdentifiers()
         if (thingIds.isEmpty()) {
@@ -416,7 +720,7 @@ class ElasticSearch {
         })
     }
 
-    private static void setComputedProperties(Document doc, Set<String> links, Whelk whelk) {
+    private static void setComputedProperties(Document doc, Set<String> links) {
         getOtherIsbns(doc.getIsbnValues())
                 .each { doc.addTypedThingIdentifier('ISBN', it) }
 
@@ -431,10 +735,6 @@ class ElasticSearch {
         
         doc.data['@graph'][1]['_links'] = links
         doc.data['@graph'][1]['_outerEmbellishments'] = doc.getEmbellishments() - links
-
-        doc.data['@graph'][1]['reverseLinks'] = [
-                (JsonLd.TYPE_KEY) : 'PartialCollectionView',
-                'totalItems' : whelk.getStorage().getIncomingLinkCount(doc.getShortId())]
     }
 
     private static Collection<String> getOtherIsbns(List<String> isbns) {
@@ -0,0 +1,116 @@
+package whelk.component
+
+import groovy.util.logging.Log4j2 as Log
+import io.prometheus.client.Counter
+import whelk.Document
+import whelk.JsonLd
+
+import java.security.MessageDigest
+
+import static whelk.util.Jackson.mapper
+
+/**
+ * Documents shaped for the search index, stored in lddb__elastic_shapes.
+ *
+ * A shape is keyed by a digest of the embellished document, i.e. the record together with the cards it
+ * is embellished with, and of the definitions (context, display and vocab) used when shaping. A document
+ * whose key hasn't changed since it was last shaped can be copied as is into a _bulk request.
+ *
+ * The number of incoming links is not part of the stored shape, it changes without the document or
+ * its cards changing. See ElasticSearch.withReverseLinks()
+ */
+@Log
+class ElasticShapeCache {
+    // Increase when the shaping in ElasticSearch changes, to make all stored shapes stale
+    static final int SHAPE_VERSION = 1
+
+    private static final Counter requests = Counter.build()
+            .name("elastic_shape_cache_requests")
+            .labelNames("result")
+            .help("Number of documents looked up in the shape cache, by result (hit/miss).").register()
+
+    static class Shape {
+        final String id
+        final String key
+        final String json
+
+        Shape(String id, String key, String json) {
+            this.id = id
+            this.key = key
+            this.json = json
+        }
+    }
+
+    private final PostgreSQLComponent storage
+
+    // Digest of the definitions, computed once per JsonLd instance
+    private JsonLd definitionsJsonLd
+    private byte[] definitionsDigest
+
+    ElasticShapeCache(PostgreSQLComponent storage) {
+        this.storage = storage
+    }
+
+    /**
+     * @param embellished the document embellished for indexing
+     */
+    String key(Document embellished, JsonLd jsonld) {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256")
+        digest.update(String.valueOf(SHAPE_VERSION).getBytes('UTF-8'))
+        digest.update(getDefinitionsDigest(jsonld))
+        digest.update(mapper.writeValueAsBytes(embellished.data))
+        return digest.digest().encodeHex().toString()
+    }
+
+    /**
+     * @param keys key by system id
+     * @return stored shape by system id, for the ids where the stored key is the same as the given one
+     */
+    Map<String, String> get(Map<String, String> keys) {
+        if (!keys) {
+            return [:]
+        }
+
+        Map<String, String> result = [:]
+        try {
+            storage.loadElasticShapes(keys.keySet()).each { String id, Shape shape ->
+                if (shape.key == keys[id]) {
+                    result[id] = shape.json
+                }
+            }
+        }
+        catch (Exception e) {
+            log.warn("Failed to load shapes from cache, shaping all: $e", e)
+        }
+
+        requests.labels("hit").inc(result.size())
+        requests.labels("miss").inc(keys.size() - result.size())
+        return result
+    }
+
+    void put(Collection<Shape> shapes) {
+        if (!shapes) {
+            return
+        }
+
+        try {
+            storage.storeElasticShapes(shapes)
+        }
+        catch (Exception e) {
+            log.warn("Failed to store ${shapes.size()} shapes in cache: $e", e)
+        }
+    }
+
+    private synchronized byte[] getDefinitionsDigest(JsonLd jsonld) {
+        if (!definitionsJsonLd.is(jsonld)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256")
+            digest.update(mapper.writeValueAsBytes(jsonld.context))
+            digest.update(mapper.writeValueAsBytes(jsonld.displayData))
+            digest.update(mapper.writeValueAsBytes(jsonld.vocabIndex))
+            digest.update(mapper.writeValueAsBytes(jsonld.locales))
+            definitionsDigest = digest.digest()
+            definitionsJsonLd = jsonld
+        }
+        return definitionsDigest
+    }
+}
@@ -0,0 +1,79 @@
+package whelk.component
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import com.google.common.cache.Weigher
+import groovy.util.logging.Log4j2 as Log
+import whelk.Document
+import whelk.util.Metrics
+
+import java.nio.charset.StandardCharsets
+
+import static whelk.component.PostgreSQLComponent.NotificationType.EMBELLISHED_CACHE_CLEAR
+import static whelk.component.PostgreSQLComponent.NotificationType.EMBELLISHED_CACHE_INVALIDATE
+import static whelk.util.Jackson.mapper
+
+/**
+ * In-process cache in front of lddb__embellished.
+ *
+ * Embellished documents are kept as serialized JSON bytes keyed by system id, bounded by total size in bytes.
+ * Entries are evicted together with the corresponding rows in lddb__embellished, and the evicted ids are
+ * broadcast to other Whelk instances with pg_notify.
+ */
+@Log
+class EmbellishedCache {
+    private final PostgreSQLComponent storage
+    private final Cache<String, byte[]> cache
+
+    EmbellishedCache(PostgreSQLComponent storage, long maxSizeBytes) {
+        this.storage = storage
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxSizeBytes)
+                .weigher(new Weigher<String, byte[]>() {
+                    @Override
+                    int weigh(String id, byte[] data) {
+                        return id.length() * 2 + data.length
+                    }
+                })
+                .recordStats()
+                .build()
+
+        Metrics.cacheMetrics.addCache('embellishedCache', cache)
+    }
+
+    Document get(String id) {
+        byte[] data = cache.getIfPresent(id)
+        return data != null ? new Document(mapper.readValue(data, Map)) : null
+    }
+
+    void put(String id, String json) {
+        cache.put(id, json.getBytes(StandardCharsets.UTF_8))
+    }
+
+    void invalidate(Collection<String> ids) {
+        if (!ids) {
+            return
+        }
+        cache.invalidateAll(ids)
+        log.debug("Sending {}", ids)
+        storage.sendNotification(EMBELLISHED_CACHE_INVALIDATE, ids.toList())
+    }
+
+    void handleInvalidateNotification(List<String> payload) {
+        log.debug("Invalidate {}", payload)
+        cache.invalidateAll(payload)
+    }
+
+    void clear() {
+        cache.invalidateAll()
+        storage.sendNotification(EMBELLISHED_CACHE_CLEAR, [])
+    }
+
+    void invalidateAll() {
+        cache.invalidateAll()
+    }
+
+    void logStats() {
+        log.info("embellishedCache: ${cache.stats()}")
+    }
+}
@@ -0,0 +1,545 @@
+package whelk.component
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log4j2 as Log
+import io.prometheus.client.Counter
+import io.prometheus.client.Gauge
+
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.locks.ReadWriteLock
+import java.util.concurrent.locks.ReentrantReadWriteLock
+
+/**
+ * lddb__dependencies for some relations, resident in memory.
+ *
+ * Every document taking part in a link with one of the relations is a node, interned as an int. For each
+ * relation the links are kept in both directions as compressed sparse rows: the targets of node n are
+ * targets[offsets[n] ..< offsets[n + 1]]. Nodes whose links have changed since the arrays were built are kept
+ * in a map on the side, until there are enough of them to rebuild the arrays.
+ *
+ * Links are loaded in the background, isReady() is false until they are. Changes are picked up from the same
+ * invalidations as DependencyCache, see refresh(). When the notification connection is re-established
+ * everything is loaded again, since notifications may have been lost.
+ */
+@Log
+@CompileStatic
+class LinkGraph {
+    private static final Gauge numNodes = Gauge.build()
+            .name("link_graph_nodes")
+            .help("Number of documents in the link graph.").register()
+
+    private static final Gauge numEdges = Gauge.build()
+            .name("link_graph_edges")
+            .help("Number of links in the link graph.").register()
+
+    private static final Gauge memoryBytes = Gauge.build()
+            .name("link_graph_memory_bytes")
+            .help("Estimated memory used by the link graph.").register()
+
+    private static final Gauge loadSeconds = Gauge.build()
+            .name("link_graph_load_seconds")
+            .help("Time it took to load the link graph.").register()
+
+    private static final Counter refreshes = Counter.build()
+            .name("link_graph_refreshes")
+            .help("Number of (document, relation) links reloaded after a change.").register()
+
+    // Rebuild the arrays when this share of the nodes have changed links
+    private static final double REBUILD_THRESHOLD = 0.01
+    private static final int[] NONE = new int[0]
+
+    private final PostgreSQLComponent storage
+    private final List<String> relations
+    private final ExecutorService updater = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("LinkGraph-%d").build())
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock()
+    private volatile boolean ready = false
+
+    private Nodes nodes
+    // Indexed by position in relations
+    private Adjacency[] forward
+    private Adjacency[] reverse
+
+    LinkGraph(PostgreSQLComponent storage, List<String> relations) {
+        this.storage = storage
+        this.relations = relations.asImmutable()
+    }
+
+    boolean isReady() {
+        return ready
+    }
+
+    boolean covers(String relation) {
+        return relation in relations
+    }
+
+    boolean covers(Collection<String> relations) {
+        return this.relations.containsAll(relations)
+    }
+
+    /**
+     * Load everything again, in the background. Lookups are answered from the old graph until done.
+     */
+    void reload() {
+        updater.execute({ -> load() } as Runnable)
+    }
+
+    /**
+     * Reload the links of relation from the document with thing IRI fromIri, in the background
+     */
+    void refresh(String fromIri, String relation) {
+        if (covers(relation)) {
+            updater.execute({ -> doRefresh(fromIri, relation) } as Runnable)
+        }
+    }
+
+    /**
+     * @return main thing IRIs of what iri links to with relation
+     */
+    Set<String> getDependencies(String iri, String relation) {
+        return neighbours(forward, iri, relation)
+    }
+
+    /**
+     * @return main thing IRIs of what links to iri with relation
+     */
+    Set<String> getDependers(String iri, String relation) {
+        return neighbours(reverse, iri, relation)
+    }
+
+    /**
+     * @param symmetric relations that are followed in both directions
+     * @return true if toIri can be reached from fromIri following relations
+     */
+    boolean isReachable(String fromIri, String toIri, Collection<String> relations, Collection<String> symmetric) {
+        lock.readLock().lock()
+        try {
+            Integer from = nodes.byIri.get(fromIri)
+            Integer to = nodes.byIri.get(toIri)
+            if (from == null || to == null) {
+                return false
+            }
+            boolean found = false
+            traverse(from, forward, reverse, relations, symmetric) { int n ->
+                found = found || n == to.intValue()
+                return !found
+            }
+            return found
+        }
+        finally {
+            lock.readLock().unlock()
+        }
+    }
+
+    /**
+     * @param symmetric relations that are followed in both directions
+     * @return main thing IRIs of everything linking to iri, directly or indirectly, with relations
+     */
+    Set<String> followReverse(String iri, Collection<String> relations, Collection<String> symmetric) {
+        lock.readLock().lock()
+        try {
+            Integer from = nodes.byIri.get(iri)
+            if (from == null) {
+                return new HashSet<String>()
+            }
+            Set<String> result = new HashSet<>()
+            traverse(from, reverse, forward, relations, symmetric) { int n ->
+                String mainIri = nodes.mainIris[n]
+                if (mainIri != null) {
+                    result.add(mainIri)
+                }
+                return true
+            }
+            return result
+        }
+        finally {
+            lock.readLock().unlock()
+        }
+    }
+
+    // Depth first. visit is called once for every node reached, traversal stops when it returns false.
+    private void traverse(int from, Adjacency[] direction, Adjacency[] opposite, Collection<String> relations,
+                          Collection<String> symmetric, Closure<Boolean> visit) {
+        List<Integer> rels = relations.findAll { String r -> this.relations.contains(r) }.collect { String r -> this.relations.indexOf(r) }
+        List<Integer> symmetricRels = rels.findAll { Integer r -> this.relations[r] in symmetric }
+
+        BitSet visited = new BitSet()
+        IntList stack = new IntList()
+        Targets targets = new Targets()
+        stack.add(from)
+        while (stack.size() > 0) {
+            int n = stack.pop()
+            for (Integer r : rels) {
+                direction[r].get(n, targets)
+                if (!visitAll(targets, visited, stack, visit)) {
+                    return
+                }
+            }
+            for (Integer r : symmetricRels) {
+                opposite[r].get(n, targets)
+                if (!visitAll(targets, visited, stack, visit)) {
+                    return
+                }
+            }
+        }
+    }
+
+    private static boolean visitAll(Targets targets, BitSet visited, IntList stack, Closure<Boolean> visit) {
+        for (int i = targets.from; i < targets.to; i++) {
+            int t = targets.array[i]
+            if (!visited.get(t)) {
+                visited.set(t)
+                stack.add(t)
+                if (!visit.call(t)) {
+                    return false
+                }
+            }
+        }
+        return true
+    }
+
+    private Set<String> neighbours(Adjacency[] direction, String iri, String relation) {
+        lock.readLock().lock()
+        try {
+            Integer node = nodes.byIri.get(iri)
+            if (node == null) {
+                return Collections.emptySet()
+            }
+            Targets targets = new Targets()
+            direction[relations.indexOf(relation)].get(node, targets)
+            Set<String> result = new HashSet<>(targets.size() * 2)
+            for (int i = targets.from; i < targets.to; i++) {
+                String mainIri = nodes.mainIris[targets.array[i]]
+                if (mainIri != null) {
+                    result.add(mainIri)
+                }
+            }
+            return result
+        }
+        finally {
+            lock.readLock().unlock()
+        }
+    }
+
+    private void load() {
+        try {
+            long start = System.nanoTime()
+            Nodes newNodes = new Nodes()
+            List<IntList> from = relations.collect { new IntList() }
+            List<IntList> to = relations.collect { new IntList() }
+
+            storage.streamDependencies(relations) { String id, String relation, String dependsOnId ->
+                int r = relations.indexOf(relation)
+                from[r].add(newNodes.intern(id))
+                to[r].add(newNodes.intern(dependsOnId))
+            }
+            storage.streamThingIrisOfDependencies(relations) { String id, String iri, boolean mainId ->
+                newNodes.addIri(id, iri, mainId)
+            }
+
+            int size = newNodes.size()
+            Adjacency[] newForward = new Adjacency[relations.size()]
+            Adjacency[] newReverse = new Adjacency[relations.size()]
+            for (int r = 0; r < relations.size(); r++) {
+                newForward[r] = Adjacency.build(size, from[r], to[r])
+                newReverse[r] = Adjacency.build(size, to[r], from[r])
+            }
+
+            lock.writeLock().lock()
+            try {
+                nodes = newNodes
+                forward = newForward
+                reverse = newReverse
+                ready = true
+            }
+            finally {
+                lock.writeLock().unlock()
+            }
+
+            double seconds = (System.nanoTime() - start) / 1e9d
+            loadSeconds.set(seconds)
+            updateMetrics()
+            log.info("Loaded link graph for ${relations}: ${size} nodes, ${numEdges.get() as long} links in ${seconds} s")
+        }
+        catch (Exception e) {
+            log.error("Failed to load link graph: $e", e)
+        }
+    }
+
+    private void doRefresh(String fromIri, String relation) {
+        if (!ready) {
+            // A reload is running or will run, it reads the current state anyway
+            return
+        }
+        try {
+            int r = relations.indexOf(relation)
+            String systemId = storage.getSystemIdByThingId(fromIri)
+            List<String> dependsOnIds = systemId ? storage.getDependenciesOfType(systemId, relation) : []
+
+            Set<String> newIds = (dependsOnIds + (systemId ? [systemId] : [])).findAll { String id ->
+                !nodes.bySystemId.containsKey(id)
+            } as Set<String>
+            List<Tuple3<String, String, Boolean>> newIris = []
+            if (newIds) {
+                storage.streamThingIrisBySystemIds(newIds) { String id, String iri, boolean mainId ->
+                    newIris.add(new Tuple3<String, String, Boolean>(id, iri, mainId))
+                }
+            }
+
+            lock.writeLock().lock()
+            try {
+                for (String id : newIds) {
+                    nodes.intern(id)
+                }
+                for (Tuple3<String, String, Boolean> t : newIris) {
+                    nodes.addIri(t.v1, t.v2, t.v3)
+                }
+                Integer node = systemId ? nodes.bySystemId.get(systemId) : nodes.byIri.get(fromIri)
+                if (node != null) {
+                    Targets targets = new Targets()
+                    forward[r].get(node, targets)
+                    Set<Integer> before = toSet(targets)
+                    Set<Integer> after = new LinkedHashSet<>()
+                    for (String id : dependsOnIds) {
+                        after.add(nodes.bySystemId.get(id))
+                    }
+                    forward[r].set(node, toArray(after))
+                    for (Integer t : before) {
+                        if (!after.contains(t)) {
+                            reverse[r].get(t, targets)
+                            Set<Integer> dependers = toSet(targets)
+                            dependers.remove(node)
+                            reverse[r].set(t, toArray(dependers))
+                        }
+                    }
+                    for (Integer t : after) {
+                        if (!before.contains(t)) {
+                            reverse[r].get(t, targets)
+                            Set<Integer> dependers = toSet(targets)
+                            dependers.add(node)
+                            reverse[r].set(t, toArray(dependers))
+                        }
+                    }
+                }
+                rebuildIfNeeded()
+            }
+            finally {
+                lock.writeLock().unlock()
+            }
+
+            refreshes.inc()
+            updateMetrics()
+        }
+        catch (Exception e) {
+            log.error("Failed to refresh link graph for $fromIri $relation, reloading: $e", e)
+            ready = false
+            load()
+        }
+    }
+
+    private void rebuildIfNeeded() {
+        int changed = 0
+        for (int r = 0; r < relations.size(); r++) {
+            changed += forward[r].changed.size() + reverse[r].changed.size()
+        }
+        if (changed > REBUILD_THRESHOLD * nodes.size()) {
+            for (int r = 0; r < relations.size(); r++) {
+                forward[r] = forward[r].rebuild(nodes.size())
+                reverse[r] = reverse[r].rebuild(nodes.size())
+            }
+        }
+    }
+
+    private void updateMetrics() {
+        lock.readLock().lock()
+        try {
+            long edges = 0
+            long bytes = nodes.estimateBytes()
+            for (int r = 0; r < relations.size(); r++) {
+                edges += forward[r].numEdges()
+                bytes += forward[r].estimateBytes() + reverse[r].estimateBytes()
+            }
+            numNodes.set(nodes.size())
+            numEdges.set(edges)
+            memoryBytes.set(bytes)
+        }
+        finally {
+            lock.readLock().unlock()
+        }
+    }
+
+    private static Set<Integer> toSet(Targets targets) {
+        Set<Integer> result = new LinkedHashSet<>()
+        for (int i = targets.from; i < targets.to; i++) {
+            result.add(targets.array[i])
+        }
+        return result
+    }
+
+    private static int[] toArray(Set<Integer> s) {
+        int[] result = new int[s.size()]
+        int i = 0
+        for (Integer v : s) {
+            result[i++] = v
+        }
+        return result
+    }
+
+    private static class Nodes {
+        final Map<String, Integer> bySystemId = new HashMap<>()
+        final Map<String, Integer> byIri = new HashMap<>()
+        final List<String> mainIris = []
+        private long iriChars = 0
+
+        int intern(String systemId) {
+            Integer n = bySystemId.get(systemId)
+            if (n == null) {
+                n = mainIris.size()
+                bySystemId.put(systemId, n)
+                mainIris.add(null)
+                iriChars += systemId.length()
+            }
+            return n
+        }
+
+        void addIri(String systemId, String iri, boolean mainId) {
+            Integer n = bySystemId.get(systemId)
+            if (n != null) {
+                byIri.put(iri, n)
+                iriChars += iri.length()
+                if (mainId) {
+                    mainIris.set(n, iri)
+                }
+            }
+        }
+
+        int size() {
+            return mainIris.size()
+        }
+
+        // Strings, hash map entries and boxed integers, roughly
+        long estimateBytes() {
+            return iriChars + (bySystemId.size() + byIri.size()) * 100L + mainIris.size() * 8L
+        }
+    }
+
+    private static class Adjacency {
+        final int[] offsets
+        final int[] targets
+        // Links of nodes that have changed after the arrays were built
+        final Map<Integer, int[]> changed = new HashMap<>()
+
+        private Adjacency(int[] offsets, int[] targets) {
+            this.offsets = offsets
+            this.targets = targets
+        }
+
+        static Adjacency build(int numNodes, IntList from, IntList to) {
+            int[] offsets = new int[numNodes + 1]
+            for (int i = 0; i < from.size(); i++) {
+                offsets[from.get(i) + 1]++
+            }
+            for (int n = 0; n < numNodes; n++) {
+                offsets[n + 1] += offsets[n]
+            }
+            int[] targets = new int[from.size()]
+            int[] next = Arrays.copyOf(offsets, numNodes)
+            for (int i = 0; i < from.size(); i++) {
+                targets[next[from.get(i)]++] = to.get(i)
+            }
+            return new Adjacency(offsets, targets)
+        }
+
+        /**
+         * Point into at the targets of node, without copying them
+         */
+        void get(int node, Targets into) {
+            int[] c = changed.get(node)
+            if (c != null) {
+                into.set(c, 0, c.length)
+            }
+            else if (node + 1 >= offsets.length) {
+                into.set(NONE, 0, 0)
+            }
+            else {
+                into.set(targets, offsets[node], offsets[node + 1])
+            }
+        }
+
+        void set(int node, int[] nodeTargets) {
+            changed.put(node, nodeTargets)
+        }
+
+        Adjacency rebuild(int numNodes) {
+            IntList from = new IntList()
+            IntList to = new IntList()
+            Targets nodeTargets = new Targets()
+            for (int n = 0; n < numNodes; n++) {
+                get(n, nodeTargets)
+                for (int i = nodeTargets.from; i < nodeTargets.to; i++) {
+                    from.add(n)
+                    to.add(nodeTargets.array[i])
+                }
+            }
+            return build(numNodes, from, to)
+        }
+
+        long numEdges() {
+            long n = targets.length
+            changed.each { Integer node, int[] t ->
+                n += t.length - (node + 1 < offsets.length ? offsets[node + 1] - offsets[node] : 0)
+            }
+            return n
+        }
+
+        long estimateBytes() {
+            long bytes = (offsets.length + targets.length) * 4L
+            changed.values().each { int[] t -> bytes += 64 + t.length * 4L }
+            return bytes
+        }
+    }
+
+    // Targets of one node: array[from ..< to]. Reused while traversing instead of copying the targets out.
+    private static class Targets {
+        int[] array = NONE
+        int from = 0
+        int to = 0
+
+        void set(int[] array, int from, int to) {
+            this.array = array
+            this.from = from
+            this.to = to
+        }
+
+        int size() {
+            return to - from
+        }
+    }
+
+    private static class IntList {
+        private int[] values = new int[16]
+        private int size = 0
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2)
+            }
+            values[size++] = value
+        }
+
+        int get(int i) {
+            return values[i]
+        }
+
+        int pop() {
+            return values[--size]
+        }
+
+        int size() {
+            return size
+        }
+    }
+}
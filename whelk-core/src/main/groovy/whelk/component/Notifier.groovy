@@ -0,0 +1,232 @@
+package whelk.component
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log4j2 as Log
+import io.prometheus.client.Counter
+
+import javax.sql.DataSource
+import java.nio.charset.StandardCharsets
+import java.sql.Connection
+import java.sql.PreparedStatement
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+
+/**
+ * Sends pg_notify notifications in the background.
+ *
+ * Payload ids are queued per channel, duplicates are dropped, and everything queued is sent on a short
+ * interval, packed into as few notifications as possible and with many notifications per statement.
+ * Notifications are sent on a connection of their own, i.e. not in the transaction of the caller.
+ *
+ * If too many ids are queued, e.g. when the database is unreachable, they are all dropped and a single
+ * notification on the clear all channel is sent instead.
+ */
+@Log
+@CompileStatic
+class Notifier {
+    // Postgres limit, the payload must be shorter than this
+    static final int MAX_PAYLOAD_BYTES = 8000
+    private static final int MAX_NOTIFICATIONS_PER_STATEMENT = 1000
+    private static final long FLUSH_INTERVAL_MS = 100
+    private static final int MAX_QUEUED = 1_000_000
+
+    private static final String NOTIFY_ALL =
+            "SELECT pg_notify(channel, payload) FROM unnest(?::text[], ?::text[]) AS n(channel, payload)"
+
+    private static final Counter ids = Counter.build()
+            .name("pg_notifier_ids")
+            .labelNames("channel", "result")
+            .help("Number of notification payload ids, by result (sent/coalesced/dropped). Dropped ids are replaced by a clear all notification.").register()
+
+    private static final Counter notifications = Counter.build()
+            .name("pg_notifier_notifications")
+            .labelNames("channel")
+            .help("Number of notifications sent.").register()
+
+    private final String prefix
+    private final String delimiter
+    private final DataSource dataSource
+    private final String clearAllChannel
+    private final int maxQueued
+
+    // channel -> queued ids, guarded by this
+    private Map<String, Set<String>> queued = [:]
+    private int numQueued = 0
+    // Queued ids were dropped, send a clear all notification instead. Guarded by this.
+    private boolean overflowed = false
+
+    private final ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor({ Runnable r ->
+        Thread t = new Thread(r, 'pg_notifier')
+        t.setDaemon(true)
+        return t
+    })
+
+    /**
+     * @param prefix first part of every payload, e.g. the id of the sender
+     * @param delimiter separates the prefix and the ids in a payload
+     * @param clearAllChannel channel of the notification sent instead of the queued ids when there are too many
+     */
+    Notifier(String prefix, String delimiter, DataSource dataSource, String clearAllChannel,
+             int maxQueued = MAX_QUEUED, long flushIntervalMs = FLUSH_INTERVAL_MS) {
+        this.prefix = prefix
+        this.delimiter = delimiter
+        this.dataSource = dataSource
+        this.clearAllChannel = clearAllChannel
+        this.maxQueued = maxQueued
+        sender.scheduleWithFixedDelay({ flush() } as Runnable, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Queue ids for sending. An empty payload is sent as a notification without ids.
+     */
+    void send(String channel, Collection<String> payload) {
+        enqueue(channel, payload, true)
+    }
+
+    /**
+     * Send everything queued. Called by the background sender.
+     */
+    void flush() {
+        Map<String, Set<String>> toSend
+        boolean clearAll
+        synchronized (this) {
+            if (queued.isEmpty() && !overflowed) {
+                return
+            }
+            toSend = queued
+            clearAll = overflowed
+            queued = [:]
+            numQueued = 0
+            overflowed = false
+        }
+
+        List<String> channels = []
+        List<String> messages = []
+        if (clearAll) {
+            channels << clearAllChannel
+            messages << prefix
+        }
+        toSend.each { String channel, Set<String> payload ->
+            for (String message : pack(prefix, delimiter, payload)) {
+                channels << channel
+                messages << message
+            }
+        }
+
+        try {
+            Connection connection = dataSource.getConnection()
+            try {
+                send(connection, channels, messages)
+            } finally {
+                connection.close()
+            }
+            toSend.each { String channel, Set<String> payload ->
+                ids.labels(channel, 'sent').inc(payload.size())
+            }
+        }
+        catch (Exception e) {
+            log.warn("Failed to send notifications, will retry: $e", e)
+            synchronized (this) {
+                overflowed = overflowed || clearAll
+            }
+            toSend.each { String channel, Set<String> payload -> enqueue(channel, payload, false) }
+        }
+    }
+
+    private synchronized void enqueue(String channel, Collection<String> payload, boolean countCoalesced) {
+        if (overflowed) {
+            // Covered by the clear all notification, it is sent after this
+            ids.labels(channel, 'dropped').inc(payload.size())
+            return
+        }
+
+        Set<String> q = queued[channel]
+        if (q == null) {
+            q = new LinkedHashSet<String>()
+            queued[channel] = q
+        }
+
+        int coalesced = 0
+        int added = 0
+        for (String id : payload) {
+            if (q.contains(id)) {
+                coalesced++
+            }
+            else if (numQueued >= maxQueued) {
+                overflow()
+                ids.labels(channel, 'dropped').inc(payload.size() - added)
+                return
+            }
+            else {
+                q.add(id)
+                numQueued++
+                added++
+            }
+        }
+
+        if (countCoalesced && coalesced) {
+            ids.labels(channel, 'coalesced').inc(coalesced)
+        }
+    }
+
+    private void overflow() {
+        log.warn("Notification queue full, dropping $numQueued queued ids and sending $clearAllChannel instead")
+        queued.each { String channel, Set<String> q ->
+            ids.labels(channel, 'dropped').inc(q.size())
+        }
+        queued = [:]
+        numQueued = 0
+        overflowed = true
+    }
+
+    /**
+     * Send notifications right away on the given connection.
+     * If the connection is in a transaction they are delivered when it commits.
+     */
+    static void send(Connection connection, List<String> channels, List<String> messages) {
+        for (int i = 0; i < messages.size(); i += MAX_NOTIFICATIONS_PER_STATEMENT) {
+            int end = Math.min(i + MAX_NOTIFICATIONS_PER_STATEMENT, messages.size())
+            PreparedStatement statement = connection.prepareStatement(NOTIFY_ALL)
+            try {
+                statement.setArray(1, connection.createArrayOf("TEXT", channels.subList(i, end).toArray()))
+                statement.setArray(2, connection.createArrayOf("TEXT", messages.subList(i, end).toArray()))
+                statement.execute()
+            } finally {
+                statement.close()
+            }
+            for (String channel : channels.subList(i, end)) {
+                notifications.labels(channel).inc()
+            }
+        }
+    }
+
+    /**
+     * Pack ids into as few payloads as possible.
+     * @return payloads of the form prefix + (delimiter + id)*, each shorter than MAX_PAYLOAD_BYTES
+     */
+    static List<String> pack(String prefix, String delimiter, Collection<String> payload) {
+        int prefixBytes = utf8Length(prefix)
+        int delimiterBytes = utf8Length(delimiter)
+
+        List<String> messages = []
+        StringBuilder s = new StringBuilder().append(prefix)
+        int bytes = prefixBytes
+        for (String id : payload) {
+            int idBytes = delimiterBytes + utf8Length(id)
+            if (bytes > prefixBytes && bytes + idBytes >= MAX_PAYLOAD_BYTES) {
+                messages << s.toString()
+                s = new StringBuilder().append(prefix)
+                bytes = prefixBytes
+            }
+            s.append(delimiter).append(id)
+            bytes += idBytes
+        }
+        messages << s.toString()
+        return messages
+    }
+
+    private static int utf8Length(String s) {
+        return s.getBytes(StandardCharsets.UTF_8).length
+    }
+}
@@ -8,6 +8,8 @@ import groovy.json.StringEscapeUtils
 import groovy.transform.CompileStatic
 import groovy.util.logging.Log4j2 as Log
 import io.prometheus.client.Counter
+import io.prometheus.client.Gauge
+import io.prometheus.client.Histogram
 import org.postgresql.PGConnection
 import org.postgresql.PGNotification
 import org.postgresql.PGStatement
@@ -17,6 +19,7 @@ import whelk.Document
 import whelk.IdType
 import whelk.JsonLd
 import whelk.Link
+import whelk.Relations
 import whelk.exception.CancelUpdateException
 import whelk.exception.LinkValidationException
 import whelk.exception.MissingMainIriException
@@ -27,10 +30,13 @@ import whelk.exception.WhelkException
 import whelk.exception.WhelkRuntimeException
 import whelk.filter.LinkFinder
 import whelk.history.DocumentVersion
+import whelk.history.History
 import whelk.util.DocumentUtil
+import whelk.util.JsonPatch
 import whelk.util.LegacyIntegrationTools
 
 import javax.sql.DataSource
+import java.nio.charset.StandardCharsets
 import java.sql.Array
 import java.sql.BatchUpdateException
 import java.sql.Connection
@@ -39,8 +45,10 @@ import java.sql.ResultSet
 import java.sql.SQLException
 import java.sql.Statement
 import java.sql.Timestamp
+import java.sql.Types
 import java.time.Instant
 import java.util.concurrent.atomic.AtomicLong
+import java.util.function.Supplier
 import java.util.regex.Matcher
 import java.util.regex.Pattern
 
@@ -55,6 +63,8 @@ import static whelk.util.Jackson.mapper
  *
  *  See also getOuterConnection() and createAdditionalConnectionPool() for clients that need to hold their own
  *  connection while calling into this class.
+ *
+ *  Methods that only read use withReadOnlyDbConnection() instead, which uses a read replica if any is configured.
  */
 
 @Log
@@ -75,16 +85,56 @@ class PostgreSQLComponent {
     public static final String PROPERTY_SQL_URL = "sqlUrl"
     public static final String PROPERTY_SQL_MAX_POOL_SIZE = "sqlMaxPoolSize"
     public static final String PROPERTY_EMBELLISH_CACHE_MAX_SIZE = "embellishCacheMaxSizeBytes"
+    public static final String PROPERTY_EMBELLISH_LOCAL_CACHE_MAX_SIZE = "embellishLocalCacheMaxSizeBytes"
+    public static final String PROPERTY_EMBELLISH_CACHE_EVICTION = "embellishCacheEviction"
+    public static final String PROPERTY_LINK_GRAPH_RELATIONS = "linkGraphRelations"
+    public static final String PROPERTY_SYNC_NOTIFICATIONS = "syncNotifications"
+    public static final String PROPERTY_VERSION_SNAPSHOT_INTERVAL = "versionSnapshotInterval"
+    public static final String PROPERTY_SQL_REPLICA_URLS = "sqlReplicaUrls"
+    public static final String PROPERTY_CONVERTED_LOCAL_CACHE_MAX_SIZE = "convertedLocalCacheMaxSizeBytes"
+    public static final String PROPERTY_CONVERTED_CACHE_SHARED = "convertedCacheShared"
 
     private static final int DEFAULT_MAX_POOL_SIZE = 16
     private static final String driverClass = "org.postgresql.Driver"
     
-    private static final int MAX_PG_NOTIFY_PAYLOAD_BYTES = 8000
     private static final String NOTIFICATION_DELIMITER = '¤'
 
+    // Max total size of the JSON of documents in lddb__embellished, UTF-8 encoded.
+    // Not the size of the table on disk, which is smaller since it's compressed but also has indexes etc.
     private long embellishCacheMaxSize = 10L * 1024L * 1024L * 1024L // default 10GB
-
-    private Random random = new Random(System.currentTimeMillis())
+    private long embellishLocalCacheMaxSize = 128L * 1024L * 1024L // default 128MB, 0 to disable
+    // Evict from lddb__embellished in the background, only needed in the processes that serve it (e.g. rest).
+    // Other processes don't add their changes to the total size either.
+    private boolean embellishCacheEviction = false
+    private long convertedLocalCacheMaxSize = 256L * 1024L * 1024L // default 256MB, 0 to disable
+    // Also cache converted documents in lddb__converted. Its rows are deleted with those in lddb__embellished,
+    // so the number of them is bounded by embellishCacheMaxSize but their size isn't counted.
+    private boolean convertedCacheShared = false
+    private List<String> linkGraphRelations = [] // default none, i.e. no link graph
+    // Send notifications directly in sendNotification() instead of in the background, e.g. for tests
+    boolean syncNotifications = false
+    // Store every n:th version of a document in full and the ones in between as patches, 0 or 1 to store all in full
+    int versionSnapshotInterval = 0
+    // A version is stored in full if its patch would be larger than this fraction of the full document
+    private static final double MAX_VERSION_PATCH_FRACTION = 0.5
+
+    // When lddb__embellished grows above embellishCacheMaxSize, least recently used entries are evicted
+    // until it is down to this fraction of the max size
+    private static final double EMBELLISH_CACHE_LOW_WATERMARK = 0.9
+    private static final int EMBELLISH_EVICTION_BATCH_SIZE = 1000
+    private static final long EMBELLISH_EVICTION_INTERVAL_MS = 60 * 1000
+    // The running total in lddb__embellished_size is recalculated from the rows once in a while, it can drift
+    // e.g. when rows are changed outside of Whelk or by processes that don't evict (see embellishCacheEviction)
+    private static final long EMBELLISH_SIZE_RECONCILE_INTERVAL_MS = 24 * 60 * 60 * 1000
+
+    private static final Gauge embellishedCacheSize = Gauge.build()
+            .name("embellished_cache_size_bytes")
+            .help("Total size of documents in lddb__embellished.").register()
+
+    private static final Counter convertedRequests = Counter.build()
+            .name("converted_cache_requests")
+            .labelNames("result")
+            .help("Number of loadConverted() calls, by where the result came from (local/shared/converted).").register()
 
     private String whelkInstanceId = "${ProcessHandle.current().pid()}@${InetAddress.getLocalHost().getHostName()}"
 
@@ -101,10 +151,32 @@ class PostgreSQLComponent {
             """.stripIndent()
 
     private static final String INSERT_DOCUMENT_VERSION = """
-            INSERT INTO lddb__versions (id, data, collection, changedIn, changedBy, checksum, created, modified, deleted)
-            SELECT ?,?,?,?,?,?,?,?,?
+            INSERT INTO lddb__versions (id, data, collection, changedIn, changedBy, checksum, created, modified, deleted,
+                                        snapshot, patch, generationDate)
+            SELECT ?,?,?,?,?,?,?,?,?,?,?,?::timestamptz
+            """.stripIndent()
+
+    // A version is stored either in full (data) or as a JSON patch against the latest snapshot (a version stored in full)
+    private static final String GET_LATEST_VERSION_SNAPSHOT = """
+            SELECT pk, data, (SELECT count(*) FROM lddb__versions WHERE snapshot = s.pk) AS deltas
+            FROM lddb__versions s
+            WHERE id = ? AND data IS NOT NULL
+            ORDER BY pk DESC
+            LIMIT 1
             """.stripIndent()
 
+    private static final String GET_IDS_WITH_VERSIONS =
+            "SELECT id FROM lddb__versions GROUP BY id HAVING count(*) > 1"
+
+    private static final String GET_VERSIONS_FOR_PACKING =
+            "SELECT pk, data, patch, snapshot FROM lddb__versions WHERE id = ? ORDER BY pk"
+
+    private static final String UPDATE_VERSION_PACKING =
+            "UPDATE lddb__versions SET data = ?, patch = ?, snapshot = ?, generationDate = ?::timestamptz WHERE pk = ?"
+
+    private static final String GET_EXISTING_IDS =
+            "SELECT id FROM lddb WHERE id = ANY(?)"
+
     private static final String GET_DOCUMENT =
             "SELECT id, data, created, modified, deleted FROM lddb WHERE id = ?"
 
@@ -123,8 +195,11 @@ class PostgreSQLComponent {
     private static final String GET_DOCUMENT_FOR_UPDATE =
             "SELECT id, data, collection, created, modified, deleted, changedBy FROM lddb WHERE id = ? FOR UPDATE"
 
-    private static final String GET_DOCUMENT_VERSION =
-            "SELECT id, data FROM lddb__versions WHERE id = ? AND checksum = ?"
+    private static final String GET_DOCUMENT_VERSION = """
+            SELECT v.id, COALESCE(v.data, s.data) AS data, v.patch
+            FROM lddb__versions v LEFT JOIN lddb__versions s ON s.pk = v.snapshot
+            WHERE v.id = ? AND v.checksum = ?
+            """.stripIndent()
 
     private static final String BULK_LOAD_DOCUMENTS = """
             SELECT id, data, created, modified, deleted
@@ -134,9 +209,9 @@ class PostgreSQLComponent {
 
     private static final String BULK_LOAD_DOCUMENTS_AS_OF = """
             SELECT
-                id, data, created, modified, deleted
+                v.id, COALESCE(v.data, s.data) AS data, v.patch, v.created, v.modified, v.deleted
             FROM
-                lddb__versions v, unnest(?) AS in_id
+                lddb__versions v LEFT JOIN lddb__versions s ON s.pk = v.snapshot, unnest(?) AS in_id
             WHERE
                 in_id = v.id
                 AND v.pk =
@@ -147,59 +222,130 @@ class PostgreSQLComponent {
                     lddb__versions
                 WHERE
                     id = v.id
-                    AND GREATEST(modified, (data#>>'{@graph,0,generationDate}')::timestamptz) <= ?
-                ORDER BY GREATEST(modified, (data#>>'{@graph,0,generationDate}')::timestamptz) DESC
+                    AND GREATEST(modified, generationDate) <= ?
+                ORDER BY GREATEST(modified, generationDate) DESC
                 limit 1
                 )
             """.stripIndent()
 
     private static final String GET_DOCUMENT_AS_OF = """
-            SELECT id, data, created, modified, deleted
-            FROM lddb__versions
-            WHERE id = ?
+            SELECT v.id, COALESCE(v.data, s.data) AS data, v.patch, v.created, v.modified, v.deleted
+            FROM lddb__versions v LEFT JOIN lddb__versions s ON s.pk = v.snapshot
+            WHERE v.id = ?
             AND
-            GREATEST(modified, (data#>>'{@graph,0,generationDate}')::timestamptz) <= ?
-            ORDER BY GREATEST(modified, (data#>>'{@graph,0,generationDate}')::timestamptz) DESC
+            GREATEST(v.modified, v.generationDate) <= ?
+            ORDER BY GREATEST(v.modified, v.generationDate) DESC
             limit 1
             """.stripIndent()
 
-    private static final String GET_EMBELLISHED_DOCUMENT =
-            "SELECT data from lddb__embellished where id = ?"
+    // Access time is only updated once in a while, to not turn every read into a write
+    private static final String GET_EMBELLISHED_DOCUMENT = """
+            SELECT data, accessed < now() - interval '10 minutes' AS stale
+            FROM lddb__embellished
+            WHERE id = ?
+            """.stripIndent()
 
+    private static final String TOUCH_EMBELLISHED_DOCUMENT =
+            "UPDATE lddb__embellished SET accessed = now() WHERE id = ?"
+
+    // Returns the size of the row replaced, if any
     private static final String UPSERT_EMBELLISHED_DOCUMENT = """
-            INSERT INTO lddb__embellished (id, data, ids) VALUES (?,?,?)
+            WITH previous AS (SELECT size FROM lddb__embellished WHERE id = ?)
+            INSERT INTO lddb__embellished (id, data, ids, size, accessed) VALUES (?,?,?,?,now())
             ON CONFLICT (id) DO UPDATE
-            SET (data, ids) = (EXCLUDED.data, EXCLUDED.ids)
+            SET (data, ids, size, accessed) = (EXCLUDED.data, EXCLUDED.ids, EXCLUDED.size, EXCLUDED.accessed)
             WHERE lddb__embellished.id = EXCLUDED.id
+            RETURNING (SELECT size FROM previous)
+            """.stripIndent()
+
+    private static final String GET_EMBELLISHED_SIZE_BYTES =
+            "SELECT size FROM lddb__embellished_size"
+
+    private static final String ADD_EMBELLISHED_SIZE_BYTES =
+            "UPDATE lddb__embellished_size SET size = size + ?"
+
+    private static final String RESET_EMBELLISHED_SIZE_BYTES =
+            "UPDATE lddb__embellished_size SET size = 0"
+
+    private static final String RECONCILE_EMBELLISHED_SIZE_BYTES = """
+            UPDATE lddb__embellished_size SET size = (SELECT COALESCE(SUM(size), 0) FROM lddb__embellished)
+            RETURNING size
             """.stripIndent()
 
+    private static final String EVICT_LEAST_RECENTLY_USED_EMBELLISHED = """
+            DELETE FROM lddb__embellished
+            WHERE id IN (SELECT id FROM lddb__embellished ORDER BY accessed ASC LIMIT ?)
+            RETURNING id, size
+            """.stripIndent()
+
+    private static final String TRY_LOCK_EMBELLISHED_EVICTION =
+            "SELECT pg_try_advisory_lock(hashtext('lddb__embellished'))"
+
+    private static final String UNLOCK_EMBELLISHED_EVICTION =
+            "SELECT pg_advisory_unlock(hashtext('lddb__embellished'))"
+
     private static final String EVICT_EMBELLISHED_DEPENDERS =
-            "DELETE FROM lddb__embellished WHERE id = ? OR ids @> ?"
+            "DELETE FROM lddb__embellished WHERE id = ANY(?) OR ids && ? RETURNING id, size"
 
     private static final String GET_TABLE_SIZE_BYTES =
             "SELECT pg_total_relation_size(?)"
 
     private static final String CLEAR_EMBELLISHED = "DELETE FROM lddb__embellished"
 
+    private static final String GET_CONVERTED =
+            "SELECT data FROM lddb__converted WHERE id = ? AND format = ? AND version = ?"
+
+    // Only if lddb__embellished still holds the document that was converted
+    private static final String UPSERT_CONVERTED = """
+            INSERT INTO lddb__converted (id, format, version, data)
+            SELECT id, ?, ?, ? FROM lddb__embellished WHERE id = ? AND data = ?::jsonb
+            ON CONFLICT (id, format) DO UPDATE
+            SET (version, data) = (EXCLUDED.version, EXCLUDED.data)
+            """.stripIndent()
+
+    private static final String FOREIGN_KEY_VIOLATION = "23503"
+
     private static final String GET_DOCUMENT_VERSION_BY_MAIN_ID = """
-            SELECT id, data
-            FROM lddb__versions 
-            WHERE id = (SELECT id FROM lddb__identifiers WHERE iri = ? AND mainid = 't') 
-            AND checksum = ?
+            SELECT v.id, COALESCE(v.data, s.data) AS data, v.patch, v.deleted, v.created, v.modified
+            FROM lddb__versions v LEFT JOIN lddb__versions s ON s.pk = v.snapshot
+            WHERE v.id = (SELECT id FROM lddb__identifiers WHERE iri = ? AND mainid = 't') 
+            AND v.checksum = ?
             """.stripIndent()
 
     private static final String GET_ALL_DOCUMENT_VERSIONS = """
-            SELECT id, data, deleted, created, modified, changedBy, changedIn 
+            SELECT v.pk, v.id, COALESCE(v.data, s.data) AS data, v.patch, v.deleted, v.created, v.modified, v.changedBy, v.changedIn 
+            FROM lddb__versions v LEFT JOIN lddb__versions s ON s.pk = v.snapshot
+            WHERE v.id = ? 
+            ORDER BY GREATEST(v.modified, v.generationDate) ASC, v.pk ASC
+            """.stripIndent()
+
+    private static final String GET_DOCUMENT_VERSIONS_FROM = GET_ALL_DOCUMENT_VERSIONS + "OFFSET ?"
+
+    // Same order as GET_ALL_DOCUMENT_VERSIONS
+    private static final String GET_DOCUMENT_VERSION_PKS = """
+            SELECT pk
             FROM lddb__versions
-            WHERE id = ? 
-            ORDER BY GREATEST(modified, (data#>>'{@graph,0,generationDate}')::timestamptz) ASC
+            WHERE id = ?
+            ORDER BY GREATEST(modified, generationDate) ASC, pk ASC
             """.stripIndent()
 
+    private static final String GET_HISTORY =
+            "SELECT versions, versionsHash, data FROM lddb__history WHERE id = ?"
+
+    private static final String UPSERT_HISTORY = """
+            INSERT INTO lddb__history (id, versions, versionsHash, data) VALUES (?,?,?,?)
+            ON CONFLICT (id) DO UPDATE
+            SET (versions, versionsHash, data) = (EXCLUDED.versions, EXCLUDED.versionsHash, EXCLUDED.data)
+            """.stripIndent()
+
+    private static final String DELETE_HISTORY =
+            "DELETE FROM lddb__history WHERE id = ?"
+
     private static final String GET_ALL_DOCUMENT_VERSIONS_BY_MAIN_ID = """
-            SELECT id, data, deleted, created, modified 
-            FROM lddb__versions 
-            WHERE id = (SELECT id FROM lddb__identifiers WHERE iri = ? AND mainid = 't')
-            ORDER BY GREATEST(modified, (data#>>'{@graph,0,generationDate}')::timestamptz) ASC
+            SELECT v.id, COALESCE(v.data, s.data) AS data, v.patch, v.deleted, v.created, v.modified 
+            FROM lddb__versions v LEFT JOIN lddb__versions s ON s.pk = v.snapshot
+            WHERE v.id = (SELECT id FROM lddb__identifiers WHERE iri = ? AND mainid = 't')
+            ORDER BY GREATEST(v.modified, v.generationDate) ASC
             """.stripIndent()
     
     private static final String LOAD_ALL_DOCUMENTS =
@@ -211,6 +357,23 @@ class PostgreSQLComponent {
             WHERE modified >= ? AND modified <= ? AND collection = ? AND deleted = false
             """.stripIndent()
 
+    private static final String LOAD_DOCUMENTS_IN_ID_RANGE = """
+            SELECT id, data, created, modified, deleted
+            FROM lddb
+            WHERE collection = ? AND deleted = false AND id > ?
+            """.stripIndent()
+
+    // Boundaries for splitting a collection in ranges of roughly equal size, from a 1% sample
+    private static final String SAMPLE_ID_RANGE_BOUNDARIES = """
+            SELECT max(id) FROM (
+                SELECT id, ntile(?) OVER (ORDER BY id) AS part
+                FROM lddb TABLESAMPLE SYSTEM (1)
+                WHERE collection = ? AND deleted = false
+            ) AS sample
+            GROUP BY part
+            ORDER BY 1
+            """.stripIndent()
+
     private static final String STATUS_OF_DOCUMENT = """
             SELECT t1.id AS id, created, modified, deleted 
             FROM lddb t1 
@@ -218,7 +381,7 @@ class PostgreSQLComponent {
             """.stripIndent()
 
     private static final String DELETE_DEPENDENCIES =
-            "DELETE FROM lddb__dependencies WHERE id = ?"
+            "DELETE FROM lddb__dependencies WHERE id = ? RETURNING relation, dependsOnId"
 
     private static final String INSERT_DEPENDENCIES =
             "INSERT INTO lddb__dependencies (id, relation, dependsOnId) VALUES (?, ?, ?)"
@@ -243,29 +406,138 @@ class PostgreSQLComponent {
             ) SELECT * FROM deps
             """.stripIndent()
 
+    private static final String FOLLOW_DEPENDERS_OF_ALL = """
+            WITH RECURSIVE deps(i, relation) AS (
+                    SELECT unnest(?::text[]), null::text
+                UNION
+                    SELECT d.id, d.relation
+                    FROM lddb__dependencies d
+                    INNER JOIN deps deps1 ON d.dependsonid = i AND d.relation NOT IN (€)
+            ) SELECT DISTINCT i FROM deps WHERE relation IS NOT NULL AND i > ? COLLATE "C"
+            ORDER BY i COLLATE "C"
+            """.stripIndent()
+
+    private static final String FILTER_WITHOUT_VERSIONS = """
+            SELECT id FROM unnest(?::text[]) AS ids(id)
+            WHERE NOT EXISTS (SELECT 1 FROM lddb__versions v WHERE v.id = ids.id)
+            """.stripIndent()
+
+    // Rows are upserted in key order so that concurrent transactions lock them in the same order
+    private static final String UPDATE_DEPENDENCY_COUNTS = """
+            INSERT INTO lddb__dependency_counts (dependsOnId, relation, count)
+            SELECT dependsOnId, relation, delta
+            FROM unnest(?::text[], ?::text[], ?::bigint[]) AS d(dependsOnId, relation, delta)
+            ORDER BY dependsOnId, relation
+            ON CONFLICT (dependsOnId, relation) DO UPDATE
+            SET count = lddb__dependency_counts.count + EXCLUDED.count
+            """.stripIndent()
+
     private static final String GET_INCOMING_LINK_COUNT =
-            "SELECT COUNT(id) FROM lddb__dependencies WHERE dependsOnId = ?"
+            "SELECT COALESCE(SUM(count), 0) FROM lddb__dependency_counts WHERE dependsOnId = ?"
+
+    private static final String GET_INCOMING_LINK_COUNTS =
+            "SELECT dependsOnId, SUM(count) FROM lddb__dependency_counts WHERE dependsOnId = ANY(?) GROUP BY dependsOnId"
 
     private static final String GET_INCOMING_LINK_COUNT_BY_RELATION = """
-            SELECT d.relation, count(d.id)
-            FROM lddb__dependencies d, lddb__identifiers l
-            WHERE d.dependsonid = l.id
+            SELECT c.relation, c.count
+            FROM lddb__dependency_counts c, lddb__identifiers l
+            WHERE c.dependsOnId = l.id
             AND l.iri = ?
-            GROUP BY d.relation
+            AND c.count > 0
             """.stripIndent()
     
     private static final String GET_DEPENDERS_OF_TYPE =
             "SELECT id FROM lddb__dependencies WHERE dependsOnId = ? AND relation = ?"
 
+    // Same as GET_RECORD_ID_BY_THING_ID + GET_DEPENDERS_OF_TYPE + GET_THING_MAIN_IRI_BY_SYSTEMID for many iris
+    private static final String GET_DEPENDERS_OF_TYPE_BY_THING_IRIS = """
+            SELECT dependee.iri, d.relation, depender.iri
+            FROM lddb__identifiers dependee
+            JOIN lddb__dependencies d ON d.dependsOnId = dependee.id
+            JOIN lddb__identifiers depender ON depender.id = d.id AND depender.graphindex = 1 AND depender.mainid IS TRUE
+            WHERE dependee.iri = ANY(?) AND dependee.graphindex = 1 AND d.relation = ANY(?)
+            """.stripIndent()
+
     private static final String GET_DEPENDERS =
             "SELECT id FROM lddb__dependencies WHERE dependsOnId = ?"
 
+    private static final String GET_DEPENDENCIES_BY_RELATIONS =
+            "SELECT id, relation, dependsOnId FROM lddb__dependencies WHERE relation = ANY(?)"
+
+    private static final String GET_THING_IRIS_OF_DEPENDENCIES_BY_RELATIONS = """
+            SELECT id, iri, mainid
+            FROM lddb__identifiers
+            WHERE graphindex = 1 AND id IN (
+                SELECT id FROM lddb__dependencies WHERE relation = ANY(?)
+                UNION
+                SELECT dependsOnId FROM lddb__dependencies WHERE relation = ANY(?)
+            )
+            """.stripIndent()
+
+    private static final String GET_THING_IRIS_BY_SYSTEM_IDS =
+            "SELECT id, iri, mainid FROM lddb__identifiers WHERE graphindex = 1 AND id = ANY(?)"
+
     private static final String GET_DEPENDENCIES_OF_TYPE =
             "SELECT dependsOnId FROM lddb__dependencies WHERE id = ? AND relation = ?"
 
     private static final String GET_DEPENDENCIES =
             "SELECT dependsOnId FROM lddb__dependencies WHERE id = ?"
 
+    // Broader relations as edges narrower -> broader, symmetric relations in both directions
+    private static final String BROADER_EDGES = """
+            (SELECT id AS source, dependsOnId AS target FROM lddb__dependencies WHERE relation = ANY(?)
+             UNION ALL
+             SELECT dependsOnId, id FROM lddb__dependencies WHERE relation = ANY(?))
+            """.stripIndent()
+
+    // Held until commit, so that concurrent changes to the same part of the hierarchy are recomputed one at a time
+    private static final String LOCK_BROADER_CLOSURE =
+            "SELECT pg_advisory_xact_lock(hashtext('lddb__broader_closure'))"
+
+    // The id itself, everything below it now and everything that was below it before the change
+    private static final String GET_BROADER_CLOSURE_AFFECTED = """
+            WITH RECURSIVE narrower(id) AS (
+                    VALUES (?)
+                UNION
+                    SELECT e.source FROM narrower n JOIN $BROADER_EDGES e ON e.target = n.id
+            )
+            SELECT id FROM narrower
+            UNION
+            SELECT id FROM lddb__broader_closure WHERE ancestorId = ?
+            """.stripIndent()
+
+    private static final String DELETE_BROADER_CLOSURE =
+            "DELETE FROM lddb__broader_closure WHERE id = ANY(?)"
+
+    private static final String INSERT_BROADER_CLOSURE = """
+            WITH RECURSIVE ancestors(id, ancestorId) AS (
+                    SELECT a.id, e.target FROM unnest(?::text[]) AS a(id) JOIN $BROADER_EDGES e ON e.source = a.id
+                UNION
+                    SELECT a.id, e.target FROM ancestors a JOIN $BROADER_EDGES e ON e.source = a.ancestorId
+            )
+            INSERT INTO lddb__broader_closure (id, ancestorId)
+            SELECT id, ancestorId FROM ancestors
+            ON CONFLICT DO NOTHING
+            """.stripIndent()
+
+    private static final String IS_IN_BROADER_CLOSURE = """
+            SELECT EXISTS(
+                SELECT 1
+                FROM lddb__identifiers narrower
+                JOIN lddb__broader_closure c ON c.id = narrower.id
+                JOIN lddb__identifiers broader ON broader.id = c.ancestorId
+                WHERE narrower.iri = ? AND narrower.graphindex = 1 AND broader.iri = ? AND broader.graphindex = 1
+            )
+            """.stripIndent()
+
+    private static final String GET_NARROWER_CLOSURE = """
+            SELECT narrower.iri
+            FROM lddb__identifiers broader
+            JOIN lddb__broader_closure c ON c.ancestorId = broader.id
+            JOIN lddb__identifiers narrower ON narrower.id = c.id AND narrower.graphindex = 1 AND narrower.mainid IS TRUE
+            WHERE broader.iri = ? AND broader.graphindex = 1
+            """.stripIndent()
+
     private static final String UPSERT_CARD = """
             INSERT INTO lddb__cards (id, data, checksum, changed)
             VALUES (?, ?, ?, ?) 
@@ -385,6 +657,59 @@ class PostgreSQLComponent {
             RETURNING id;
             """.stripIndent()
 
+    // Merge with an already queued operation on the same id, see ElasticIndexingQueue.Operation.mergeWith()
+    private static final String ELASTIC_RETRY_QUEUE_ADD = """
+            INSERT INTO lddb__elastic_retry_q AS q (id, operation, delta)
+            VALUES (?, ?, ?)
+            ON CONFLICT (id) DO UPDATE SET
+                operation = CASE WHEN EXCLUDED.operation = 'UPDATE_REVERSE_LINKS' THEN q.operation ELSE EXCLUDED.operation END,
+                delta = CASE
+                    WHEN EXCLUDED.operation <> 'UPDATE_REVERSE_LINKS' THEN 0
+                    WHEN q.operation = 'UPDATE_REVERSE_LINKS' THEN q.delta + EXCLUDED.delta
+                    ELSE q.delta
+                END
+            """.stripIndent()
+
+    private static final String ELASTIC_RETRY_QUEUE_REMOVE = """
+            DELETE FROM lddb__elastic_retry_q
+            WHERE id IN (
+              SELECT id
+              FROM lddb__elastic_retry_q
+              WHERE retry_at <= now()
+              ORDER BY retry_at ASC
+              FOR UPDATE SKIP LOCKED
+              LIMIT ?
+            )
+            RETURNING id, operation, delta;
+            """.stripIndent()
+
+    private static final String ELASTIC_RETRY_QUEUE_BACKOFF = """
+            UPDATE lddb__elastic_retry_q
+            SET attempts = attempts + 1,
+                retry_at = now() + LEAST(interval '10 seconds' * power(2, LEAST(attempts, 10)), interval '1 hour')
+            WHERE id = ANY(?);
+            """.stripIndent()
+
+    private static final String ELASTIC_DEAD_LETTER_ADD = """
+            INSERT INTO lddb__elastic_dead_letters AS d (id, operation, status, reason)
+            VALUES (?, ?, ?, ?)
+            ON CONFLICT (id) DO UPDATE
+            SET (operation, status, reason, failures, failed_at) =
+                (EXCLUDED.operation, EXCLUDED.status, EXCLUDED.reason, d.failures + 1, now())
+            """.stripIndent()
+
+    private static final String GET_ELASTIC_SHAPES =
+            "SELECT id, key, data FROM lddb__elastic_shapes WHERE id = ANY(?)"
+
+    private static final String UPSERT_ELASTIC_SHAPE = """
+            INSERT INTO lddb__elastic_shapes (id, key, data, modified) VALUES (?, ?, ?, now())
+            ON CONFLICT (id) DO UPDATE
+            SET (key, data, modified) = (EXCLUDED.key, EXCLUDED.data, EXCLUDED.modified)
+            """.stripIndent()
+
+    private static final String DELETE_ELASTIC_SHAPE =
+            "DELETE FROM lddb__elastic_shapes WHERE id = ?"
+
     private static final String SPARQL_QUEUE_ADD_UPDATES_SINCE = """
             INSERT INTO lddb__sparql_q (id)
             SELECT l.id FROM lddb l
@@ -424,6 +749,8 @@ class PostgreSQLComponent {
     private static final String DELETE_USER_DATA =
             "DELETE FROM lddb__user_data WHERE id = ?"
 
+    private static final String GET_CURRENT_LSN = "SELECT (pg_current_wal_lsn() - '0/0')::bigint"
+
     private static final String GET_IRI_IS_LINKABLE = """
             SELECT lddb.deleted
             FROM lddb__identifiers
@@ -432,6 +759,10 @@ class PostgreSQLComponent {
 
     private HikariDataSource connectionPool
     private HikariDataSource outerConnectionPool
+    ReadReplicas readReplicas
+    // WAL position after the latest write of the thread, reads after it are only made on replicas that have replayed it
+    private ThreadLocal<Long> lastWriteLsn = ThreadLocal.withInitial({ -> 0L })
+    private Notifier notifier
 
     boolean versioning = true
     boolean doVerifyDocumentIdRetention = true
@@ -439,9 +770,14 @@ class PostgreSQLComponent {
 
     LinkFinder linkFinder
     DependencyCache dependencyCache
+    EmbellishedCache embellishedCache
+    ConvertedCache convertedCache
     JsonLd jsonld
 
     private AtomicLong cardsUpdated = new AtomicLong()
+    // Change in size of lddb__embellished made by this instance, not yet added to lddb__embellished_size
+    private final AtomicLong embellishedSizeDelta = new AtomicLong()
+    private long lastEmbellishedSizeReconcile = System.currentTimeMillis()
 
     class AcquireLockException extends RuntimeException { AcquireLockException(String s) { super(s) } }
 
@@ -460,7 +796,47 @@ class PostgreSQLComponent {
         }
         log.info("$PROPERTY_EMBELLISH_CACHE_MAX_SIZE: $embellishCacheMaxSize")
 
+        if (properties.getProperty(PROPERTY_EMBELLISH_LOCAL_CACHE_MAX_SIZE)) {
+            embellishLocalCacheMaxSize = Long.parseLong(properties.getProperty(PROPERTY_EMBELLISH_LOCAL_CACHE_MAX_SIZE))
+        }
+        log.info("$PROPERTY_EMBELLISH_LOCAL_CACHE_MAX_SIZE: $embellishLocalCacheMaxSize")
+
+        if (properties.getProperty(PROPERTY_EMBELLISH_CACHE_EVICTION)) {
+            embellishCacheEviction = Boolean.parseBoolean(properties.getProperty(PROPERTY_EMBELLISH_CACHE_EVICTION))
+        }
+        log.info("$PROPERTY_EMBELLISH_CACHE_EVICTION: $embellishCacheEviction")
+
+        if (properties.getProperty(PROPERTY_CONVERTED_LOCAL_CACHE_MAX_SIZE)) {
+            convertedLocalCacheMaxSize = Long.parseLong(properties.getProperty(PROPERTY_CONVERTED_LOCAL_CACHE_MAX_SIZE))
+        }
+        log.info("$PROPERTY_CONVERTED_LOCAL_CACHE_MAX_SIZE: $convertedLocalCacheMaxSize")
+
+        if (properties.getProperty(PROPERTY_CONVERTED_CACHE_SHARED)) {
+            convertedCacheShared = Boolean.parseBoolean(properties.getProperty(PROPERTY_CONVERTED_CACHE_SHARED))
+        }
+        log.info("$PROPERTY_CONVERTED_CACHE_SHARED: $convertedCacheShared")
+
+        if (properties.getProperty(PROPERTY_LINK_GRAPH_RELATIONS)) {
+            linkGraphRelations = properties.getProperty(PROPERTY_LINK_GRAPH_RELATIONS).split(',').collect { String s -> s.trim() }
+        }
+        log.info("$PROPERTY_LINK_GRAPH_RELATIONS: $linkGraphRelations")
+
+        if (properties.getProperty(PROPERTY_SYNC_NOTIFICATIONS)) {
+            syncNotifications = Boolean.parseBoolean(properties.getProperty(PROPERTY_SYNC_NOTIFICATIONS))
+        }
+        log.info("$PROPERTY_SYNC_NOTIFICATIONS: $syncNotifications")
+
+        if (properties.getProperty(PROPERTY_VERSION_SNAPSHOT_INTERVAL)) {
+            versionSnapshotInterval = Integer.parseInt(properties.getProperty(PROPERTY_VERSION_SNAPSHOT_INTERVAL))
+        }
+        log.info("$PROPERTY_VERSION_SNAPSHOT_INTERVAL: $versionSnapshotInterval")
+
         setup(properties.getProperty(PROPERTY_SQL_URL), maxPoolSize)
+
+        if (connectionPool && properties.getProperty(PROPERTY_SQL_REPLICA_URLS)) {
+            List<String> replicaUrls = properties.getProperty(PROPERTY_SQL_REPLICA_URLS).split(',').collect { String s -> s.trim() }
+            setupReadReplicas(replicaUrls, maxPoolSize)
+        }
     }
 
     PostgreSQLComponent(String sqlUrl) {
@@ -473,53 +849,100 @@ class PostgreSQLComponent {
             HikariConfig config = new HikariConfig()
             config.setMaximumPoolSize(maxPoolSize)
             config.setAutoCommit(true)
-            config.setJdbcUrl(sqlUrl.replaceAll(":\\/\\/\\w+:*.*@", ":\\/\\/"))
             config.setDriverClassName(driverClass)
             config.setConnectionTimeout(0)
             config.setMetricsTrackerFactory(new PrometheusHistogramMetricsTrackerFactory())
+            setUrl(config, sqlUrl)
 
             log.info("Connecting to sql database at ${config.getJdbcUrl()}, using driver $driverClass. Pool size: $maxPoolSize")
-            URI connURI = new URI(sqlUrl.substring(5))
-            if (connURI.getUserInfo() != null) {
-                String username = connURI.getUserInfo().split(":")[0]
-                log.trace("Setting connectionPool username: $username")
-                config.setUsername(username)
-
-                try {
-                    String password = connURI.getUserInfo().split(":")[1]
-                    log.trace("Setting connectionPool password: $password")
-                    config.setPassword(password)
-                } catch (ArrayIndexOutOfBoundsException ignored) {
-                    log.debug("No password part found in connect url userinfo.")
-                }
-            }
-
             connectionPool = new HikariDataSource(config)
 
             this.linkFinder = new LinkFinder(this)
+            this.notifier = new Notifier(whelkInstanceId, NOTIFICATION_DELIMITER, createAdditionalConnectionPool('pg_notifier', 1),
+                    NotificationType.ALL_CACHES_CLEAR.id())
+
+            if (embellishCacheEviction) {
+                startEmbellishedCacheEvictor()
+            }
         }
 
         this.dependencyCache = new DependencyCache(this)
+        if (sqlUrl && linkGraphRelations) {
+            dependencyCache.enableLinkGraph(linkGraphRelations)
+        }
+        if (embellishLocalCacheMaxSize > 0) {
+            this.embellishedCache = new EmbellishedCache(this, embellishLocalCacheMaxSize)
+        }
+        if (convertedLocalCacheMaxSize > 0) {
+            this.convertedCache = new ConvertedCache(convertedLocalCacheMaxSize)
+        }
         new NotificationListener().start()
     }
 
+    private static void setUrl(HikariConfig config, String sqlUrl) {
+        config.setJdbcUrl(sqlUrl.replaceAll(":\\/\\/\\w+:*.*@", ":\\/\\/"))
+        URI connURI = new URI(sqlUrl.substring(5))
+        if (connURI.getUserInfo() != null) {
+            String username = connURI.getUserInfo().split(":")[0]
+            log.trace("Setting connectionPool username: $username")
+            config.setUsername(username)
+
+            try {
+                String password = connURI.getUserInfo().split(":")[1]
+                log.trace("Setting connectionPool password: $password")
+                config.setPassword(password)
+            } catch (ArrayIndexOutOfBoundsException ignored) {
+                log.debug("No password part found in connect url userinfo.")
+            }
+        }
+    }
+
+    /**
+     * Set up read-only connection pools, see withReadOnlyDbConnection().
+     * They get the same settings as the primary pool, including user and password unless given in the url.
+     */
+    private void setupReadReplicas(List<String> sqlUrls, int maxPoolSize) {
+        Map<String, DataSource> pools = [:]
+        sqlUrls.eachWithIndex { String sqlUrl, int i ->
+            HikariConfig config = new HikariConfig()
+            connectionPool.copyStateTo(config)
+            config.setPoolName("ReadReplica-${i + 1}")
+            config.setMaximumPoolSize(maxPoolSize)
+            config.setReadOnly(true)
+            setUrl(config, sqlUrl)
+            HikariDataSource pool = new HikariDataSource(config)
+            log.info("Created read replica connection pool: ${pool.getPoolName()} at ${config.getJdbcUrl()}, max size: $maxPoolSize")
+            pools.put(pool.getPoolName(), pool)
+        }
+        readReplicas = new ReadReplicas(pools)
+    }
+
     private void cacheEmbellishedDocument(String id, Document embellishedDocument) {
         withDbConnection {
             Connection connection = getMyConnection()
             PreparedStatement preparedStatement = null
+            ResultSet rs = null
 
             try {
                 List<String> ids = embellishmentIds(embellishedDocument, connection)
+                String json = mapper.writeValueAsString(embellishedDocument.data)
+                int size = json.getBytes(StandardCharsets.UTF_8).length
 
                 preparedStatement = connection.prepareStatement(UPSERT_EMBELLISHED_DOCUMENT)
                 preparedStatement.setString(1, id)
-                preparedStatement.setObject(2, mapper.writeValueAsString(embellishedDocument.data), java.sql.Types.OTHER)
-                preparedStatement.setArray(3, connection.createArrayOf("TEXT", ids as String[]))
+                preparedStatement.setString(2, id)
+                preparedStatement.setObject(3, json, java.sql.Types.OTHER)
+                preparedStatement.setArray(4, connection.createArrayOf("TEXT", ids as String[]))
+                preparedStatement.setInt(5, size)
+
+                rs = preparedStatement.executeQuery()
+                long replacedSize = rs.next() ? rs.getLong(1) : 0 // null, i.e. 0, if nothing was replaced
+                afterCommit(connection, { embellishedSizeDelta.addAndGet(size - replacedSize) })
 
-                preparedStatement.execute()
+                embellishedCache?.put(id, json)
             }
             finally {
-                close(preparedStatement)
+                close(rs, preparedStatement)
             }
         }
     }
@@ -546,9 +969,15 @@ class PostgreSQLComponent {
      * (lazy caching).
      */
     Document loadEmbellished(String id, Closure embellish) {
+        Document cached = embellishedCache?.get(id)
+        if (cached) {
+            return cached
+        }
+
         return withDbConnection {
             Connection connection = getMyConnection()
             PreparedStatement selectStatement = null
+            PreparedStatement touchStatement = null
             ResultSet resultSet = null
 
             try {
@@ -557,11 +986,18 @@ class PostgreSQLComponent {
                 resultSet = selectStatement.executeQuery()
 
                 if (resultSet.next()) {
-                    return new Document(mapper.readValue(resultSet.getString("data"), Map))
+                    String json = resultSet.getString("data")
+                    if (resultSet.getBoolean("stale")) {
+                        touchStatement = connection.prepareStatement(TOUCH_EMBELLISHED_DOCUMENT)
+                        touchStatement.setString(1, id)
+                        touchStatement.executeUpdate()
+                    }
+                    embellishedCache?.put(id, json)
+                    return new Document(mapper.readValue(json, Map))
                 }
             }
             finally {
-                close(resultSet, selectStatement)
+                close(resultSet, selectStatement, touchStatement)
             }
 
             // Cache-miss, embellish and store
@@ -578,74 +1014,317 @@ class PostgreSQLComponent {
         }
     }
 
+    /**
+     * Loads a converted representation of an embellished document, e.g. MARCXML.
+     * If there isn't one of the same version cached already, it is created with convert and cached.
+     *
+     * Converted documents are cached locally and, if convertedCacheShared, in lddb__converted. Both are
+     * invalidated together with the embellished document, see evictDependersFromEmbellishedCache(). They are
+     * keyed by a digest of the embellished data, see ConvertedCache.version(), and only shared if that is still
+     * what lddb__embellished holds. They are not keyed by the converter though, so lddb__converted must be
+     * emptied when a converter changes.
+     *
+     * @param embellished an embellished document, see loadEmbellished()
+     */
+    byte[] loadConverted(Document embellished, String format, Supplier<byte[]> convert) {
+        String id = embellished.getShortId()
+        String version = ConvertedCache.version(embellished)
+        byte[] data = convertedCache?.get(id, format, version)
+        if (data != null) {
+            convertedRequests.labels('local').inc()
+            return data
+        }
+
+        if (convertedCacheShared) {
+            byte[] shared = withReadOnlyDbConnection {
+                Connection connection = getMyConnection()
+                PreparedStatement preparedStatement = null
+                ResultSet resultSet = null
+                try {
+                    preparedStatement = connection.prepareStatement(GET_CONVERTED)
+                    preparedStatement.setString(1, id)
+                    preparedStatement.setString(2, format)
+                    preparedStatement.setString(3, version)
+                    resultSet = preparedStatement.executeQuery()
+                    return resultSet.next() ? resultSet.getBytes(1) : null
+                }
+                finally {
+                    close(resultSet, preparedStatement)
+                }
+            }
+            if (shared != null) {
+                convertedRequests.labels('shared').inc()
+                convertedCache?.put(id, format, version, shared)
+                return shared
+            }
+        }
+
+        data = convert.get()
+        convertedRequests.labels('converted').inc()
+        if (convertedCacheShared) {
+            cacheConverted(embellished, format, version, data)
+        }
+        convertedCache?.put(id, format, version, data)
+        return data
+    }
+
+    private void cacheConverted(Document embellished, String format, String version, byte[] data) {
+        String id = embellished.getShortId()
+        withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            try {
+                preparedStatement = connection.prepareStatement(UPSERT_CONVERTED)
+                preparedStatement.setString(1, format)
+                preparedStatement.setString(2, version)
+                preparedStatement.setBytes(3, data)
+                preparedStatement.setString(4, id)
+                preparedStatement.setObject(5, mapper.writeValueAsString(embellished.data), java.sql.Types.OTHER)
+                if (preparedStatement.executeUpdate() == 0) {
+                    log.debug("Not caching $format of $id, lddb__embellished no longer holds the version converted")
+                }
+            }
+            catch (SQLException e) {
+                // The embellished document was evicted after it was compared, then the conversion is stale too
+                if (e.getSQLState() != FOREIGN_KEY_VIOLATION) {
+                    throw e
+                }
+                log.debug("Not caching $format of $id, no longer in lddb__embellished")
+            }
+            finally {
+                close(preparedStatement)
+            }
+        }
+    }
+
     void clearEmbellishedCache(Connection connection) {
         log.debug("Clearing embellish cache")
         PreparedStatement preparedStatement = null
         try {
             preparedStatement = connection.prepareStatement(CLEAR_EMBELLISHED)
             preparedStatement.execute()
+            close(preparedStatement)
+            preparedStatement = connection.prepareStatement(RESET_EMBELLISHED_SIZE_BYTES)
+            preparedStatement.execute()
+            afterCommit(connection, { embellishedSizeDelta.set(0) })
         } finally {
             close(preparedStatement)
         }
+        embellishedCache?.clear()
+        convertedCache?.invalidateAll()
     }
 
     void evictDependersFromEmbellishedCache(String id, Connection connection) {
-        if (random.nextInt(1000) == 0) { // check every 1000 calls on average
-            boolean isFull = totalTableSizeBytes('lddb__embellished', connection) > embellishCacheMaxSize
-            if(isFull) {
-                clearEmbellishedCache(connection)
-                return
-            }
-        }
+        evictDependersFromEmbellishedCache([id], connection)
+    }
 
+    private void evictDependersFromEmbellishedCache(Collection<String> ids, Connection connection) {
         PreparedStatement preparedStatement = null
+        ResultSet rs = null
         try {
             preparedStatement = connection.prepareStatement(EVICT_EMBELLISHED_DEPENDERS)
-            preparedStatement.setString(1, id)
-            preparedStatement.setArray(2, connection.createArrayOf('TEXT', [id] as String[]))
+            preparedStatement.setArray(1, connection.createArrayOf('TEXT', ids as String[]))
+            preparedStatement.setArray(2, connection.createArrayOf('TEXT', ids as String[]))
 
-            preparedStatement.execute()
+            rs = preparedStatement.executeQuery()
+            Set<String> evicted = new HashSet<>()
+            evicted.addAll(ids)
+            long evictedSize = 0
+            while (rs.next()) {
+                evicted.add(rs.getString(1))
+                evictedSize += rs.getInt(2)
+            }
+            long delta = -evictedSize
+            afterCommit(connection, { embellishedSizeDelta.addAndGet(delta) })
+            embellishedCache?.invalidate(evicted)
+            convertedCache?.invalidate(evicted)
         }
         finally {
-            close(preparedStatement)
+            close(rs, preparedStatement)
         }
     }
 
-    void logStats() {
-        dependencyCache.logStats()
-        log.info("Cards created or changed: $cardsUpdated")
+    private void startEmbellishedCacheEvictor() {
+        new Timer("EmbellishedCacheEvictor", true).schedule(new TimerTask() {
+            void run() {
+                try {
+                    trimEmbellishedCache()
+                }
+                catch (Exception e) {
+                    log.warn("Failed to trim embellish cache: $e", e)
+                }
+            }
+        }, EMBELLISH_EVICTION_INTERVAL_MS, EMBELLISH_EVICTION_INTERVAL_MS)
     }
 
-    private Map status(URI uri, Connection connection) {
-        Map statusMap = [:]
+    /**
+     * Evict least recently used documents from lddb__embellished until it is below the low watermark.
+     *
+     * The total size is kept in lddb__embellished_size. Every instance adds the size of the documents it
+     * has added and removed since the last time, but only one Whelk instance at a time evicts, the others
+     * skip it if they can't get the lock.
+     */
+    void trimEmbellishedCache() {
+        withDbConnection {
+            Connection connection = getMyConnection()
+            flushEmbellishedSizeDelta(connection)
+            if (!queryBoolean(TRY_LOCK_EMBELLISHED_EVICTION, connection)) {
+                return
+            }
 
-        PreparedStatement statusStmt = connection.prepareStatement(STATUS_OF_DOCUMENT)
-        statusStmt.setString(1, uri.toString())
-        def rs = statusStmt.executeQuery()
-        if (rs.next()) {
-            statusMap['id'] = rs.getString("id")
-            statusMap['uri'] = Document.BASE_URI.resolve(rs.getString("id"))
-            statusMap['exists'] = true
-            statusMap['created'] = new Date(rs.getTimestamp("created").getTime())
-            statusMap['modified'] = new Date(rs.getTimestamp("modified").getTime())
-            statusMap['deleted'] = rs.getBoolean("deleted")
-            log.trace("StatusMap: $statusMap")
-        } else {
-            log.debug("No results returned for $uri")
-            statusMap['exists'] = false
+            try {
+                long size
+                if (System.currentTimeMillis() - lastEmbellishedSizeReconcile > EMBELLISH_SIZE_RECONCILE_INTERVAL_MS) {
+                    size = queryLong(RECONCILE_EMBELLISHED_SIZE_BYTES, connection)
+                    lastEmbellishedSizeReconcile = System.currentTimeMillis()
+                }
+                else {
+                    size = queryLong(GET_EMBELLISHED_SIZE_BYTES, connection)
+                }
+                embellishedCacheSize.set(size)
+                if (size <= embellishCacheMaxSize) {
+                    return
+                }
+
+                long lowWatermark = (long) (embellishCacheMaxSize * EMBELLISH_CACHE_LOW_WATERMARK)
+                long numEvicted = 0
+                while (size > lowWatermark) {
+                    Map<String, Integer> evicted = evictLeastRecentlyUsedEmbellished(EMBELLISH_EVICTION_BATCH_SIZE, connection)
+                    if (evicted.isEmpty()) {
+                        // The running total was too high, e.g. rows deleted outside of Whelk
+                        size = queryLong(RECONCILE_EMBELLISHED_SIZE_BYTES, connection)
+                        lastEmbellishedSizeReconcile = System.currentTimeMillis()
+                        break
+                    }
+                    long evictedSize = 0
+                    for (int entrySize : evicted.values()) {
+                        evictedSize += entrySize
+                    }
+                    addEmbellishedSize(-evictedSize, connection)
+                    size -= evictedSize
+                    numEvicted += evicted.size()
+                    // Dependers of evicted documents aren't tracked anymore, so they can't stay in local caches either
+                    embellishedCache?.invalidate(evicted.keySet())
+                    convertedCache?.invalidate(evicted.keySet())
+                }
+                embellishedCacheSize.set(size)
+                log.info("Evicted $numEvicted documents from embellish cache, size is now $size bytes")
+            }
+            finally {
+                queryBoolean(UNLOCK_EMBELLISHED_EVICTION, connection)
+            }
         }
+    }
 
-        log.debug("Loaded status for ${uri}: $statusMap")
-        return statusMap
+    private void flushEmbellishedSizeDelta(Connection connection) {
+        long delta = embellishedSizeDelta.getAndSet(0)
+        if (delta == 0) {
+            return
+        }
+        try {
+            addEmbellishedSize(delta, connection)
+        }
+        catch (Exception e) {
+            embellishedSizeDelta.addAndGet(delta)
+            throw e
+        }
     }
 
-    int getPoolSize() {
-        return connectionPool?.getMaximumPoolSize()
+    private static void addEmbellishedSize(long delta, Connection connection) {
+        PreparedStatement preparedStatement = null
+        try {
+            preparedStatement = connection.prepareStatement(ADD_EMBELLISHED_SIZE_BYTES)
+            preparedStatement.setLong(1, delta)
+            preparedStatement.executeUpdate()
+        }
+        finally {
+            close(preparedStatement)
+        }
     }
 
-    List<String> loadCollections() {
-        Connection connection = null
-        PreparedStatement collectionStatement = null
+    private static long queryLong(String sql, Connection connection) {
+        PreparedStatement preparedStatement = null
+        ResultSet resultSet = null
+        try {
+            preparedStatement = connection.prepareStatement(sql)
+            resultSet = preparedStatement.executeQuery()
+            resultSet.next()
+            return resultSet.getLong(1)
+        }
+        finally {
+            close(resultSet, preparedStatement)
+        }
+    }
+
+    private static Map<String, Integer> evictLeastRecentlyUsedEmbellished(int limit, Connection connection) {
+        PreparedStatement preparedStatement = null
+        ResultSet resultSet = null
+        try {
+            preparedStatement = connection.prepareStatement(EVICT_LEAST_RECENTLY_USED_EMBELLISHED)
+            preparedStatement.setInt(1, limit)
+            resultSet = preparedStatement.executeQuery()
+            Map<String, Integer> evicted = [:]
+            while (resultSet.next()) {
+                evicted[resultSet.getString(1)] = resultSet.getInt(2)
+            }
+            return evicted
+        }
+        finally {
+            close(resultSet, preparedStatement)
+        }
+    }
+
+    private static boolean queryBoolean(String sql, Connection connection) {
+        PreparedStatement preparedStatement = null
+        ResultSet resultSet = null
+        try {
+            preparedStatement = connection.prepareStatement(sql)
+            resultSet = preparedStatement.executeQuery()
+            resultSet.next()
+            return resultSet.getBoolean(1)
+        }
+        finally {
+            close(resultSet, preparedStatement)
+        }
+    }
+
+    void logStats() {
+        dependencyCache.logStats()
+        embellishedCache?.logStats()
+        convertedCache?.logStats()
+        log.info("Cards created or changed: $cardsUpdated")
+    }
+
+    private Map status(URI uri, Connection connection) {
+        Map statusMap = [:]
+
+        PreparedStatement statusStmt = connection.prepareStatement(STATUS_OF_DOCUMENT)
+        statusStmt.setString(1, uri.toString())
+        def rs = statusStmt.executeQuery()
+        if (rs.next()) {
+            statusMap['id'] = rs.getString("id")
+            statusMap['uri'] = Document.BASE_URI.resolve(rs.getString("id"))
+            statusMap['exists'] = true
+            statusMap['created'] = new Date(rs.getTimestamp("created").getTime())
+            statusMap['modified'] = new Date(rs.getTimestamp("modified").getTime())
+            statusMap['deleted'] = rs.getBoolean("deleted")
+            log.trace("StatusMap: $statusMap")
+        } else {
+            log.debug("No results returned for $uri")
+            statusMap['exists'] = false
+        }
+
+        log.debug("Loaded status for ${uri}: $statusMap")
+        return statusMap
+    }
+
+    int getPoolSize() {
+        return connectionPool?.getMaximumPoolSize()
+    }
+
+    List<String> loadCollections() {
+        Connection connection = null
+        PreparedStatement collectionStatement = null
         ResultSet collectionResults = null
         withDbConnection {
             try {
@@ -695,47 +1374,10 @@ class PostgreSQLComponent {
              */
             try {
                 connection.setAutoCommit(false)
-                normalizeDocumentForStorage(doc, connection)
-
-                if (collection == "hold") {
-                    checkLinkedShelfMarkOwnership(doc, connection)
-
-                    String holdingFor = doc.getHoldingFor()
-                    if (holdingFor == null) {
-                        log.warn("Was asked to save a holding record linked to a bib record that could not be located: " + doc.getHoldingFor() + " (so, did nothing).")
-                        return false
-                    }
-                    String holdingForRecordId = getRecordId(holdingFor, connection)
-                    if (holdingForRecordId == null) {
-                        log.warn("Was asked to save a holding record linked to a bib record that could not be located: " + doc.getHoldingFor() + " (so, did nothing).")
-                        return false
-                    }
-                    String holdingForSystemId = holdingForRecordId.substring(Document.BASE_URI.toString().length())
-                    if (holdingForSystemId == null) {
-                        log.warn("Was asked to save a holding record linked to a bib record that could not be located: " + doc.getHoldingFor() + " (so, did nothing).")
-                        return false
-                    }
-
-                    acquireRowLock(holdingForSystemId, connection)
-
-                    if (getHoldingIdByItemOfAndHeldBy(holdingFor, doc.getHeldBy(), connection) != null)
-                        throw new ConflictingHoldException("Already exists a holding record for ${doc.getHeldBy()} and bib: $holdingFor")
-                }
-
-                if (linkFinder != null)
-                    linkFinder.normalizeIdentifiers(doc)
-
-                //FIXME: throw exception on null changedBy
-                if (changedBy != null) {
-                    String creator = getDescriptionChangerId(changedBy)
-                    doc.setDescriptionCreator(creator)
-                    doc.setDescriptionLastModifier(creator)
-                }
-
                 Date now = new Date()
-                doc.setCreated(now)
-                doc.setModified(now)
-                doc.setDeleted(deleted)
+                if (!prepareForCreate(doc, changedBy, collection, now, deleted, connection)) {
+                    return false
+                }
 
                 PreparedStatement insert = connection.prepareStatement(INSERT_DOCUMENT)
                 insert = rigInsertStatement(insert, doc, now, changedIn, changedBy, collection, deleted)
@@ -744,7 +1386,8 @@ class PostgreSQLComponent {
                 saveVersion(doc, connection, now, now, changedIn, changedBy, collection, deleted)
                 refreshDerivativeTables(doc, connection, deleted)
 
-                connection.commit()
+                commit(connection)
+                markWritten()
                 connection.setAutoCommit(true)
                 def status = status(doc.getURI(), connection)
                 if (status.exists) {
@@ -758,27 +1401,262 @@ class PostgreSQLComponent {
                 return true
             } catch (PSQLException psqle) {
                 log.error("SQL failed: ${psqle.message}")
-                connection.rollback()
-                if (psqle.serverErrorMessage?.message?.startsWith("duplicate key value violates unique constraint")) {
-                    Pattern messageDetailPattern = Pattern.compile(".+\\((.+)\\)\\=\\((.+)\\).+", Pattern.DOTALL)
-                    Matcher m = messageDetailPattern.matcher(psqle.message)
-                    String duplicateId = doc.getShortId()
-                    if (m.matches()) {
-                        log.debug("Problem is that ${m.group(1)} already contains value ${m.group(2)}")
-                        duplicateId = m.group(2)
-                    }
-                    throw new StorageCreateFailedException(duplicateId)
-                } else {
-                    throw psqle
-                }
+                rollback(connection)
+                throw createFailure(psqle, doc.getShortId())
             } catch (Exception e) {
                 log.error("Failed to save document: ${e.message}. Rolling back.")
-                connection.rollback()
+                rollback(connection)
                 throw e
             }
         } // withDbConnection
     }
 
+    /**
+     * Normalize and check a document about to be created, and set its creator and timestamps.
+     *
+     * @param batchIris IRIs of records created earlier in the same transaction
+     * @return false if it is a holding for a bib record that could not be located
+     */
+    private boolean prepareForCreate(Document doc, String changedBy, String collection, Date now, boolean deleted,
+                                     Connection connection, Set<String> batchIris = Collections.emptySet()) {
+        normalizeDocumentForStorage(doc, connection)
+
+        if (collection == "hold" && !lockAndCheckHolding(doc, connection, batchIris)) {
+            return false
+        }
+
+        if (linkFinder != null)
+            linkFinder.normalizeIdentifiers(doc)
+
+        //FIXME: throw exception on null changedBy
+        if (changedBy != null) {
+            String creator = getDescriptionChangerId(changedBy)
+            doc.setDescriptionCreator(creator)
+            doc.setDescriptionLastModifier(creator)
+        }
+
+        doc.setCreated(now)
+        doc.setModified(now)
+        doc.setDeleted(deleted)
+        return true
+    }
+
+    /**
+     * @return StorageCreateFailedException if the insert failed on a duplicate key, otherwise psqle
+     */
+    private static Exception createFailure(PSQLException psqle, String id) {
+        if (!psqle.serverErrorMessage?.message?.startsWith("duplicate key value violates unique constraint")) {
+            return psqle
+        }
+        Pattern messageDetailPattern = Pattern.compile(".+\\((.+)\\)\\=\\((.+)\\).+", Pattern.DOTALL)
+        Matcher m = messageDetailPattern.matcher(psqle.message)
+        String duplicateId = id
+        if (m.matches()) {
+            log.debug("Problem is that ${m.group(1)} already contains value ${m.group(2)}")
+            duplicateId = m.group(2)
+        }
+        return new StorageCreateFailedException(duplicateId)
+    }
+
+    /**
+     * Lock the bib record of a holding until the transaction ends, and check that there is not already a
+     * holding for the same sigel and bib record.
+     *
+     * @param batchIris IRIs of records created earlier in the same transaction
+     * @return false if the bib record could not be located
+     */
+    private boolean lockAndCheckHolding(Document doc, Connection connection, Set<String> batchIris = Collections.emptySet()) {
+        checkLinkedShelfMarkOwnership(doc, connection)
+
+        String holdingFor = doc.getHoldingFor()
+        if (holdingFor == null) {
+            log.warn("Was asked to save a holding record linked to a bib record that could not be located: " + doc.getHoldingFor() + " (so, did nothing).")
+            return false
+        }
+        String holdingForRecordId = getRecordId(holdingFor, connection)
+        if (holdingForRecordId == null) {
+            if (holdingFor in batchIris) {
+                // Created in this transaction, so there can't be any other holdings for it yet
+                return true
+            }
+            log.warn("Was asked to save a holding record linked to a bib record that could not be located: " + doc.getHoldingFor() + " (so, did nothing).")
+            return false
+        }
+        String holdingForSystemId = holdingForRecordId.substring(Document.BASE_URI.toString().length())
+
+        acquireRowLock(holdingForSystemId, connection)
+
+        if (getHoldingIdByItemOfAndHeldBy(holdingFor, doc.getHeldBy(), connection) != null)
+            throw new ConflictingHoldException("Already exists a holding record for ${doc.getHeldBy()} and bib: $holdingFor")
+
+        return true
+    }
+
+    /**
+     * Outcome for one document of storeBatch()
+     */
+    static class BatchResult {
+        enum Outcome {
+            CREATED,
+            // Same as createDocument() returning false, e.g. a holding for a bib record that doesn't exist
+            NOT_CREATED
+        }
+
+        final Document document
+        final Outcome outcome
+
+        BatchResult(Document document, Outcome outcome) {
+            this.document = document
+            this.outcome = outcome
+        }
+    }
+
+    /**
+     * Create many documents in one transaction.
+     *
+     * Each document is checked the same way as in createDocument(), and for URIs already used by other records
+     * as in Whelk.createDocument(). The lookups are made for the whole batch at once, and each table is written
+     * with one JDBC batch for the whole batch.
+     *
+     * As with createDocument(), a document failing a check or failing to be written throws, and then nothing
+     * in the batch is stored.
+     *
+     * @return the outcome of each document, in the same order as docs
+     */
+    List<BatchResult> storeBatch(List<Document> docs, String changedIn, String changedBy, String collection) {
+        if (!docs) {
+            return []
+        }
+
+        List<BatchResult> results = withDbConnection {
+            Connection connection = getMyConnection()
+            try {
+                connection.setAutoCommit(false)
+                List<BatchResult> stored = storeBatch(docs, changedIn, changedBy, collection, connection)
+                commit(connection)
+                markWritten()
+                return stored
+            } catch (BatchUpdateException bue) {
+                rollback(connection)
+                Exception e = bue.getNextException() ?: bue
+                throw e instanceof PSQLException ? createFailure((PSQLException) e, null) : e
+            } catch (PSQLException psqle) {
+                rollback(connection)
+                throw createFailure(psqle, null)
+            } catch (Exception e) {
+                rollback(connection)
+                throw e
+            } finally {
+                connection.setAutoCommit(true)
+            }
+        }
+
+        for (BatchResult result : results) {
+            if (result.outcome == BatchResult.Outcome.CREATED) {
+                dependencyCache.invalidate(result.document)
+            }
+        }
+        log.debug("Stored batch of ${docs.size()} documents: ${results.countBy { BatchResult r -> r.outcome }}")
+        return results
+    }
+
+    private List<BatchResult> storeBatch(List<Document> docs, String changedIn, String changedBy, String collection,
+                                         Connection connection) {
+        Date now = new Date()
+        List<Document> toCreate = []
+        Set<String> batchIris = new HashSet<>()
+        Set<String> batchHoldings = new HashSet<>()
+        for (Document doc : docs) {
+            if (!prepareForCreate(doc, changedBy, collection, now, false, connection, batchIris)) {
+                continue
+            }
+            if (collection == "hold" && !batchHoldings.add(doc.getHoldingFor() + ' ' + doc.getHeldBy())) {
+                throw new ConflictingHoldException("Already exists a holding record for ${doc.getHeldBy()} and bib: ${doc.getHoldingFor()}")
+            }
+            batchIris.addAll(getIris(doc))
+            toCreate.add(doc)
+        }
+
+        // Everything already in use, looked up for the whole batch
+        Set<String> existingIds = getExistingIds(toCreate.collect { Document doc -> doc.getShortId() }, connection)
+        Map<String, String> systemIdByIri = [:]
+        getSystemIds(batchIris, connection) { String iri, String systemId, boolean deleted ->
+            systemIdByIri[iri] = systemId
+        }
+
+        Set<String> batchIds = new HashSet<>()
+        Set<String> earlierIris = new HashSet<>()
+        for (Document doc : toCreate) {
+            String id = doc.getShortId()
+            if (id in existingIds || !batchIds.add(id)) {
+                throw new StorageCreateFailedException(id)
+            }
+            List<String> iris = getIris(doc)
+            List<String> colliding = iris.findAll { String iri ->
+                (systemIdByIri[iri] != null && systemIdByIri[iri] != id) || iri in earlierIris
+            }
+            if (colliding) {
+                throw new StorageCreateFailedException(id, "Document considered a duplicate on URIs: " + colliding)
+            }
+            earlierIris.addAll(iris)
+        }
+
+        if (toCreate) {
+            PreparedStatement insert = connection.prepareStatement(INSERT_DOCUMENT)
+            PreparedStatement insertVersion = connection.prepareStatement(INSERT_DOCUMENT_VERSION)
+            try {
+                for (Document doc : toCreate) {
+                    rigInsertStatement(insert, doc, now, changedIn, changedBy, collection, false)
+                    insert.addBatch()
+                    if (versioning) {
+                        rigVersionStatement(insertVersion, doc, now, now, changedIn, changedBy, collection, false)
+                        insertVersion.addBatch()
+                    }
+                }
+                insert.executeBatch()
+                if (versioning) {
+                    insertVersion.executeBatch()
+                }
+            } finally {
+                close(insert, insertVersion)
+            }
+
+            // All identifiers first, documents in the batch can link to each other
+            saveNewIdentifiers(toCreate, connection)
+            refreshNewLinkedTables(toCreate, connection)
+        }
+
+        Set<Document> created = Collections.newSetFromMap(new IdentityHashMap<Document, Boolean>())
+        created.addAll(toCreate)
+        return docs.collect { Document doc ->
+            new BatchResult(doc, doc in created ? BatchResult.Outcome.CREATED : BatchResult.Outcome.NOT_CREATED)
+        }
+    }
+
+    private static List<String> getIris(Document doc) {
+        List<String> iris = []
+        iris.addAll(doc.getRecordIdentifiers())
+        iris.addAll(doc.getThingIdentifiers())
+        return iris
+    }
+
+    private Set<String> getExistingIds(List<String> ids, Connection connection) {
+        PreparedStatement preparedStatement = null
+        ResultSet rs = null
+        try {
+            preparedStatement = connection.prepareStatement(GET_EXISTING_IDS)
+            preparedStatement.setArray(1, connection.createArrayOf("TEXT", ids as String[]))
+            rs = preparedStatement.executeQuery()
+            Set<String> result = new HashSet<>()
+            while (rs.next()) {
+                result.add(rs.getString(1))
+            }
+            return result
+        } finally {
+            close(rs, preparedStatement)
+        }
+    }
+
     void reDenormalize() {
         log.info("Re-denormalizing data.")
         Connection connection = getOuterConnection()
@@ -796,11 +1674,11 @@ class PostgreSQLComponent {
                     log.info("$count records re-denormalized")
             }
             clearEmbellishedCache(connection)
-            connection.commit()
+            commit(connection)
             connection.setAutoCommit(autoCommit)
         } catch (Exception e) {
             log.error("Failed reDenormalize: ${e.message}. Rolling back.")
-            connection.rollback()
+            rollback(connection)
         } finally {
             connection.close()
         }
@@ -824,11 +1702,12 @@ class PostgreSQLComponent {
                 saveVersion(doc, connection, now, now, changedIn, changedBy, collection, false)
                 refreshDerivativeTables(doc, connection, false)
 
-                connection.commit()
+                commit(connection)
+                markWritten()
                 return true
             } catch (Exception e) {
                 log.error("Failed to save document: ${e.message}. Rolling back.")
-                connection.rollback()
+                rollback(connection)
                 throw e
             }
         }
@@ -872,7 +1751,8 @@ class PostgreSQLComponent {
             connection.setAutoCommit(false)
             List<Runnable> postCommitActions = []
             Document result = storeAtomicUpdate(doc, minorUpdate, writeIdenticalVersions, changedIn, changedBy, oldChecksum, connection, postCommitActions)
-            connection.commit()
+            commit(connection)
+            markWritten()
             connection.setAutoCommit(true)
             postCommitActions.each { it.run() }
             return result
@@ -917,9 +1797,10 @@ class PostgreSQLComponent {
             if (!resultSet.next())
                 throw new SQLException("There is no document with the id: " + id)
             Document preUpdateDoc = assembleDocument(resultSet)
+            String preUpdateChecksum = preUpdateDoc.getChecksum(jsonld)
 
-            if (preUpdateDoc.getChecksum(jsonld) != oldChecksum) {
-                throw new StaleUpdateException("Document $doc.shortId has been modified. Checksum mismatch: ${preUpdateDoc.getChecksum(jsonld)} <> $oldChecksum")
+            if (preUpdateChecksum != oldChecksum) {
+                throw new StaleUpdateException("Document $doc.shortId has been modified. Checksum mismatch: ${preUpdateChecksum} <> $oldChecksum")
             }
 
             String collection = resultSet.getString("collection")
@@ -929,7 +1810,9 @@ class PostgreSQLComponent {
 
             normalizeDocumentForStorage(doc, connection)
 
-            if (!writeIdenticalVersions && preUpdateDoc.getChecksum(jsonld).equals(doc.getChecksum(jsonld))) {
+            // Computed once and passed on, only computed again if the record is modified below
+            String checksum = doc.getChecksum(jsonld)
+            if (!writeIdenticalVersions && preUpdateChecksum == checksum) {
                 throw new CancelUpdateException()
             }
             
@@ -978,13 +1861,14 @@ class PostgreSQLComponent {
 
             if (!minorUpdate) {
                 doc.setDescriptionLastModifier(getDescriptionChangerId(changedBy))
+                checksum = doc.getChecksum(jsonld)
             }
 
             updateStatement = connection.prepareStatement(UPDATE_DOCUMENT)
-            rigUpdateStatement(updateStatement, doc, modTime, changedIn, changedBy, collection, deleted)
+            rigUpdateStatement(updateStatement, doc, modTime, changedIn, changedBy, collection, deleted, checksum)
             updateStatement.execute()
 
-            saveVersion(doc, connection, createdTime, modTime, changedIn, changedBy, collection, deleted)
+            saveVersion(doc, connection, createdTime, modTime, changedIn, changedBy, collection, deleted, checksum)
 
             // If the mainentity has changed URI (for example happens when new id.kb.se-uris are added to records)
             if ( preUpdateDoc.getThingIdentifiers()[0] &&
@@ -1008,18 +1892,18 @@ class PostgreSQLComponent {
             log.debug("Saved document ${doc.getShortId()} with timestamps ${doc.created} / ${doc.modified}")
         } catch (PSQLException psqle) {
             log.error("SQL failed: ${psqle.message}")
-            connection.rollback()
+            rollback(connection)
             if (psqle.serverErrorMessage?.message?.startsWith("duplicate key value violates unique constraint")) {
                 throw new StorageCreateFailedException(id)
             } else {
                 throw psqle
             }
         } catch (TooHighEncodingLevelException | StaleUpdateException | CancelUpdateException e) {
-            connection.rollback()
+            rollback(connection)
             throw e
         } catch (Exception e) {
             log.error("Failed to save document: ${e.message}. Rolling back.")
-            connection.rollback()
+            rollback(connection)
             throw e
         } finally {
             close(resultSet, selectStatement, updateStatement)
@@ -1096,6 +1980,13 @@ class PostgreSQLComponent {
 
     void refreshDerivativeTables(Document doc, Connection connection, boolean deleted, boolean leaveCacheAlone = false) {
         saveIdentifiers(doc, connection, deleted)
+        refreshLinkedTables(doc, connection, deleted, leaveCacheAlone)
+    }
+
+    /**
+     * Refresh everything derived from the document except its identifiers
+     */
+    private void refreshLinkedTables(Document doc, Connection connection, boolean deleted, boolean leaveCacheAlone = false) {
         saveDependencies(doc, connection)
         
         if (!leaveCacheAlone)
@@ -1107,6 +1998,11 @@ class PostgreSQLComponent {
             } else {
                 updateCard(new CardEntry(doc), connection)
             }
+
+            // Delivered to all instances, including this one, after the transaction commits
+            List<String> cardCacheKeys = getCardCacheKeys(doc)
+            invalidateCards(cardCacheKeys)
+            sendNotificationAfterCommit(NotificationType.CARD_CACHE_INVALIDATE, cardCacheKeys, connection)
         }
 
         if (sparqlQueueEnabled) {
@@ -1114,14 +2010,82 @@ class PostgreSQLComponent {
         }
     }
 
+    /**
+     * refreshLinkedTables() for documents created in this transaction, with one JDBC batch per table
+     */
+    private void refreshNewLinkedTables(List<Document> docs, Connection connection) {
+        List<List<String[]>> dependencies = calculateDependenciesSystemIDs(docs, connection)
+        PreparedStatement insertDependencies = connection.prepareStatement(INSERT_DEPENDENCIES)
+        for (int i = 0; i < docs.size(); i++) {
+            addDependencies(insertDependencies, docs[i].getShortId(), dependencies[i])
+        }
+        try {
+            insertDependencies.executeBatch()
+        } catch (BatchUpdateException bue) {
+            log.error("Failed saving dependencies for batch of ${docs.size()} documents")
+            throw bue.getNextException()
+        } finally {
+            close(insertDependencies)
+        }
+
+        List<String[]> added = []
+        dependencies.each { List<String[]> d -> added.addAll(d) }
+        updateDependencyCounts([], added, connection)
+        for (int i = 0; i < docs.size(); i++) {
+            if (broaderLinks(dependencies[i])) {
+                updateBroaderClosure(docs[i].getShortId(), connection)
+            }
+        }
+
+        evictDependersFromEmbellishedCache(docs.collect { Document doc -> doc.getShortId() }, connection)
+
+        if (jsonld) {
+            PreparedStatement updateCards = connection.prepareStatement(UPDATE_CARD)
+            try {
+                for (Document doc : docs) {
+                    rigUpdateCardStatement(updateCards, new CardEntry(doc))
+                    updateCards.addBatch()
+                }
+                for (int n : updateCards.executeBatch()) {
+                    if (n > 0) {
+                        cardsUpdated.incrementAndGet()
+                    }
+                }
+                markWritten()
+            } finally {
+                close(updateCards)
+            }
+
+            // Delivered to all instances, including this one, after the transaction commits
+            List<String> cardCacheKeys = docs.collectMany { Document doc -> getCardCacheKeys(doc) }
+            invalidateCards(cardCacheKeys)
+            sendNotificationAfterCommit(NotificationType.CARD_CACHE_INVALIDATE, cardCacheKeys, connection)
+        }
+
+        if (sparqlQueueEnabled) {
+            PreparedStatement sparqlQueueAdd = connection.prepareStatement(SPARQL_QUEUE_ADD)
+            try {
+                for (Document doc : docs) {
+                    sparqlQueueAdd.setString(1, doc.getShortId())
+                    sparqlQueueAdd.addBatch()
+                }
+                sparqlQueueAdd.executeBatch()
+            } finally {
+                close(sparqlQueueAdd)
+            }
+        }
+    }
+
     /**
      * Rewrite card. To be used when card definitions have changed
      */
     void refreshCardData(Document doc, Instant timestamp) {
         withDbConnection {
             Connection connection = getMyConnection()
-            if (hasCard(doc.shortId, connection)) {
-                updateCard(new CardEntry(doc, timestamp), connection)
+            if (hasCard(doc.shortId, connection) && updateCard(new CardEntry(doc, timestamp), connection)) {
+                List<String> cardCacheKeys = getCardCacheKeys(doc)
+                invalidateCards(cardCacheKeys)
+                sendNotification(NotificationType.CARD_CACHE_INVALIDATE, cardCacheKeys)
             }
         }
     }
@@ -1145,29 +2109,50 @@ class PostgreSQLComponent {
     }
 
     private List<String[]> _calculateDependenciesSystemIDs(Document doc, Connection connection) {
-        List<String[]> dependencies = []
+        return calculateDependenciesSystemIDs([doc], connection)[0]
+    }
 
-        Map<String, Set<Link>> linksByIri = [:]
-        doc.getExternalRefs()
-            .findAll{ it.iri.startsWith("http") }
-            .each { link ->
-                linksByIri.computeIfAbsent(link.iri, { iri -> new HashSet<>() }).add(link)
-            }
+    /**
+     * @return the dependencies of each document, in the same order as docs. The links of all of them are
+     * looked up at once.
+     */
+    private List<List<String[]>> calculateDependenciesSystemIDs(List<Document> docs, Connection connection) {
+        List<Map<String, Set<Link>>> linksByIri = docs.collect { Document doc ->
+            Map<String, Set<Link>> links = [:]
+            doc.getExternalRefs()
+                .findAll{ it.iri.startsWith("http") }
+                .each { link ->
+                    links.computeIfAbsent(link.iri, { iri -> new HashSet<>() }).add(link)
+                }
+            return links
+        }
 
-        getSystemIds(linksByIri.keySet(), connection) { String iri, String systemId, boolean deleted ->
+        Map<String, String> systemIdByIri = [:]
+        Set<String> iris = new HashSet<>()
+        linksByIri.each { Map<String, Set<Link>> links -> iris.addAll(links.keySet()) }
+        getSystemIds(iris, connection) { String iri, String systemId, boolean deleted ->
             if (deleted) // doc refers to a deleted document which is not ok.
                 throw new LinkValidationException("Record supposedly depends on deleted record: ${systemId}, which is not allowed.")
 
-            if (systemId != doc.getShortId()) // Exclude A -> A (self-references)
-                dependencies.addAll(linksByIri[iri].collect { [it.relation, systemId] as String[] })
+            systemIdByIri[iri] = systemId
         }
 
+        List<List<String[]>> dependencies = []
+        for (int i = 0; i < docs.size(); i++) {
+            List<String[]> docDependencies = []
+            linksByIri[i].each { String iri, Set<Link> links ->
+                String systemId = systemIdByIri[iri]
+                if (systemId != null && systemId != docs[i].getShortId()) // Exclude A -> A (self-references)
+                    docDependencies.addAll(links.collect { [it.relation, systemId] as String[] })
+            }
+            dependencies.add(docDependencies)
+        }
         return dependencies
     }
 
     Map<String, String> getSystemIdsByIris (Iterable iris) {
         Map<String, String> ids = new HashMap<>()
-        withDbConnection {
+        withReadOnlyDbConnection {
             Connection connection = getMyConnection()
             getSystemIds(iris, connection) { String iri, String systemId, deleted ->
                 ids.put(iri, systemId)
@@ -1208,7 +2193,7 @@ class PostgreSQLComponent {
     void doForIdInDataset(String dataset, Closure c) {
         PreparedStatement statement = null
         ResultSet rs = null
-        Connection connection = getOuterConnection()
+        Connection connection = getOuterReadOnlyConnection()
         try {
             statement = connection.prepareStatement(GET_DATASET_ID_LIST)
 
@@ -1271,6 +2256,7 @@ class PostgreSQLComponent {
             preparedStatement.setTimestamp(4, timestamp)
 
             boolean createdOrUpdated = preparedStatement.executeUpdate() > 0
+            markWritten()
 
             if (createdOrUpdated) {
                 cardsUpdated.incrementAndGet()
@@ -1284,20 +2270,13 @@ class PostgreSQLComponent {
     }
 
     protected boolean updateCard(CardEntry cardEntry, Connection connection) {
-        Document card = cardEntry.getCard()
-        Timestamp timestamp = new Timestamp(cardEntry.getChangedTimestamp().toEpochMilli())
-
         PreparedStatement preparedStatement = null
         try {
-            String checksum = card.getChecksum(jsonld)
             preparedStatement = connection.prepareStatement(UPDATE_CARD)
-            preparedStatement.setObject(1, card.dataAsString, OTHER)
-            preparedStatement.setString(2, checksum)
-            preparedStatement.setTimestamp(3, timestamp)
-            preparedStatement.setString(4, card.getShortId())
-            preparedStatement.setString(5, checksum)
+            rigUpdateCardStatement(preparedStatement, cardEntry)
 
             boolean updated = preparedStatement.executeUpdate() > 0
+            markWritten()
 
             if (updated) {
                 cardsUpdated.incrementAndGet()
@@ -1310,6 +2289,17 @@ class PostgreSQLComponent {
         }
     }
 
+    private void rigUpdateCardStatement(PreparedStatement preparedStatement, CardEntry cardEntry) {
+        Document card = cardEntry.getCard()
+        Timestamp timestamp = new Timestamp(cardEntry.getChangedTimestamp().toEpochMilli())
+        String checksum = card.getChecksum(jsonld)
+        preparedStatement.setObject(1, card.dataAsString, OTHER)
+        preparedStatement.setString(2, checksum)
+        preparedStatement.setTimestamp(3, timestamp)
+        preparedStatement.setString(4, card.getShortId())
+        preparedStatement.setString(5, checksum)
+    }
+
     protected void deleteCard(Document doc, Connection connection) {
         PreparedStatement preparedStatement = null
         try {
@@ -1317,22 +2307,44 @@ class PostgreSQLComponent {
             preparedStatement.setString(1, doc.getShortId())
 
             preparedStatement.executeUpdate()
+            markWritten()
         }
         finally {
             close(preparedStatement)
         }
     }
 
-    protected Map loadCard(String id) {
-        return withDbConnection {
-            Connection connection = getMyConnection()
-            return loadCard(id, connection)
-        }
+    /**
+     * @return the system id and the IRIs of the record and the thing
+     */
+    private static List<String> getCardCacheKeys(Document doc) {
+        Set<String> keys = new LinkedHashSet<>()
+        keys.add(doc.getShortId())
+        keys.addAll(doc.getThingIdentifiers())
+        keys.addAll(doc.getRecordIdentifiers())
+        return keys.toList()
     }
 
-    protected Map<String, Map> bulkLoadCards(Iterable<String> ids) {
-        return withDbConnection {
-            Connection connection = getMyConnection()
+    /**
+     * Evict cards from caches kept by subclasses.
+     * @param keys system ids and IRIs
+     */
+    protected void invalidateCards(Collection<String> keys) {
+    }
+
+    protected void invalidateAllCards() {
+    }
+
+    protected Map loadCard(String id) {
+        return withReadOnlyDbConnection {
+            Connection connection = getMyConnection()
+            return loadCard(id, connection)
+        }
+    }
+
+    protected Map<String, Map> bulkLoadCards(Iterable<String> ids) {
+        return withReadOnlyDbConnection {
+            Connection connection = getMyConnection()
             PreparedStatement preparedStatement = null
             ResultSet rs = null
             try {
@@ -1409,32 +2421,32 @@ class PostgreSQLComponent {
     
     void recalculateDependencies(Document doc) {
         withDbConnection {
-            saveDependencies(doc, getMyConnection())
+            Connection connection = getMyConnection()
+            connection.setAutoCommit(false)
+            try {
+                saveDependencies(doc, connection)
+                commit(connection)
+                markWritten()
+            } catch (Exception e) {
+                rollback(connection)
+                throw e
+            } finally {
+                connection.setAutoCommit(true)
+            }
         }
     }
     
     private void saveDependencies(Document doc, Connection connection) {
         // Clear out old dependencies
-        PreparedStatement removeDependencies = connection.prepareStatement(DELETE_DEPENDENCIES)
-        try {
-            removeDependencies.setString(1, doc.getShortId())
-            int numRemoved = removeDependencies.executeUpdate()
-            log.debug("Removed $numRemoved dependencies for id ${doc.getShortId()}")
-        } finally {
-            close(removeDependencies)
-        }
+        List<String[]> removed = deleteDependencies(doc.getShortId(), connection)
+        List<String[]> dependencies = []
 
         if (!doc.deleted) { // We do not care for the dependencies of deleted documents.
-            List dependencies = _calculateDependenciesSystemIDs(doc, connection)
+            dependencies = _calculateDependenciesSystemIDs(doc, connection)
             
             // Insert the dependency list
             PreparedStatement insertDependencies = connection.prepareStatement(INSERT_DEPENDENCIES)
-            for (String[] dependsOn : dependencies) {
-                insertDependencies.setString(1, doc.getShortId())
-                insertDependencies.setString(2, dependsOn[0])
-                insertDependencies.setString(3, dependsOn[1])
-                insertDependencies.addBatch()
-            }
+            addDependencies(insertDependencies, doc.getShortId(), dependencies)
             try {
                 insertDependencies.executeBatch()
             } catch (BatchUpdateException bue) {
@@ -1444,6 +2456,144 @@ class PostgreSQLComponent {
                 close(insertDependencies)
             }
         }
+
+        updateDependencyCounts(removed, dependencies, connection)
+
+        if (broaderLinks(removed) != broaderLinks(dependencies)) {
+            updateBroaderClosure(doc.getShortId(), connection)
+        }
+    }
+
+    private static void addDependencies(PreparedStatement insertDependencies, String id, List<String[]> dependencies) {
+        for (String[] dependsOn : dependencies) {
+            insertDependencies.setString(1, id)
+            insertDependencies.setString(2, dependsOn[0])
+            insertDependencies.setString(3, dependsOn[1])
+            insertDependencies.addBatch()
+        }
+    }
+
+    /**
+     * @return the removed dependencies as [relation, dependsOnId]
+     */
+    private List<String[]> deleteDependencies(String id, Connection connection) {
+        PreparedStatement removeDependencies = null
+        ResultSet rs = null
+        try {
+            removeDependencies = connection.prepareStatement(DELETE_DEPENDENCIES)
+            removeDependencies.setString(1, id)
+            rs = removeDependencies.executeQuery()
+            List<String[]> removed = []
+            while (rs.next()) {
+                removed.add([rs.getString(1), rs.getString(2)] as String[])
+            }
+            log.debug("Removed ${removed.size()} dependencies for id ${id}")
+            return removed
+        } finally {
+            close(rs, removeDependencies)
+        }
+    }
+
+    /**
+     * Keep lddb__dependency_counts in step with lddb__dependencies.
+     * Only counters that actually change are written, most saves don't change any links.
+     */
+    private void updateDependencyCounts(List<String[]> removed, List<String[]> added, Connection connection) {
+        // [dependsOnId, relation] -> delta, sorted for a consistent lock order
+        Map<List<String>, Long> deltas = new TreeMap<>({ List<String> a, List<String> b ->
+            a[0] <=> b[0] ?: a[1] <=> b[1]
+        } as Comparator<List<String>>)
+        for (String[] dependsOn : removed) {
+            List<String> key = [dependsOn[1], dependsOn[0]]
+            deltas.put(key, (deltas.get(key) ?: 0L) - 1)
+        }
+        for (String[] dependsOn : added) {
+            List<String> key = [dependsOn[1], dependsOn[0]]
+            deltas.put(key, (deltas.get(key) ?: 0L) + 1)
+        }
+        deltas.values().removeIf { Long delta -> delta == 0L }
+        if (deltas.isEmpty()) {
+            return
+        }
+
+        PreparedStatement preparedStatement = null
+        try {
+            preparedStatement = connection.prepareStatement(UPDATE_DEPENDENCY_COUNTS)
+            preparedStatement.setArray(1, connection.createArrayOf("TEXT", deltas.keySet().collect { it[0] } as String[]))
+            preparedStatement.setArray(2, connection.createArrayOf("TEXT", deltas.keySet().collect { it[1] } as String[]))
+            preparedStatement.setArray(3, connection.createArrayOf("BIGINT", deltas.values() as Long[]))
+            preparedStatement.executeUpdate()
+        } finally {
+            close(preparedStatement)
+        }
+    }
+
+    private static Set<List<String>> broaderLinks(List<String[]> dependencies) {
+        Set<List<String>> result = new HashSet<>()
+        for (String[] dependsOn : dependencies) {
+            if (dependsOn[0] in Relations.BROADER_RELATIONS) {
+                result.add([dependsOn[0], dependsOn[1]])
+            }
+        }
+        return result
+    }
+
+    /**
+     * Recompute lddb__broader_closure for id and everything narrower than it, before or after its
+     * broader relations changed. Must be called after the new dependencies of id have been saved, in the same
+     * transaction.
+     */
+    private void updateBroaderClosure(String id, Connection connection) {
+        // Wait for any other transaction recomputing the closure to commit, the statements below see its changes
+        PreparedStatement lock = null
+        try {
+            lock = connection.prepareStatement(LOCK_BROADER_CLOSURE)
+            lock.execute()
+        } finally {
+            close(lock)
+        }
+
+        Array relations = connection.createArrayOf("TEXT", Relations.BROADER_RELATIONS as String[])
+        Array symmetric = connection.createArrayOf("TEXT",
+                Relations.BROADER_RELATIONS.findAll { String r -> Relations.isSymmetric(r) } as String[])
+
+        List<String> affected = []
+        PreparedStatement preparedStatement = null
+        ResultSet rs = null
+        try {
+            preparedStatement = connection.prepareStatement(GET_BROADER_CLOSURE_AFFECTED)
+            preparedStatement.setString(1, id)
+            preparedStatement.setArray(2, relations)
+            preparedStatement.setArray(3, symmetric)
+            preparedStatement.setString(4, id)
+            rs = preparedStatement.executeQuery()
+            while (rs.next()) {
+                affected.add(rs.getString(1))
+            }
+        } finally {
+            close(rs, preparedStatement)
+        }
+
+        Array affectedIds = connection.createArrayOf("TEXT", affected as String[])
+        PreparedStatement delete = null
+        PreparedStatement insert = null
+        try {
+            delete = connection.prepareStatement(DELETE_BROADER_CLOSURE)
+            delete.setArray(1, affectedIds)
+            delete.executeUpdate()
+
+            insert = connection.prepareStatement(INSERT_BROADER_CLOSURE)
+            insert.setArray(1, affectedIds)
+            insert.setArray(2, relations)
+            insert.setArray(3, symmetric)
+            insert.setArray(4, relations)
+            insert.setArray(5, symmetric)
+            int numInserted = insert.executeUpdate()
+            log.debug("Recomputed broader closure of ${affected.size()} ids for $id, $numInserted rows")
+        } finally {
+            close(delete)
+            close(insert)
+        }
     }
 
     private void saveIdentifiers(Document doc, Connection connection, boolean deleted, boolean removeOnly = false) {
@@ -1460,6 +2610,36 @@ class PostgreSQLComponent {
             return
 
         PreparedStatement altIdInsert = connection.prepareStatement(INSERT_IDENTIFIERS)
+        addIdentifiers(altIdInsert, doc, deleted)
+        try {
+            altIdInsert.executeBatch()
+        } catch (BatchUpdateException bue) {
+            log.error("Failed saving identifiers for ${doc.getShortId()}")
+            throw bue.getNextException()
+        } finally {
+            close(altIdInsert)
+        }
+    }
+
+    /**
+     * Save identifiers of documents created in this transaction, which don't have any saved yet
+     */
+    private void saveNewIdentifiers(List<Document> docs, Connection connection) {
+        PreparedStatement altIdInsert = connection.prepareStatement(INSERT_IDENTIFIERS)
+        for (Document doc : docs) {
+            addIdentifiers(altIdInsert, doc, false)
+        }
+        try {
+            altIdInsert.executeBatch()
+        } catch (BatchUpdateException bue) {
+            log.error("Failed saving identifiers for batch of ${docs.size()} documents")
+            throw bue.getNextException()
+        } finally {
+            close(altIdInsert)
+        }
+    }
+
+    private static void addIdentifiers(PreparedStatement altIdInsert, Document doc, boolean deleted) {
         for (altId in doc.getRecordIdentifiers()) {
             altIdInsert.setString(1, doc.getShortId())
             altIdInsert.setString(2, altId)
@@ -1487,14 +2667,6 @@ class PostgreSQLComponent {
                 }
             }
         }
-        try {
-            altIdInsert.executeBatch()
-        } catch (BatchUpdateException bue) {
-            log.error("Failed saving identifiers for ${doc.getShortId()}")
-            throw bue.getNextException()
-        } finally {
-            close(altIdInsert)
-        }
     }
 
     private PreparedStatement rigInsertStatement(PreparedStatement insert, Document doc, Date timestamp, String changedIn, String changedBy, String collection, boolean deleted) {
@@ -1510,12 +2682,13 @@ class PostgreSQLComponent {
         return insert
     }
 
-    private void rigUpdateStatement(PreparedStatement update, Document doc, Date modTime, String changedIn, String changedBy, String collection, boolean deleted) {
+    private void rigUpdateStatement(PreparedStatement update, Document doc, Date modTime, String changedIn, String changedBy, String collection, boolean deleted,
+                                    String checksum = doc.getChecksum(jsonld)) {
         update.setObject(1, doc.dataAsString, OTHER)
         update.setString(2, collection)
         update.setString(3, changedIn)
         update.setString(4, changedBy)
-        update.setString(5, doc.getChecksum(jsonld))
+        update.setString(5, checksum)
         update.setBoolean(6, deleted)
         update.setTimestamp(7, new Timestamp(modTime.getTime()))
         update.setObject(8, doc.getShortId(), OTHER)
@@ -1523,14 +2696,15 @@ class PostgreSQLComponent {
 
     boolean saveVersion(Document doc, Connection connection, Date createdTime,
                         Date modTime, String changedIn, String changedBy,
-                        String collection, boolean deleted) {
+                        String collection, boolean deleted, String checksum = doc.getChecksum(jsonld)) {
         if (versioning) {
             PreparedStatement insVersion = connection.prepareStatement(INSERT_DOCUMENT_VERSION)
             try {
-                log.debug("Trying to save a version of ${doc.getShortId() ?: ""} with checksum ${doc.getChecksum(jsonld)}. Modified: $modTime")
+                log.debug("Trying to save a version of ${doc.getShortId() ?: ""} with checksum ${checksum}. Modified: $modTime")
+                VersionPatch patch = versionSnapshotInterval > 1 ? createVersionPatch(doc, connection) : null
                 insVersion = rigVersionStatement(insVersion, doc, createdTime,
                         modTime, changedIn, changedBy,
-                        collection, deleted)
+                        collection, deleted, checksum, patch)
                 insVersion.executeUpdate()
                 return true
             } catch (Exception e) {
@@ -1549,19 +2723,159 @@ class PostgreSQLComponent {
                                                          Document doc, Date createdTime,
                                                          Date modTime, String changedIn,
                                                          String changedBy, String collection,
-                                                         boolean deleted) {
+                                                         boolean deleted, String checksum = doc.getChecksum(jsonld),
+                                                         VersionPatch patch = null) {
         insvers.setString(1, doc.getShortId())
-        insvers.setObject(2, doc.dataAsString, OTHER)
+        insvers.setObject(2, patch ? null : doc.dataAsString, OTHER)
         insvers.setString(3, collection)
         insvers.setString(4, changedIn)
         insvers.setString(5, changedBy)
-        insvers.setString(6, doc.getChecksum(jsonld))
+        insvers.setString(6, checksum)
         insvers.setTimestamp(7, new Timestamp(createdTime.getTime()))
         insvers.setTimestamp(8, new Timestamp(modTime.getTime()))
         insvers.setBoolean(9, deleted)
+        insvers.setObject(10, patch?.snapshot, Types.INTEGER)
+        insvers.setObject(11, patch?.patch, OTHER)
+        insvers.setString(12, doc.getGenerationDate())
         return insvers
     }
 
+    private static class VersionPatch {
+        // pk of the version the patch applies to
+        Integer snapshot
+        String patch
+    }
+
+    /**
+     * @return doc as a patch against the latest snapshot of it, or null if it should be stored in full
+     */
+    private VersionPatch createVersionPatch(Document doc, Connection connection) {
+        PreparedStatement statement = null
+        ResultSet rs = null
+        try {
+            statement = connection.prepareStatement(GET_LATEST_VERSION_SNAPSHOT)
+            statement.setString(1, doc.getShortId())
+            rs = statement.executeQuery()
+            if (!rs.next() || rs.getLong("deltas") + 1 >= versionSnapshotInterval) {
+                return null
+            }
+            Map snapshot = mapper.readValue(rs.getString("data"), Map)
+            String patch = createVersionPatch(snapshot, doc.data, doc.dataAsString)
+            return patch != null ? new VersionPatch(snapshot: rs.getInt("pk"), patch: patch) : null
+        }
+        finally {
+            close(rs, statement)
+        }
+    }
+
+    private static String createVersionPatch(Map snapshot, Map data, String dataAsString) {
+        String patch = mapper.writeValueAsString(JsonPatch.diff(snapshot, data))
+        return patch.length() <= dataAsString.length() * MAX_VERSION_PATCH_FRACTION ? patch : null
+    }
+
+    /**
+     * Rewrite the stored versions of every document with more than one version according to a snapshot interval,
+     * see versionSnapshotInterval. Existing patches are applied, i.e. this also unpacks versions if interval is 1.
+     */
+    void packVersions(int interval) {
+        long numIds = 0
+        long numPatches = 0
+        long numFailed = 0
+        streamRows(GET_IDS_WITH_VERSIONS, []) { ResultSet rs ->
+            String id = rs.getString("id")
+            try {
+                numPatches += packVersions(id, interval)
+            } catch (Exception e) {
+                log.warn("Could not pack versions of $id: $e", e)
+                numFailed++
+            }
+            if (++numIds % 10_000 == 0) {
+                log.info("Packed versions of $numIds documents, $numPatches versions stored as patches, $numFailed failed")
+            }
+        }
+        log.info("Done packing versions of $numIds documents, $numPatches versions stored as patches, $numFailed failed")
+    }
+
+    /**
+     * @return number of versions stored as patches
+     */
+    int packVersions(String id, int interval) {
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement select = null
+            PreparedStatement update = null
+            ResultSet rs = null
+            connection.setAutoCommit(false)
+            try {
+                acquireRowLock(id, connection)
+
+                // Restore all versions first, a patch can be against any of the versions being rewritten
+                List<Integer> pks = []
+                List<Integer> oldSnapshots = []
+                Map<Integer, String> snapshots = [:]
+                List<String> data = []
+                select = connection.prepareStatement(GET_VERSIONS_FOR_PACKING)
+                select.setString(1, id)
+                rs = select.executeQuery()
+                while (rs.next()) {
+                    int pk = rs.getInt("pk")
+                    String patch = rs.getString("patch")
+                    pks << pk
+                    oldSnapshots << (patch != null ? rs.getInt("snapshot") : null)
+                    data << (patch != null ? patch : rs.getString("data"))
+                    if (patch == null) {
+                        snapshots[pk] = rs.getString("data")
+                    }
+                }
+                for (int i = 0; i < pks.size(); i++) {
+                    if (oldSnapshots[i] != null) {
+                        Map base = mapper.readValue(snapshots[oldSnapshots[i]], Map)
+                        Map restored = (Map) JsonPatch.apply(base, mapper.readValue(data[i], List))
+                        data[i] = mapper.writeValueAsString(restored)
+                    }
+                }
+
+                int numPatches = 0
+                Map snapshot = null
+                Integer snapshotPk = null
+                int deltas = 0
+                update = connection.prepareStatement(UPDATE_VERSION_PACKING)
+                for (int i = 0; i < pks.size(); i++) {
+                    Document doc = new Document(mapper.readValue(data[i], Map))
+                    String patch = snapshot != null && deltas + 1 < interval
+                            ? createVersionPatch(snapshot, doc.data, data[i])
+                            : null
+                    if (patch != null) {
+                        deltas++
+                        numPatches++
+                    } else {
+                        snapshot = doc.data
+                        snapshotPk = pks[i]
+                        deltas = 0
+                    }
+                    update.setObject(1, patch != null ? null : data[i], OTHER)
+                    update.setObject(2, patch, OTHER)
+                    update.setObject(3, patch != null ? snapshotPk : null, Types.INTEGER)
+                    update.setString(4, doc.getGenerationDate())
+                    update.setInt(5, pks[i])
+                    update.addBatch()
+                }
+                update.executeBatch()
+                commit(connection)
+                markWritten()
+                return numPatches
+            }
+            catch (Exception e) {
+                rollback(connection)
+                throw e
+            }
+            finally {
+                close(rs, select, update)
+                connection.setAutoCommit(true)
+            }
+        }
+    }
+
     boolean bulkStore(final List<Document> docs, String changedIn, String changedBy, String collection) {
         return withDbConnection {
             if (!docs || docs.isEmpty()) {
@@ -1595,7 +2909,8 @@ class PostgreSQLComponent {
                     refreshDerivativeTables(doc, connection, false, leaveCacheAlone)
                 }
                 clearEmbellishedCache(connection)
-                connection.commit()
+                commit(connection)
+                markWritten()
                 log.debug("Stored ${docs.size()} documents in collection ${collection} (versioning: ${versioning})")
                 return true
             } catch (Exception e) {
@@ -1604,7 +2919,7 @@ class PostgreSQLComponent {
                     Exception nextException = ((SQLException) e).nextException
                     log.error("Note: next exception was: ${nextException.message}.", nextException)
                 }
-                connection.rollback()
+                rollback(connection)
             } finally {
                 close(batch, ver_batch)
             }
@@ -1659,7 +2974,7 @@ class PostgreSQLComponent {
                         anyReQueued = true
                     }
                     else if (result == QueueHandler.Result.FAIL_RETRY) {
-                        connection.rollback()
+                        rollback(connection)
                         return false
                     }
                 }
@@ -1668,7 +2983,7 @@ class PostgreSQLComponent {
                 }
             }
 
-            connection.commit()
+            commit(connection)
             return !ids.isEmpty() && !anyReQueued
         }
         finally {
@@ -1693,6 +3008,200 @@ class PostgreSQLComponent {
         }
     }
 
+    /**
+     * Put Elasticsearch operations that failed in the retry queue.
+     * Operations on ids that are already queued are merged with the queued operation.
+     */
+    void elasticRetryQueueAdd(Collection<ElasticIndexingQueue.Operation> operations) {
+        withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            try {
+                preparedStatement = connection.prepareStatement(ELASTIC_RETRY_QUEUE_ADD)
+                // Same order in all writers to avoid deadlocks
+                for (ElasticIndexingQueue.Operation operation : operations.sort(false) { ElasticIndexingQueue.Operation op -> op.id }) {
+                    preparedStatement.setString(1, operation.id)
+                    preparedStatement.setString(2, operation.type.toString())
+                    preparedStatement.setInt(3, operation.delta)
+                    preparedStatement.addBatch()
+                }
+                preparedStatement.executeBatch()
+            }
+            finally {
+                close(preparedStatement)
+            }
+        }
+    }
+
+    /**
+     * Take up to <num> operations that are due for retry from the queue and pass them to the sender.
+     * If the sender fails, all operations remain in the queue and are retried later with exponential backoff.
+     *
+     * @param sender Elasticsearch bulk sender, throws on failure
+     * @param num Number of operations to take in one batch
+     * @param connectionPool
+     * @return true if there were any operations in the queue and the sender was successful
+     */
+    boolean elasticRetryQueueTake(ElasticIndexingQueue.BulkSender sender, int num, DataSource connectionPool) {
+        Connection connection = null
+        try {
+            // Rows stay locked while sending and are removed when we commit the transaction.
+            connection = connectionPool.getConnection()
+            connection.setAutoCommit(false)
+            List<ElasticIndexingQueue.Operation> operations = elasticRetryQueueTakeOperations(num, connection)
+            if (operations.isEmpty()) {
+                commit(connection)
+                return false
+            }
+
+            try {
+                sender.send(operations)
+            }
+            catch (Exception e) {
+                log.warn("Failed to retry ${operations.size()} Elasticsearch operations, will try again later: $e")
+                rollback(connection)
+                elasticRetryQueueBackoff(operations.collect { ElasticIndexingQueue.Operation op -> op.id }, connection)
+                commit(connection)
+                return false
+            }
+
+            commit(connection)
+            return true
+        }
+        finally {
+            close(connection)
+        }
+    }
+
+    private static List<ElasticIndexingQueue.Operation> elasticRetryQueueTakeOperations(int num, Connection connection) {
+        PreparedStatement statement = null
+        ResultSet resultSet = null
+        try {
+            statement = connection.prepareStatement(ELASTIC_RETRY_QUEUE_REMOVE)
+            statement.setInt(1, num)
+            resultSet = statement.executeQuery()
+            List<ElasticIndexingQueue.Operation> result = new ArrayList<>(num)
+            while(resultSet.next()) {
+                result.add(ElasticIndexingQueue.Operation.of(
+                        ElasticIndexingQueue.Operation.Type.valueOf(resultSet.getString("operation")),
+                        resultSet.getString("id"),
+                        resultSet.getInt("delta")))
+            }
+            return result
+        }
+        finally {
+            close(resultSet, statement)
+        }
+    }
+
+    private static void elasticRetryQueueBackoff(List<String> ids, Connection connection) {
+        PreparedStatement statement = null
+        try {
+            statement = connection.prepareStatement(ELASTIC_RETRY_QUEUE_BACKOFF)
+            statement.setArray(1, connection.createArrayOf("TEXT", ids as String[]))
+            statement.executeUpdate()
+        }
+        finally {
+            close(statement)
+        }
+    }
+
+    /**
+     * Record operations that Elasticsearch refused for other reasons than being overloaded, e.g. mapping errors.
+     * They are not retried.
+     */
+    void elasticDeadLetterAdd(Collection<ElasticSearch.BulkResponse.Failure> failures) {
+        withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            try {
+                preparedStatement = connection.prepareStatement(ELASTIC_DEAD_LETTER_ADD)
+                // Same order in all writers to avoid deadlocks
+                for (ElasticSearch.BulkResponse.Failure f : failures.sort(false) { ElasticSearch.BulkResponse.Failure failure -> failure.id }) {
+                    preparedStatement.setString(1, f.id)
+                    preparedStatement.setString(2, f.action)
+                    preparedStatement.setInt(3, f.status)
+                    preparedStatement.setObject(4, mapper.writeValueAsString(f.error), java.sql.Types.OTHER)
+                    preparedStatement.addBatch()
+                }
+                preparedStatement.executeBatch()
+            }
+            finally {
+                close(preparedStatement)
+            }
+        }
+    }
+
+    /**
+     * @return stored shape by system id, see ElasticShapeCache
+     */
+    Map<String, ElasticShapeCache.Shape> loadElasticShapes(Collection<String> ids) {
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            ResultSet rs = null
+            try {
+                preparedStatement = connection.prepareStatement(GET_ELASTIC_SHAPES)
+                preparedStatement.setArray(1, connection.createArrayOf("TEXT", ids as String[]))
+                rs = preparedStatement.executeQuery()
+                Map<String, ElasticShapeCache.Shape> result = [:]
+                while (rs.next()) {
+                    String id = rs.getString("id")
+                    result[id] = new ElasticShapeCache.Shape(id, rs.getString("key"), rs.getString("data"))
+                }
+                return result
+            }
+            finally {
+                close(rs, preparedStatement)
+            }
+        }
+    }
+
+    void storeElasticShapes(Collection<ElasticShapeCache.Shape> shapes) {
+        withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            try {
+                preparedStatement = connection.prepareStatement(UPSERT_ELASTIC_SHAPE)
+                // Same order in all writers to avoid deadlocks
+                for (ElasticShapeCache.Shape shape : shapes.sort(false) { ElasticShapeCache.Shape sh -> sh.id }) {
+                    preparedStatement.setString(1, shape.id)
+                    preparedStatement.setString(2, shape.key)
+                    preparedStatement.setString(3, shape.json)
+                    preparedStatement.addBatch()
+                }
+                preparedStatement.executeBatch()
+            }
+            finally {
+                close(preparedStatement)
+            }
+        }
+    }
+
+    private void deleteElasticShape(String id, Connection connection) {
+        PreparedStatement preparedStatement = null
+        try {
+            preparedStatement = connection.prepareStatement(DELETE_ELASTIC_SHAPE)
+            preparedStatement.setString(1, id)
+            preparedStatement.executeUpdate()
+        }
+        finally {
+            close(preparedStatement)
+        }
+    }
+
+    private void deleteHistory(String id, Connection connection) {
+        PreparedStatement preparedStatement = null
+        try {
+            preparedStatement = connection.prepareStatement(DELETE_HISTORY)
+            preparedStatement.setString(1, id)
+            preparedStatement.executeUpdate()
+        }
+        finally {
+            close(preparedStatement)
+        }
+    }
+
     /**
      * Load document using supplied identifier as main ID
      *
@@ -1709,7 +3218,7 @@ class PostgreSQLComponent {
             }
         } else if (version) {
             doc = loadFromSql(GET_DOCUMENT_VERSION_BY_MAIN_ID,
-                              [1: mainId, 2: version])
+                              [1: mainId, 2: version], true)
         } else {
             doc = loadFromSql(GET_DOCUMENT_BY_MAIN_ID, [1: mainId])
         }
@@ -1724,7 +3233,7 @@ class PostgreSQLComponent {
      *
      */
     String getRecordId(String id) {
-        return withDbConnection {
+        return withReadOnlyDbConnection {
             Connection connection = getMyConnection()
             return getRecordOrThingId(id, GET_RECORD_ID, connection)
         }
@@ -1742,7 +3251,7 @@ class PostgreSQLComponent {
      *
      */
     String getThingId(String id) {
-        return withDbConnection {
+        return withReadOnlyDbConnection {
             Connection connection = getMyConnection()
             return getThingId(id, connection)
         }
@@ -1760,7 +3269,7 @@ class PostgreSQLComponent {
      *
      */
     String getMainId(String id) {
-        return withDbConnection {
+        return withReadOnlyDbConnection {
             Connection connection = getMyConnection()
             return getRecordOrThingId(id, GET_MAIN_ID, connection)
         }
@@ -1802,7 +3311,7 @@ class PostgreSQLComponent {
      *
      */
     IdType getIdType(String id) {
-        return withDbConnection {
+        return withReadOnlyDbConnection {
             Connection connection = getMyConnection()
             PreparedStatement selectstmt = null
             ResultSet rs = null
@@ -1842,7 +3351,7 @@ class PostgreSQLComponent {
     }
 
     String getCollectionBySystemID(String id) {
-        return withDbConnection {
+        return withReadOnlyDbConnection {
             Connection connection = getMyConnection()
             return getCollectionBySystemID(id, connection)
         }
@@ -1872,7 +3381,7 @@ class PostgreSQLComponent {
     }
 
     Document loadAsOf(String id, Timestamp asOf) {
-        return loadFromSql(GET_DOCUMENT_AS_OF, [1: id, 2: asOf])
+        return loadFromSql(GET_DOCUMENT_AS_OF, [1: id, 2: asOf], true)
     }
 
     Document load(String id, String version) {
@@ -1884,10 +3393,10 @@ class PostgreSQLComponent {
                 doc = docList[v]
             } else if (v > -1) {
                 // looks like version might be a checksum, try loading
-                doc = loadFromSql(GET_DOCUMENT_VERSION, [1: id, 2: version])
+                doc = loadFromSql(GET_DOCUMENT_VERSION, [1: id, 2: version], true)
             }
         } else if (version) {
-            doc = loadFromSql(GET_DOCUMENT_VERSION, [1: id, 2: version])
+            doc = loadFromSql(GET_DOCUMENT_VERSION, [1: id, 2: version], true)
         } else {
             doc = loadFromSql(GET_DOCUMENT, [1: id])
         }
@@ -1895,7 +3404,7 @@ class PostgreSQLComponent {
     }
 
     Map<String, Document> bulkLoad(Iterable<String> systemIds, Instant asOf = null) {
-        return withDbConnection {
+        return withReadOnlyDbConnection {
             Connection connection = getMyConnection()
             PreparedStatement preparedStatement = null
             ResultSet rs = null
@@ -1920,7 +3429,7 @@ class PostgreSQLComponent {
                     rs = preparedStatement.executeQuery()
                     SortedMap<String, Document> result = new TreeMap<>()
                     while (rs.next()) {
-                        result[rs.getString("id")] = assembleDocument(rs)
+                        result[rs.getString("id")] = assembleDocument(rs, true)
                     }
                     return result
                 }
@@ -1933,7 +3442,7 @@ class PostgreSQLComponent {
 
 
     String getSystemIdByIri(String iri) {
-        return withDbConnection {
+        return withReadOnlyDbConnection {
             Connection connection = getMyConnection()
             return getSystemIdByIri(iri, connection)
         }
@@ -1996,7 +3505,7 @@ class PostgreSQLComponent {
     }
 
     Document getDocumentByIri(String iri) {
-        return withDbConnection {
+        return withReadOnlyDbConnection {
             Connection connection = getMyConnection()
             return getDocumentByIri(iri, connection)
         }
@@ -2037,7 +3546,7 @@ class PostgreSQLComponent {
     }
 
     List<Tuple2<String, String>> followDependencies(String id, List<String> excludeRelations = []) {
-        return withDbConnection {
+        return withReadOnlyDbConnection {
             Connection connection = getMyConnection()
             return followDependencies(id, connection, excludeRelations)
         }
@@ -2048,7 +3557,7 @@ class PostgreSQLComponent {
     }
 
     List<Tuple2<String, String>> followDependers(String id, List<String> excludeRelations = []) {
-        return withDbConnection {
+        return withReadOnlyDbConnection {
             Connection connection = getMyConnection()
             followDependers(id, connection, excludeRelations)
         }
@@ -2058,6 +3567,65 @@ class PostgreSQLComponent {
         return followDependencyData(id, FOLLOW_DEPENDERS, connection, excludeRelations)
     }
 
+    /**
+     * Same as followDependers() for several documents at once, e.g. all auth records changed in an interval
+     *
+     * @param after only return system ids after this one, "" for all
+     * @param limit return at most this many system ids, 0 for all
+     * @return system ids of all documents depending on any of ids, directly or indirectly
+     */
+    SortedSet<String> followDependersOfAll(Collection<String> ids, List<String> excludeRelations = [],
+                                           String after = '', int limit = 0) {
+        return withReadOnlyDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            ResultSet rs = null
+            try {
+                String replacement = "'" + excludeRelations.join("', '") + "'"
+                String query = FOLLOW_DEPENDERS_OF_ALL.replace("€", replacement)
+                if (limit > 0) {
+                    query += "LIMIT " + limit
+                }
+                preparedStatement = connection.prepareStatement(query)
+                preparedStatement.setArray(1, connection.createArrayOf("TEXT", ids as String[]))
+                preparedStatement.setString(2, after)
+                rs = preparedStatement.executeQuery()
+                SortedSet<String> dependers = new TreeSet<>()
+                while (rs.next()) {
+                    dependers.add(rs.getString(1))
+                }
+                return dependers
+            }
+            finally {
+                close(rs, preparedStatement)
+            }
+        }
+    }
+
+    /**
+     * @return those of ids that have no stored version
+     */
+    Set<String> filterWithoutVersions(Collection<String> ids) {
+        return withReadOnlyDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            ResultSet rs = null
+            try {
+                preparedStatement = connection.prepareStatement(FILTER_WITHOUT_VERSIONS)
+                preparedStatement.setArray(1, connection.createArrayOf("TEXT", ids as String[]))
+                rs = preparedStatement.executeQuery()
+                Set<String> result = new TreeSet<>()
+                while (rs.next()) {
+                    result.add(rs.getString(1))
+                }
+                return result
+            }
+            finally {
+                close(rs, preparedStatement)
+            }
+        }
+    }
+
     private static List<Tuple2<String, String>> followDependencyData(String id, String query, Connection connection,
                                                                      List<String> excludeRelations) {
         PreparedStatement preparedStatement = null
@@ -2091,17 +3659,117 @@ class PostgreSQLComponent {
     }
 
     SortedSet<String> getDependencies(String id) {
-        return withDbConnection {
+        return withReadOnlyDbConnection {
             return getDependencyData(id, GET_DEPENDENCIES, getMyConnection())
         }
     }
 
     SortedSet<String> getDependers(String id) {
-        return withDbConnection {
+        return withReadOnlyDbConnection {
             return getDependencyData(id, GET_DEPENDERS, getMyConnection())
         }
     }
 
+    /**
+     * Stream all rows in lddb__dependencies with one of relations, see LinkGraph
+     *
+     * @param handler called with id, relation and dependsOnId for every row
+     */
+    void streamDependencies(Collection<String> relations, Closure handler) {
+        streamRows(GET_DEPENDENCIES_BY_RELATIONS, [relations]) { ResultSet rs ->
+            handler(rs.getString(1), rs.getString(2), rs.getString(3))
+        }
+    }
+
+    /**
+     * Stream thing IRIs of all documents in lddb__dependencies with one of relations, see LinkGraph
+     *
+     * @param handler called with system id, thing IRI and if the IRI is the main IRI
+     */
+    void streamThingIrisOfDependencies(Collection<String> relations, Closure handler) {
+        streamRows(GET_THING_IRIS_OF_DEPENDENCIES_BY_RELATIONS, [relations, relations]) { ResultSet rs ->
+            handler(rs.getString(1), rs.getString(2), rs.getBoolean(3))
+        }
+    }
+
+    /**
+     * @param handler called with system id, thing IRI and if the IRI is the main IRI
+     */
+    void streamThingIrisBySystemIds(Collection<String> ids, Closure handler) {
+        streamRows(GET_THING_IRIS_BY_SYSTEM_IDS, [ids]) { ResultSet rs ->
+            handler(rs.getString(1), rs.getString(2), rs.getBoolean(3))
+        }
+    }
+
+    // Rows are fetched in chunks, for result sets that don't fit in memory
+    private void streamRows(String sql, List<Collection<String>> arrayParams, Closure handleRow) {
+        Connection connection = getOuterReadOnlyConnection()
+        PreparedStatement preparedStatement = null
+        ResultSet rs = null
+        try {
+            connection.setAutoCommit(false)
+            preparedStatement = connection.prepareStatement(sql)
+            preparedStatement.setFetchSize(10_000)
+            int i = 1
+            for (Collection<String> param : arrayParams) {
+                preparedStatement.setArray(i++, connection.createArrayOf("TEXT", param as String[]))
+            }
+            rs = preparedStatement.executeQuery()
+            while (rs.next()) {
+                handleRow(rs)
+            }
+            commit(connection)
+        }
+        finally {
+            close(rs, preparedStatement)
+            connection.setAutoCommit(true)
+            close(connection)
+        }
+    }
+
+    /**
+     * @return true if broaderIri can be reached from narrowerIri by following Relations.BROADER_RELATIONS
+     */
+    boolean isInBroaderClosure(String narrowerIri, String broaderIri) {
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            ResultSet rs = null
+            try {
+                preparedStatement = connection.prepareStatement(IS_IN_BROADER_CLOSURE)
+                preparedStatement.setString(1, narrowerIri)
+                preparedStatement.setString(2, broaderIri)
+                rs = preparedStatement.executeQuery()
+                return rs.next() && rs.getBoolean(1)
+            } finally {
+                close(rs, preparedStatement)
+            }
+        }
+    }
+
+    /**
+     * @return main thing IRIs of everything that reaches iri by following Relations.BROADER_RELATIONS
+     */
+    Set<String> getNarrowerClosure(String iri) {
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            ResultSet rs = null
+            try {
+                preparedStatement = connection.prepareStatement(GET_NARROWER_CLOSURE)
+                preparedStatement.setString(1, iri)
+                rs = preparedStatement.executeQuery()
+                Set<String> result = new HashSet<>()
+                while (rs.next()) {
+                    result.add(rs.getString(1))
+                }
+                return result
+            } finally {
+                close(rs, preparedStatement)
+            }
+        }
+    }
+
     Set<String> getByRelation(String iri, String relation) {
         return dependencyCache.getDependenciesOfType(iri, relation)
     }
@@ -2110,6 +3778,40 @@ class PostgreSQLComponent {
         return dependencyCache.getDependersOfType(iri, relation)
     }
 
+    Map<Link, Set<String>> getByReverseRelations(Collection<Link> links) {
+        return dependencyCache.getDependersOfType(links)
+    }
+
+    /**
+     * @return main thing IRIs of the things linking to each of the links, with the link relation
+     */
+    Map<Link, Set<String>> getDependersOfTypeByThingIris(Collection<Link> links) {
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            ResultSet rs = null
+            try {
+                preparedStatement = connection.prepareStatement(GET_DEPENDERS_OF_TYPE_BY_THING_IRIS)
+                preparedStatement.setArray(1, connection.createArrayOf("TEXT", links.collect { it.iri }.unique() as String[]))
+                preparedStatement.setArray(2, connection.createArrayOf("TEXT", links.collect { it.relation }.unique() as String[]))
+                rs = preparedStatement.executeQuery()
+
+                Map<Link, Set<String>> result = [:]
+                while (rs.next()) {
+                    Link link = new Link(iri: rs.getString(1), relation: rs.getString(2))
+                    // We asked for all combinations of iris and relations
+                    if (links.contains(link)) {
+                        result.computeIfAbsent(link, { new HashSet<String>() }).add(rs.getString(3))
+                    }
+                }
+                return result
+            }
+            finally {
+                close(rs, preparedStatement)
+            }
+        }
+    }
+
     long getIncomingLinkCount(String id) {
         return withDbConnection {
             Connection connection = getMyConnection()
@@ -2120,7 +3822,34 @@ class PostgreSQLComponent {
                 preparedStatement.setString(1, id)
                 rs = preparedStatement.executeQuery()
                 rs.next()
-                return rs.getInt(1)
+                return rs.getLong(1)
+            } finally {
+                close(rs, preparedStatement)
+            }
+        }
+    }
+
+    /**
+     * @return number of incoming links by system id, for the ids that have any
+     */
+    Map<String, Long> getIncomingLinkCounts(Collection<String> ids) {
+        if (!ids) {
+            return [:]
+        }
+
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            ResultSet rs = null
+            try {
+                preparedStatement = connection.prepareStatement(GET_INCOMING_LINK_COUNTS)
+                preparedStatement.setArray(1, connection.createArrayOf("TEXT", ids as String[]))
+                rs = preparedStatement.executeQuery()
+                Map<String, Long> result = [:]
+                while (rs.next()) {
+                    result[rs.getString(1)] = rs.getLong(2)
+                }
+                return result
             } finally {
                 close(rs, preparedStatement)
             }
@@ -2139,7 +3868,7 @@ class PostgreSQLComponent {
                 preparedStatement.setString(1, iri)
                 rs = preparedStatement.executeQuery()
                 while (rs.next()) {
-                    result[rs.getString(1)] = (long) rs.getInt(2)
+                    result[rs.getString(1)] = rs.getLong(2)
                 }
                 return result
             } finally {
@@ -2331,8 +4060,8 @@ class PostgreSQLComponent {
         }
     }
 
-    private Document loadFromSql(String sql, Map parameters) {
-        return withDbConnection {
+    private Document loadFromSql(String sql, Map parameters, boolean version = false) {
+        return withReadOnlyDbConnection {
             Document doc = null
             log.debug("loadFromSql $parameters ($sql)")
             Connection connection = getMyConnection()
@@ -2360,7 +4089,7 @@ class PostgreSQLComponent {
                 log.trace("Executed query.")
                 if (rs.next()) {
                     log.trace("next")
-                    doc = assembleDocument(rs)
+                    doc = assembleDocument(rs, version)
                     log.trace("Created document with id ${doc.getShortId()}")
                 } else if (log.isTraceEnabled()) {
                     log.trace("No results returned for $selectstmt")
@@ -2383,7 +4112,7 @@ class PostgreSQLComponent {
     }
 
     private List<Document> doLoadAllVersions(String identifier, String sql) {
-        return withDbConnection {
+        return withReadOnlyDbConnection {
             Connection connection = getMyConnection()
             PreparedStatement selectstmt = null
             ResultSet rs = null
@@ -2394,7 +4123,7 @@ class PostgreSQLComponent {
                 rs = selectstmt.executeQuery()
                 int v = 0
                 while (rs.next()) {
-                    def doc = assembleDocument(rs)
+                    def doc = assembleDocument(rs, true)
                     doc.version = v++
                     docList << doc
                 }
@@ -2405,8 +4134,135 @@ class PostgreSQLComponent {
         }
     }
 
-    List<DocumentVersion> loadDocumentHistory(String id) {
+    /**
+     * The change history of a document.
+     *
+     * Histories are saved and extended with the versions added since, so only new versions are diffed.
+     * A saved history that doesn't match the stored versions, e.g. after a version was inserted before
+     * the last one, is computed again from all versions.
+     */
+    History getHistory(String id) {
         return withDbConnection {
+            Connection connection = getMyConnection()
+            List<Long> pks = getDocumentVersionPks(id, connection)
+            if (pks.isEmpty()) {
+                return new History(Document.BASE_URI.resolve(id).toString(), jsonld)
+            }
+
+            Map state = getHistoryState(id, pks, connection)
+            int saved = state ? ((Number) state['versions']).intValue() : 0
+            if (saved == pks.size()) {
+                return new History(state, null, jsonld)
+            }
+
+            // The last version in the saved history is needed to diff the first new one against
+            int from = Math.max(saved - 1, 0)
+            Map<Long, DocumentVersion> versions = loadDocumentVersions(id, from, connection)
+            if (new ArrayList<Long>(versions.keySet()) != pks.subList(from, pks.size())) {
+                // Versions were added or reordered since the pks were read
+                log.debug("Versions of $id changed while loading them, history not saved")
+                List<DocumentVersion> all = loadDocumentHistory(id)
+                return all ? new History(all, jsonld) : new History(Document.BASE_URI.resolve(id).toString(), jsonld)
+            }
+
+            Iterator<DocumentVersion> newVersions = versions.values().iterator()
+            History history = state
+                    ? new History(state, newVersions.next(), jsonld)
+                    : new History([newVersions.next()], jsonld)
+            while (newVersions.hasNext()) {
+                history.appendVersion(newVersions.next())
+            }
+
+            saveHistoryState(id, pks, history, connection)
+            return history
+        }
+    }
+
+    private List<Long> getDocumentVersionPks(String id, Connection connection) {
+        PreparedStatement statement = null
+        ResultSet rs = null
+        try {
+            statement = connection.prepareStatement(GET_DOCUMENT_VERSION_PKS)
+            statement.setString(1, id)
+            rs = statement.executeQuery()
+            List<Long> pks = []
+            while (rs.next()) {
+                pks << rs.getLong("pk")
+            }
+            return pks
+        }
+        finally {
+            close(rs, statement)
+        }
+    }
+
+    /**
+     * @return the saved history state, or null if there is none or it doesn't match the versions
+     */
+    private Map getHistoryState(String id, List<Long> pks, Connection connection) {
+        PreparedStatement statement = null
+        ResultSet rs = null
+        try {
+            statement = connection.prepareStatement(GET_HISTORY)
+            statement.setString(1, id)
+            rs = statement.executeQuery()
+            if (!rs.next()) {
+                return null
+            }
+            int versions = rs.getInt("versions")
+            if (versions > pks.size() || rs.getInt("versionsHash") != pks.subList(0, versions).hashCode()) {
+                return null
+            }
+            return mapper.readValue(rs.getString("data"), Map)
+        }
+        finally {
+            close(rs, statement)
+        }
+    }
+
+    private void saveHistoryState(String id, List<Long> pks, History history, Connection connection) {
+        PreparedStatement statement = null
+        try {
+            int versions = history.getNumberOfVersions()
+            statement = connection.prepareStatement(UPSERT_HISTORY)
+            statement.setString(1, id)
+            statement.setInt(2, versions)
+            statement.setInt(3, pks.subList(0, versions).hashCode())
+            statement.setObject(4, mapper.writeValueAsString(history.getState()), OTHER)
+            statement.executeUpdate()
+        }
+        finally {
+            close(statement)
+        }
+    }
+
+    /**
+     * @return versions in order, starting with the version at index from, by pk
+     */
+    private Map<Long, DocumentVersion> loadDocumentVersions(String id, int from, Connection connection) {
+        PreparedStatement statement = null
+        ResultSet rs = null
+        try {
+            statement = connection.prepareStatement(GET_DOCUMENT_VERSIONS_FROM)
+            statement.setString(1, id)
+            statement.setInt(2, from)
+            rs = statement.executeQuery()
+            Map<Long, DocumentVersion> versions = new LinkedHashMap<>()
+            int v = from
+            while (rs.next()) {
+                def doc = assembleDocument(rs, true)
+                doc.version = v++
+                versions[rs.getLong("pk")] = new DocumentVersion(doc, rs.getString("changedBy"), rs.getString("changedIn"))
+            }
+            return versions
+        }
+        finally {
+            close(rs, statement)
+        }
+    }
+
+    List<DocumentVersion> loadDocumentHistory(String id) {
+        return withReadOnlyDbConnection {
             Connection connection = getMyConnection()
             PreparedStatement selectstmt = null
             ResultSet rs = null
@@ -2417,7 +4273,7 @@ class PostgreSQLComponent {
                 rs = selectstmt.executeQuery()
                 int v = 0
                 while (rs.next()) {
-                    def doc = assembleDocument(rs)
+                    def doc = assembleDocument(rs, true)
                     doc.version = v++
                     docList.add(new DocumentVersion(doc, rs.getString("changedBy"), rs.getString("changedIn")))
                 }
@@ -2453,8 +4309,17 @@ class PostgreSQLComponent {
         }
     }
 
-    private static Document assembleDocument(ResultSet rs) {
-        Document doc = new Document(mapper.readValue(rs.getString("data"), Map))
+    /**
+     * @param version true if rs is from lddb__versions, where data is the snapshot to apply patch to for versions
+     *                stored as patches
+     */
+    private static Document assembleDocument(ResultSet rs, boolean version = false) {
+        Map data = mapper.readValue(rs.getString("data"), Map)
+        String patch = version ? rs.getString("patch") : null
+        if (patch != null) {
+            data = (Map) JsonPatch.apply(data, mapper.readValue(patch, List))
+        }
+        Document doc = new Document(data)
         doc.setModified(new Date(rs.getTimestamp("modified").getTime()))
         doc.setDeleted(rs.getBoolean("deleted"))
 
@@ -2472,7 +4337,7 @@ class PostgreSQLComponent {
     Iterable<Document> loadAll(String collection, boolean includeDeleted = false, Date since = null, Date until = null) {
         return new Iterable<Document>() {
             Iterator<Document> iterator() {
-                Connection connection = getOuterConnection()
+                Connection connection = getOuterReadOnlyConnection()
                 connection.setAutoCommit(false)
                 PreparedStatement loadAllStatement
                 long untilTS = until?.getTime() ?: PGStatement.DATE_POSITIVE_INFINITY
@@ -2512,7 +4377,7 @@ class PostgreSQLComponent {
                 boolean more = rs.next()
                 if (!more) {
                     try {
-                        connection.commit()
+                        commit(connection)
                         connection.setAutoCommit(true)
                     } finally {
                         connection.close()
@@ -2527,7 +4392,7 @@ class PostgreSQLComponent {
                         more = rs.next()
                         if (!more) {
                             try {
-                                connection.commit()
+                                commit(connection)
                                 connection.setAutoCommit(true)
                             } finally {
                                 connection.close()
@@ -2545,6 +4410,74 @@ class PostgreSQLComponent {
         }
     }
 
+    /**
+     * Split a collection in ranges of ids for reading with loadIdRange().
+     *
+     * @return at most numRanges - 1 ids, range n is (boundaries[n-1], boundaries[n]]
+     */
+    List<String> sampleIdRangeBoundaries(String collection, int numRanges) {
+        return withReadOnlyDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            ResultSet rs = null
+            try {
+                preparedStatement = connection.prepareStatement(SAMPLE_ID_RANGE_BOUNDARIES)
+                preparedStatement.setInt(1, numRanges)
+                preparedStatement.setString(2, collection)
+                rs = preparedStatement.executeQuery()
+                List<String> result = []
+                while (rs.next()) {
+                    result.add(rs.getString(1))
+                }
+                // The last range is open ended
+                return result.isEmpty() ? result : result.subList(0, result.size() - 1)
+            }
+            finally {
+                close(rs, preparedStatement)
+            }
+        }
+    }
+
+    /**
+     * Load documents in id order, keyset paginated.
+     *
+     * @param afterId exclusive lower bound, "" for the start of the collection
+     * @param toId inclusive upper bound, null for the end of the collection
+     */
+    List<Document> loadIdRange(String collection, String afterId, String toId, int limit) {
+        return withReadOnlyDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            ResultSet rs = null
+            try {
+                String sql = LOAD_DOCUMENTS_IN_ID_RANGE
+                if (toId != null) {
+                    sql += " AND id <= ?"
+                }
+                sql += " ORDER BY id LIMIT ?"
+
+                preparedStatement = connection.prepareStatement(sql)
+                int i = 1
+                preparedStatement.setString(i++, collection)
+                preparedStatement.setString(i++, afterId)
+                if (toId != null) {
+                    preparedStatement.setString(i++, toId)
+                }
+                preparedStatement.setInt(i, limit)
+
+                rs = preparedStatement.executeQuery()
+                List<Document> result = new ArrayList<>(limit)
+                while (rs.next()) {
+                    result.add(assembleDocument(rs))
+                }
+                return result
+            }
+            finally {
+                close(rs, preparedStatement)
+            }
+        }
+    }
+
     static Iterable<Document> iterateDocuments(ResultSet rs) {
         def conn = rs.statement.connection
         boolean more = rs.next() // rs starts at "-1"
@@ -2585,8 +4518,12 @@ class PostgreSQLComponent {
 
     void remove(String identifier, String changedIn, String changedBy, boolean force=false) {
         if (versioning) {
-            if(!force && !followDependers(identifier).isEmpty())
-                throw new RuntimeException("Deleting depended upon records is not allowed.")
+            if (!force) {
+                // On the primary, a replica might not have the latest links yet
+                List<Tuple2<String, String>> dependers = withDbConnection { followDependers(identifier) }
+                if (!dependers.isEmpty())
+                    throw new RuntimeException("Deleting depended upon records is not allowed.")
+            }
 
             log.debug("Marking document with ID ${identifier} as deleted.")
             try {
@@ -2607,14 +4544,19 @@ class PostgreSQLComponent {
         // Clear out dependencies
         withDbConnection {
             Connection connection = getMyConnection()
-            PreparedStatement removeDependencies = null
             try {
-                removeDependencies = connection.prepareStatement(DELETE_DEPENDENCIES)
-                removeDependencies.setString(1, identifier)
-                int numRemoved = removeDependencies.executeUpdate()
-                log.debug("Removed $numRemoved dependencies for id ${identifier}")
+                connection.setAutoCommit(false)
+                List<String[]> removed = deleteDependencies(identifier, connection)
+                updateDependencyCounts(removed, [], connection)
+                deleteElasticShape(identifier, connection)
+                deleteHistory(identifier, connection)
+                commit(connection)
+                markWritten()
+            } catch (Exception e) {
+                rollback(connection)
+                throw e
             } finally {
-                close(removeDependencies)
+                connection.setAutoCommit(true)
             }
         }
     }
@@ -2656,6 +4598,7 @@ class PostgreSQLComponent {
                 preparedStatement.setTimestamp(3, new Timestamp(new Date().getTime()))
 
                 boolean createdOrUpdated = preparedStatement.executeUpdate() > 0
+                markWritten()
                 return createdOrUpdated
             } finally {
                 close(preparedStatement)
@@ -2671,6 +4614,7 @@ class PostgreSQLComponent {
                 preparedStatement = connection.prepareStatement(DELETE_USER_DATA)
                 preparedStatement.setString(1, id)
                 int numRemoved = preparedStatement.executeUpdate()
+                markWritten()
                 log.debug("Removed ${numRemoved} user data record for id ${id}")
             } finally {
                 close(preparedStatement)
@@ -2678,8 +4622,19 @@ class PostgreSQLComponent {
         }
     }
     
+    private static final Set<NotificationType> SELF_DELIVERED_NOTIFICATIONS = EnumSet.of(
+            NotificationType.CARD_CACHE_INVALIDATE,
+            NotificationType.EMBELLISHED_CACHE_INVALIDATE,
+            NotificationType.EMBELLISHED_CACHE_CLEAR,
+            NotificationType.ALL_CACHES_CLEAR)
+
     enum NotificationType {
-        DEPENDENCY_CACHE_INVALIDATE
+        DEPENDENCY_CACHE_INVALIDATE,
+        EMBELLISHED_CACHE_INVALIDATE,
+        EMBELLISHED_CACHE_CLEAR,
+        CARD_CACHE_INVALIDATE,
+        // Sent by Notifier instead of the notifications it had to drop
+        ALL_CACHES_CLEAR
         
         String id() {
             // Made lower case by PG when used as a relname, but not when used as a string.
@@ -2693,30 +4648,51 @@ class PostgreSQLComponent {
         }
     }
     
+    /**
+     * Queue a notification to be sent in the background, see Notifier.
+     * Payloads sent shortly after each other are merged.
+     *
+     * When called in a transaction the notification is queued when it commits, so that it isn't delivered before
+     * the changes it is about are visible.
+     */
     void sendNotification(NotificationType type, List<String> payload) {
-        int MAX_BYTES_PER_CHAR_UNICODE_BMP = 3 // overly cautious
-        
-        def messages = []
-        StringBuilder s = new StringBuilder().append(whelkInstanceId)
-        for (String p : payload) {
-            if (s.size() + p.size() + 1 > MAX_PG_NOTIFY_PAYLOAD_BYTES / MAX_BYTES_PER_CHAR_UNICODE_BMP) {
-                messages << s.toString()
-                s = new StringBuilder().append(whelkInstanceId)
-            }
-            s.append(NOTIFICATION_DELIMITER).append(p)
+        Connection transaction = connectionContextTL.get()?.connection
+        if (transaction != null && !transaction.getAutoCommit()) {
+            sendNotificationAfterCommit(type, payload, transaction)
         }
-        messages << s.toString()
-        
-        withDbConnection {
-            for (String message : messages) {
-                try (PreparedStatement statement = getMyConnection().prepareStatement('SELECT pg_notify(?, ?)')) {
-                    statement.setString(1, type.id())
-                    statement.setString(2, message)
-                    statement.execute()
-                }
+        else if (notifier && !syncNotifications) {
+            notifier.send(type.id(), payload)
+        }
+        else {
+            withDbConnection {
+                sendNotification(type, payload, getMyConnection())
             }
         }
     }
+
+    /**
+     * Send a notification when the transaction on connection commits, not at all if it is rolled back.
+     * It is handed to the notifier after the commit, so that the commit doesn't wait for the notification queue.
+     * If the transaction isn't committed through this component, it is sent in the transaction instead.
+     */
+    private void sendNotificationAfterCommit(NotificationType type, List<String> payload, Connection connection) {
+        boolean ownTransaction = connectionContextTL.get()?.connection.is(connection)
+        if (notifier && !syncNotifications && (ownTransaction || connection.getAutoCommit())) {
+            afterCommit(connection, { notifier.send(type.id(), payload) } as Runnable)
+        }
+        else {
+            sendNotification(type, payload, connection)
+        }
+    }
+
+    /**
+     * Send a notification right away on the given connection.
+     * Notifications sent in a transaction are delivered when it commits, and not at all if it is rolled back.
+     */
+    void sendNotification(NotificationType type, List<String> payload, Connection connection) {
+        List<String> messages = Notifier.pack(whelkInstanceId, NOTIFICATION_DELIMITER, payload)
+        Notifier.send(connection, Collections.nCopies(messages.size(), type.id()), messages)
+    }
     
     class NotificationListener extends Thread {
         private static final String NAME = 'pg_listener'
@@ -2762,9 +4738,12 @@ class PostgreSQLComponent {
                 for (PGNotification notification : notifications) {
                     try {
                         String msg = notification.getParameter()
-                        if (!msg.startsWith(whelkInstanceId)) {
+                        NotificationType type = NotificationType.parse(notification.getName())
+                        // Cards and embellished documents are also evicted locally after commit, a concurrent
+                        // read can have cached the old version between the eviction in the transaction and the commit
+                        if (!msg.startsWith(whelkInstanceId) || type in SELF_DELIVERED_NOTIFICATIONS) {
                             def payload = msg.split(NOTIFICATION_DELIMITER).drop(1) as List
-                            handleNotification(NotificationType.parse(notification.getName()), payload)
+                            handleNotification(type, payload)
                         }
                     }
                     catch (Exception e) {
@@ -2782,12 +4761,34 @@ class PostgreSQLComponent {
             if (type == NotificationType.DEPENDENCY_CACHE_INVALIDATE) {
                 dependencyCache.handleInvalidateNotification(payload)
             }
+            else if (type == NotificationType.EMBELLISHED_CACHE_INVALIDATE) {
+                embellishedCache?.handleInvalidateNotification(payload)
+                convertedCache?.invalidate(payload)
+            }
+            else if (type == NotificationType.EMBELLISHED_CACHE_CLEAR) {
+                embellishedCache?.invalidateAll()
+                convertedCache?.invalidateAll()
+            }
+            else if (type == NotificationType.CARD_CACHE_INVALIDATE) {
+                invalidateCards(payload)
+            }
+            else if (type == NotificationType.ALL_CACHES_CLEAR) {
+                invalidateAllCaches()
+            }
             
             counter.labels(type.id()).inc()
         }
         
         private void onConnected() {
+            // Notifications may have been lost while not connected
+            invalidateAllCaches()
+        }
+
+        private void invalidateAllCaches() {
             dependencyCache.invalidateAll()
+            embellishedCache?.invalidateAll()
+            convertedCache?.invalidateAll()
+            invalidateAllCards()
         }
     }
 
@@ -2795,6 +4796,14 @@ class PostgreSQLComponent {
         // The actual data, shared by both versions
         Connection connection
         int level = 1
+        // Set for withReadOnlyDbConnection() blocks on a read replica, connection is then taken from it
+        ReadReplicas.Replica replica
+        // A read replica context left for a withDbConnection() block, restored when it ends
+        ConnectionContext suspended
+        // Set when something later reads must see has been written on the connection, see markWritten()
+        boolean written
+        // Run when the transaction on the connection commits, see afterCommit()
+        List<Runnable> afterCommit = []
 
         // For the for Groovy (Closure) version
         ConnectionContext() {}
@@ -2804,27 +4813,73 @@ class PostgreSQLComponent {
 
         ConnectionContext(ThreadLocal<ConnectionContext> baseTL) {
             this.baseTL = baseTL
-            ConnectionContext c = baseTL.get()
-            if (!c) {
-                baseTL.set(new ConnectionContext())
+            enter(baseTL)
+        }
+
+        void close()
+        {
+            leave(baseTL)
+        }
+
+        static void enter(ThreadLocal<ConnectionContext> tl) {
+            ConnectionContext c = tl.get()
+            if (!c || c.replica) {
+                ConnectionContext context = new ConnectionContext()
+                context.suspended = c
+                tl.set(context)
             }
             else {
                 c.level++
             }
         }
 
-        void close()
-        {
-            ConnectionContext c = baseTL.get()
+        static void leave(ThreadLocal<ConnectionContext> tl) {
+            ConnectionContext c = tl.get()
             c.level--
             if (c.level == 0) {
                 close(c.connection)
                 c.connection = null
-                baseTL.remove()
+                if (c.suspended) {
+                    tl.set(c.suspended)
+                } else {
+                    tl.remove()
+                }
             }
         }
     }
 
+    /**
+     * Run action after the transaction on connection has been committed by commit(), or right away if
+     * connection isn't in a transaction of this thread. Nothing is run if the transaction is rolled back.
+     */
+    private void afterCommit(Connection connection, Runnable action) {
+        ConnectionContext c = connectionContextTL.get()
+        if (c?.connection.is(connection) && !connection.getAutoCommit()) {
+            c.afterCommit << action
+        }
+        else {
+            action.run()
+        }
+    }
+
+    private void commit(Connection connection) {
+        connection.commit()
+        ConnectionContext c = connectionContextTL.get()
+        if (c?.connection.is(connection) && c.afterCommit) {
+            List<Runnable> actions = c.afterCommit
+            c.afterCommit = []
+            actions.each { it.run() }
+        }
+    }
+
+    private void rollback(Connection connection) {
+        connection.rollback()
+        ConnectionContext c = connectionContextTL.get()
+        if (c?.connection.is(connection)) {
+            c.afterCommit = []
+        }
+    }
+
     public ThreadLocal<ConnectionContext> connectionContextTL = ThreadLocal.withInitial({ -> (ConnectionContext) null })
 
     Connection getMyConnection() {
@@ -2833,7 +4888,7 @@ class PostgreSQLComponent {
             throw new IllegalStateException("getMyConnection() called outside withDbConnection()")
         }
         if (!c.connection) {
-            c.connection = _getConnection()
+            c.connection = c.replica ? c.replica.pool.getConnection() : _getConnection()
         }
         return c.connection
     }
@@ -2848,30 +4903,130 @@ class PostgreSQLComponent {
      *
      * It is perfectly fine to nest several withDbConnection()-blocks. Doing so has no practical effect.
      * The same connection is always returned anyway, and that connection is released when the outermost
-     * block ends.
+     * block ends. The exception is a withDbConnection()-block inside a withReadOnlyDbConnection()-block on
+     * a read replica, it gets a connection to the primary.
      */
     def <T> T withDbConnection(Closure closure) {
         Preconditions.checkNotNull(closure)
         try {
+            ConnectionContext.enter(connectionContextTL)
+            return (T) closure.call()
+        }
+        finally {
             ConnectionContext c = connectionContextTL.get()
-            if (!c) {
-                connectionContextTL.set(new ConnectionContext())
+            if (c.level == 1 && c.written && c.connection != null && readReplicas) {
+                recordWriteLsn(c.connection)
             }
-            else {
-                c.level++
+            ConnectionContext.leave(connectionContextTL)
+        }
+    }
+
+    /**
+     * Like withDbConnection(), but for blocks that only read. If read replicas are configured
+     * (sqlReplicaUrls) getMyConnection() returns a connection to one of them.
+     *
+     * The primary is used instead when:
+     * - already inside a withDbConnection()-block, its connection is used.
+     * - no replica has replayed the latest write of this thread yet, so that what was written is read.
+     *
+     * Writes made in the block must be made in a nested withDbConnection()-block. Taking a primary
+     * connection while holding a replica connection can't deadlock since it is never done the other way around.
+     */
+    def <T> T withReadOnlyDbConnection(Closure closure) {
+        Preconditions.checkNotNull(closure)
+        ConnectionContext c = connectionContextTL.get()
+        if (c != null) {
+            c.level++
+            try {
+                return (T) closure.call()
+            }
+            finally {
+                ConnectionContext.leave(connectionContextTL)
+            }
+        }
+
+        ReadReplicas.Replica replica = readReplicas?.select(lastWriteLsn.get())
+        Histogram.Timer timer = ReadReplicas.startTimer(replica ? replica.name : ReadReplicas.PRIMARY)
+        try {
+            if (!replica) {
+                return (T) withDbConnection(closure)
+            }
+            ConnectionContext context = new ConnectionContext()
+            context.replica = replica
+            connectionContextTL.set(context)
+            try {
+                return (T) closure.call()
             }
+            finally {
+                ConnectionContext.leave(connectionContextTL)
+            }
+        }
+        finally {
+            timer.observeDuration()
+        }
+    }
+
+    /**
+     * Note that something has been written on the connection of this thread, that later reads must see.
+     * The WAL position is then recorded when the connection is released, see withReadOnlyDbConnection().
+     * Writes to caches and queues don't need to be seen by replica reads and aren't marked.
+     */
+    private void markWritten() {
+        ConnectionContext c = connectionContextTL.get()
+        if (c != null) {
+            c.written = true
+        }
+    }
+
+    /**
+     * WAL position after the latest write of this thread, 0 if it hasn't written anything
+     */
+    long getLastWriteLsn() {
+        return lastWriteLsn.get()
+    }
 
+    /**
+     * Make reads in the block see everything written up to a WAL position, e.g. by another thread, see
+     * getLastWriteLsn(). Reads then only go to replicas that have replayed that far, otherwise to the primary.
+     */
+    def <T> T withReadsAfter(long lsn, Closure closure) {
+        long before = lastWriteLsn.get()
+        long raised = Math.max(before, lsn)
+        lastWriteLsn.set(raised)
+        try {
             return (T) closure.call()
         }
         finally {
-            ConnectionContext c = connectionContextTL.get()
-            c.level--
-            if (c.level == 0) {
-                close(c.connection)
-                c.connection = null
-                connectionContextTL.remove()
+            // Unless the block has written something itself
+            if (lastWriteLsn.get() == raised) {
+                lastWriteLsn.set(before)
+            }
+        }
+    }
+
+    /**
+     * Remember the WAL position after what this thread has written on connection.
+     * Only called when the connection is released, for connections where markWritten() was called.
+     */
+    private void recordWriteLsn(Connection connection) {
+        PreparedStatement preparedStatement = null
+        ResultSet rs = null
+        try {
+            if (connection.isClosed() || !connection.getAutoCommit()) {
+                return
+            }
+            preparedStatement = connection.prepareStatement(GET_CURRENT_LSN)
+            rs = preparedStatement.executeQuery()
+            if (rs.next()) {
+                lastWriteLsn.set(rs.getLong(1))
             }
         }
+        catch (Exception e) {
+            log.warn("Could not get current WAL position: $e")
+        }
+        finally {
+            close(rs, preparedStatement)
+        }
     }
 
     /**
@@ -2902,6 +5057,22 @@ class PostgreSQLComponent {
         return getOuterPool().getConnection()
     }
 
+    /**
+     * Like getOuterConnection(), but for reading only. The connection is to a read replica if one is configured
+     * and has replayed the latest write of this thread, see withReadOnlyDbConnection().
+     *
+     * Note that long transactions on a replica can be cancelled if they conflict with replication, depending on
+     * its max_standby_streaming_delay and hot_standby_feedback settings.
+     */
+    Connection getOuterReadOnlyConnection() {
+        ConnectionContext c = connectionContextTL.get()
+        if (c != null) {
+            throw new IllegalStateException("getOuterReadOnlyConnection() called inside withDbConnection()-block. This would risk a deadlock.")
+        }
+        ReadReplicas.Replica replica = readReplicas?.select(lastWriteLsn.get())
+        return replica ? replica.pool.getConnection() : getOuterPool().getConnection()
+    }
+
     private DataSource getOuterPool() {
         if (!outerConnectionPool) {
             synchronized (this) {
@@ -2923,6 +5094,23 @@ class PostgreSQLComponent {
         return pool
     }
 
+    /**
+     * An additional pool for reading only, e.g. for exports. It is on a read replica if any is configured.
+     * There is no guard against replication lag, use it for reads that don't depend on writes just made.
+     */
+    DataSource createAdditionalReadOnlyConnectionPool(String name, int size = this.getPoolSize()) {
+        if (!readReplicas) {
+            return createAdditionalConnectionPool(name, size)
+        }
+        HikariConfig config = new HikariConfig()
+        ((HikariDataSource) readReplicas.any().pool).copyStateTo(config)
+        config.setPoolName(name)
+        config.setMaximumPoolSize(size)
+        HikariDataSource pool = new HikariDataSource(config)
+        log.info("Created additional read-only connection pool: ${pool.getPoolName()} at ${config.getJdbcUrl()}, max size:${pool.getMaximumPoolSize()}")
+        return pool
+    }
+
     // FIXME: de-KBV/Libris-ify: maybe
     private String getDescriptionChangerId(String changedBy) {
         //FIXME(?): hardcoded
@@ -0,0 +1,120 @@
+package whelk.component
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log4j2 as Log
+import io.prometheus.client.Counter
+import io.prometheus.client.Histogram
+
+import javax.sql.DataSource
+import java.sql.Connection
+import java.sql.PreparedStatement
+import java.sql.ResultSet
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Connection pools of read-only replicas of the database, see PostgreSQLComponent.withReadOnlyDbConnection().
+ *
+ * Replicas are used round robin. Reads that must see a write, e.g. a document just saved by the same
+ * thread, pass the WAL position (LSN) of that write. A replica is only used for them if it has replayed
+ * at least that far, otherwise the caller is expected to fall back to the primary. The latest replayed
+ * position of each replica is remembered, so it is only asked again when a read needs a later position.
+ */
+@Log
+@CompileStatic
+class ReadReplicas {
+    // null on the primary or any server not in recovery, i.e. it is never behind
+    private static final String GET_REPLAY_LSN = "SELECT (pg_last_wal_replay_lsn() - '0/0')::bigint"
+
+    static final String PRIMARY = 'primary'
+
+    private static final Histogram readLatency = Histogram.build()
+            .name("pgsql_read_latency_seconds")
+            .labelNames("pool")
+            .help("Latency of reads routed by withReadOnlyDbConnection(), by the pool they were made on.").register()
+
+    private static final Counter fallbacks = Counter.build()
+            .name("pgsql_replica_fallbacks")
+            .labelNames("reason")
+            .help("Number of reads made on the primary although read replicas are configured, by reason (stale/error).").register()
+
+    static class Replica {
+        final String name
+        final DataSource pool
+        volatile long replayedLsn = -1
+
+        Replica(String name, DataSource pool) {
+            this.name = name
+            this.pool = pool
+        }
+    }
+
+    private final List<Replica> replicas
+    private final AtomicInteger next = new AtomicInteger()
+
+    ReadReplicas(Map<String, DataSource> pools) {
+        replicas = pools.collect { String name, DataSource pool -> new Replica(name, pool) }
+    }
+
+    /**
+     * @param minLsn WAL position the replica must have replayed, 0 for any
+     * @return a replica that is up to date with minLsn, or null if none is
+     */
+    Replica select(long minLsn) {
+        int start = Math.floorMod(next.getAndIncrement(), replicas.size())
+        String reason = 'stale'
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas[(start + i) % replicas.size()]
+            if (minLsn <= replica.replayedLsn) {
+                return replica
+            }
+            try {
+                if (minLsn <= refreshReplayedLsn(replica)) {
+                    return replica
+                }
+            }
+            catch (Exception e) {
+                log.warn("Could not get replay position of read replica ${replica.name}: $e")
+                reason = 'error'
+            }
+        }
+        fallbacks.labels(reason).inc()
+        return null
+    }
+
+    /**
+     * Any replica, for reads that don't depend on recent writes
+     */
+    Replica any() {
+        return replicas[Math.floorMod(next.getAndIncrement(), replicas.size())]
+    }
+
+    List<Replica> getReplicas() {
+        return replicas
+    }
+
+    static Histogram.Timer startTimer(String pool) {
+        return readLatency.labels(pool).startTimer()
+    }
+
+    private static long refreshReplayedLsn(Replica replica) {
+        Connection connection = replica.pool.getConnection()
+        PreparedStatement statement = null
+        ResultSet rs = null
+        try {
+            statement = connection.prepareStatement(GET_REPLAY_LSN)
+            rs = statement.executeQuery()
+            rs.next()
+            long lsn = rs.getLong(1)
+            if (rs.wasNull()) {
+                lsn = Long.MAX_VALUE
+            }
+            replica.replayedLsn = Math.max(replica.replayedLsn, lsn)
+            return lsn
+        }
+        finally {
+            rs?.close()
+            statement?.close()
+            connection.close()
+        }
+    }
+}
@@ -1,13 +1,21 @@
 package whelk.converter.marc
 
+import groovy.transform.CompileStatic
 import groovy.util.logging.Log4j2 as Log
 import org.w3c.dom.DocumentFragment
+import se.kb.libris.util.marc.Controlfield
+import se.kb.libris.util.marc.Datafield
+import se.kb.libris.util.marc.Field
 import se.kb.libris.util.marc.MarcRecord
+import se.kb.libris.util.marc.Subfield
 import whelk.Document
 import whelk.JsonLd
 import whelk.converter.FormatConverter
 import whelk.converter.JSONMarcConverter
 
+import javax.xml.stream.XMLStreamException
+import javax.xml.stream.XMLStreamWriter
+
 import static whelk.util.Jackson.mapper
 
 @Log
@@ -15,6 +23,7 @@ class JsonLD2MarcXMLConverter implements FormatConverter {
 
     // List of restricted chars defined at: https://www.w3.org/TR/xml11/#charsets
     static List<String> restrictedSequences = []
+    private static final Set<String> restrictedSequenceSet = new HashSet<>()
     static {
         for (int i = 0x0; i < 0x8+1; ++i)
             restrictedSequences.add("&#"+i+";")
@@ -26,7 +35,11 @@ class JsonLD2MarcXMLConverter implements FormatConverter {
             restrictedSequences.add("&#"+i+";")
         for (int i = 0x86; i < 0x9F+1; ++i)
             restrictedSequences.add("&#"+i+";")
+        restrictedSequenceSet.addAll(restrictedSequences)
     }
+    private static final int MAX_SEQUENCE_LENGTH = "&#159;".length()
+
+    static final String MARCXML_NS = "http://www.loc.gov/MARC21/slim"
 
     JsonLD2MarcConverter jsonldConverter = null
     
@@ -36,19 +49,92 @@ class JsonLD2MarcXMLConverter implements FormatConverter {
 
     @Override
     Map convert(Map data, String id) {
+        MarcRecord record = toPreparedRecord(data, id)
+
+        String xmlString = whelk.converter.JSONMarcConverter.marcRecordAsXMLString(record)
+        xmlString = filterRestrictedXmlEscapeSequences(xmlString)
+        Map xmlDocument = [(JsonLd.NON_JSON_CONTENT_KEY): xmlString]
+
+        return xmlDocument
+    }
+
+    /**
+     * Convert to a MarcRecord with the same content as the MARCXML from convert(), i.e. without the characters
+     * that are removed from it. Use instead of parsing the result of convert().
+     */
+    MarcRecord convertToRecord(Map data, String id) {
+        MarcRecord record = toPreparedRecord(data, id)
+        filterRestrictedCharacters(record)
+        return record
+    }
+
+    private MarcRecord toPreparedRecord(Map data, String id) {
         Document originalDocument = new Document(data)
 
         Map marcJsonData = jsonldConverter.convert(data, id)
 
         MarcRecord record = JSONMarcConverter.fromJsonMap(marcJsonData)
 
-        record = prepareRecord(record, id, originalDocument.getModified())
+        return prepareRecord(record, id, originalDocument.getModified())
+    }
 
-        String xmlString = whelk.converter.JSONMarcConverter.marcRecordAsXMLString(record)
-        xmlString = filterRestrictedXmlEscapeSequences(xmlString)
-        Map xmlDocument = [(JsonLd.NON_JSON_CONTENT_KEY): xmlString]
+    /**
+     * Write a record from convertToRecord() as MARCXML, in the same form as DomSerializer
+     */
+    @CompileStatic
+    static void writeRecord(MarcRecord record, XMLStreamWriter writer) throws XMLStreamException {
+        writer.writeStartElement("record")
+        writer.writeDefaultNamespace(MARCXML_NS)
+        String type = recordType(record.getLeader(6))
+        if (type != null) {
+            writer.writeAttribute("type", type)
+        }
 
-        return xmlDocument
+        writer.writeStartElement("leader")
+        writer.writeCharacters(record.getLeader())
+        writer.writeEndElement()
+
+        for (Field field : record.getFields()) {
+            if (field instanceof Controlfield) {
+                writer.writeStartElement("controlfield")
+                writer.writeAttribute("tag", field.getTag())
+                writer.writeCharacters(((Controlfield) field).getData())
+                writer.writeEndElement()
+            } else {
+                Datafield datafield = (Datafield) field
+                writer.writeStartElement("datafield")
+                writer.writeAttribute("tag", datafield.getTag())
+                writer.writeAttribute("ind1", String.valueOf(datafield.getIndicator(0)))
+                writer.writeAttribute("ind2", String.valueOf(datafield.getIndicator(1)))
+                for (Subfield subfield : datafield.getSubfields()) {
+                    writer.writeStartElement("subfield")
+                    writer.writeAttribute("code", String.valueOf(subfield.getCode()))
+                    writer.writeCharacters(subfield.getData())
+                    writer.writeEndElement()
+                }
+                writer.writeEndElement()
+            }
+        }
+
+        writer.writeEndElement()
+    }
+
+    @CompileStatic
+    private static String recordType(char typeOfRecord) {
+        switch (String.valueOf(typeOfRecord)) {
+            case 'z':
+                return "Authority"
+            case ['u', 'v', 'x', 'y']:
+                return "Holdings"
+            case ['a', 'c', 'd', 'e', 'f', 'g', 'i', 'j', 'k', 'm', 'o', 'p', 'r', 't']:
+                return "Bibliographic"
+            case 'w':
+                return "Classification"
+            case 'q':
+                return "Community"
+            default:
+                return null
+        }
     }
 
     static MarcRecord prepareRecord(record, identifier, modified) {
@@ -80,10 +166,77 @@ class JsonLD2MarcXMLConverter implements FormatConverter {
         return "application/marcxml+xml"
     }
 
+    @CompileStatic
     private static String filterRestrictedXmlEscapeSequences(String xmlString) {
-        for (String s : restrictedSequences) {
-            xmlString = xmlString.replaceAll(s, "")
+        StringBuilder filtered = null
+        int copied = 0
+        int start = xmlString.indexOf("&#")
+        while (start != -1) {
+            int end = xmlString.indexOf(";", start)
+            if (end == -1) {
+                break
+            }
+            if (end - start < MAX_SEQUENCE_LENGTH && restrictedSequenceSet.contains(xmlString.substring(start, end + 1))) {
+                if (filtered == null) {
+                    filtered = new StringBuilder(xmlString.length())
+                }
+                filtered.append(xmlString, copied, start)
+                copied = end + 1
+            }
+            start = xmlString.indexOf("&#", start + 2)
+        }
+        if (filtered == null) {
+            return xmlString
+        }
+        return filtered.append(xmlString, copied, xmlString.length()).toString()
+    }
+
+    /**
+     * Remove the characters that are written as restricted sequences in MARCXML, and replace control characters
+     * in subfields like DomSerializer does
+     */
+    @CompileStatic
+    private static void filterRestrictedCharacters(MarcRecord record) {
+        record.setLeader(filterRestrictedCharacters(record.getLeader(), false))
+        for (Field field : record.getFields()) {
+            if (field instanceof Controlfield) {
+                Controlfield controlfield = (Controlfield) field
+                controlfield.setData(filterRestrictedCharacters(controlfield.getData(), false))
+            } else {
+                for (Subfield subfield : ((Datafield) field).getSubfields()) {
+                    subfield.setData(filterRestrictedCharacters(subfield.getData(), true))
+                }
+            }
+        }
+    }
+
+    @CompileStatic
+    private static String filterRestrictedCharacters(String s, boolean replaceControlCharacters) {
+        if (s == null) {
+            return null
         }
-        return xmlString
+        StringBuilder filtered = null
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i)
+            boolean replace = replaceControlCharacters && c < 0x20
+            boolean remove = !replace && isRestricted((int) c)
+            if ((replace || remove) && filtered == null) {
+                filtered = new StringBuilder(s.length())
+                filtered.append(s, 0, i)
+            }
+            if (replace) {
+                filtered.append('?' as char)
+            } else if (filtered != null && !remove) {
+                filtered.append(c)
+            }
+        }
+        return filtered == null ? s : filtered.toString()
+    }
+
+    // Same characters as restrictedSequences
+    @CompileStatic
+    private static boolean isRestricted(int c) {
+        return c <= 0x8 || c == 0xB || c == 0xC || (c >= 0xE && c <= 0x1F) ||
+                (c >= 0x7F && c <= 0x84) || (c >= 0x86 && c <= 0x9F)
     }
 }
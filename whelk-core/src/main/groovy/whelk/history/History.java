@@ -34,130 +34,191 @@ public class History {
 
     private final JsonLd m_jsonLd;
 
+    // A list of all paths for which added versions claim ownership.
+    // These are no longer set directly, because this list needs to be pruned
+    // first. For example, we don't want a change in @graph,1,instanceOf,something
+    // to cause a claim on all of @graph,1.
+    private final List<List<Object>> m_claimedPaths;
+
+    // The number of versions added to this history
+    private int m_numVersions;
+
     /**
      * Reconstruct a records history given a list of versions of said record
      */
     public History(List<DocumentVersion> versions, JsonLd jsonLd) {
+        this(versions.get(0).doc.getCompleteId(), jsonLd);
+
+        // The list we get is sorted chronologically, oldest first.
+        for (DocumentVersion version : versions) {
+            appendVersion(version);
+        }
+    }
+
+    /**
+     * A history without any versions yet, e.g. of a record stored without versioning.
+     */
+    public History(String recordId, JsonLd jsonLd) {
         m_jsonLd = jsonLd;
         m_pathOwnership = new HashMap<>();
+        m_claimedPaths = new ArrayList<>();
+        m_numVersions = 0;
 
         m_changeSetsMap = new HashMap();
-        m_changeSetsMap.put("@id", versions.get(0).doc.getCompleteId() + "/_changesets");
+        m_changeSetsMap.put("@id", recordId + "/_changesets");
         m_changeSetsMap.put("changeSets", new ArrayList<>());
+    }
 
-        // A list of all paths for which this added version claims ownership.
-        // These are no longer set directly, because this list needs to be pruned
-        // first. For example, we don't want a change in @graph,1,instanceOf,something
-        // to cause a claim on all of @graph,1.
-        List<List<Object>> claimedPaths = new ArrayList<>();
+    /**
+     * Restore a history saved with getState(), so that later versions can be appended to it.
+     *
+     * @param lastVersion the last version that was added to the saved history
+     */
+    public History(Map state, DocumentVersion lastVersion, JsonLd jsonLd) {
+        m_jsonLd = jsonLd;
+        m_changeSetsMap = (Map) state.get("changeSets");
+        m_claimedPaths = (List<List<Object>>) state.get("claimedPaths");
+        m_numVersions = ((Number) state.get("versions")).intValue();
+        m_lastVersion = lastVersion;
 
-        // The list we get is sorted chronologically, oldest first.
-        for (int i = 0; i < versions.size(); ++i) {
-            DocumentVersion version = versions.get(i);
-
-            Map changeSet = new HashMap();
-            changeSet.put("@type", "ChangeSet");
-            Map versionLink = new HashMap();
-            versionLink.put("@id", version.doc.getCompleteId() + "/data?version=" + i);
-            changeSet.put("version", versionLink);
-            changeSet.put("addedPaths", new HashSet<>());
-            changeSet.put("removedPaths", new HashSet<>());
-            changeSet.put("agent", version.changedBy);
-            List changeSets = (List) m_changeSetsMap.get("changeSets");
-            changeSet.put("agent", getAgent(version));
-            changeSet.put("date", version.doc.getModified());
-            if (wasScriptEdit(version)) {
-                changeSet.put("date", version.doc.getGenerationDate());
-                Map tool = new HashMap();
-                tool.put("@id", "https://id.kb.se/generator/globalchanges");
-                changeSet.put("tool", tool);
-            } else if ("APIX".equals(version.changedIn)) {
-                Map tool = new HashMap();
-                tool.put("@id", "https://id.kb.se/generator/apix");
-                changeSet.put("tool", tool);
-            } else if ("batch import".equals(version.changedIn)) {
-                Map tool = new HashMap();
-                tool.put("@id", "https://id.kb.se/generator/batchimport");
-                changeSet.put("tool", tool);
-            } else if ("vcopy".equals(version.changedIn)) {
-                Map tool = new HashMap();
-                tool.put("@id", "https://id.kb.se/generator/voyager");
-                changeSet.put("tool", tool);
-            } else if ("WhelkCopier".equals(version.changedBy)) {
-                Map tool = new HashMap();
-                tool.put("@id", "https://id.kb.se/generator/whelkcopier");
-                changeSet.put("tool", tool);
-            } else if ("xl".equals(version.changedIn)) { // Must be last in list!
-                Map tool = new HashMap();
-                tool.put("@id", "https://id.kb.se/generator/crud");
-                changeSet.put("tool", tool);
-            }
-            changeSets.add(changeSet);
-            var previousVersion = m_lastVersion;
-            addVersion(version, changeSet, claimedPaths);
-
-            /*  Apply new ownerships. The rules for ownership are now:
-                1. Consider only the composite path if/when available (so for example changing a subtitle
-                   counts as having changed the title as a whole.
-                2. Count only the deepest place of change. So while a change deep in a document could be considered
-                   a change on many levels, only the actual place where data is different will be counted.
-                3. If the modified thing was an element in a list: Claim only that element.
-                4. If the modified thing was a property on some object, for example "issuanceType": Claim
-                   the whole containing object (the instance in this case).
-            */
-            {
-                for (List<Object> claimedPath : claimedPaths) {
-                    boolean existsMoreSpecific = false;
-                    for (List deeperPath : claimedPaths) {
-                        if (isSubList(claimedPath, deeperPath) && deeperPath.size() > claimedPath.size()) {
-                            existsMoreSpecific = true;
-                        }
-                    }
+        m_pathOwnership = new HashMap<>();
+        for (Map entry : (List<Map>) state.get("ownership")) {
+            m_pathOwnership.put((List<Object>) entry.get("path"), new Ownership((Map) entry.get("ownership")));
+        }
+    }
 
-                    if (!existsMoreSpecific) {
-                        List<Object> finalClaim;
-                        if (claimedPath.get(claimedPath.size()-1) instanceof String) {
-                            finalClaim = claimedPath.subList(0, claimedPath.size() - 1); // You own the next larger context than the one you changed.
-                        } else
-                            finalClaim = claimedPath;
-                        m_pathOwnership.put(finalClaim, new Ownership(version, m_pathOwnership.get(finalClaim)));
+    /**
+     * @return everything needed to restore this history, as JSON-serializable data
+     */
+    public Map getState() {
+        List<Map> ownership = new ArrayList<>();
+        for (Map.Entry<List<Object>, Ownership> entry : m_pathOwnership.entrySet()) {
+            Map m = new HashMap();
+            m.put("path", entry.getKey());
+            m.put("ownership", entry.getValue().toMap());
+            ownership.add(m);
+        }
+
+        Map state = new HashMap();
+        state.put("versions", m_numVersions);
+        state.put("changeSets", m_changeSetsMap);
+        state.put("claimedPaths", m_claimedPaths);
+        state.put("ownership", ownership);
+        return state;
+    }
+
+    public int getNumberOfVersions() {
+        return m_numVersions;
+    }
 
-                        //System.err.println("Claim:\n" + claimedPath + "\nreduced to:\n" + finalClaim);
+    /**
+     * Add the next version of the record, diffing it only against the version added before it.
+     */
+    public void appendVersion(DocumentVersion version) {
+        int i = m_numVersions++;
+
+        Map changeSet = new HashMap();
+        changeSet.put("@type", "ChangeSet");
+        Map versionLink = new HashMap();
+        versionLink.put("@id", version.doc.getCompleteId() + "/data?version=" + i);
+        changeSet.put("version", versionLink);
+        changeSet.put("addedPaths", new HashSet<>());
+        changeSet.put("removedPaths", new HashSet<>());
+        changeSet.put("agent", version.changedBy);
+        List changeSets = (List) m_changeSetsMap.get("changeSets");
+        changeSet.put("agent", getAgent(version));
+        changeSet.put("date", version.doc.getModified());
+        if (wasScriptEdit(version)) {
+            changeSet.put("date", version.doc.getGenerationDate());
+            Map tool = new HashMap();
+            tool.put("@id", "https://id.kb.se/generator/globalchanges");
+            changeSet.put("tool", tool);
+        } else if ("APIX".equals(version.changedIn)) {
+            Map tool = new HashMap();
+            tool.put("@id", "https://id.kb.se/generator/apix");
+            changeSet.put("tool", tool);
+        } else if ("batch import".equals(version.changedIn)) {
+            Map tool = new HashMap();
+            tool.put("@id", "https://id.kb.se/generator/batchimport");
+            changeSet.put("tool", tool);
+        } else if ("vcopy".equals(version.changedIn)) {
+            Map tool = new HashMap();
+            tool.put("@id", "https://id.kb.se/generator/voyager");
+            changeSet.put("tool", tool);
+        } else if ("WhelkCopier".equals(version.changedBy)) {
+            Map tool = new HashMap();
+            tool.put("@id", "https://id.kb.se/generator/whelkcopier");
+            changeSet.put("tool", tool);
+        } else if ("xl".equals(version.changedIn)) { // Must be last in list!
+            Map tool = new HashMap();
+            tool.put("@id", "https://id.kb.se/generator/crud");
+            changeSet.put("tool", tool);
+        }
+        changeSets.add(changeSet);
+        var previousVersion = m_lastVersion;
+        addVersion(version, changeSet, m_claimedPaths);
+
+        /*  Apply new ownerships. The rules for ownership are now:
+            1. Consider only the composite path if/when available (so for example changing a subtitle
+               counts as having changed the title as a whole.
+            2. Count only the deepest place of change. So while a change deep in a document could be considered
+               a change on many levels, only the actual place where data is different will be counted.
+            3. If the modified thing was an element in a list: Claim only that element.
+            4. If the modified thing was a property on some object, for example "issuanceType": Claim
+               the whole containing object (the instance in this case).
+        */
+        {
+            for (List<Object> claimedPath : m_claimedPaths) {
+                boolean existsMoreSpecific = false;
+                for (List deeperPath : m_claimedPaths) {
+                    if (isSubList(claimedPath, deeperPath) && deeperPath.size() > claimedPath.size()) {
+                        existsMoreSpecific = true;
                     }
                 }
+
+                if (!existsMoreSpecific) {
+                    List<Object> finalClaim;
+                    if (claimedPath.get(claimedPath.size()-1) instanceof String) {
+                        finalClaim = claimedPath.subList(0, claimedPath.size() - 1); // You own the next larger context than the one you changed.
+                    } else
+                        finalClaim = claimedPath;
+                    m_pathOwnership.put(finalClaim, new Ownership(version, m_pathOwnership.get(finalClaim)));
+
+                    //System.err.println("Claim:\n" + claimedPath + "\nreduced to:\n" + finalClaim);
+                }
             }
+        }
 
-            // Clean up markers that have a more specific equivalent
-            {
-                Set<List> added = (Set<List>) changeSet.get("addedPaths");
-                Set<List> removed = (Set<List>) changeSet.get("removedPaths");
-                
-                Set<List> addedAndRemoved = new HashSet<>(added);
-                addedAndRemoved.addAll(removed);
+        // Clean up markers that have a more specific equivalent
+        {
+            Set<List> added = (Set<List>) changeSet.get("addedPaths");
+            Set<List> removed = (Set<List>) changeSet.get("removedPaths");
+            
+            Set<List> addedAndRemoved = new HashSet<>(added);
+            addedAndRemoved.addAll(removed);
+            
+            for (List deeperPath : addedAndRemoved) {
+                added.removeIf(p -> !p.equals(deeperPath) && isSubList(p, deeperPath));
+                removed.removeIf(p -> !p.equals(deeperPath) && isSubList(p, deeperPath));
+            }
+            
+            if (previousVersion != null) {
+                var prev = previousVersion.doc.data;
+                var curr = m_lastVersion.doc.data;
                 
-                for (List deeperPath : addedAndRemoved) {
-                    added.removeIf(p -> !p.equals(deeperPath) && isSubList(p, deeperPath));
-                    removed.removeIf(p -> !p.equals(deeperPath) && isSubList(p, deeperPath));
+                for (var parent : added.stream().map(History::parent).collect(Collectors.toSet())) {
+                    boolean isLangContainer = m_jsonLd.getLangContainerAliasInverted().containsKey(last(parent));
+                    if (!isLangContainer && isAllChanged(getAtPath(prev, parent), getAtPath(curr, parent))) {
+                        added.removeIf(p -> isSubList(parent, p));
+                        added.add(parent);
+                    }
                 }
                 
-                if (previousVersion != null) {
-                    var prev = previousVersion.doc.data;
-                    var curr = m_lastVersion.doc.data;
-                    
-                    for (var parent : added.stream().map(History::parent).collect(Collectors.toSet())) {
-                        boolean isLangContainer = jsonLd.getLangContainerAliasInverted().containsKey(last(parent));
-                        if (!isLangContainer && isAllChanged(getAtPath(prev, parent), getAtPath(curr, parent))) {
-                            added.removeIf(p -> isSubList(parent, p));
-                            added.add(parent);
-                        }
-                    }
-                    
-                    for (var parent : removed.stream().map(History::parent).collect(Collectors.toSet())) {
-                        boolean isLangContainer = jsonLd.getLangContainerAliasInverted().containsKey(last(parent));
-                        if (!isLangContainer && isAllChanged(getAtPath(prev, parent), getAtPath(curr, parent))) {
-                            removed.removeIf(p -> isSubList(parent, p));
-                            removed.add(parent);
-                        }
+                for (var parent : removed.stream().map(History::parent).collect(Collectors.toSet())) {
+                    boolean isLangContainer = m_jsonLd.getLangContainerAliasInverted().containsKey(last(parent));
+                    if (!isLangContainer && isAllChanged(getAtPath(prev, parent), getAtPath(curr, parent))) {
+                        removed.removeIf(p -> isSubList(parent, p));
+                        removed.add(parent);
                     }
                 }
             }
@@ -2,7 +2,9 @@ package whelk.history;
 
 import java.time.Instant;
 import java.time.ZonedDateTime;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Ownership {
     public String m_manualEditor;
@@ -45,6 +47,31 @@ public class Ownership {
         }
     }
 
+    /**
+     * Restore an ownership saved with toMap()
+     */
+    public Ownership(Map map) {
+        m_manualEditor = (String) map.get("manualEditor");
+        m_manualEditTime = parseInstant(map.get("manualEditTime"));
+        m_systematicEditor = (String) map.get("systematicEditor");
+        m_systematicEditorComment = (String) map.get("systematicEditorComment");
+        m_systematicEditTime = parseInstant(map.get("systematicEditTime"));
+    }
+
+    public Map toMap() {
+        Map map = new HashMap();
+        map.put("manualEditor", m_manualEditor);
+        map.put("manualEditTime", m_manualEditTime != null ? m_manualEditTime.toString() : null);
+        map.put("systematicEditor", m_systematicEditor);
+        map.put("systematicEditorComment", m_systematicEditorComment);
+        map.put("systematicEditTime", m_systematicEditTime != null ? m_systematicEditTime.toString() : null);
+        return map;
+    }
+
+    private static Instant parseInstant(Object s) {
+        return s != null ? Instant.parse((String) s) : null;
+    }
+
     public String toString() {
         StringBuilder sb = new StringBuilder();
 
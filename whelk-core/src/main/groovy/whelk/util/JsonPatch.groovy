@@ -0,0 +1,160 @@
+package whelk.util
+
+import groovy.transform.CompileStatic
+
+/**
+ * A subset of JSON Patch (RFC 6902) for JSON-LD data: add, remove and replace.
+ *
+ * The diff is not minimal, it is made for documents that change a little at a time:
+ * values are compared property by property and list position by list position, and elements
+ * added to or removed from the end of a list become single operations. Everything else that
+ * differs is replaced.
+ */
+@CompileStatic
+class JsonPatch {
+    static final String OP = 'op'
+    static final String PATH = 'path'
+    static final String VALUE = 'value'
+
+    static final String ADD = 'add'
+    static final String REMOVE = 'remove'
+    static final String REPLACE = 'replace'
+
+    /**
+     * @return operations that turn from into to
+     */
+    static List<Map> diff(Object from, Object to) {
+        List<Map> ops = []
+        collectDiff(from, to, '', ops)
+        return ops
+    }
+
+    /**
+     * Apply operations. Data is modified in place.
+     *
+     * @return the patched data, a new object only if the root was replaced
+     */
+    static Object apply(Object data, List<Map> ops) {
+        for (Map operation : ops) {
+            String path = (String) operation[PATH]
+            if (path == '') {
+                if (operation[OP] != REPLACE) {
+                    throw new IllegalArgumentException("Unsupported operation on root: $operation")
+                }
+                data = operation[VALUE]
+                continue
+            }
+
+            int i = path.lastIndexOf('/')
+            Object parent = resolve(data, path.substring(0, i))
+            String key = unescape(path.substring(i + 1))
+            if (parent instanceof Map) {
+                Map map = (Map) parent
+                switch (operation[OP]) {
+                    case ADD:
+                    case REPLACE:
+                        map.put(key, operation[VALUE])
+                        break
+                    case REMOVE:
+                        map.remove(key)
+                        break
+                    default:
+                        throw new IllegalArgumentException("Unsupported operation: $operation")
+                }
+            }
+            else if (parent instanceof List) {
+                List list = (List) parent
+                switch (operation[OP]) {
+                    case ADD:
+                        if (key == '-') {
+                            list.add(operation[VALUE])
+                        } else {
+                            list.add(Integer.parseInt(key), operation[VALUE])
+                        }
+                        break
+                    case REPLACE:
+                        list.set(Integer.parseInt(key), operation[VALUE])
+                        break
+                    case REMOVE:
+                        list.remove(Integer.parseInt(key))
+                        break
+                    default:
+                        throw new IllegalArgumentException("Unsupported operation: $operation")
+                }
+            }
+            else {
+                throw new IllegalArgumentException("No such path: $path")
+            }
+        }
+        return data
+    }
+
+    private static void collectDiff(Object from, Object to, String path, List<Map> ops) {
+        if (from instanceof Map && to instanceof Map) {
+            Map f = (Map) from
+            Map t = (Map) to
+            for (Map.Entry entry : f.entrySet()) {
+                String p = path + '/' + escape((String) entry.getKey())
+                if (!t.containsKey(entry.getKey())) {
+                    ops.add(op(REMOVE, p))
+                } else {
+                    collectDiff(entry.getValue(), t.get(entry.getKey()), p, ops)
+                }
+            }
+            for (Map.Entry entry : t.entrySet()) {
+                if (!f.containsKey(entry.getKey())) {
+                    ops.add(op(ADD, path + '/' + escape((String) entry.getKey()), entry.getValue()))
+                }
+            }
+        }
+        else if (from instanceof List && to instanceof List) {
+            List f = (List) from
+            List t = (List) to
+            int common = Math.min(f.size(), t.size())
+            for (int i = 0; i < common; i++) {
+                collectDiff(f[i], t[i], path + '/' + i, ops)
+            }
+            for (int i = f.size() - 1; i >= common; i--) {
+                ops.add(op(REMOVE, path + '/' + i))
+            }
+            for (int i = common; i < t.size(); i++) {
+                ops.add(op(ADD, path + '/-', t[i]))
+            }
+        }
+        else if (from != to) {
+            ops.add(op(REPLACE, path, to))
+        }
+    }
+
+    private static Object resolve(Object data, String pointer) {
+        if (pointer == '') {
+            return data
+        }
+        for (String token : pointer.substring(1).split('/', -1)) {
+            if (data instanceof Map) {
+                data = ((Map) data).get(unescape(token))
+            } else if (data instanceof List) {
+                data = ((List) data).get(Integer.parseInt(token))
+            } else {
+                throw new IllegalArgumentException("No such path: $pointer")
+            }
+        }
+        return data
+    }
+
+    private static Map op(String op, String path) {
+        return [(OP): op, (PATH): path]
+    }
+
+    private static Map op(String op, String path, Object value) {
+        return [(OP): op, (PATH): path, (VALUE): value]
+    }
+
+    private static String escape(String token) {
+        return token.replace('~', '~0').replace('/', '~1')
+    }
+
+    private static String unescape(String token) {
+        return token.replace('~1', '/').replace('~0', '~')
+    }
+}
@@ -2,6 +2,7 @@ package whelk.util
 
 import io.prometheus.client.Counter
 import io.prometheus.client.Summary
+import io.prometheus.client.guava.cache.CacheMetricsCollector
 
 class Metrics {
     static final Summary clientTimer = Summary.build()
@@ -18,4 +19,6 @@ class Metrics {
             .name("client_call_status")
             .help("External response status.")
             .register()
+
+    static final CacheMetricsCollector cacheMetrics = new CacheMetricsCollector().register()
 }
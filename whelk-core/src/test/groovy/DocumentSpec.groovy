@@ -128,6 +128,23 @@ class DocumentSpec extends Specification {
 
     }
 
+    def "deepcopy should not share mutable structure"() {
+        given:
+        Map map = ['@graph': [['@id': 'http://example.org/record', 'sameAs': [['@id': 'http://example.org/x']]],
+                              ['@id': 'http://example.org/thing', 'flag': true, 'count': 3L, 'label': "${'lab'}el"]]]
+
+        when:
+        Map copy = Document.deepCopy(map)
+        copy['@graph'][0]['sameAs'] << ['@id': 'http://example.org/y']
+        copy['@graph'][1].remove('flag')
+
+        then:
+        map['@graph'][0]['sameAs'] == [['@id': 'http://example.org/x']]
+        map['@graph'][1]['flag'] == true
+        copy['@graph'][1]['label'] instanceof String
+        copy['@graph'][1].keySet().toList() == ['@id', 'count', 'label']
+    }
+
     def "should not add identifier if already added"() {
         given:
         String id = '/foo'
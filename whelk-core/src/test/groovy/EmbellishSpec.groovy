@@ -7,6 +7,8 @@ import whelk.JsonLd
 import whelk.Link
 import whelk.util.JsonLdSpec
 
+import static whelk.util.Jackson.mapper
+
 class EmbellishSpec extends Specification {
     static final Map DISPLAY_DATA = [
             'lensGroups':
@@ -697,6 +699,89 @@ digraph {
         find(result, '/thingX2')
     }
 
+    def "embellishAll should give the same result as embellishing one document at a time"() {
+        given:
+        def ld = new JsonLd(JsonLdSpec.CONTEXT_DATA, DISPLAY_DATA, JsonLdSpec.VOCAB_DATA)
+
+        def docs = [
+                ['@graph': [['@type': 'R', '@id': '/record', 'mainEntity': ['@id': '/thing']],
+                            ['@type': 'X', '@id': '/thing', 'px1': ['@id': '/thingX1']]]],
+
+                ['@graph': [['@type': 'R', '@id': '/recordX1', 'mainEntity': ['@id': '/thingX1']],
+                            ['@type': 'X', '@id': '/thingX1', 'px1': ['@id': '/thingX2'], 'px2': ['@id': '/thingX4']]]],
+
+                ['@graph': [['@type': 'R', '@id': '/recordX2', 'mainEntity': ['@id': '/thingX2']],
+                            ['@type': 'X', '@id': '/thingX2', 'px1': ['@id': '/thingX3'], 'px2': ['@id': '/thingX1']]]],
+
+                ['@graph': [['@type': 'R', '@id': '/recordX3', 'mainEntity': ['@id': '/thingX3']],
+                            ['@type': 'X', '@id': '/thingX3', 'px1': ['@id': '/thing'], 'px2': 'foo']]],
+
+                ['@graph': [['@type': 'R', '@id': '/recordX4', 'mainEntity': ['@id': '/thingX4']],
+                            ['@type': 'X', '@id': '/thingX4', 'px1': 'foo', 'px2': 'foo']]],
+
+                ['@graph': [['@type': 'R', '@id': '/recordY0', 'mainEntity': ['@id': '/thingY0']],
+                            ['@type': 'Y', '@id': '/thingY0', 'py1': ['@id': '/thing'], 'py2': 'foo']]],
+
+                ['@graph': [['@type': 'R', '@id': '/recordY1', 'mainEntity': ['@id': '/thingY1']],
+                            ['@type': 'Y', '@id': '/thingY1', 'py1': ['@id': '/thingX1'], 'py2': 'foo']]],
+        ]
+
+        def storage = new TestStorage(ld)
+        docs.each(storage.&add)
+
+        def embellisher = new Embellisher(ld, storage.&getFull, storage.&getCards, storage.&getReverseLinks)
+
+        List<Document> oneByOne = docs.collect { new Document((Map) Document.deepCopy(it)) }
+        List<Document> batch = docs.collect { new Document((Map) Document.deepCopy(it)) }
+
+        when:
+        oneByOne.each { embellisher.embellish(it) }
+        embellisher.embellishAll(batch)
+
+        then:
+        batch*.data == oneByOne*.data
+    }
+
+    /*
+    embellish-baseline.json has random documents that link to each other and the result of embellishing them
+    with different settings, made with the Embellisher as it was before embellishAll was added.
+    Some documents link to replaced ids, i.e. IRIs that find a document they are not in, together with other
+    IRIs of the same documents.
+    */
+    def "should give the same result as before batch embellishment was added"() {
+        given:
+        def ld = new JsonLd(JsonLdSpec.CONTEXT_DATA, DISPLAY_DATA, JsonLdSpec.VOCAB_DATA)
+        Map baseline = mapper.readValue(getClass().getClassLoader().getResourceAsStream('embellish-baseline.json'), Map)
+        List<Map> docs = baseline.documents
+
+        def storage = new TestStorage(ld)
+        docs.each(storage.&add)
+        baseline.replacedIds.each { String oldIri, String iri -> storage.replace(oldIri, iri) }
+
+        expect:
+        baseline.cases.each { Map c ->
+            def embellisher = new Embellisher(ld, storage.&getFull, storage.&getCards, storage.&getReverseLinks)
+            if (c.integralRelations) {
+                embellisher.setIntegralRelations(c.integralRelations)
+            }
+            if (c.embellishLevels) {
+                embellisher.setEmbellishLevels(c.embellishLevels)
+            }
+            if (c.containsKey('followInverse')) {
+                embellisher.setFollowInverse(c.followInverse)
+            }
+
+            List<Document> oneByOne = docs.collect { new Document((Map) Document.deepCopy(it)) }
+            oneByOne.each { embellisher.embellish(it) }
+            List<Document> batch = docs.collect { new Document((Map) Document.deepCopy(it)) }
+            embellisher.embellishAll(batch)
+
+            String expected = mapper.writeValueAsString(c.embellished)
+            assert mapper.writeValueAsString(oneByOne*.data) == expected
+            assert mapper.writeValueAsString(batch*.data) == expected
+        }
+    }
+
     private Map find(Map graph, String id) {
         for (Map m in graph['@graph']) {
             if (m['@id'] && m['@id'] == id) {
@@ -735,8 +820,10 @@ digraph {
         throw new RuntimeException("Could not determine lens")
     }
 
+    // Like PostgreSQLComponent, returns every document once and in order of system id
     class TestStorage {
-        Map<String, Map> cards = new HashMap<>()
+        Map<String, String> systemIds = new HashMap<>()
+        SortedMap<String, Map> cards = new TreeMap<>()
         Multimap<Link, String> reverseLinks = new ArrayListMultimap<>()
 
         JsonLd jsonld
@@ -753,12 +840,19 @@ digraph {
 
             def card = jsonld.toCard(document, false)
 
-            iris.each { cards.put(it, card) }
+            String systemId = document['@graph'][0]['@id']
+            iris.each { systemIds.put(it, systemId) }
+            cards.put(systemId, card)
+        }
+
+        void replace(String oldIri, String iri) {
+            systemIds.put(oldIri, systemIds[iri])
         }
 
         Iterable<Map> getCards(Iterable<String> iris) {
-            return cards.findAll { key, value ->
-                iris.contains(key)
+            Set<String> ids = iris.collect { systemIds[it] }.findAll().toSet()
+            return cards.findAll { id, card ->
+                ids.contains(id)
             }.values().collect(Document.&deepCopy)
         }
 
@@ -111,4 +111,112 @@ class PostgreSQLComponentSpec extends Specification {
         cs1 == cs2
     }
 
+    def "should read on a replica, write inside it on the primary and not read stale data after writing"() {
+        given:
+        def replicaConnection = GroovyMock(Connection)
+        def replicaStatement = GroovyMock(PreparedStatement)
+        def replicaResult = GroovyMock(ResultSet)
+        def replicaPool = GroovyMock(DataSource)
+        replicaPool.getConnection() >> replicaConnection
+        replicaConnection.prepareStatement(_) >> replicaStatement
+        replicaStatement.executeQuery() >> replicaResult
+        replicaResult.next() >> true
+        replicaResult.getLong(1) >> 100L
+
+        conn.getAutoCommit() >> true
+        result.next() >> true
+        result.getLong(1) >> 200L
+
+        def primary = new PostgreSQLComponent((String) null) {
+            @Override
+            protected Connection _getConnection() {
+                conn
+            }
+
+            @Override
+            DataSource createAdditionalConnectionPool(String name, int size) {
+                additionalDataSource
+            }
+        }
+        primary.readReplicas = new ReadReplicas(['replica': (DataSource) replicaPool])
+
+        when:
+        List<Connection> used = []
+        primary.withReadOnlyDbConnection {
+            used << primary.getMyConnection()
+            primary.withDbConnection {
+                primary.removeUserData('id')
+                used << primary.getMyConnection()
+            }
+            used << primary.getMyConnection()
+        }
+        primary.withReadOnlyDbConnection {
+            used << primary.getMyConnection()
+        }
+
+        then:
+        used == [replicaConnection, conn, replicaConnection, conn]
+        primary.connectionContextTL.get() == null
+        primary.getLastWriteLsn() == 200L
+    }
+
+    def "should only get the WAL position after writing"() {
+        given:
+        conn.getAutoCommit() >> true
+        def primary = new PostgreSQLComponent((String) null) {
+            @Override
+            protected Connection _getConnection() {
+                conn
+            }
+        }
+        primary.readReplicas = new ReadReplicas(['replica': additionalDataSource])
+        additionalDataSource.getConnection() >> { throw new java.sql.SQLException('replica down') }
+
+        when: 'reading on the primary'
+        primary.withReadOnlyDbConnection {
+            primary.getMyConnection()
+        }
+        primary.withDbConnection {
+            primary.getMyConnection()
+        }
+
+        then:
+        0 * conn.prepareStatement(_)
+        primary.getLastWriteLsn() == 0L
+    }
+
+    def "should read as of a given WAL position"() {
+        given:
+        def replicaConnection = GroovyMock(Connection)
+        def replicaStatement = GroovyMock(PreparedStatement)
+        def replicaResult = GroovyMock(ResultSet)
+        def replicaPool = GroovyMock(DataSource)
+        replicaPool.getConnection() >> replicaConnection
+        replicaConnection.prepareStatement(_) >> replicaStatement
+        replicaStatement.executeQuery() >> replicaResult
+        replicaResult.next() >> true
+        replicaResult.getLong(1) >> 100L
+
+        def primary = new PostgreSQLComponent((String) null) {
+            @Override
+            protected Connection _getConnection() {
+                conn
+            }
+        }
+        primary.readReplicas = new ReadReplicas(['replica': (DataSource) replicaPool])
+
+        when:
+        List<Connection> used = []
+        primary.withReadsAfter(50L) {
+            primary.withReadOnlyDbConnection { used << primary.getMyConnection() }
+        }
+        primary.withReadsAfter(200L) {
+            primary.withReadOnlyDbConnection { used << primary.getMyConnection() }
+        }
+
+        then:
+        used == [replicaConnection, conn]
+        primary.getLastWriteLsn() == 0L
+    }
+
 }
@@ -0,0 +1,78 @@
+package whelk
+
+import spock.lang.Specification
+import whelk.component.ElasticIndexingQueue
+import whelk.component.ElasticIndexingQueue.Operation
+import whelk.component.ElasticSearch
+import whelk.component.PostgreSQLComponent
+import whelk.meta.WhelkConstants
+
+class WhelkIndexingSpec extends Specification {
+
+    // Stands in for Elasticsearch, records the batches it is given
+    List<List<Operation>> sent = Collections.synchronizedList([])
+    PostgreSQLComponent storage = GroovyMock(PostgreSQLComponent.class)
+    Whelk whelk
+
+    def setup() {
+        whelk = new Whelk(storage)
+        whelk.elastic = new ElasticSearch({ Collection<Operation> ops -> sent << ops.toList() } as ElasticIndexingQueue.BulkSender)
+        whelk.skipIndexDependers = true
+        storage.withReadsAfter(_, _) >> { long lsn, Closure c -> c.call() }
+    }
+
+    def "index a created document before returning in a batch job"() {
+        given:
+        Document doc = doc('a')
+        storage.createDocument(doc, 'xl', 'WhelkIndexingSpec', 'bib', false) >> true
+
+        when:
+        inBatchJobThread { whelk.createDocument(doc, 'xl', 'WhelkIndexingSpec', 'bib', false) }
+
+        then:
+        sentIds() == ['a']
+        sent.flatten()*.type == [Operation.Type.INDEX]
+    }
+
+    def "index an updated document before returning in a batch job"() {
+        given:
+        Document doc = doc('a')
+        storage.load('a') >> doc
+        storage.storeAtomicUpdate(doc, false, false, 'xl', 'WhelkIndexingSpec', 'checksum') >> doc
+
+        when:
+        inBatchJobThread { whelk.storeAtomicUpdate(doc, false, false, 'xl', 'WhelkIndexingSpec', 'checksum') }
+
+        then:
+        sentIds() == ['a']
+    }
+
+    def "remove a document from the index before returning in a batch job"() {
+        given:
+        storage.load('a') >> doc('a')
+
+        when:
+        inBatchJobThread { whelk.remove('a', 'xl', 'WhelkIndexingSpec') }
+
+        then:
+        sentIds() == ['a']
+        sent.flatten()*.type == [Operation.Type.DELETE]
+    }
+
+    private List<String> sentIds() {
+        return sent.flatten().collect { ((Operation) it).id }
+    }
+
+    private static void inBatchJobThread(Closure c) {
+        Thread t = new Thread(new ThreadGroup(WhelkConstants.BATCH_THREAD_GROUP), c)
+        t.start()
+        t.join()
+    }
+
+    private static Document doc(String id) {
+        String recordIri = Document.BASE_URI.resolve(id).toString()
+        Map record = ['@id': recordIri, '@type': 'Record', 'mainEntity': ['@id': recordIri + '#it']]
+        Map thing = ['@id': recordIri + '#it', '@type': 'Instance']
+        return new Document(['@graph': [record, thing]])
+    }
+}
@@ -0,0 +1,70 @@
+package whelk.component
+
+import spock.lang.Specification
+import whelk.Document
+
+class ConvertedCacheSpec extends Specification {
+
+    def "only return data converted from the requested version"() {
+        given:
+        def cache = new ConvertedCache(1024 * 1024)
+        cache.put('a', 'marcxml', 'v1', [1, 2, 3] as byte[])
+
+        expect:
+        cache.get('a', 'marcxml', 'v1') == [1, 2, 3] as byte[]
+        cache.get('a', 'marcxml', 'v2') == null
+        cache.get('a', 'oai_dc', 'v1') == null
+        cache.get('b', 'marcxml', 'v1') == null
+    }
+
+    def "keep other formats of the same version only"() {
+        given:
+        def cache = new ConvertedCache(1024 * 1024)
+        cache.put('a', 'marcxml', 'v1', [1] as byte[])
+        cache.put('a', 'oai_dc', 'v1', [2] as byte[])
+
+        expect:
+        cache.get('a', 'marcxml', 'v1') == [1] as byte[]
+        cache.get('a', 'oai_dc', 'v1') == [2] as byte[]
+
+        when:
+        cache.put('a', 'rdfxml', 'v2', [3] as byte[])
+
+        then:
+        cache.get('a', 'rdfxml', 'v2') == [3] as byte[]
+        cache.get('a', 'marcxml', 'v1') == null
+        cache.get('a', 'oai_dc', 'v1') == null
+    }
+
+    def "invalidate"() {
+        given:
+        def cache = new ConvertedCache(1024 * 1024)
+        cache.put('a', 'marcxml', 'v1', [1] as byte[])
+        cache.put('b', 'marcxml', 'v1', [2] as byte[])
+
+        when:
+        cache.invalidate(['a'])
+
+        then:
+        cache.get('a', 'marcxml', 'v1') == null
+        cache.get('b', 'marcxml', 'v1') == [2] as byte[]
+
+        when:
+        cache.invalidateAll()
+
+        then:
+        cache.get('b', 'marcxml', 'v1') == null
+    }
+
+    def "version covers all of the data"() {
+        given:
+        Map record = ['@id': 'https://libris.kb.se/a', 'modified': '2020-01-01', 'created': '2020-01-02']
+        Map swapped = ['@id': 'https://libris.kb.se/a', 'modified': '2020-01-02', 'created': '2020-01-01']
+        Map withStatus = record + ['recordStatus': 'marc:New']
+
+        expect:
+        ConvertedCache.version(new Document(['@graph': [record]])) == ConvertedCache.version(new Document(['@graph': [new HashMap(record)]]))
+        ConvertedCache.version(new Document(['@graph': [record]])) != ConvertedCache.version(new Document(['@graph': [swapped]]))
+        ConvertedCache.version(new Document(['@graph': [record]])) != ConvertedCache.version(new Document(['@graph': [withStatus]]))
+    }
+}
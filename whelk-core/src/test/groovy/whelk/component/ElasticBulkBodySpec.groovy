@@ -0,0 +1,93 @@
+package whelk.component
+
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+
+class ElasticBulkBodySpec extends Specification {
+
+    def "write NDJSON"() {
+        given:
+        def body = new ElasticBulkBody()
+        body.add('a', '{"index":{"_id":"a"}}', '{"x":"å"}')
+        body.add('b', '{"delete":{"_id":"b"}}')
+
+        def out = new ByteArrayOutputStream()
+        body.toEntity(ElasticSearch.BULK_CONTENT_TYPE).writeTo(out)
+
+        expect:
+        out.toString('UTF-8') == '{"index":{"_id":"a"}}\n{"x":"å"}\n{"delete":{"_id":"b"}}\n'
+        body.sizeBytes() == out.size()
+        body.size() == 2
+    }
+
+    def "read content the same as written, more than once"() {
+        given:
+        def body = new ElasticBulkBody()
+        body.add('a', '{"index":{"_id":"a"}}', '{"x":"å"}')
+        body.add('b', '{"delete":{"_id":"b"}}')
+        def entity = body.toEntity(ElasticSearch.BULK_CONTENT_TYPE)
+
+        def out = new ByteArrayOutputStream()
+        entity.writeTo(out)
+
+        expect:
+        entity.isRepeatable()
+        entity.getContent().bytes == out.toByteArray()
+        entity.getContent().bytes == out.toByteArray()
+        entity.getContentLength() == out.size()
+    }
+
+    def "read empty content"() {
+        expect:
+        new ElasticBulkBody().toEntity(ElasticSearch.BULK_CONTENT_TYPE).getContent().read() == -1
+    }
+
+    def "split by size"() {
+        given:
+        def body = new ElasticBulkBody()
+        ['a', 'b', 'c', 'd'].each { body.add(it, "{\"index\":{\"_id\":\"$it\"}}", '{}') }
+        long itemSize = body.sizeBytes() / 4
+
+        expect:
+        body.split(itemSize * 4).size() == 1
+        body.split(itemSize * 2)*.size() == [2, 2]
+        body.split(itemSize * 3)*.size() == [3, 1]
+        body.split(1)*.size() == [1, 1, 1, 1]
+        body.split(itemSize * 3)*.ids() == [['a', 'b', 'c'], ['d']]
+    }
+
+    def "select items"() {
+        given:
+        def body = new ElasticBulkBody()
+        ['a', 'b', 'c', 'd'].each { body.add(it, "{\"delete\":{\"_id\":\"$it\"}}") }
+
+        def out = new ByteArrayOutputStream()
+        def selected = body.select([1, 3])
+        selected.toEntity(ElasticSearch.BULK_CONTENT_TYPE).writeTo(out)
+
+        expect:
+        selected.ids() == ['b', 'd']
+        out.toString('UTF-8') == '{"delete":{"_id":"b"}}\n{"delete":{"_id":"d"}}\n'
+    }
+
+    def "parse bulk response"() {
+        given:
+        def response = '''
+            {"took":12,"errors":true,"items":[
+                {"index":{"_id":"a","status":201}},
+                {"update":{"_id":"b","status":404,"error":{"type":"document_missing_exception"}}},
+                {"index":{"_id":"c","status":429,"error":{"type":"es_rejected_execution_exception"}}}
+            ]}'''
+
+        when:
+        def parsed = ElasticSearch.BulkResponse.parse(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)))
+
+        then:
+        parsed.took == 12
+        parsed.failures*.index == [1, 2]
+        parsed.failures*.action == ['update', 'index']
+        parsed.failures*.status == [404, 429]
+        parsed.failures[1].error.type == 'es_rejected_execution_exception'
+    }
+}
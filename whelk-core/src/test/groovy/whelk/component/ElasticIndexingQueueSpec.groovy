@@ -0,0 +1,204 @@
+package whelk.component
+
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+import whelk.component.ElasticIndexingQueue.Operation
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+class ElasticIndexingQueueSpec extends Specification {
+
+    def conditions = new PollingConditions(timeout: 5)
+
+    // Stands in for ElasticSearch, records the batches it is given
+    List<List<Operation>> sent = Collections.synchronizedList([])
+    def sender = { Collection<Operation> ops -> sent << ops.toList() } as ElasticIndexingQueue.BulkSender
+
+    def "send a full batch right away"() {
+        given:
+        def queue = new ElasticIndexingQueue(sender, 100, 3, 60_000, 1)
+
+        when:
+        ['a', 'b', 'c'].each { queue.add(Operation.delete(it)) }
+
+        then:
+        conditions.eventually {
+            assert sent.size() == 1
+            assert sent[0]*.id == ['a', 'b', 'c']
+        }
+    }
+
+    def "send a partial batch when the oldest operation has waited long enough"() {
+        given:
+        def queue = new ElasticIndexingQueue(sender, 100, 100, 50, 1)
+
+        when:
+        queue.add(Operation.delete('a'))
+
+        then:
+        conditions.eventually {
+            assert sent*.collect { it.id } == [['a']]
+        }
+    }
+
+    def "split into batches in the order operations were queued"() {
+        given:
+        def queue = new ElasticIndexingQueue(sender, 100, 2, 60_000, 0)
+        ['a', 'b', 'c', 'd', 'e'].each { queue.add(Operation.delete(it)) }
+
+        when:
+        queue.flush()
+
+        then:
+        sent*.collect { it.id } == [['a', 'b'], ['c', 'd'], ['e']]
+        queue.size() == 0
+    }
+
+    def "merge operations on the same id"() {
+        given:
+        def queue = new ElasticIndexingQueue(sender, 100, 100, 60_000, 0)
+
+        when:
+        queue.add(Operation.updateReverseLinks('a', 1))
+        queue.add(Operation.updateReverseLinks('a', 2))
+        queue.add(Operation.index('b', null))
+        queue.add(Operation.delete('b'))
+        queue.add(Operation.index('c', null))
+        queue.add(Operation.updateReverseLinks('c', -1))
+
+        then:
+        queue.size() == 3
+
+        when:
+        queue.flush()
+
+        then:
+        sent.size() == 1
+        sent[0]*.id == ['a', 'b', 'c']
+        sent[0]*.type == [Operation.Type.UPDATE_REVERSE_LINKS, Operation.Type.DELETE, Operation.Type.INDEX]
+        sent[0][0].delta == 3
+    }
+
+    def "keep the time the first of merged operations was queued"() {
+        given:
+        def first = Operation.updateReverseLinks('a', 1)
+        def second = Operation.index('a', null)
+
+        expect:
+        first.mergeWith(second).queuedAt == first.queuedAt
+        first.mergeWith(second).type == Operation.Type.INDEX
+    }
+
+    def "only send one operation per id at a time"() {
+        given:
+        def started = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+        def blockingSender = { Collection<Operation> ops ->
+            sent << ops.toList()
+            started.countDown()
+            release.await()
+        } as ElasticIndexingQueue.BulkSender
+        def queue = new ElasticIndexingQueue(blockingSender, 100, 100, 10, 2)
+
+        when:
+        queue.add(Operation.updateReverseLinks('a', 1))
+        started.await(5, TimeUnit.SECONDS)
+        queue.add(Operation.updateReverseLinks('a', 2))
+        Thread.sleep(200)
+
+        then: 'the second operation waits for the first to be sent, even though there is a free sender'
+        sent.size() == 1
+        queue.size() == 1
+
+        when:
+        release.countDown()
+
+        then:
+        conditions.eventually {
+            assert sent*.collect { it.delta } == [[1], [2]]
+            assert queue.size() == 0
+        }
+    }
+
+    def "keep sending after a failed batch"() {
+        given:
+        def failed = new AtomicBoolean(false)
+        def failingSender = { Collection<Operation> ops ->
+            if (failed.compareAndSet(false, true)) {
+                throw new RuntimeException('elastic is down')
+            }
+            sent << ops.toList()
+        } as ElasticIndexingQueue.BulkSender
+        def queue = new ElasticIndexingQueue(failingSender, 100, 1, 60_000, 1)
+
+        when:
+        queue.add(Operation.delete('a'))
+        conditions.eventually {
+            assert failed.get()
+        }
+        queue.add(Operation.delete('a'))
+        queue.add(Operation.delete('b'))
+
+        then: 'the failed operation is no longer in flight, so the next operation on the same id is sent'
+        conditions.eventually {
+            assert sent*.collect { it.id } == [['a'], ['b']]
+        }
+    }
+
+    def "flush waits for batches already being sent by other threads"() {
+        given:
+        def started = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+        def blockingSender = { Collection<Operation> ops ->
+            started.countDown()
+            release.await()
+            sent << ops.toList()
+        } as ElasticIndexingQueue.BulkSender
+        def queue = new ElasticIndexingQueue(blockingSender, 100, 100, 10, 1)
+        queue.add(Operation.delete('a'))
+        started.await(5, TimeUnit.SECONDS)
+
+        when:
+        def flushing = Thread.start { queue.flush() }
+        flushing.join(200)
+
+        then:
+        flushing.isAlive()
+        queue.size() == 0
+
+        when:
+        release.countDown()
+        flushing.join(5000)
+
+        then:
+        !flushing.isAlive()
+        sent*.collect { it.id } == [['a']]
+    }
+
+    def "block when full, unless the operation can be merged"() {
+        given:
+        def queue = new ElasticIndexingQueue(sender, 2, 100, 60_000, 0)
+        queue.add(Operation.delete('a'))
+        queue.add(Operation.delete('b'))
+
+        when:
+        queue.add(Operation.index('a', null))
+        def adding = Thread.start { queue.add(Operation.delete('c')) }
+        adding.join(200)
+
+        then:
+        adding.isAlive()
+        queue.size() == 2
+
+        when:
+        queue.flush()
+        adding.join(5000)
+        queue.flush()
+
+        then:
+        !adding.isAlive()
+        sent*.collect { it.id }.flatten() == ['a', 'b', 'c']
+    }
+}
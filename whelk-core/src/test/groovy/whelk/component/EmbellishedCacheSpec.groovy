@@ -0,0 +1,106 @@
+package whelk.component
+
+import spock.lang.Specification
+import whelk.Document
+
+import static whelk.component.PostgreSQLComponent.NotificationType.EMBELLISHED_CACHE_CLEAR
+import static whelk.component.PostgreSQLComponent.NotificationType.EMBELLISHED_CACHE_INVALIDATE
+
+class EmbellishedCacheSpec extends Specification {
+
+    List sent = []
+    def storage = new PostgreSQLComponent() {
+        @Override
+        void sendNotification(PostgreSQLComponent.NotificationType type, List<String> payload) {
+            sent << [type, payload]
+        }
+    }
+
+    def "get what was put"() {
+        given:
+        def cache = new EmbellishedCache(storage, 1024 * 1024)
+        cache.put('a', '{"@graph": [{"@id": "a"}]}')
+
+        expect:
+        cache.get('a').data == ['@graph': [['@id': 'a']]]
+        cache.get('b') == null
+    }
+
+    def "return a new document every time"() {
+        given:
+        def cache = new EmbellishedCache(storage, 1024 * 1024)
+        cache.put('a', '{"@graph": [{"@id": "a"}]}')
+
+        when:
+        Document doc = cache.get('a')
+        doc.data['@graph'][0]['x'] = 'y'
+
+        then:
+        cache.get('a').data == ['@graph': [['@id': 'a']]]
+    }
+
+    def "invalidate locally and notify other instances"() {
+        given:
+        def cache = new EmbellishedCache(storage, 1024 * 1024)
+        cache.put('a', '{}')
+        cache.put('b', '{}')
+
+        when:
+        cache.invalidate(['a'])
+
+        then:
+        cache.get('a') == null
+        cache.get('b') != null
+        sent == [[EMBELLISHED_CACHE_INVALIDATE, ['a']]]
+    }
+
+    def "don't notify when there is nothing to invalidate"() {
+        given:
+        def cache = new EmbellishedCache(storage, 1024 * 1024)
+
+        when:
+        cache.invalidate([])
+
+        then:
+        sent == []
+    }
+
+    def "don't notify again when handling a notification"() {
+        given:
+        def cache = new EmbellishedCache(storage, 1024 * 1024)
+        cache.put('a', '{}')
+        cache.put('b', '{}')
+
+        when:
+        cache.handleInvalidateNotification(['a', 'c'])
+
+        then:
+        cache.get('a') == null
+        cache.get('b') != null
+        sent == []
+    }
+
+    def "clear"() {
+        given:
+        def cache = new EmbellishedCache(storage, 1024 * 1024)
+        cache.put('a', '{}')
+
+        when:
+        cache.clear()
+
+        then:
+        cache.get('a') == null
+        sent == [[EMBELLISHED_CACHE_CLEAR, []]]
+    }
+
+    def "stay within max size"() {
+        given:
+        def cache = new EmbellishedCache(storage, 1000)
+
+        when:
+        (1..100).each { cache.put("id$it", '{"x": "' + ('x' * 50) + '"}') }
+
+        then:
+        (1..100).count { cache.get("id$it") != null } < 20
+    }
+}
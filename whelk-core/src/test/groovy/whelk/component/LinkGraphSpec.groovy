@@ -0,0 +1,175 @@
+package whelk.component
+
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+class LinkGraphSpec extends Specification {
+
+    def conditions = new PollingConditions(timeout: 5)
+
+    // [id, relation, dependsOnId], as in lddb__dependencies
+    List<List<String>> dependencies = [
+            ['b1', 'broader', 'a'],
+            ['b2', 'broader', 'a'],
+            ['c', 'broader', 'b1'],
+            ['c', 'exactMatch', 'y'],
+            ['d', 'related', 'a'],
+    ]
+
+    def storage = new PostgreSQLComponent() {
+        @Override
+        void streamDependencies(Collection<String> relations, Closure handler) {
+            dependencies.findAll { it[1] in relations }.each { handler(it[0], it[1], it[2]) }
+        }
+
+        @Override
+        void streamThingIrisOfDependencies(Collection<String> relations, Closure handler) {
+            streamThingIrisBySystemIds(dependencies.findAll { it[1] in relations }.collectMany { [it[0], it[2]] }.toSet(), handler)
+        }
+
+        @Override
+        void streamThingIrisBySystemIds(Collection<String> ids, Closure handler) {
+            ids.each { id ->
+                handler(id, thing(id), true)
+                handler(id, "https://id.kb.se/alias/$id".toString(), false)
+            }
+        }
+
+        @Override
+        String getSystemIdByThingId(String thingId) {
+            return thingId.replace('https://libris.kb.se/', '').replace('#it', '')
+        }
+
+        @Override
+        List<String> getDependenciesOfType(String id, String relation) {
+            return dependencies.findAll { it[0] == id && it[1] == relation }.collect { it[2] }
+        }
+    }
+
+    def "not ready until loaded"() {
+        given:
+        def graph = new LinkGraph(storage, ['broader'])
+
+        expect:
+        !graph.isReady()
+
+        when:
+        graph.reload()
+
+        then:
+        conditions.eventually {
+            assert graph.isReady()
+        }
+    }
+
+    def "look up dependencies and dependers"() {
+        given:
+        def graph = loaded(['broader', 'exactMatch'])
+
+        expect:
+        graph.getDependencies(thing('c'), 'broader') == [thing('b1')] as Set
+        graph.getDependencies(thing('c'), 'exactMatch') == [thing('y')] as Set
+        graph.getDependers(thing('a'), 'broader') == [thing('b1'), thing('b2')] as Set
+        graph.getDependers('https://id.kb.se/alias/a', 'broader') == [thing('b1'), thing('b2')] as Set
+        graph.getDependers(thing('c'), 'broader') == [] as Set
+        graph.getDependers(thing('x'), 'broader') == [] as Set
+    }
+
+    def "cover only the loaded relations"() {
+        given:
+        def graph = loaded(['broader', 'exactMatch'])
+
+        expect:
+        graph.covers('broader')
+        graph.covers(['broader', 'exactMatch'])
+        !graph.covers('related')
+        !graph.covers(['broader', 'related'])
+    }
+
+    def "follow reverse links"() {
+        given:
+        def graph = loaded(['broader', 'exactMatch'])
+
+        expect:
+        graph.followReverse(thing('a'), ['broader'], []) == ['b1', 'b2', 'c'].collect { thing(it) } as Set
+        graph.followReverse(thing('b1'), ['broader'], []) == [thing('c')] as Set
+        graph.followReverse(thing('c'), ['broader'], []) == [] as Set
+        graph.followReverse(thing('x'), ['broader'], []) == [] as Set
+    }
+
+    def "follow symmetric relations in both directions"() {
+        given:
+        def graph = loaded(['broader', 'exactMatch'])
+
+        expect:
+        graph.followReverse(thing('a'), ['broader', 'exactMatch'], []) == ['b1', 'b2', 'c'].collect { thing(it) } as Set
+        graph.followReverse(thing('a'), ['broader', 'exactMatch'], ['exactMatch']) == ['b1', 'b2', 'c', 'y'].collect { thing(it) } as Set
+
+        graph.isReachable(thing('c'), thing('a'), ['broader'], [])
+        !graph.isReachable(thing('a'), thing('c'), ['broader'], [])
+        !graph.isReachable(thing('y'), thing('a'), ['broader', 'exactMatch'], [])
+        graph.isReachable(thing('y'), thing('a'), ['broader', 'exactMatch'], ['exactMatch'])
+        !graph.isReachable(thing('b2'), thing('b1'), ['broader', 'exactMatch'], ['exactMatch'])
+    }
+
+    def "pick up changed links"() {
+        given:
+        def graph = loaded(['broader'])
+
+        when: 'c is moved from b1 to b2 and a new n is added below c'
+        dependencies.remove(['c', 'broader', 'b1'])
+        dependencies.add(['c', 'broader', 'b2'])
+        dependencies.add(['n', 'broader', 'c'])
+        graph.refresh(thing('c'), 'broader')
+        graph.refresh(thing('n'), 'broader')
+
+        then:
+        conditions.eventually {
+            assert graph.getDependers(thing('n'), 'broader') == [] as Set
+            assert graph.getDependers(thing('c'), 'broader') == [thing('n')] as Set
+            assert graph.getDependers(thing('b1'), 'broader') == [] as Set
+            assert graph.getDependers(thing('b2'), 'broader') == [thing('c')] as Set
+            assert graph.getDependencies(thing('c'), 'broader') == [thing('b2')] as Set
+            assert graph.followReverse(thing('a'), ['broader'], []) == ['b1', 'b2', 'c', 'n'].collect { thing(it) } as Set
+        }
+
+        when: 'n is removed'
+        dependencies.remove(['n', 'broader', 'c'])
+        graph.refresh(thing('n'), 'broader')
+
+        then:
+        conditions.eventually {
+            assert graph.getDependers(thing('c'), 'broader') == [] as Set
+            assert graph.followReverse(thing('a'), ['broader'], []) == ['b1', 'b2', 'c'].collect { thing(it) } as Set
+        }
+    }
+
+    def "ignore changes to other relations"() {
+        given:
+        def graph = loaded(['broader'])
+
+        when:
+        dependencies.add(['e', 'related', 'a'])
+        graph.refresh(thing('e'), 'related')
+        graph.reload()
+
+        then:
+        conditions.eventually {
+            assert graph.isReady()
+            assert graph.getDependers(thing('a'), 'broader') == [thing('b1'), thing('b2')] as Set
+        }
+    }
+
+    private LinkGraph loaded(List<String> relations) {
+        def graph = new LinkGraph(storage, relations)
+        graph.reload()
+        conditions.eventually {
+            assert graph.isReady()
+        }
+        return graph
+    }
+
+    private static String thing(String id) {
+        return "https://libris.kb.se/$id#it".toString()
+    }
+}
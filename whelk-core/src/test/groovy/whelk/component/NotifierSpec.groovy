@@ -0,0 +1,167 @@
+package whelk.component
+
+import spock.lang.Specification
+
+import javax.sql.DataSource
+import java.nio.charset.StandardCharsets
+import java.sql.Array
+import java.sql.Connection
+import java.sql.PreparedStatement
+
+class NotifierSpec extends Specification {
+
+    // [channel, message] of every notification sent
+    List<List<String>> sent = []
+    boolean failing = false
+
+    // Stands in for the database, records what is passed to pg_notify
+    def dataSource = [getConnection: { ->
+        if (failing) {
+            throw new IllegalStateException('database is down')
+        }
+        Map<Integer, Object[]> arrays = [:]
+        def statement = [
+                setArray: { int i, Array a -> arrays[i] = (Object[]) a.getArray() },
+                execute : { ->
+                    arrays[1].eachWithIndex { channel, int i -> sent << [channel, arrays[2][i]] }
+                    return true
+                },
+                close   : { -> },
+        ] as PreparedStatement
+        return [
+                prepareStatement: { String sql -> statement },
+                createArrayOf   : { String type, Object[] elements -> [getArray: { -> elements }] as Array },
+                close           : { -> },
+        ] as Connection
+    }] as DataSource
+
+    // No background flushing, the tests flush when needed
+    Notifier notifier(int maxQueued = 100) {
+        return new Notifier('me', '¤', dataSource, 'clear_all', maxQueued, 3_600_000)
+    }
+
+    def "send queued ids on flush"() {
+        given:
+        def notifier = notifier()
+        notifier.send('x', ['a', 'b'])
+        notifier.send('y', ['c'])
+
+        expect:
+        sent == []
+
+        when:
+        notifier.flush()
+
+        then:
+        sent == [['x', 'me¤a¤b'], ['y', 'me¤c']]
+
+        when:
+        notifier.flush()
+
+        then: 'nothing more to send'
+        sent.size() == 2
+    }
+
+    def "send an empty payload as a notification without ids"() {
+        given:
+        def notifier = notifier()
+
+        when:
+        notifier.send('x', [])
+        notifier.flush()
+
+        then:
+        sent == [['x', 'me']]
+    }
+
+    def "coalesce ids queued on the same channel"() {
+        given:
+        def notifier = notifier()
+
+        when:
+        notifier.send('x', ['a', 'b'])
+        notifier.send('x', ['b', 'c'])
+        notifier.send('y', ['a'])
+        notifier.flush()
+
+        then:
+        sent == [['x', 'me¤a¤b¤c'], ['y', 'me¤a']]
+    }
+
+    def "send a clear all notification instead of the queued ids when too many are queued"() {
+        given:
+        def notifier = notifier(3)
+
+        when:
+        notifier.send('x', ['a', 'b'])
+        notifier.send('y', ['c', 'd'])
+        notifier.send('x', ['e'])
+        notifier.flush()
+
+        then:
+        sent == [['clear_all', 'me']]
+
+        when: 'ids queued after the clear all has been sent'
+        notifier.send('x', ['f'])
+        notifier.flush()
+
+        then:
+        sent == [['clear_all', 'me'], ['x', 'me¤f']]
+    }
+
+    def "keep ids queued when sending fails"() {
+        given:
+        def notifier = notifier()
+        notifier.send('x', ['a'])
+
+        when:
+        failing = true
+        notifier.flush()
+
+        then:
+        sent == []
+
+        when:
+        failing = false
+        notifier.send('x', ['a', 'b'])
+        notifier.flush()
+
+        then:
+        sent == [['x', 'me¤a¤b']]
+    }
+
+    def "keep a clear all queued when sending fails"() {
+        given:
+        def notifier = notifier(1)
+        notifier.send('x', ['a', 'b'])
+
+        when:
+        failing = true
+        notifier.flush()
+        failing = false
+        notifier.flush()
+
+        then:
+        sent == [['clear_all', 'me']]
+    }
+
+    def "pack payload"() {
+        expect:
+        Notifier.pack('me', '¤', ['a', 'b']) == ['me¤a¤b']
+        Notifier.pack('me', '¤', []) == ['me']
+    }
+
+    def "split payloads longer than the limit"() {
+        given:
+        def ids = (1..2000).collect { "https://id.kb.se/term/sao/$it".toString() }
+
+        when:
+        def messages = Notifier.pack('me', '¤', ids)
+
+        then:
+        messages.size() > 1
+        messages.every { it.getBytes(StandardCharsets.UTF_8).length < Notifier.MAX_PAYLOAD_BYTES }
+        messages.every { it.startsWith('me¤') }
+        messages.collectMany { it.split('¤').drop(1) as List } == ids
+    }
+}
@@ -0,0 +1,63 @@
+package whelk.converter.marc
+
+import se.kb.libris.util.marc.Datafield
+import se.kb.libris.util.marc.MarcRecord
+import se.kb.libris.util.marc.impl.ControlfieldImpl
+import se.kb.libris.util.marc.impl.DatafieldImpl
+import se.kb.libris.util.marc.impl.MarcRecordImpl
+import spock.lang.Specification
+import whelk.converter.JSONMarcConverter
+
+import javax.xml.parsers.DocumentBuilderFactory
+import javax.xml.stream.XMLOutputFactory
+
+class JsonLD2MarcXMLConverterSpec extends Specification {
+
+    def "write record directly, same as serialized and filtered"() {
+        given:
+        String serialized = JsonLD2MarcXMLConverter.filterRestrictedXmlEscapeSequences(
+                JSONMarcConverter.marcRecordAsXMLString(record()))
+
+        MarcRecord filtered = record()
+        JsonLD2MarcXMLConverter.filterRestrictedCharacters(filtered)
+        StringWriter written = new StringWriter()
+        def writer = XMLOutputFactory.newInstance().createXMLStreamWriter(written)
+        JsonLD2MarcXMLConverter.writeRecord(filtered, writer)
+        writer.flush()
+
+        expect:
+        parse(written.toString()).isEqualNode(parse(serialized))
+    }
+
+    def "filter restricted escape sequences"() {
+        expect:
+        JsonLD2MarcXMLConverter.filterRestrictedXmlEscapeSequences(xml) == expected
+
+        where:
+        xml                                  || expected
+        "<a>x</a>"                           || "<a>x</a>"
+        "&#1;a&#10;b&#31;&#127;&#133;&#159;" || "a&#10;b&#133;"
+        "x&#12;&#13;&#14;y&#x1;&#"           || "x&#13;y&#x1;&#"
+    }
+
+    private static MarcRecord record() {
+        MarcRecord record = new MarcRecordImpl()
+        record.setLeader("00000cam a2200000 a 4500")
+        record.addField(new ControlfieldImpl("001", "abc\u0001d\u0085e"))
+        Datafield datafield = new DatafieldImpl("245")
+        datafield.setIndicator(0, '1' as char)
+        datafield.setIndicator(1, ' ' as char)
+        datafield.addSubfield('a' as char, "Titel <&> \"\u0009\u0081\u009f\u0085 åäö")
+        datafield.addSubfield('0' as char, "https://id.kb.se/term/sao/x#it")
+        record.addField(datafield)
+        return record
+    }
+
+    private static org.w3c.dom.Document parse(String xml) {
+        def factory = DocumentBuilderFactory.newInstance()
+        factory.setNamespaceAware(true)
+        def document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes("UTF-8")))
+        document.normalizeDocument()
+        return document
+    }
+}
@@ -767,6 +767,39 @@ class HistorySpec extends Specification {
         history.getOwnership(["@graph", 1, "a", 1, "b"]).m_manualEditor == "sigel2" // Doesn't exist anymore, (should revert to list owner).
     }
 
+    def "history restored from saved state and extended is the same as one computed from all versions"() {
+        given:
+        def ld = new JsonLd(JsonLdSpec.CONTEXT_DATA, ["@context": [:]], JsonLdSpec.VOCAB_DATA)
+        def versions = [
+                ['sigel1', ['@graph': [['modified': '2022-02-01T12:00:00Z'], ['a': [['b': 'x'], ['b': 'y']], 'c': 'z']]]],
+                ['sigel2', ['@graph': [['modified': '2022-02-02T12:00:00Z'], ['a': [['b': 'x']], 'c': 'z']]]],
+                ['sigel3', ['@graph': [['modified': '2022-02-03T12:00:00Z'], ['a': [['b': 'x']], 'd': 'z']]]],
+        ].collect { changedBy, data ->
+            new DocumentVersion(new Document(data), changedBy, 'xl')
+        }
+
+        def all = new History(versions, ld)
+        def state = Jackson.mapper.readValue(Jackson.mapper.writeValueAsString(new History(versions.take(2), ld).getState()), Map)
+        def extended = new History(state, versions[1], ld)
+        extended.appendVersion(versions[2])
+
+        expect:
+        extended.getNumberOfVersions() == 3
+        json(extended.m_changeSetsMap) == json(all.m_changeSetsMap)
+        [[], ['@graph', 1], ['@graph', 1, 'a', 0, 'b'], ['@graph', 1, 'd']].every { path ->
+            extended.getOwnership(path).toString() == all.getOwnership(path).toString()
+        }
+    }
+
+    static Map json(Map changeSets) {
+        Map m = Jackson.mapper.readValue(Jackson.mapper.writeValueAsString(changeSets), Map)
+        m.changeSets.each { cs ->
+            cs.addedPaths = cs.addedPaths as Set
+            cs.removedPaths = cs.removedPaths as Set
+        }
+        return m
+    }
+
     def diff(List<Map> versions) {
         def display = [
                 "@context": [
@@ -0,0 +1,32 @@
+package whelk.util
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static whelk.util.Jackson.mapper
+
+class JsonPatchSpec extends Specification {
+
+    @Unroll
+    def "diff and apply"() {
+        given:
+        def patch = JsonPatch.diff(from, to)
+        // Patches are stored as JSON
+        def copy = mapper.readValue(mapper.writeValueAsString(from), Object)
+
+        expect:
+        patch == expected
+        JsonPatch.apply(copy, mapper.readValue(mapper.writeValueAsString(patch), List)) == to
+
+        where:
+        from                           | to                             || expected
+        ['a': 1]                       | ['a': 1]                       || []
+        ['a': 1]                       | ['a': 2]                       || [['op': 'replace', 'path': '/a', 'value': 2]]
+        ['a': 1, 'b': 2]               | ['b': 2, 'c': [3]]             || [['op': 'remove', 'path': '/a'], ['op': 'add', 'path': '/c', 'value': [3]]]
+        ['a': [1, 2, 3]]               | ['a': [1, 4]]                  || [['op': 'replace', 'path': '/a/1', 'value': 4], ['op': 'remove', 'path': '/a/2']]
+        ['a': [['x': 1]]]              | ['a': [['x': 1], ['y': 2]]]    || [['op': 'add', 'path': '/a/-', 'value': ['y': 2]]]
+        ['a/b': ['~c': 1]]             | ['a/b': ['~c': 2]]             || [['op': 'replace', 'path': '/a~1b/~0c', 'value': 2]]
+        ['a': ['x': 1]]                | ['a': 'x']                     || [['op': 'replace', 'path': '/a', 'value': 'x']]
+        ['a': [1, 2]]                  | ['b': 1]                       || [['op': 'remove', 'path': '/a'], ['op': 'add', 'path': '/b', 'value': 1]]
+    }
+}